@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A thread-safe pool of equally-sized {@link ByteBuffer}s. */
+public class BufferPool {
+    private ConcurrentLinkedQueue<ByteBuffer> mPool   = new ConcurrentLinkedQueue<>();
+    private AtomicInteger                     mPooled = new AtomicInteger();
+    private int                               mBufferSize;
+    private int                               mMaximumPooled;
+    private boolean                           mDirect;
+
+    /**
+     * @param bufferSize    The size of each buffer.
+     * @param maximumPooled The maximum number of idle buffers to retain.
+     * @param direct        Pass in {@code true} to allocate direct buffers.
+     */
+    public BufferPool(int bufferSize, int maximumPooled, boolean direct) {
+        mBufferSize = bufferSize;
+        mMaximumPooled = maximumPooled;
+        mDirect = direct;
+    }
+
+    /** @return The size of the buffers this pool hands out. */
+    public final int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return A cleared buffer. It should be returned to the pool via {@link #release(ByteBuffer)}
+     *         once it is no longer in use.
+     */
+    public final ByteBuffer acquire() {
+        ByteBuffer buffer = mPool.poll();
+        if (buffer == null) {
+            return mDirect ? ByteBuffer.allocateDirect(mBufferSize) : ByteBuffer.allocate(mBufferSize);
+        }
+        mPooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @param buffer A buffer previously obtained from {@link #acquire()}. It must not be used by
+     *               the caller after this call.
+     */
+    public final void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == mBufferSize && buffer.isDirect() == mDirect) {
+            if (mPooled.incrementAndGet() <= mMaximumPooled) {
+                mPool.add(buffer);
+            } else {
+                mPooled.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A range of bytes within a file that is to be sent to the remote end. For plain connections, the
+ * data is handed directly from the file system to the socket via {@link
+ * FileChannel#transferTo(long, long, WritableByteChannel)}, without passing through the heap.
+ */
+public class FileRegion implements Closeable {
+    private FileChannel mChannel;
+    private long        mPosition;
+    private long        mRemaining;
+
+    /**
+     * Creates a region covering the entire file.
+     *
+     * @param path The file to send.
+     */
+    public FileRegion(Path path) throws IOException {
+        mChannel = FileChannel.open(path, StandardOpenOption.READ);
+        mRemaining = mChannel.size();
+    }
+
+    /**
+     * @param path     The file to send.
+     * @param position The offset within the file to start at.
+     * @param count    The number of bytes to send.
+     */
+    public FileRegion(Path path, long position, long count) throws IOException {
+        mChannel = FileChannel.open(path, StandardOpenOption.READ);
+        mPosition = position;
+        mRemaining = count;
+    }
+
+    /** @return The number of bytes that have yet to be sent. */
+    public final long getRemaining() {
+        return mRemaining;
+    }
+
+    /** @return {@code true} if there are bytes that have yet to be sent. */
+    public final boolean hasRemaining() {
+        return mRemaining > 0;
+    }
+
+    /**
+     * Transfers as much of the region as the target will currently accept.
+     *
+     * @param target The channel to write to.
+     * @return The number of bytes transferred.
+     */
+    final long transferTo(WritableByteChannel target) throws IOException {
+        long amount = mChannel.transferTo(mPosition, mRemaining, target);
+        if (amount > 0) {
+            mPosition += amount;
+            mRemaining -= amount;
+        } else if (mPosition >= mChannel.size()) {
+            // The file has been truncated out from under us
+            mRemaining = 0;
+        }
+        return amount;
+    }
+
+    /**
+     * Reads the next portion of the region into the buffer, advancing past it. Used when the data
+     * has to be framed or encrypted on its way out, so it can't be transferred directly.
+     *
+     * @param buffer The buffer to read into.
+     * @return The number of bytes read, or {@code -1} if the end of the region or file has been
+     *         reached.
+     */
+    public final int read(ByteBuffer buffer) throws IOException {
+        if (mRemaining <= 0) {
+            return -1;
+        }
+        if (buffer.remaining() > mRemaining) {
+            buffer.limit(buffer.position() + (int) mRemaining);
+        }
+        int amount = mChannel.read(buffer, mPosition);
+        if (amount > 0) {
+            mPosition += amount;
+            mRemaining -= amount;
+        } else if (amount < 0) {
+            mRemaining = 0;
+        }
+        return amount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
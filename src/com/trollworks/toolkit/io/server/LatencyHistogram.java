@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations so that their distribution can be reported. Each power of two is split into
+ * eight buckets, so a reported percentile is never more than 12.5% above the true value, while
+ * recording is a single atomic increment and the whole range of a {@code long} fits in under 500
+ * buckets.
+ */
+public final class LatencyHistogram {
+    private static final int             SUB_BUCKET_BITS = 3;
+    private static final int             SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    private static final int             BUCKETS         = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private              AtomicLongArray mBuckets        = new AtomicLongArray(BUCKETS);
+    private              LongAdder       mTotal          = new LongAdder();
+    private              AtomicLong      mMaximum        = new AtomicLong();
+
+    /** @param nanos The duration to record, in nanoseconds. Negative values are treated as zero. */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets.incrementAndGet(indexOf(nanos));
+        mTotal.add(nanos);
+        if (nanos > mMaximum.get()) {
+            mMaximum.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    /**
+     * @return A {@link LatencySummary} of the durations recorded so far. Recording may continue
+     *         while the summary is made, so its figures may be very slightly inconsistent with
+     *         one another.
+     */
+    public LatencySummary getSummary() {
+        long[] counts = new long[BUCKETS];
+        long   count  = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+            count += counts[i];
+        }
+        long maximum = mMaximum.get();
+        if (count == 0) {
+            return new LatencySummary(0, 0, 0, 0, 0, 0, 0);
+        }
+        return new LatencySummary(count, mTotal.sum() / (double) count, percentile(counts, count, 0.5, maximum), percentile(counts, count, 0.9, maximum), percentile(counts, count, 0.99, maximum), percentile(counts, count, 0.999, maximum), maximum);
+    }
+
+    private static long percentile(long[] counts, long count, double fraction, long maximum) {
+        long target = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen   = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(upperBound(i), maximum);
+            }
+        }
+        return maximum;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift     = magnitude - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift & SUB_BUCKETS - 1);
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.json.JsonMap;
+
+import java.beans.ConstructorProperties;
+
+/** A snapshot of the distribution of the durations recorded by a {@link LatencyHistogram}. */
+public final class LatencySummary {
+    private long   mCount;
+    private double mMean;
+    private long   mP50;
+    private long   mP90;
+    private long   mP99;
+    private long   mP999;
+    private long   mMax;
+
+    /**
+     * @param count The number of durations recorded.
+     * @param mean  The mean duration, in nanoseconds.
+     * @param p50   The median duration, in nanoseconds.
+     * @param p90   The 90th percentile duration, in nanoseconds.
+     * @param p99   The 99th percentile duration, in nanoseconds.
+     * @param p999  The 99.9th percentile duration, in nanoseconds.
+     * @param max   The longest duration, in nanoseconds.
+     */
+    @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+    public LatencySummary(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+        mCount = count;
+        mMean = mean;
+        mP50 = p50;
+        mP90 = p90;
+        mP99 = p99;
+        mP999 = p999;
+        mMax = max;
+    }
+
+    /** @return The number of durations recorded. */
+    public long getCount() {
+        return mCount;
+    }
+
+    /** @return The mean duration, in nanoseconds. */
+    public double getMean() {
+        return mMean;
+    }
+
+    /** @return The median duration, in nanoseconds. */
+    public long getP50() {
+        return mP50;
+    }
+
+    /** @return The 90th percentile duration, in nanoseconds. */
+    public long getP90() {
+        return mP90;
+    }
+
+    /** @return The 99th percentile duration, in nanoseconds. */
+    public long getP99() {
+        return mP99;
+    }
+
+    /** @return The 99.9th percentile duration, in nanoseconds. */
+    public long getP999() {
+        return mP999;
+    }
+
+    /** @return The longest duration, in nanoseconds. */
+    public long getMax() {
+        return mMax;
+    }
+
+    /** @return A {@link JsonMap} holding this summary, with durations in microseconds. */
+    public JsonMap toJson() {
+        JsonMap map = new JsonMap();
+        map.put("count", mCount);
+        map.put("mean_us", mMean / 1000);
+        map.put("p50_us", mP50 / 1000);
+        map.put("p90_us", mP90 / 1000);
+        map.put("p99_us", mP99 / 1000);
+        map.put("p999_us", mP999 / 1000);
+        map.put("max_us", mMax / 1000);
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + mCount + " mean=" + (long) mMean + "ns p50=" + mP50 + "ns p90=" + mP90 + "ns p99=" + mP99 + "ns p99.9=" + mP999 + "ns max=" + mMax + "ns";
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Common base for the metrics objects, allowing them to be published through the platform {@link
+ * javax.management.MBeanServer}. Subclasses implement an interface whose name ends in {@code
+ * MXBean}.
+ */
+public abstract class MetricsBean {
+    /** The domain used for the names of registered metrics. */
+    public static final String     DOMAIN = "com.trollworks.toolkit";
+    private             ObjectName mObjectName;
+
+    /**
+     * Registers this object with the platform {@link javax.management.MBeanServer}, replacing any
+     * previous registration of it. The name is made up of {@link #DOMAIN}, the simple name of the
+     * class as the {@code type} and the passed in name.
+     *
+     * @param name A name that distinguishes this object from others of the same type, such as the
+     *             port a server listens on.
+     * @return The {@link ObjectName} that was registered.
+     */
+    public final synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=" + getClass().getSimpleName() + ",name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        mObjectName = objectName;
+        return objectName;
+    }
+
+    /** Removes the registration made by {@link #register(String)}, if any. */
+    public final synchronized void unregister() {
+        if (mObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+            } catch (JMException exception) {
+                Log.error(exception);
+            }
+            mObjectName = null;
+        }
+    }
+
+    /** @return The {@link ObjectName} this object is registered under, or {@code null}. */
+    public final synchronized ObjectName getObjectName() {
+        return mObjectName;
+    }
+}
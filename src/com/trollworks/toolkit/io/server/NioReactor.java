@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Performs the reads and writes for the {@link Session}s assigned to it by a {@link NioServer}.
+ * Each reactor owns its own {@link Selector} and read buffer.
+ */
+final class NioReactor extends Thread {
+    private static final int                            MAXIMUM_GATHER        = 16;
+    private static final long                           LINGER_CHECK          = 250;
+    private              Selector                       mSelector;
+    private              List<Session>                  mPendingRegistrations = new LinkedList<>();
+    private              ConcurrentLinkedQueue<Session> mPendingFlushes       = new ConcurrentLinkedQueue<>();
+    private              ConcurrentLinkedQueue<Session> mPendingCloses        = new ConcurrentLinkedQueue<>();
+    private              List<Session>                  mLingering            = new ArrayList<>();
+    private              ByteBuffer                     mReadBuffer           = ByteBuffer.allocate(8192);
+    private              ByteBuffer[]                   mGather               = new ByteBuffer[MAXIMUM_GATHER];
+    private              AtomicInteger                  mLoad                 = new AtomicInteger();
+    private              ServerMetrics                  mMetrics;
+
+    /**
+     * @param name    The name to give the reactor's thread.
+     * @param metrics The {@link ServerMetrics} to record i/o in.
+     */
+    NioReactor(String name, ServerMetrics metrics) throws IOException {
+        mMetrics = metrics;
+        setName(name);
+        setDaemon(true);
+        mSelector = SelectorProvider.provider().openSelector();
+    }
+
+    /** @return The number of {@link Session}s currently assigned to this reactor. */
+    int getLoad() {
+        return mLoad.get();
+    }
+
+    /**
+     * Assigns a newly accepted {@link Session} to this reactor. The actual registration with the
+     * {@link Selector} happens on the reactor's thread.
+     *
+     * @param session The {@link Session} to register.
+     */
+    void register(Session session) {
+        mLoad.incrementAndGet();
+        synchronized (mPendingRegistrations) {
+            mPendingRegistrations.add(session);
+        }
+        mSelector.wakeup();
+    }
+
+    /** Called when a session that was assigned to this reactor is closed. */
+    void sessionClosed() {
+        mLoad.decrementAndGet();
+    }
+
+    /** Stops the reactor, waiting for its thread to exit. */
+    void shutdown() {
+        try {
+            mSelector.close();
+        } catch (IOException exception) {
+            Log.error(exception);
+        }
+        try {
+            join();
+        } catch (InterruptedException exception) {
+            // Ignore
+        }
+    }
+
+    @Override
+    public void run() {
+        long busySince = 0;
+        while (true) {
+            try {
+                // Register any newly assigned sessions
+                synchronized (mPendingRegistrations) {
+                    for (Session session : mPendingRegistrations) {
+                        try {
+                            session.getChannel().register(mSelector, SelectionKey.OP_READ, session);
+                        } catch (IOException exception) {
+                            session.requestClose(true);
+                        }
+                    }
+                    mPendingRegistrations.clear();
+                }
+
+                // Push out any newly queued data
+                Session session;
+                while ((session = mPendingFlushes.poll()) != null) {
+                    flush(session);
+                }
+
+                // Close any sessions that are done, all at once so the cancelled keys are
+                // flushed by a single select
+                closeSessions();
+
+                // Wait for some work, checking back periodically if sessions are waiting to close
+                if (busySince != 0) {
+                    mMetrics.selectorLoopCompleted(System.nanoTime() - busySince);
+                }
+                if (mLingering.isEmpty()) {
+                    mSelector.select();
+                } else {
+                    mSelector.select(LINGER_CHECK);
+                }
+                busySince = System.nanoTime();
+
+                // Handle the work
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush((Session) key.attachment());
+                    }
+                }
+            } catch (CancelledKeyException cke) {
+                // Ignore
+            } catch (ClosedSelectorException cse) {
+                break;
+            } catch (Throwable throwable) {
+                Log.error(throwable);
+            }
+        }
+    }
+
+    /**
+     * Requests that the queued outbound data for the specified {@link Session} be written. Only
+     * called when the session transitions from having nothing queued to having something queued,
+     * so a burst of sends results in a single wakeup of the selector.
+     *
+     * @param session The {@link Session} with data to write.
+     */
+    void requestFlush(Session session) {
+        mPendingFlushes.add(session);
+        if (Thread.currentThread() != this) {
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Requests that the {@link Session}'s channel be closed once any data still queued for it has
+     * been written.
+     *
+     * @param session The {@link Session} to close.
+     */
+    void requestClose(Session session) {
+        mPendingCloses.add(session);
+        if (Thread.currentThread() != this) {
+            mSelector.wakeup();
+        }
+    }
+
+    private void closeSessions() {
+        Session session;
+        while ((session = mPendingCloses.poll()) != null) {
+            mLingering.add(session);
+        }
+        if (!mLingering.isEmpty()) {
+            long now   = System.currentTimeMillis();
+            int  count = mLingering.size();
+            int  kept  = 0;
+            for (int i = 0; i < count; i++) {
+                session = mLingering.get(i);
+                if (session.isReadyToClose(now)) {
+                    SelectionKey key = session.getChannel().keyFor(mSelector);
+                    if (key != null) {
+                        key.cancel();
+                    }
+                    session.close();
+                } else {
+                    mLingering.set(kept++, session);
+                }
+            }
+            mLingering.subList(kept, count).clear();
+        }
+    }
+
+    /**
+     * @param socket The socket to check.
+     * @return {@code true} if there is data waiting to be sent on the specified socket.
+     */
+    boolean hasPendingWrite(SocketChannel socket) {
+        SelectionKey key = socket.keyFor(mSelector);
+        return key != null && ((Session) key.attachment()).hasPendingWrite();
+    }
+
+    private void read(SelectionKey key) {
+        @SuppressWarnings("resource") SocketChannel socketChannel = (SocketChannel) key.channel();
+        Session session = (Session) key.attachment();
+        mReadBuffer.clear();
+        int amount;
+        try {
+            amount = socketChannel.read(mReadBuffer);
+            if (amount > 0) {
+                mMetrics.bytesRead(amount);
+                session.requestHandleInput(mReadBuffer);
+            } else if (amount == -1) {
+                // Stop watching for input, as the end of stream would otherwise be reported on
+                // every select until the channel is closed
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                session.requestClose(false);
+            }
+        } catch (Throwable throwable) {
+            session.requestClose(true);
+        }
+    }
+
+    private void flush(Session session) {
+        SelectionKey key = session.getChannel().keyFor(mSelector);
+        if (key == null || !key.isValid()) {
+            session.discardPendingWrites();
+            return;
+        }
+        try {
+            boolean more;
+            do {
+                if (!session.flush(mGather)) {
+                    // The socket can't take any more right now, so wait until it can
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                more = session.flushCompleted();
+            } while (more);
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException ioe) {
+            session.discardPendingWrites();
+            session.requestClose(true);
+        }
+    }
+}
@@ -16,8 +16,8 @@ import com.trollworks.toolkit.io.Log;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.URL;
-import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
@@ -29,43 +29,128 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
 
-/** The core non-blocking i/o server. */
+/**
+ * The core non-blocking i/o server. A single acceptor thread hands each new connection off to one
+ * of a set of {@link NioReactor}s, each of which owns its own {@link Selector} and performs the
+ * actual reads and writes for the connections assigned to it.
+ */
 public class NioServer extends Thread {
-    private Selector                                   mSelector;
-    private List<ChangeRequest>                        mPendingChanges   = new LinkedList<>();
-    private Map<SocketChannel, LinkedList<ByteBuffer>> mPendingWriteData = new HashMap<>();
-    private ByteBuffer                                 mReadBuffer       = ByteBuffer.allocate(8192);
-    private LinkedBlockingQueue<Session>               mQueue            = new LinkedBlockingQueue<>();
-    private List<NioWorker>                            mWorkers          = new ArrayList<>();
-    private Set<Session>                               mSessions         = new HashSet<>();
-    private SSLContext                                 mSSLContext;
+    private static final long                      TIMER_TICK          = 250;
+    private static final int                       TIMER_SLOTS         = 512;
+    private              Selector                  mSelector;
+    private              NioReactor[]              mReactors;
+    private              ReactorBalancing          mBalancing;
+    private              int                       mNextReactor;
+    private              NioWorker[]               mWorkers;
+    private              ExecutorService           mExecutor;
+    private              AtomicInteger             mNextWorker         = new AtomicInteger();
+    private              Set<Session>              mSessions           = new HashSet<>();
+    private              Map<InetAddress, Integer> mAddressCounts      = new HashMap<>();
+    private volatile     int                       mMaximumSessions;
+    private volatile     int                       mMaximumSessionsPerAddress;
+    private              SSLContext                mSSLContext;
+    private              int                       mLowWriteWatermark  = 32 * 1024;
+    private              int                       mHighWriteWatermark = 64 * 1024;
+    private              TimingWheel               mTimingWheel;
+    private              long                      mIdleTimeout        = TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES);
+    private              long                      mReadTimeout        = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+    private              long                      mWriteTimeout       = TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES);
+    private              BufferPool                mBufferPool         = new BufferPool(16 * 1024, 256, true);
+    private              LongAdder                 mClosedCount        = new LongAdder();
+    private              LongAdder                 mCloseLatencyTotal  = new LongAdder();
+    private              AtomicLong                mCloseLatencyMax    = new AtomicLong();
+    private              ExecutorService           mHandshakeExecutor;
+    private              BufferPool                mSSLBufferPool;
+    private              LongAdder                 mHandshakeCount     = new LongAdder();
+    private              LongAdder                 mResumedHandshakes  = new LongAdder();
+    private              LongAdder                 mFailedHandshakes   = new LongAdder();
+    private              LongAdder                 mHandshakeTimeTotal = new LongAdder();
+    private              RateCounter               mHandshakeRate      = new RateCounter();
+    private              ServerMetrics             mMetrics            = new ServerMetrics(this);
 
     /**
+     * Creates a server that performs all i/o on a single reactor thread.
+     *
      * @param sslContext The {@link SSLContext} to use. Typically created by calling {@link
      *                   SSLSupport#createContext(URL, String)}.
      */
     public NioServer(SSLContext sslContext) throws IOException {
+        this(sslContext, 1, ReactorBalancing.ROUND_ROBIN);
+    }
+
+    /**
+     * @param sslContext   The {@link SSLContext} to use. Typically created by calling {@link
+     *                     SSLSupport#createContext(URL, String)}.
+     * @param reactorCount The number of i/o reactor threads to use. Pass in a value less than 1 to
+     *                     use one per available processor.
+     * @param balancing    The {@link ReactorBalancing} strategy to use when assigning new
+     *                     connections to a reactor.
+     */
+    public NioServer(SSLContext sslContext, int reactorCount, ReactorBalancing balancing) throws IOException {
+        this(sslContext, reactorCount, balancing, null);
+    }
+
+    /**
+     * @param sslContext   The {@link SSLContext} to use. Typically created by calling {@link
+     *                     SSLSupport#createContext(URL, String)}.
+     * @param reactorCount The number of i/o reactor threads to use. Pass in a value less than 1 to
+     *                     use one per available processor.
+     * @param balancing    The {@link ReactorBalancing} strategy to use when assigning new
+     *                     connections to a reactor.
+     * @param executor     The {@link ExecutorService} to process {@link Session}s with, such as one
+     *                     created by {@link WorkerExecutors}. It will be shut down along with the
+     *                     server. Pass in {@code null} to use a fixed pool of worker threads, one
+     *                     more than the number of available processors.
+     */
+    public NioServer(SSLContext sslContext, int reactorCount, ReactorBalancing balancing, ExecutorService executor) throws IOException {
         setName(getClass().getSimpleName());
         setDaemon(true);
         mSSLContext = sslContext;
+        mBalancing = balancing;
         mSelector = SelectorProvider.provider().openSelector();
-        int count = Runtime.getRuntime().availableProcessors() + 1;
-        for (int i = 0; i < count; i++) {
-            NioWorker worker = new NioWorker(mQueue);
+        if (reactorCount < 1) {
+            reactorCount = Runtime.getRuntime().availableProcessors();
+        }
+        mReactors = new NioReactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            mReactors[i] = new NioReactor("NioReactor " + (i + 1), mMetrics);
+            mReactors[i].start();
+        }
+        mExecutor = executor;
+        mWorkers = new NioWorker[executor != null ? 0 : Runtime.getRuntime().availableProcessors() + 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new NioWorker(i);
+        }
+        for (NioWorker worker : mWorkers) {
             worker.start();
-            mWorkers.add(worker);
         }
-        TimeoutMonitor timeoutMonitor = new TimeoutMonitor(TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES));
-        timeoutMonitor.start();
+        mTimingWheel = new TimingWheel(TIMER_TICK, TIMER_SLOTS);
+        mTimingWheel.start();
+        if (sslContext != null) {
+            // Size the pooled buffers so that they can hold either a full packet or a full record
+            SSLSession probe = sslContext.createSSLEngine().getSession();
+            mSSLBufferPool = new BufferPool(Math.max(probe.getPacketBufferSize(), probe.getApplicationBufferSize()), 256, false);
+            AtomicInteger nextId = new AtomicInteger();
+            mHandshakeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "SSLHandshake " + nextId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 
     /** @return The {@link SSLContext} to use with this server. */
@@ -73,6 +158,241 @@ public class NioServer extends Thread {
         return mSSLContext;
     }
 
+    /**
+     * @return The {@link BufferPool} used for transient i/o buffers, such as those needed while
+     *         streaming a file through an encrypted connection.
+     */
+    public final BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * @return The {@link BufferPool} that {@link SSLSupport} borrows its packet and application
+     *         buffers from while encrypting or decrypting, or {@code null} if SSL is not in use.
+     */
+    final BufferPool getSSLBufferPool() {
+        return mSSLBufferPool;
+    }
+
+    /**
+     * @return The {@link ExecutorService} that runs the delegated tasks of SSL handshakes, keeping
+     *         their expensive key exchange work off the worker threads, or {@code null} if SSL is
+     *         not in use.
+     */
+    final ExecutorService getHandshakeExecutor() {
+        return mHandshakeExecutor;
+    }
+
+    /** @return The number of i/o reactor threads in use. */
+    public final int getReactorCount() {
+        return mReactors.length;
+    }
+
+    /**
+     * @return The number of queued outbound bytes at or below which a {@link Session} that was
+     *         marked as not writable becomes writable again.
+     */
+    public final int getLowWriteWatermark() {
+        return mLowWriteWatermark;
+    }
+
+    /**
+     * @return The number of queued outbound bytes above which a {@link Session} is marked as not
+     *         writable.
+     */
+    public final int getHighWriteWatermark() {
+        return mHighWriteWatermark;
+    }
+
+    /**
+     * Sets the thresholds used to apply back pressure to producers of outbound data. See {@link
+     * Session#isWritable()}.
+     *
+     * @param low  The number of queued outbound bytes at or below which a {@link Session} becomes
+     *             writable again.
+     * @param high The number of queued outbound bytes above which a {@link Session} is no longer
+     *             considered writable.
+     */
+    public final void setWriteWatermarks(int low, int high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("Invalid write watermarks: low=" + low + ", high=" + high);
+        }
+        mLowWriteWatermark = low;
+        mHighWriteWatermark = high;
+    }
+
+    /**
+     * @return The default number of milliseconds without any activity after which a {@link
+     *         Session} will be closed, or {@code 0} if there is no limit.
+     */
+    public final long getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    /**
+     * @param timeout The default number of milliseconds without any activity after which a {@link
+     *                Session} will be closed, or {@code 0} if there should be no limit. Only
+     *                affects {@link Session}s created after this call. See {@link
+     *                Session#setIdleTimeout(long)}.
+     */
+    public final void setIdleTimeout(long timeout) {
+        mIdleTimeout = timeout;
+    }
+
+    /**
+     * @return The default number of milliseconds a {@link Session} has to finish reading a request
+     *         once it has started, or {@code 0} if there is no limit.
+     */
+    public final long getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    /**
+     * @param timeout The default number of milliseconds a {@link Session} has to finish reading a
+     *                request once it has started, or {@code 0} if there should be no limit. Only
+     *                affects {@link Session}s created after this call. See {@link
+     *                Session#setReadTimeout(long)}.
+     */
+    public final void setReadTimeout(long timeout) {
+        mReadTimeout = timeout;
+    }
+
+    /**
+     * @return The default number of milliseconds that outbound data may wait without any of it
+     *         being written before a {@link Session} will be closed, or {@code 0} if there is no
+     *         limit.
+     */
+    public final long getWriteTimeout() {
+        return mWriteTimeout;
+    }
+
+    /**
+     * @param timeout The default number of milliseconds that outbound data may wait without any of
+     *                it being written before a {@link Session} will be closed, or {@code 0} if
+     *                there should be no limit. Only affects {@link Session}s created after this
+     *                call. See {@link Session#setWriteTimeout(long)}.
+     */
+    public final void setWriteTimeout(long timeout) {
+        mWriteTimeout = timeout;
+    }
+
+    /**
+     * @return The maximum number of {@link Session}s that may be open at once, or {@code 0} for no
+     *         limit.
+     */
+    public final int getMaximumSessions() {
+        return mMaximumSessions;
+    }
+
+    /**
+     * @param maximum The maximum number of {@link Session}s that may be open at once. Connections
+     *                beyond this are closed as soon as they are accepted. Pass in {@code 0} for no
+     *                limit.
+     */
+    public final void setMaximumSessions(int maximum) {
+        mMaximumSessions = Math.max(maximum, 0);
+    }
+
+    /**
+     * @return The maximum number of {@link Session}s that may be open at once from a single
+     *         address, or {@code 0} for no limit.
+     */
+    public final int getMaximumSessionsPerAddress() {
+        return mMaximumSessionsPerAddress;
+    }
+
+    /**
+     * @param maximum The maximum number of {@link Session}s that may be open at once from a single
+     *                address. Connections beyond this are closed as soon as they are accepted.
+     *                Pass in {@code 0} for no limit.
+     */
+    public final void setMaximumSessionsPerAddress(int maximum) {
+        mMaximumSessionsPerAddress = Math.max(maximum, 0);
+    }
+
+    /** @return The {@link TimingWheel} that tracks {@link Session} timeouts. */
+    final TimingWheel getTimingWheel() {
+        return mTimingWheel;
+    }
+
+    /** @return The number of {@link Session}s that have been closed. */
+    public final long getClosedSessionCount() {
+        return mClosedCount.sum();
+    }
+
+    /**
+     * @return The average number of nanoseconds between a close being requested for a {@link
+     *         Session} and its channel actually being closed. This includes any time spent waiting
+     *         for queued data to be written.
+     */
+    public final long getAverageCloseLatency() {
+        long count = mClosedCount.sum();
+        return count > 0 ? mCloseLatencyTotal.sum() / count : 0;
+    }
+
+    /**
+     * @return The largest number of nanoseconds between a close being requested for a {@link
+     *         Session} and its channel actually being closed.
+     */
+    public final long getMaximumCloseLatency() {
+        return mCloseLatencyMax.get();
+    }
+
+    /** @return The number of SSL handshakes that have completed successfully. */
+    public final long getHandshakeCount() {
+        return mHandshakeCount.sum();
+    }
+
+    /**
+     * @return The number of successful SSL handshakes that resumed a cached session rather than
+     *         performing a full key exchange.
+     */
+    public final long getResumedHandshakeCount() {
+        return mResumedHandshakes.sum();
+    }
+
+    /** @return The number of SSL handshakes that failed. */
+    public final long getFailedHandshakeCount() {
+        return mFailedHandshakes.sum();
+    }
+
+    /**
+     * @return The average number of nanoseconds between the first data of a handshake arriving and
+     *         the handshake completing. This includes time spent waiting for the client.
+     */
+    public final long getAverageHandshakeTime() {
+        long count = mHandshakeCount.sum();
+        return count > 0 ? mHandshakeTimeTotal.sum() / count : 0;
+    }
+
+    /**
+     * @param seconds The number of recent, complete seconds to average over. Limited to 63.
+     * @return The average number of SSL handshakes completed per second.
+     */
+    public final double getHandshakesPerSecond(int seconds) {
+        return mHandshakeRate.getRate(System.currentTimeMillis(), seconds);
+    }
+
+    /**
+     * Called when an SSL handshake completes.
+     *
+     * @param elapsed The number of nanoseconds the handshake took.
+     * @param resumed Whether a cached session was resumed.
+     */
+    final void handshakeCompleted(long elapsed, boolean resumed) {
+        mHandshakeCount.increment();
+        mHandshakeTimeTotal.add(elapsed);
+        if (resumed) {
+            mResumedHandshakes.increment();
+        }
+        mHandshakeRate.record(System.currentTimeMillis());
+    }
+
+    /** Called when an SSL handshake fails. */
+    final void handshakeFailed() {
+        mFailedHandshakes.increment();
+    }
+
     /** @return The current {@link Session}s. */
     public final List<Session> getSessions() {
         synchronized (mSessions) {
@@ -80,13 +400,38 @@ public class NioServer extends Thread {
         }
     }
 
-    /** Called when a session is closed. */
-    final void sessionClosed(Session session) {
+    /** @return The number of current {@link Session}s. */
+    public final int getSessionCount() {
         synchronized (mSessions) {
-            mSessions.remove(session);
+            return mSessions.size();
         }
     }
 
+    /** @return The {@link ServerMetrics} for this server. */
+    public final ServerMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Called when a session is closed.
+     *
+     * @param session The {@link Session} that was closed.
+     * @param latency The number of nanoseconds between the close being requested and the channel
+     *                being closed.
+     */
+    final void sessionClosed(Session session, long latency) {
+        synchronized (mSessions) {
+            if (mSessions.remove(session)) {
+                releaseAddress(session.getAddress());
+            }
+        }
+        mClosedCount.increment();
+        mCloseLatencyTotal.add(latency);
+        mCloseLatencyMax.accumulateAndGet(latency, Math::max);
+        mMetrics.sessionClosed(latency);
+        mTimingWheel.cancel(session.getTimer());
+    }
+
     /** Call to shutdown the server. */
     public final void shutdown() {
         try {
@@ -118,19 +463,6 @@ public class NioServer extends Thread {
     public final void run() {
         while (true) {
             try {
-                // Adjust what we're waiting on
-                Selector selector = mSelector;
-                synchronized (mPendingChanges) {
-                    for (ChangeRequest request : mPendingChanges) {
-                        try {
-                            request.mSocket.keyFor(selector).interestOps(request.mOperation);
-                        } catch (Exception exception) {
-                            // Ignore
-                        }
-                    }
-                    mPendingChanges.clear();
-                }
-
                 // Wait for some work
                 mSelector.select();
 
@@ -139,21 +471,19 @@ public class NioServer extends Thread {
                 while (keys.hasNext()) {
                     SelectionKey key = keys.next();
                     keys.remove();
-                    if (key.isValid()) {
-                        if (key.isAcceptable()) {
-                            accept(key);
-                        } else if (key.isReadable()) {
-                            read(key);
-                        } else if (key.isWritable()) {
-                            write(key);
-                        }
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept(key);
                     }
                 }
             } catch (CancelledKeyException cke) {
                 // Ignore
             } catch (ClosedSelectorException cse) {
-                // Allow the work queue to drain
-                while (!mQueue.isEmpty()) {
+                // Stop performing i/o
+                for (NioReactor reactor : mReactors) {
+                    reactor.shutdown();
+                }
+                // Allow the work queues to drain
+                while (hasQueuedWork()) {
                     try {
                         Thread.sleep(50);
                     } catch (InterruptedException exception) {
@@ -169,6 +499,19 @@ public class NioServer extends Thread {
                         break;
                     }
                 }
+                mTimingWheel.shutdown();
+                mMetrics.unregister();
+                if (mHandshakeExecutor != null) {
+                    mHandshakeExecutor.shutdownNow();
+                }
+                if (mExecutor != null) {
+                    mExecutor.shutdown();
+                    try {
+                        mExecutor.awaitTermination(1, TimeUnit.MINUTES);
+                    } catch (InterruptedException ie) {
+                        // Ignore
+                    }
+                }
                 break;
             } catch (Throwable throwable) {
                 Log.error(throwable);
@@ -176,164 +519,205 @@ public class NioServer extends Thread {
         }
     }
 
-    /**
-     * Puts the data into the send queue.
-     *
-     * @param socket The socket to send data through.
-     * @param data   The data to send. A copy of the data is not made, so do not modify it once
-     *               passed to this method.
-     */
-    final void send(SocketChannel socket, ByteBuffer data) {
-        synchronized (mPendingWriteData) {
-            LinkedList<ByteBuffer> list = mPendingWriteData.get(socket);
-            if (list == null) {
-                list = new LinkedList<>();
-                mPendingWriteData.put(socket, list);
-            }
-            list.add(data);
-        }
-        synchronized (mPendingChanges) {
-            mPendingChanges.add(new ChangeRequest(socket, SelectionKey.OP_WRITE));
-        }
-        mSelector.wakeup();
-    }
-
     /**
      * @param socket The socket to check.
      * @return {@code true} if there is data waiting to be sent on the specified socket.
      */
     public final boolean hasPendingWrite(SocketChannel socket) {
-        synchronized (mPendingWriteData) {
-            List<ByteBuffer> list = mPendingWriteData.get(socket);
-            return list != null && !list.isEmpty();
+        for (NioReactor reactor : mReactors) {
+            if (reactor.hasPendingWrite(socket)) {
+                return true;
+            }
         }
+        return false;
     }
 
     private void accept(SelectionKey key) throws IOException {
         @SuppressWarnings("resource") ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
         @SuppressWarnings("resource") SocketChannel socketChannel = serverSocketChannel.accept();
-        socketChannel.configureBlocking(false);
-        Session session = ((SessionFactory) key.attachment()).createSession(this, socketChannel);
+        if (socketChannel == null) {
+            return;
+        }
+        InetAddress address = socketChannel.socket().getInetAddress();
+        if (!admit(address)) {
+            // Refuse the connection before committing any resources to it
+            mMetrics.sessionRejected();
+            socketChannel.close();
+            return;
+        }
+        Session session;
+        try {
+            socketChannel.configureBlocking(false);
+            // Responses often go out as a header followed by a separate body write, which Nagle's
+            // algorithm would otherwise hold back until the client's delayed ACK arrives
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+            session = ((SessionFactory) key.attachment()).createSession(this, socketChannel);
+        } catch (IOException | RuntimeException exception) {
+            synchronized (mSessions) {
+                releaseAddress(address);
+            }
+            socketChannel.close();
+            throw exception;
+        }
         synchronized (mSessions) {
             mSessions.add(session);
         }
-        socketChannel.register(mSelector, SelectionKey.OP_READ, session);
+        mMetrics.sessionAccepted();
+        NioReactor reactor = selectReactor();
+        session.setReactor(reactor);
+        mTimingWheel.schedule(session.getTimer());
+        if (mWorkers.length > 0) {
+            session.setWorker(Math.floorMod(mNextWorker.getAndIncrement(), mWorkers.length));
+        }
+        reactor.register(session);
     }
 
-    private void read(SelectionKey key) {
-        @SuppressWarnings("resource") SocketChannel socketChannel = (SocketChannel) key.channel();
-        Session session = (Session) key.attachment();
-        mReadBuffer.clear();
-        int amount;
-        try {
-            amount = socketChannel.read(mReadBuffer);
-            if (amount > 0) {
-                session.requestHandleInput(mReadBuffer);
-            } else if (amount == -1) {
-                session.requestClose(false);
+    /**
+     * @param address The address a new connection came from.
+     * @return {@code true} if the connection is within the session limits, in which case it has
+     *         been counted against them.
+     */
+    private boolean admit(InetAddress address) {
+        int maximum           = mMaximumSessions;
+        int maximumPerAddress = mMaximumSessionsPerAddress;
+        synchronized (mSessions) {
+            if (maximum > 0 && mSessions.size() >= maximum) {
+                return false;
             }
-        } catch (Throwable throwable) {
-            session.requestClose(true);
+            int count = mAddressCounts.getOrDefault(address, Integer.valueOf(0)).intValue();
+            if (maximumPerAddress > 0 && count >= maximumPerAddress) {
+                return false;
+            }
+            mAddressCounts.put(address, Integer.valueOf(count + 1));
+            return true;
         }
     }
 
     /**
-     * Adds the specified {@link Session} to the queue to be worked on.
+     * Must be called while holding the lock on {@link #mSessions}.
+     *
+     * @param address The address a connection that has closed came from.
+     */
+    private void releaseAddress(InetAddress address) {
+        mAddressCounts.computeIfPresent(address, (key, count) -> count.intValue() > 1 ? Integer.valueOf(count.intValue() - 1) : null);
+    }
+
+    private NioReactor selectReactor() {
+        if (mReactors.length == 1) {
+            return mReactors[0];
+        }
+        if (mBalancing == ReactorBalancing.LEAST_LOADED) {
+            NioReactor best = mReactors[0];
+            int        load = best.getLoad();
+            for (int i = 1; i < mReactors.length; i++) {
+                int one = mReactors[i].getLoad();
+                if (one < load) {
+                    best = mReactors[i];
+                    load = one;
+                }
+            }
+            return best;
+        }
+        NioReactor reactor = mReactors[mNextReactor];
+        mNextReactor = (mNextReactor + 1) % mReactors.length;
+        return reactor;
+    }
+
+    /**
+     * Adds the specified {@link Session} to the queue of the worker it is pinned to. If that worker
+     * is busy, an idle worker is woken so that it may steal the work.
      *
      * @param session The {@link Session} to schedule.
      */
     final void scheduleSession(Session session) {
-        mQueue.add(session);
-    }
-
-    @SuppressWarnings("resource")
-    private void write(SelectionKey key) {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        synchronized (mPendingWriteData) {
-            LinkedList<ByteBuffer> list = mPendingWriteData.get(socketChannel);
-            if (list == null || list.isEmpty()) {
-                key.interestOps(SelectionKey.OP_READ);
-            } else {
-                ByteBuffer buffer = list.getFirst();
-                try {
-                    socketChannel.write(buffer);
-                } catch (IOException ioe) {
-                    mPendingWriteData.remove(socketChannel);
-                    key.interestOps(SelectionKey.OP_READ);
-                    return;
-                }
-                if (buffer.remaining() == 0) {
-                    list.removeFirst();
-                    if (list.isEmpty()) {
-                        key.interestOps(SelectionKey.OP_READ);
-                    }
+        mMetrics.sessionQueued();
+        if (mExecutor != null) {
+            mExecutor.execute(() -> process(session));
+            return;
+        }
+        NioWorker worker = mWorkers[session.getWorker()];
+        worker.mQueue.add(session);
+        if (!worker.wake()) {
+            for (NioWorker other : mWorkers) {
+                if (other.wake()) {
+                    break;
                 }
             }
         }
     }
 
-    private static class ChangeRequest {
-        final SocketChannel mSocket;
-        final int           mOperation;
+    private void process(Session session) {
+        mMetrics.sessionDequeued();
+        try {
+            session.processRequests();
+        } catch (Throwable throwable) {
+            Log.error(session, throwable);
+            session.requestClose(true);
+        }
+    }
 
-        ChangeRequest(SocketChannel socket, int operation) {
-            mSocket = socket;
-            mOperation = operation;
+    private boolean hasQueuedWork() {
+        for (NioWorker worker : mWorkers) {
+            if (!worker.mQueue.isEmpty()) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private static class NioWorker extends Thread {
-        private static final AtomicInteger                NEXT_ID = new AtomicInteger();
-        private              LinkedBlockingQueue<Session> mQueue;
+    /**
+     * Processes {@link Session}s that have pending requests. Each {@link Session} is pinned to a
+     * worker so that its state tends to stay in one processor's cache, but a worker that has run
+     * out of work of its own will take work from the others.
+     */
+    private class NioWorker extends Thread {
+        private          int                            mIndex;
+        private          ConcurrentLinkedQueue<Session> mQueue = new ConcurrentLinkedQueue<>();
+        private volatile boolean                        mIdle;
 
-        NioWorker(LinkedBlockingQueue<Session> queue) {
-            mQueue = queue;
-            setName("NioWorker " + NEXT_ID.incrementAndGet());
+        NioWorker(int index) {
+            mIndex = index;
+            setName("NioWorker " + (index + 1));
             setDaemon(true);
         }
 
-        @Override
-        public void run() {
-            while (!isInterrupted()) {
-                Session session = null;
-                try {
-                    session = mQueue.take();
-                    session.processNextRequest();
-                } catch (InterruptedException iex) {
-                    break;
-                } catch (Throwable throwable) {
-                    Log.error(session, throwable);
-                    if (session != null) {
-                        session.requestClose(true);
-                    }
-                }
+        /** @return {@code true} if the worker was idle and has been woken. */
+        boolean wake() {
+            if (mIdle) {
+                mIdle = false;
+                LockSupport.unpark(this);
+                return true;
             }
+            return false;
         }
-    }
 
-    private class TimeoutMonitor extends Thread {
-        private long mTimeout;
-
-        TimeoutMonitor(long timeoutMilliseconds) {
-            setName(getClass().getSimpleName());
-            setDaemon(true);
-            mTimeout = timeoutMilliseconds;
+        private Session steal() {
+            for (int i = 1; i < mWorkers.length; i++) {
+                Session session = mWorkers[(mIndex + i) % mWorkers.length].mQueue.poll();
+                if (session != null) {
+                    return session;
+                }
+            }
+            return null;
         }
 
         @Override
         public void run() {
-            while (true) {
-                try {
-                    Thread.sleep(Math.max(mTimeout / 4, 1000));
-                    long timeout = System.currentTimeMillis() - mTimeout;
-                    for (Session session : getSessions()) {
-                        if (session.getLastActivity() <= timeout) {
-                            session.requestClose(false);
+            while (!isInterrupted()) {
+                Session session = mQueue.poll();
+                if (session == null) {
+                    session = steal();
+                    if (session == null) {
+                        mIdle = true;
+                        // Check again, as work may have been queued before we were marked idle
+                        if (mQueue.isEmpty()) {
+                            LockSupport.park(this);
                         }
+                        mIdle = false;
+                        continue;
                     }
-                } catch (InterruptedException exception) {
-                    break;
                 }
+                process(session);
             }
         }
     }
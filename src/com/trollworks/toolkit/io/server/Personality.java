@@ -28,6 +28,17 @@ public abstract class Personality {
         mSession = session;
     }
 
+    /**
+     * Associates this {@link Personality} with a {@link Session} without installing it as the
+     * session's current personality. Useful for personalities that handle a part of the traffic on
+     * behalf of another.
+     *
+     * @param session The {@link Session} to work with.
+     */
+    protected final void attachToSession(Session session) {
+        mSession = session;
+    }
+
     /** @return {@code true} if the associated {@link Session} is secure. */
     public final boolean isSecure() {
         return getSession().isSecure();
@@ -51,6 +62,57 @@ public abstract class Personality {
         mSession.send(buffer);
     }
 
+    /**
+     * Sends a buffer obtained from the server's {@link BufferPool}, optionally followed by another
+     * buffer. On plain connections the two go out in a single gathering write, after which the
+     * pooled buffer is returned to the pool.
+     *
+     * @param pooled The data to send, in a buffer acquired from {@link NioServer#getBufferPool()}.
+     *               It must not be used by the caller after this call.
+     * @param next   The data to send immediately afterward, or {@code null}. A copy of the data is
+     *               not made, so do not modify it once passed to this method.
+     */
+    public final void sendPooled(ByteBuffer pooled, ByteBuffer next) {
+        mSession.sendPooled(pooled, next);
+    }
+
+    /**
+     * Sends a region of a file. This avoids copying the file's contents through the heap, and
+     * should be preferred over reading the file into a buffer. Only available on plain
+     * connections; on secure ones, read the file in pieces while {@link #isWritable()} returns
+     * {@code true}, resuming from {@link #writabilityChanged(boolean)}.
+     *
+     * @param region The {@link FileRegion} to send. It will be closed once it has been sent.
+     */
+    public final void send(FileRegion region) throws IOException {
+        mSession.send(region);
+    }
+
+    /**
+     * @return {@code true} if the associated {@link Session} is willing to accept more outbound
+     *         data. See {@link Session#isWritable()}.
+     */
+    public final boolean isWritable() {
+        return mSession.isWritable();
+    }
+
+    /**
+     * Called when the value returned by {@link #isWritable()} changes. Does nothing by default.
+     *
+     * @param writable The current writability of the associated {@link Session}.
+     */
+    public void writabilityChanged(boolean writable) {
+        // Does nothing by default
+    }
+
+    /**
+     * Called when an alarm set with {@link Session#setAlarm(long)} goes off. Does nothing by
+     * default.
+     */
+    public void alarm() throws IOException {
+        // Does nothing by default
+    }
+
     /**
      * Requests that the associated {@link Session} be closed.
      *
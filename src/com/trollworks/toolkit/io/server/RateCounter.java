@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events in one second buckets, so that the recent rate at which they occur can be
+ * reported. Each bucket packs the second it covers and its count into a single long, so that
+ * recording an event is a single compare-and-set.
+ */
+final class RateCounter {
+    private static final int             BUCKETS    = 64;
+    private static final int             COUNT_BITS = 24;
+    private static final long            COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private              AtomicLongArray mBuckets   = new AtomicLongArray(BUCKETS);
+
+    /** The largest number of seconds that {@link #getRate(long, int)} can average over. */
+    static final int MAXIMUM_WINDOW = BUCKETS - 1;
+
+    /** @param now The current time, in milliseconds since the epoch. */
+    void record(long now) {
+        long second = now / 1000;
+        int  slot   = (int) (second % BUCKETS);
+        while (true) {
+            long old = mBuckets.get(slot);
+            long value;
+            if (old >>> COUNT_BITS == second) {
+                if ((old & COUNT_MASK) == COUNT_MASK) {
+                    return;
+                }
+                value = old + 1;
+            } else {
+                value = second << COUNT_BITS | 1;
+            }
+            if (mBuckets.compareAndSet(slot, old, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param now     The current time, in milliseconds since the epoch.
+     * @param seconds The number of complete seconds to average over, not counting the current,
+     *                partial second. Limited to {@link #MAXIMUM_WINDOW}.
+     * @return The average number of events per second.
+     */
+    double getRate(long now, int seconds) {
+        seconds = Math.max(1, Math.min(seconds, MAXIMUM_WINDOW));
+        long current = now / 1000;
+        long total   = 0;
+        for (long second = current - seconds; second < current; second++) {
+            long value = mBuckets.get((int) (second % BUCKETS));
+            if (value >>> COUNT_BITS == second) {
+                total += value & COUNT_MASK;
+            }
+        }
+        return total / (double) seconds;
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+/** The strategies a {@link NioServer} can use to spread new connections across its reactors. */
+public enum ReactorBalancing {
+    /** Assigns connections to each reactor in turn. */
+    ROUND_ROBIN,
+    /** Assigns connections to the reactor with the fewest open connections. */
+    LEAST_LOADED
+}
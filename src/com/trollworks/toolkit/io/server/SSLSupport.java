@@ -17,14 +17,22 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSession;
 
-/** Provides simple SSL processing. */
+/**
+ * Provides simple SSL processing. The delegated tasks of a handshake are run on the server's
+ * handshake executor, so that key exchange work does not occupy a worker thread, and the packet
+ * and application buffers are borrowed from a shared {@link BufferPool} only while data is being
+ * encrypted or decrypted, rather than being held for the life of the connection.
+ */
 public class SSLSupport {
     private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
     private              Session    mSession;
@@ -34,6 +42,10 @@ public class SSLSupport {
     private              ByteBuffer mAppData;
     private              ByteBuffer mInboundData;
     private              ByteBuffer mOutboundData;
+    private volatile     boolean    mTasksPending;
+    private volatile     boolean    mHandshaking = true;
+    private              long       mHandshakeStarted;
+    private              long       mHandshakeStartedMillis;
 
     /**
      * @param keyStore The location to load a valid SSL keystore from.
@@ -53,6 +65,21 @@ public class SSLSupport {
         }
     }
 
+    /**
+     * Tunes the server-side session cache of a {@link SSLContext}, which determines how many
+     * clients can skip the full key exchange when they reconnect.
+     *
+     * @param context The {@link SSLContext} to configure.
+     * @param size    The maximum number of sessions to cache, or {@code 0} for no limit.
+     * @param timeout The number of seconds a cached session remains usable, or {@code 0} for no
+     *                limit.
+     */
+    public static final void configureSessionCache(SSLContext context, int size, int timeout) {
+        SSLSessionContext sessionContext = context.getServerSessionContext();
+        sessionContext.setSessionCacheSize(size);
+        sessionContext.setSessionTimeout(timeout);
+    }
+
     /**
      * @param session    The {@link Session} to use when sending data.
      * @param sslContext The {@link SSLContext} to use.
@@ -63,13 +90,24 @@ public class SSLSupport {
         mEngine.setUseClientMode(false);
         mEngine.setNeedClientAuth(false);
         mSSLSession = mEngine.getSession();
-        int applicationBufferSize = mSSLSession.getApplicationBufferSize();
-        int packetBufferSize      = mSSLSession.getPacketBufferSize();
-        mAppData = ByteBuffer.allocate(applicationBufferSize);
-        mOutboundData = ByteBuffer.allocate(packetBufferSize);
         mEngine.beginHandshake();
     }
 
+    private ByteBuffer acquire(int size) {
+        BufferPool pool = mSession.getServer().getSSLBufferPool();
+        if (pool != null && pool.getBufferSize() >= size) {
+            return pool.acquire();
+        }
+        return ByteBuffer.allocate(size);
+    }
+
+    private void release(ByteBuffer buffer) {
+        BufferPool pool = mSession.getServer().getSSLBufferPool();
+        if (pool != null && buffer.capacity() == pool.getBufferSize()) {
+            pool.release(buffer);
+        }
+    }
+
     private void runSSLTasks() {
         Runnable task;
         while ((task = mEngine.getDelegatedTask()) != null) {
@@ -77,14 +115,44 @@ public class SSLSupport {
         }
     }
 
+    /** @return {@code true} if the tasks were handed off and will complete asynchronously. */
+    private boolean startSSLTasks() {
+        ExecutorService executor = mSession.getServer().getHandshakeExecutor();
+        if (executor != null) {
+            mTasksPending = true;
+            try {
+                executor.execute(() -> {
+                    try {
+                        runSSLTasks();
+                    } finally {
+                        mTasksPending = false;
+                        mSession.sslTasksCompleted();
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException exception) {
+                mTasksPending = false;
+            }
+        }
+        runSSLTasks();
+        return false;
+    }
+
     private boolean canProceed() throws SSLException {
         while (true) {
+            if (mTasksPending) {
+                return false;
+            }
             switch (mEngine.getHandshakeStatus()) {
             case NEED_TASK:
-                runSSLTasks();
+                if (startSSLTasks()) {
+                    return false;
+                }
                 break;
             case NEED_UNWRAP:
-                switch (mEngine.unwrap(mInboundData, mAppData).getStatus()) {
+                SSLEngineResult result = mEngine.unwrap(mInboundData, mAppData);
+                checkHandshakeFinished(result);
+                switch (result.getStatus()) {
                 case BUFFER_OVERFLOW:
                     resizeAppDataBuffer();
                     break;
@@ -97,16 +165,7 @@ public class SSLSupport {
                 }
                 break;
             case NEED_WRAP:
-                switch (mEngine.wrap(EMPTY_BUFFER, mOutboundData).getStatus()) {
-                case BUFFER_UNDERFLOW:
-                    // Should not be possible
-                    throw new SSLException("Buffer underflow during handshake wrap");
-                case CLOSED:
-                    throw new SSLException("Connection closed (wrap)");
-                default:
-                    break;
-                }
-                sendOutboundData();
+                wrapHandshake();
                 break;
             default:
                 return true;
@@ -114,10 +173,53 @@ public class SSLSupport {
         }
     }
 
+    private synchronized void wrapHandshake() throws SSLException {
+        mOutboundData = acquire(mSSLSession.getPacketBufferSize());
+        try {
+            SSLEngineResult result = mEngine.wrap(EMPTY_BUFFER, mOutboundData);
+            checkHandshakeFinished(result);
+            switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                // Should not be possible
+                throw new SSLException("Buffer underflow during handshake wrap");
+            case CLOSED:
+                throw new SSLException("Connection closed (wrap)");
+            default:
+                break;
+            }
+            sendOutboundData();
+        } finally {
+            releaseOutbound();
+        }
+    }
+
+    private void checkHandshakeFinished(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshakeFinished();
+        }
+    }
+
+    private synchronized void handshakeFinished() {
+        if (mHandshaking) {
+            mHandshaking = false;
+            mSSLSession = mEngine.getSession();
+            // A resumed session was created by an earlier handshake
+            mSession.getServer().handshakeCompleted(System.nanoTime() - mHandshakeStarted, mSSLSession.getCreationTime() < mHandshakeStartedMillis);
+        }
+    }
+
+    private synchronized void handshakeFailed() {
+        if (mHandshaking) {
+            mHandshaking = false;
+            mSession.getServer().handshakeFailed();
+        }
+    }
+
     private void resizeAppDataBuffer() {
         ByteBuffer resized = ByteBuffer.allocate(mAppData.capacity() + mSSLSession.getApplicationBufferSize());
         mAppData.flip();
         resized.put(mAppData);
+        release(mAppData);
         mAppData = resized;
     }
 
@@ -131,32 +233,57 @@ public class SSLSupport {
 
     /**
      * @param buffer The data to read.
-     * @return The unencrypted data. The returned buffer will be reused on subsequent calls to this
-     *         method, so callers will need to copy the data elsewhere if they wish to preserve it.
+     * @return The unencrypted data. The returned buffer is only valid until {@link
+     *         #releaseInput()} is called, so callers will need to copy the data elsewhere if they
+     *         wish to preserve it.
      */
     public ByteBuffer processInput(ByteBuffer buffer) throws SSLException {
+        if (mAppData == null) {
+            mAppData = acquire(mSSLSession.getApplicationBufferSize());
+        }
         mAppData.clear();
         mInboundData = buffer;
         insertUnderflowData();
-        loop:
-        while (mInboundData.hasRemaining() && canProceed()) {
-            SSLEngineResult result = mEngine.unwrap(mInboundData, mAppData);
-            switch (result.getStatus()) {
-            case BUFFER_OVERFLOW:
-                resizeAppDataBuffer();
-                break;
-            case BUFFER_UNDERFLOW:
-            case CLOSED:
-                break loop;
-            default:
-                break;
+        if (mHandshaking && mHandshakeStarted == 0) {
+            mHandshakeStarted = System.nanoTime();
+            mHandshakeStartedMillis = System.currentTimeMillis();
+        }
+        try {
+            loop:
+            while (canProceed() && mInboundData.hasRemaining()) {
+                SSLEngineResult result = mEngine.unwrap(mInboundData, mAppData);
+                checkHandshakeFinished(result);
+                switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    resizeAppDataBuffer();
+                    break;
+                case BUFFER_UNDERFLOW:
+                case CLOSED:
+                    break loop;
+                default:
+                    break;
+                }
             }
+        } catch (SSLException exception) {
+            handshakeFailed();
+            throw exception;
         }
         preserveRemainingInboundData();
         mAppData.flip();
         return mAppData;
     }
 
+    /**
+     * Returns the buffer handed out by the last call to {@link #processInput(ByteBuffer)} to the
+     * shared pool.
+     */
+    public void releaseInput() {
+        if (mAppData != null) {
+            release(mAppData);
+            mAppData = null;
+        }
+    }
+
     private void insertUnderflowData() {
         if (mUnderflowData != null) {
             ByteBuffer newBuffer = ByteBuffer.allocate(mUnderflowData.remaining() + mInboundData.remaining());
@@ -175,36 +302,44 @@ public class SSLSupport {
      */
     public synchronized void processOutput(ByteBuffer buffer) throws SSLException {
         if (buffer.hasRemaining()) {
-            do {
-                SSLEngineResult result = mEngine.wrap(buffer, mOutboundData);
-                switch (result.getHandshakeStatus()) {
-                case NEED_TASK:
-                    runSSLTasks();
-                    break;
-                case NEED_UNWRAP:
-                    // Should not be possible
-                    throw new SSLException("Need unwrap during output");
-                case NEED_WRAP:
-                    // Should not be possible
-                    throw new SSLException("Need wrap during output");
-                default:
-                    break;
-                }
-                switch (result.getStatus()) {
-                case BUFFER_OVERFLOW:
-                    sendOutboundData();
-                    break;
-                case BUFFER_UNDERFLOW:
-                    // Should not be possible
-                    throw new SSLException("Buffer underflow during output");
-                case CLOSED:
-                    mOutboundData.clear();
-                    return;
-                default:
-                    break;
-                }
-            } while (buffer.hasRemaining());
-            sendOutboundData();
+            mOutboundData = acquire(mSSLSession.getPacketBufferSize());
+            try {
+                do {
+                    SSLEngineResult result = mEngine.wrap(buffer, mOutboundData);
+                    switch (result.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runSSLTasks();
+                        break;
+                    case NEED_UNWRAP:
+                        // Should not be possible
+                        throw new SSLException("Need unwrap during output");
+                    case NEED_WRAP:
+                        // Should not be possible
+                        throw new SSLException("Need wrap during output");
+                    case FINISHED:
+                        handshakeFinished();
+                        break;
+                    default:
+                        break;
+                    }
+                    switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        sendOutboundData();
+                        break;
+                    case BUFFER_UNDERFLOW:
+                        // Should not be possible
+                        throw new SSLException("Buffer underflow during output");
+                    case CLOSED:
+                        mOutboundData.clear();
+                        return;
+                    default:
+                        break;
+                    }
+                } while (buffer.hasRemaining());
+                sendOutboundData();
+            } finally {
+                releaseOutbound();
+            }
         }
     }
 
@@ -215,8 +350,13 @@ public class SSLSupport {
             ByteBuffer buffer = ByteBuffer.allocate(limit);
             buffer.put(mOutboundData);
             buffer.flip();
-            mSession.getServer().send(mSession.getChannel(), buffer);
+            mSession.sendRaw(buffer);
         }
         mOutboundData.clear();
     }
+
+    private void releaseOutbound() {
+        release(mOutboundData);
+        mOutboundData = null;
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.json.JsonMap;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics for a {@link NioServer}. Counters are striped, so that recording from many threads
+ * at once doesn't contend. Call {@link #register(String)} to publish them through JMX.
+ */
+public final class ServerMetrics extends MetricsBean implements ServerMetricsMXBean {
+    private static final int              HANDSHAKE_RATE_WINDOW = 10;
+    private              NioServer        mServer;
+    private              LongAdder        mAccepted             = new LongAdder();
+    private              LongAdder        mRejected             = new LongAdder();
+    private              LongAdder        mErrors               = new LongAdder();
+    private              LongAdder        mBytesRead            = new LongAdder();
+    private              LongAdder        mBytesWritten         = new LongAdder();
+    private              LongAdder        mWorkerQueueDepth     = new LongAdder();
+    private              LatencyHistogram mSelectorLoopTime     = new LatencyHistogram();
+    private              LatencyHistogram mCloseLatency         = new LatencyHistogram();
+
+    /** @param server The {@link NioServer} these metrics are for. */
+    ServerMetrics(NioServer server) {
+        mServer = server;
+    }
+
+    @Override
+    public int getActiveSessionCount() {
+        return mServer.getSessionCount();
+    }
+
+    @Override
+    public long getAcceptedSessionCount() {
+        return mAccepted.sum();
+    }
+
+    @Override
+    public long getRejectedSessionCount() {
+        return mRejected.sum();
+    }
+
+    @Override
+    public long getClosedSessionCount() {
+        return mServer.getClosedSessionCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return mErrors.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return mBytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return mBytesWritten.sum();
+    }
+
+    @Override
+    public long getQueuedOutputBytes() {
+        long total = 0;
+        for (Session session : mServer.getSessions()) {
+            total += session.getQueuedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getWorkerQueueDepth() {
+        return mWorkerQueueDepth.sum();
+    }
+
+    @Override
+    public LatencySummary getSelectorLoopTime() {
+        return mSelectorLoopTime.getSummary();
+    }
+
+    @Override
+    public LatencySummary getCloseLatency() {
+        return mCloseLatency.getSummary();
+    }
+
+    @Override
+    public long getHandshakeCount() {
+        return mServer.getHandshakeCount();
+    }
+
+    @Override
+    public long getFailedHandshakeCount() {
+        return mServer.getFailedHandshakeCount();
+    }
+
+    @Override
+    public long getResumedHandshakeCount() {
+        return mServer.getResumedHandshakeCount();
+    }
+
+    @Override
+    public double getHandshakesPerSecond() {
+        return mServer.getHandshakesPerSecond(HANDSHAKE_RATE_WINDOW);
+    }
+
+    /** @return A {@link JsonMap} holding the current values, with durations in microseconds. */
+    public JsonMap toJson() {
+        JsonMap map = new JsonMap();
+        map.put("active_sessions", getActiveSessionCount());
+        map.put("accepted_sessions", getAcceptedSessionCount());
+        map.put("rejected_sessions", getRejectedSessionCount());
+        map.put("closed_sessions", getClosedSessionCount());
+        map.put("errors", getErrorCount());
+        map.put("bytes_read", getBytesRead());
+        map.put("bytes_written", getBytesWritten());
+        map.put("queued_output_bytes", getQueuedOutputBytes());
+        map.put("worker_queue_depth", getWorkerQueueDepth());
+        map.put("selector_loop_time", getSelectorLoopTime().toJson());
+        map.put("close_latency", getCloseLatency().toJson());
+        if (mServer.getSSLContext() != null) {
+            map.put("handshakes", getHandshakeCount());
+            map.put("failed_handshakes", getFailedHandshakeCount());
+            map.put("resumed_handshakes", getResumedHandshakeCount());
+            map.put("handshakes_per_second", getHandshakesPerSecond());
+        }
+        return map;
+    }
+
+    void sessionAccepted() {
+        mAccepted.increment();
+    }
+
+    void sessionRejected() {
+        mRejected.increment();
+    }
+
+    void sessionFailed() {
+        mErrors.increment();
+    }
+
+    void sessionClosed(long latency) {
+        mCloseLatency.record(latency);
+    }
+
+    void bytesRead(int amount) {
+        mBytesRead.add(amount);
+    }
+
+    void bytesWritten(long amount) {
+        mBytesWritten.add(amount);
+    }
+
+    void sessionQueued() {
+        mWorkerQueueDepth.increment();
+    }
+
+    void sessionDequeued() {
+        mWorkerQueueDepth.decrement();
+    }
+
+    void selectorLoopCompleted(long elapsed) {
+        mSelectorLoopTime.record(elapsed);
+    }
+}
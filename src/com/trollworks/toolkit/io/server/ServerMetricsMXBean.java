@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server;
+
+/** The management interface for the metrics of a {@link NioServer}. */
+public interface ServerMetricsMXBean {
+    /** @return The number of sessions currently open. */
+    int getActiveSessionCount();
+
+    /** @return The number of sessions that have been accepted. */
+    long getAcceptedSessionCount();
+
+    /** @return The number of connections that were refused because of the session limits. */
+    long getRejectedSessionCount();
+
+    /** @return The number of sessions that have been closed. */
+    long getClosedSessionCount();
+
+    /** @return The number of sessions that were closed because of an error. */
+    long getErrorCount();
+
+    /** @return The number of bytes read from all sessions. */
+    long getBytesRead();
+
+    /** @return The number of bytes written to all sessions. */
+    long getBytesWritten();
+
+    /** @return The number of bytes currently waiting to be written, across all sessions. */
+    long getQueuedOutputBytes();
+
+    /** @return The number of sessions waiting for a worker to process their requests. */
+    long getWorkerQueueDepth();
+
+    /**
+     * @return The time the reactors spend handling each batch of ready channels, not counting the
+     *         time spent waiting for them.
+     */
+    LatencySummary getSelectorLoopTime();
+
+    /**
+     * @return The time between a close being requested and the channel being closed, which
+     *         includes the time spent writing any remaining output.
+     */
+    LatencySummary getCloseLatency();
+
+    /** @return The number of SSL handshakes that have completed. */
+    long getHandshakeCount();
+
+    /** @return The number of SSL handshakes that have failed. */
+    long getFailedHandshakeCount();
+
+    /** @return The number of SSL handshakes that resumed a cached session. */
+    long getResumedHandshakeCount();
+
+    /** @return The average rate of SSL handshakes over the last ten seconds. */
+    double getHandshakesPerSecond();
+}
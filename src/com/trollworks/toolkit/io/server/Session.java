@@ -17,26 +17,51 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 
 /** Tracks a single connection to the server. */
-public class Session implements Runnable, Log.Context {
-    private static final AtomicInteger       NEXT_ID = new AtomicInteger();
-    private              int                 mId;
-    private              NioServer           mServer;
-    private              SocketChannel       mChannel;
-    private              InetAddress         mAddress;
-    private              Personality         mPersonality;
-    private              SSLSupport          mSSLSupport;
-    private              LinkedList<Request> mRequests;
-    private              long                mLastActivity;
-    private              boolean             mInRequest;
-    private              boolean             mHasClosed;
-    private              boolean             mNoFurtherWrites;
+public class Session implements Log.Context {
+    private static final AtomicInteger                  NEXT_ID             = new AtomicInteger();
+    private static final long                           MAXIMUM_CHECK       = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+    private static final long                           MAXIMUM_LINGER      = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+    private static final int                            MAXIMUM_BATCH       = 32;
+    private static final ByteBuffer                     EMPTY_BUFFER        = ByteBuffer.allocate(0);
+    private              int                            mId;
+    private              NioServer                      mServer;
+    private              NioReactor                     mReactor;
+    private              SocketChannel                  mChannel;
+    private              InetAddress                    mAddress;
+    private              Personality                    mPersonality;
+    private              SSLSupport                     mSSLSupport;
+    private              ConcurrentLinkedQueue<Request> mMailbox            = new ConcurrentLinkedQueue<>();
+    private              AtomicBoolean                  mScheduled          = new AtomicBoolean();
+    private              int                            mWorker;
+    private              ConcurrentLinkedQueue<Object>  mOutbound           = new ConcurrentLinkedQueue<>();
+    private              AtomicLong                     mQueuedBytes        = new AtomicLong();
+    private              AtomicBoolean                  mFlushRequested     = new AtomicBoolean();
+    private volatile     boolean                        mWritable           = true;
+    private              boolean                        mReportedWritable   = true;
+    private volatile     boolean                        mOutputClosed;
+    private volatile     long                           mLastActivity;
+    private volatile     long                           mLastWriteProgress;
+    private volatile     long                           mReadStarted;
+    private volatile     long                           mIdleTimeout;
+    private volatile     long                           mReadTimeout;
+    private volatile     long                           mWriteTimeout;
+    private volatile     boolean                        mCloseRequested;
+    private              AtomicLong                     mAlarm              = new AtomicLong();
+    private              TimingWheel.Timer              mTimer              = new TimingWheel.Timer(this);
+    private              boolean                        mHasClosed;
+    private volatile     boolean                        mNoFurtherWrites;
+    private volatile     long                           mCloseRequestedAt;
+    private              long                           mLingerDeadline;
 
     /**
      * @param server      The {@link NioServer} that will be providing the connection.
@@ -49,8 +74,11 @@ public class Session implements Runnable, Log.Context {
         mServer = server;
         mChannel = channel;
         mAddress = channel.socket().getInetAddress();
-        mRequests = new LinkedList<>();
         mId = NEXT_ID.incrementAndGet();
+        mLastActivity = System.currentTimeMillis();
+        mIdleTimeout = server.getIdleTimeout();
+        mReadTimeout = server.getReadTimeout();
+        mWriteTimeout = server.getWriteTimeout();
         if (sslContext != null) {
             mSSLSupport = new SSLSupport(this, sslContext);
         }
@@ -66,13 +94,174 @@ public class Session implements Runnable, Log.Context {
         return mLastActivity;
     }
 
+    /**
+     * @return The number of milliseconds without any activity after which this {@link Session}
+     *         will be closed, or {@code 0} if there is no limit.
+     */
+    public final long getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    /**
+     * @param timeout The number of milliseconds without any activity after which this {@link
+     *                Session} will be closed, or {@code 0} if there should be no limit.
+     */
+    public final void setIdleTimeout(long timeout) {
+        mIdleTimeout = timeout;
+        mServer.getTimingWheel().schedule(mTimer);
+    }
+
+    /**
+     * @return The number of milliseconds allowed between calls to {@link #startReadTimer()} and
+     *         {@link #cancelReadTimer()} before this {@link Session} will be closed, or {@code 0}
+     *         if there is no limit.
+     */
+    public final long getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    /**
+     * @param timeout The number of milliseconds allowed between calls to {@link #startReadTimer()}
+     *                and {@link #cancelReadTimer()} before this {@link Session} will be closed, or
+     *                {@code 0} if there should be no limit.
+     */
+    public final void setReadTimeout(long timeout) {
+        mReadTimeout = timeout;
+        mServer.getTimingWheel().schedule(mTimer);
+    }
+
+    /**
+     * @return The number of milliseconds that outbound data may wait without any of it being
+     *         written before this {@link Session} will be closed, or {@code 0} if there is no
+     *         limit.
+     */
+    public final long getWriteTimeout() {
+        return mWriteTimeout;
+    }
+
+    /**
+     * @param timeout The number of milliseconds that outbound data may wait without any of it
+     *                being written before this {@link Session} will be closed, or {@code 0} if
+     *                there should be no limit.
+     */
+    public final void setWriteTimeout(long timeout) {
+        mWriteTimeout = timeout;
+        mServer.getTimingWheel().schedule(mTimer);
+    }
+
+    /**
+     * Starts the read timer, such as when the first part of a request arrives. If {@link
+     * #cancelReadTimer()} isn't called within the read timeout, this {@link Session} will be
+     * closed. Calling this while the timer is already running restarts it.
+     */
+    public final void startReadTimer() {
+        long now = System.currentTimeMillis();
+        mReadStarted = now;
+        long timeout = mReadTimeout;
+        if (timeout > 0 && now + timeout < mTimer.getDeadline()) {
+            mServer.getTimingWheel().schedule(mTimer);
+        }
+    }
+
+    /** Stops the read timer, such as when a complete request has been read. */
+    public final void cancelReadTimer() {
+        mReadStarted = 0;
+    }
+
+    /**
+     * Sets an alarm, which will cause {@link Personality#alarm()} to be called on the worker that
+     * processes this {@link Session}'s input at or shortly after the specified time. The alarm
+     * shares the timing wheel used for timeouts, so its resolution is a fraction of a second.
+     *
+     * @param when The time, in milliseconds since the epoch, at which the alarm should go off.
+     *             Replaces any alarm that was set before. Pass in {@code 0} to cancel the alarm.
+     */
+    public final void setAlarm(long when) {
+        mAlarm.set(when);
+        if (when != 0 && when < mTimer.getDeadline()) {
+            mServer.getTimingWheel().schedule(mTimer);
+        }
+    }
+
+    /**
+     * Runs a task on the worker that processes this {@link Session}'s input, in order with its
+     * other requests. May be called from any thread. The task is discarded if the {@link Session}
+     * closes before it runs.
+     *
+     * @param task The task to run.
+     */
+    public final void execute(Runnable task) {
+        addRequest(new Request(task));
+    }
+
+    /** @return The {@link TimingWheel.Timer} used to track this {@link Session}'s timeouts. */
+    final TimingWheel.Timer getTimer() {
+        return mTimer;
+    }
+
+    /**
+     * @param now The current time.
+     * @return The time at which this {@link Session}'s timeouts next need to be checked, or
+     *         {@code -1} if they no longer need to be.
+     */
+    final long nextTimeoutCheck(long now) {
+        if (mCloseRequested) {
+            return -1;
+        }
+        long next    = now + MAXIMUM_CHECK;
+        long alarm   = mAlarm.get();
+        if (alarm != 0) {
+            next = Math.min(next, alarm);
+        }
+        long timeout = mIdleTimeout;
+        if (timeout > 0) {
+            next = Math.min(next, mLastActivity + timeout);
+        }
+        timeout = mReadTimeout;
+        long started = mReadStarted;
+        if (timeout > 0 && started != 0) {
+            next = Math.min(next, started + timeout);
+        }
+        timeout = mWriteTimeout;
+        if (timeout > 0 && hasPendingWrite()) {
+            next = Math.min(next, mLastWriteProgress + timeout);
+        }
+        return next;
+    }
+
+    /**
+     * Closes this {@link Session} if any of its timeouts have expired.
+     *
+     * @param now The current time.
+     * @return The time at which this {@link Session}'s timeouts next need to be checked, or
+     *         {@code -1} if they no longer need to be.
+     */
+    final long checkTimeouts(long now) {
+        long alarm = mAlarm.get();
+        if (alarm != 0 && alarm <= now && !mCloseRequested && mAlarm.compareAndSet(alarm, 0)) {
+            addRequest(new Request(RequestType.ALARM));
+        }
+        long next = nextTimeoutCheck(now);
+        if (next < 0 || next > now) {
+            return next;
+        }
+        long timeout = mWriteTimeout;
+        // Stalled output will never drain, so don't wait for it
+        requestClose(timeout > 0 && hasPendingWrite() && mLastWriteProgress + timeout <= now);
+        return -1;
+    }
+
     /**
      * Requests that the {@link Session} be closed.
      *
      * @param dueToError Pass in {@code true} if an error condition triggered this request.
      */
     final void requestClose(boolean dueToError) {
-        addRequest(new Request(dueToError));
+        if (!mCloseRequested) {
+            mCloseRequestedAt = System.nanoTime();
+        }
+        mCloseRequested = true;
+        addRequest(new Request(dueToError ? RequestType.CLOSE_DUE_TO_ERROR : RequestType.CLOSE));
     }
 
     /**
@@ -86,60 +275,103 @@ public class Session implements Runnable, Log.Context {
     }
 
     private void addRequest(Request request) {
-        synchronized (mRequests) {
-            mRequests.add(request);
+        mMailbox.add(request);
+        if (mScheduled.compareAndSet(false, true)) {
+            mServer.scheduleSession(this);
         }
-        mServer.scheduleSession(this);
     }
 
-    /** Process a pending request. */
-    final void processNextRequest() throws IOException {
-        Request request = null;
-        synchronized (mRequests) {
-            if (mInRequest) {
-                return;
-            }
-            mInRequest = true;
-            if (!mRequests.isEmpty()) {
-                request = mRequests.removeFirst();
-            }
-        }
+    /**
+     * Processes pending requests. The {@link Session} is only ever handed to one worker at a time,
+     * so requests are processed in order without further locking. At most a limited number of
+     * requests are processed per call, so that a busy {@link Session} doesn't starve others that
+     * share its worker.
+     */
+    final void processRequests() throws IOException {
         try {
-            if (request != null && !mHasClosed) {
-                mLastActivity = System.currentTimeMillis();
-                if (request.isInput()) {
-                    ByteBuffer buffer = request.getBuffer();
-                    if (isSecure()) {
-                        buffer = mSSLSupport.processInput(buffer);
-                    }
-                    while (buffer.hasRemaining() && !Thread.currentThread().isInterrupted()) {
-                        getPersonality().processInput(buffer);
-                    }
-                } else {
-                    mHasClosed = true;
-                    mNoFurtherWrites = request.isCloseRequestDueToError();
-                    try {
-                        getPersonality().closing();
-                    } catch (Throwable throwable) {
-                        Log.error(this, throwable);
-                    }
-                    Thread thread = new Thread(this, "Closing " + this);
-                    thread.setDaemon(true);
-                    thread.start();
+            for (int i = 0; i < MAXIMUM_BATCH; i++) {
+                Request request = mMailbox.poll();
+                if (request == null) {
+                    break;
                 }
+                processRequest(request);
             }
         } finally {
-            boolean reschedule;
-            synchronized (mRequests) {
-                mInRequest = false;
-                reschedule = !mRequests.isEmpty();
-            }
-            if (reschedule) {
+            mScheduled.set(false);
+            if (!mMailbox.isEmpty() && mScheduled.compareAndSet(false, true)) {
                 mServer.scheduleSession(this);
             }
         }
     }
 
+    private void processRequest(Request request) throws IOException {
+        if (!mHasClosed) {
+            mLastActivity = System.currentTimeMillis();
+            switch (request.getType()) {
+            case INPUT:
+                handleInput(request.getBuffer());
+                break;
+            case SSL_TASKS_COMPLETED:
+                handleInput(EMPTY_BUFFER);
+                break;
+            case WRITABILITY_CHANGED:
+                // The state may have flipped more than once before this request was processed
+                boolean writable = mWritable;
+                if (writable != mReportedWritable) {
+                    mReportedWritable = writable;
+                    getPersonality().writabilityChanged(writable);
+                }
+                break;
+            case ALARM:
+                getPersonality().alarm();
+                break;
+            case TASK:
+                request.getTask().run();
+                break;
+            default:
+                mHasClosed = true;
+                mNoFurtherWrites = request.getType() == RequestType.CLOSE_DUE_TO_ERROR;
+                if (mNoFurtherWrites) {
+                    mServer.getMetrics().sessionFailed();
+                }
+                mLingerDeadline = System.currentTimeMillis() + MAXIMUM_LINGER;
+                try {
+                    getPersonality().closing();
+                } catch (Throwable throwable) {
+                    Log.error(this, throwable);
+                }
+                mReactor.requestClose(this);
+                break;
+            }
+        }
+    }
+
+    private void handleInput(ByteBuffer buffer) throws IOException {
+        if (isSecure()) {
+            try {
+                deliverInput(mSSLSupport.processInput(buffer));
+            } finally {
+                mSSLSupport.releaseInput();
+            }
+        } else {
+            deliverInput(buffer);
+        }
+    }
+
+    private void deliverInput(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && !Thread.currentThread().isInterrupted()) {
+            getPersonality().processInput(buffer);
+        }
+    }
+
+    /**
+     * Called by {@link SSLSupport} once the handshake tasks it handed off to another thread have
+     * completed, so that the handshake can resume.
+     */
+    final void sslTasksCompleted() {
+        addRequest(new Request(RequestType.SSL_TASKS_COMPLETED));
+    }
+
     /**
      * @param buffer The data to send. A copy of the data is not made, so do not modify it once
      *               passed to this method.
@@ -153,10 +385,289 @@ public class Session implements Runnable, Log.Context {
                 Log.error(this, throwable);
             }
         } else {
-            mServer.send(mChannel, buffer);
+            sendRaw(buffer);
         }
     }
 
+    /**
+     * Queues data that is ready to go out over the wire, bypassing any SSL processing.
+     *
+     * @param buffer The data to send. A copy of the data is not made, so do not modify it once
+     *               passed to this method.
+     */
+    final void sendRaw(ByteBuffer buffer) {
+        enqueue(buffer, null, buffer.remaining());
+    }
+
+    /**
+     * Sends a buffer obtained from the server's {@link BufferPool}, returning it to the pool once
+     * it has been written, optionally followed by another buffer. On plain connections the two are
+     * queued together, so that they go out in a single gathering write.
+     *
+     * @param pooled The data to send, in a buffer acquired from {@link NioServer#getBufferPool()}.
+     *               It must not be used by the caller after this call.
+     * @param next   The data to send immediately afterward, or {@code null}. A copy of the data is
+     *               not made, so do not modify it once passed to this method.
+     */
+    final void sendPooled(ByteBuffer pooled, ByteBuffer next) {
+        if (isSecure()) {
+            // The data has been encrypted into buffers of its own by the time send() returns.
+            // Holding the lock processOutput() takes keeps other threads' data out of the pair.
+            synchronized (mSSLSupport) {
+                send(pooled);
+                if (next != null) {
+                    send(next);
+                }
+            }
+            mServer.getBufferPool().release(pooled);
+            return;
+        }
+        mLastActivity = System.currentTimeMillis();
+        enqueue(new PooledBuffer(pooled), next, pooled.remaining() + (next != null ? next.remaining() : 0));
+    }
+
+    private void enqueue(Object first, ByteBuffer second, long length) {
+        synchronized (mOutbound) {
+            // Holding the lock discardPendingWrites() takes ensures nothing is added after the
+            // queue has been drained, and that no other thread's data lands between the pair
+            if (mOutputClosed) {
+                released(first);
+                return;
+            }
+            writeQueued();
+            mOutbound.add(first);
+            if (second != null) {
+                mOutbound.add(second);
+            }
+        }
+        if (mQueuedBytes.addAndGet(length) > mServer.getHighWriteWatermark() && mWritable) {
+            updateWritability();
+        }
+        requestFlush();
+    }
+
+    /** @param one An entry that has been removed from the outbound queue. */
+    private void released(Object one) {
+        if (one instanceof PooledBuffer) {
+            mServer.getBufferPool().release(((PooledBuffer) one).mBuffer);
+        }
+    }
+
+    /**
+     * Sends a region of a file, which is queued and later handed directly to the socket by the
+     * {@link NioReactor}. Only available on plain connections, as the contents of a file must be
+     * read into memory to be encrypted.
+     *
+     * @param region The {@link FileRegion} to send. It will be closed once it has been sent.
+     */
+    final void send(FileRegion region) throws IOException {
+        if (isSecure()) {
+            region.close();
+            throw new IllegalStateException("File regions can't be sent over a secure connection");
+        }
+        mLastActivity = System.currentTimeMillis();
+        synchronized (mOutbound) {
+            // Checked under the same lock discardPendingWrites() takes, so the region is either
+            // queued before the queue is drained or closed here
+            if (mOutputClosed) {
+                region.close();
+                return;
+            }
+            writeQueued();
+            mOutbound.add(region);
+        }
+        requestFlush();
+    }
+
+    /** Called just before data is added to the outbound queue. */
+    private void writeQueued() {
+        if (mOutbound.isEmpty()) {
+            // The write timeout runs from when data was first waiting to be written
+            long now = System.currentTimeMillis();
+            mLastWriteProgress = now;
+            long timeout = mWriteTimeout;
+            if (timeout > 0 && now + timeout < mTimer.getDeadline()) {
+                mServer.getTimingWheel().schedule(mTimer);
+            }
+        }
+    }
+
+    private void requestFlush() {
+        if (mFlushRequested.compareAndSet(false, true)) {
+            mReactor.requestFlush(this);
+        }
+    }
+
+    /**
+     * Writes as much of the queued outbound data as the socket will currently accept, using a
+     * single gathering write for up to {@code gather.length} buffers at a time. Must only be
+     * called from the {@link NioReactor} that owns this {@link Session}.
+     *
+     * @param gather Scratch space to use for the gathering write.
+     * @return {@code true} if all queued data was written.
+     */
+    final boolean flush(ByteBuffer[] gather) throws IOException {
+        try {
+            while (true) {
+                Object head = mOutbound.peek();
+                if (head == null) {
+                    return true;
+                }
+                if (head instanceof FileRegion) {
+                    if (!transfer((FileRegion) head)) {
+                        return false;
+                    }
+                    continue;
+                }
+                int count = 0;
+                for (Object one : mOutbound) {
+                    ByteBuffer buffer;
+                    if (one instanceof ByteBuffer) {
+                        buffer = (ByteBuffer) one;
+                    } else if (one instanceof PooledBuffer) {
+                        buffer = ((PooledBuffer) one).mBuffer;
+                    } else {
+                        break;
+                    }
+                    gather[count++] = buffer;
+                    if (count == gather.length) {
+                        break;
+                    }
+                }
+                long written = mChannel.write(gather, 0, count);
+                if (written > 0) {
+                    mServer.getMetrics().bytesWritten(written);
+                    mLastActivity = System.currentTimeMillis();
+                    mLastWriteProgress = mLastActivity;
+                    mQueuedBytes.addAndGet(-written);
+                }
+                int done = 0;
+                while (done < count && !gather[done].hasRemaining()) {
+                    released(mOutbound.poll());
+                    done++;
+                }
+                Arrays.fill(gather, 0, count, null);
+                if (done < count) {
+                    return false;
+                }
+            }
+        } finally {
+            if (!mWritable) {
+                updateWritability();
+            }
+        }
+    }
+
+    private boolean transfer(FileRegion region) throws IOException {
+        while (region.hasRemaining()) {
+            long written = region.transferTo(mChannel);
+            if (written <= 0) {
+                if (region.hasRemaining()) {
+                    return false;
+                }
+                break;
+            }
+            mServer.getMetrics().bytesWritten(written);
+            mLastActivity = System.currentTimeMillis();
+            mLastWriteProgress = mLastActivity;
+        }
+        mOutbound.poll();
+        region.close();
+        return true;
+    }
+
+    /**
+     * Called by the {@link NioReactor} once {@link #flush(ByteBuffer[])} has emptied the outbound
+     * queue.
+     *
+     * @return {@code true} if more data arrived in the meantime and another flush is required.
+     */
+    final boolean flushCompleted() {
+        mFlushRequested.set(false);
+        return !mOutbound.isEmpty() && mFlushRequested.compareAndSet(false, true);
+    }
+
+    /** Discards any data still waiting to be sent. No further data will be accepted. */
+    final void discardPendingWrites() {
+        synchronized (mOutbound) {
+            mOutputClosed = true;
+            Object one;
+            while ((one = mOutbound.poll()) != null) {
+                if (one instanceof FileRegion) {
+                    try {
+                        ((FileRegion) one).close();
+                    } catch (IOException ioe) {
+                        // Ignore
+                    }
+                } else {
+                    released(one);
+                }
+            }
+            mQueuedBytes.set(0);
+        }
+    }
+
+    private void updateWritability() {
+        boolean changed = false;
+        synchronized (mOutbound) {
+            long queued = mQueuedBytes.get();
+            if (mWritable) {
+                if (queued > mServer.getHighWriteWatermark()) {
+                    mWritable = false;
+                    changed = true;
+                }
+            } else if (queued <= mServer.getLowWriteWatermark()) {
+                mWritable = true;
+                changed = true;
+            }
+        }
+        if (changed) {
+            addRequest(new Request(RequestType.WRITABILITY_CHANGED));
+        }
+    }
+
+    /**
+     * @return {@code false} if the amount of data waiting to be sent has exceeded the server's high
+     *         write watermark and has not yet drained back down to its low write watermark.
+     *         Producers should hold off sending more data while this returns {@code false}. The
+     *         {@link Personality} will be notified via {@link Personality#writabilityChanged(boolean)}
+     *         when this changes.
+     */
+    public final boolean isWritable() {
+        boolean writable = mWritable;
+        if (!writable) {
+            // The caller will now wait for a change, so make sure the next one is reported even if
+            // the queue drains before the notification is processed
+            mReportedWritable = false;
+        }
+        return writable;
+    }
+
+    /** @return The number of bytes waiting to be sent. */
+    public final long getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    /** @return {@code true} if there is data waiting to be sent. */
+    public final boolean hasPendingWrite() {
+        return !mOutbound.isEmpty();
+    }
+
+    /** @return The index of the worker this {@link Session} prefers to be processed by. */
+    final int getWorker() {
+        return mWorker;
+    }
+
+    /** @param worker The index of the worker this {@link Session} prefers to be processed by. */
+    final void setWorker(int worker) {
+        mWorker = worker;
+    }
+
+    /** @param reactor The {@link NioReactor} that performs i/o for this {@link Session}. */
+    final void setReactor(NioReactor reactor) {
+        mReactor = reactor;
+    }
+
     /** @return The associated {@link NioServer}. */
     public final NioServer getServer() {
         return mServer;
@@ -201,25 +712,29 @@ public class Session implements Runnable, Log.Context {
         return "Session " + mId + " (" + getHumanReadableAddress() + ")";
     }
 
-    @Override
-    public void run() {
-        if (!mNoFurtherWrites) {
-            try {
-                // Wait for any pending writes to finish, but not forever
-                long maxWait = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
-                while (mServer.hasPendingWrite(mChannel) && System.currentTimeMillis() < maxWait) {
-                    Thread.sleep(50);
-                }
-            } catch (InterruptedException exception) {
-                // Even if interrupted, we still want to try and close the channel
-            }
-        }
+    /**
+     * @param now The current time.
+     * @return {@code true} if a {@link Session} that is closing may now have its channel closed,
+     *         either because its pending writes have finished or it has waited long enough for
+     *         them.
+     */
+    final boolean isReadyToClose(long now) {
+        return mNoFurtherWrites || !hasPendingWrite() || now >= mLingerDeadline;
+    }
+
+    /**
+     * Closes the channel and releases this {@link Session}'s resources. Must only be called from
+     * the {@link NioReactor} that owns this {@link Session}.
+     */
+    final void close() {
         try {
             mChannel.close();
         } catch (IOException ioe) {
             Log.error(this, ioe);
         }
-        mServer.sessionClosed(this);
+        discardPendingWrites();
+        mReactor.sessionClosed();
+        mServer.sessionClosed(this, System.nanoTime() - mCloseRequestedAt);
     }
 
     @Override
@@ -227,33 +742,51 @@ public class Session implements Runnable, Log.Context {
         return getHumanReadableAddress();
     }
 
+    private enum RequestType {
+        INPUT, CLOSE, CLOSE_DUE_TO_ERROR, WRITABILITY_CHANGED, ALARM, SSL_TASKS_COMPLETED, TASK
+    }
+
+    /** A buffer in the outbound queue that belongs to the server's {@link BufferPool}. */
+    private static class PooledBuffer {
+        ByteBuffer mBuffer;
+
+        PooledBuffer(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+    }
+
     private static class Request {
-        private ByteBuffer mBuffer;
-        private boolean    mDueToError;
+        private RequestType mType;
+        private ByteBuffer  mBuffer;
+        private Runnable    mTask;
+
+        Request(RequestType type) {
+            mType = type;
+        }
 
-        Request(boolean dueToError) {
-            // Close request
-            mDueToError = dueToError;
+        Request(Runnable task) {
+            mType = RequestType.TASK;
+            mTask = task;
         }
 
         Request(ByteBuffer buffer) {
-            // Input request
+            mType = RequestType.INPUT;
             buffer.flip();
             mBuffer = ByteBuffer.allocate(buffer.limit());
             mBuffer.put(buffer);
             mBuffer.flip();
         }
 
-        final boolean isInput() {
-            return mBuffer != null;
+        final RequestType getType() {
+            return mType;
         }
 
         final ByteBuffer getBuffer() {
             return mBuffer;
         }
 
-        final boolean isCloseRequestDueToError() {
-            return mDueToError;
+        final Runnable getTask() {
+            return mTask;
         }
     }
 }
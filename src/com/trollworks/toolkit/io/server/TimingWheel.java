@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timing wheel that tracks when each {@link Session} next needs its timeouts checked.
+ * Each {@link Session} has a single {@link Timer}, linked into the slot of the wheel for its
+ * deadline. Only the wheel's own thread touches the slots; other threads ask for a {@link Timer}
+ * to be moved through a queue. Activity on a {@link Session} does not move its {@link Timer} at
+ * all. Instead, when the {@link Timer} comes due, the {@link Session} reports its current
+ * deadline and the {@link Timer} is moved there if it hasn't yet been reached. The cost of each
+ * tick is therefore proportional to the number of timers in one slot, rather than to the number
+ * of {@link Session}s.
+ */
+final class TimingWheel extends Thread {
+    private          long                         mTickMillis;
+    private          Timer[]                      mSlots;
+    private          int                          mMask;
+    private          long                         mCurrentTick;
+    private          ConcurrentLinkedQueue<Timer> mRequests = new ConcurrentLinkedQueue<>();
+    private volatile boolean                      mRunning  = true;
+
+    /**
+     * @param tickMillis The resolution of the wheel, in milliseconds.
+     * @param slots      The number of slots in the wheel. Will be rounded up to a power of two.
+     */
+    TimingWheel(long tickMillis, int slots) {
+        super("TimingWheel");
+        setDaemon(true);
+        mTickMillis = tickMillis;
+        int size = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+        mSlots = new Timer[size];
+        mMask = size - 1;
+        mCurrentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    /**
+     * Asks for the {@link Timer} to be placed at the deadline its {@link Session} currently
+     * reports. May be called from any thread.
+     *
+     * @param timer The {@link Timer} to schedule.
+     */
+    void schedule(Timer timer) {
+        mRequests.add(timer);
+    }
+
+    /**
+     * Removes the {@link Timer} from the wheel. May be called from any thread.
+     *
+     * @param timer The {@link Timer} to remove.
+     */
+    void cancel(Timer timer) {
+        timer.mCancelled = true;
+        mRequests.add(timer);
+    }
+
+    /** Stops the wheel. */
+    void shutdown() {
+        mRunning = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            try {
+                long now  = System.currentTimeMillis();
+                long tick = now / mTickMillis;
+                if (tick <= mCurrentTick) {
+                    Thread.sleep((mCurrentTick + 1) * mTickMillis - now);
+                    continue;
+                }
+                processRequests();
+                // Catch up on any ticks we missed, but never go around the wheel more than once
+                long first = Math.max(mCurrentTick + 1, tick - mMask);
+                for (long one = first; one <= tick; one++) {
+                    mCurrentTick = one;
+                    expire(one, now);
+                }
+            } catch (InterruptedException exception) {
+                // Check if we've been asked to stop
+            } catch (Throwable throwable) {
+                Log.error(throwable);
+            }
+        }
+    }
+
+    private void processRequests() {
+        Timer timer;
+        while ((timer = mRequests.poll()) != null) {
+            unlink(timer);
+            if (!timer.mCancelled) {
+                long deadline = timer.mSession.nextTimeoutCheck(System.currentTimeMillis());
+                if (deadline >= 0) {
+                    link(timer, deadline);
+                }
+            }
+        }
+    }
+
+    private void expire(long tick, long now) {
+        Timer timer = mSlots[(int) (tick & mMask)];
+        while (timer != null) {
+            Timer next = timer.mNext;
+            if (timer.mTick <= tick) {
+                unlink(timer);
+                long deadline = timer.mSession.checkTimeouts(now);
+                if (deadline >= 0) {
+                    link(timer, deadline);
+                }
+            }
+            timer = next;
+        }
+    }
+
+    private void link(Timer timer, long deadline) {
+        long tick = (deadline + mTickMillis - 1) / mTickMillis;
+        if (tick <= mCurrentTick) {
+            tick = mCurrentTick + 1;
+        }
+        int slot = (int) (tick & mMask);
+        timer.mTick = tick;
+        timer.mDeadline = tick * mTickMillis;
+        timer.mSlot = slot;
+        timer.mPrev = null;
+        timer.mNext = mSlots[slot];
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer;
+        }
+        mSlots[slot] = timer;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.mSlot == -1) {
+            return;
+        }
+        if (timer.mPrev != null) {
+            timer.mPrev.mNext = timer.mNext;
+        } else {
+            mSlots[timer.mSlot] = timer.mNext;
+        }
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer.mPrev;
+        }
+        timer.mPrev = null;
+        timer.mNext = null;
+        timer.mSlot = -1;
+        timer.mDeadline = Long.MAX_VALUE;
+    }
+
+    /** The entry in a {@link TimingWheel} for a single {@link Session}. */
+    static final class Timer {
+        private          Session mSession;
+        private          Timer   mPrev;
+        private          Timer   mNext;
+        private          int     mSlot     = -1;
+        private          long    mTick;
+        private volatile long    mDeadline = Long.MAX_VALUE;
+        private volatile boolean mCancelled;
+
+        /** @param session The {@link Session} the timer is for. */
+        Timer(Session session) {
+            mSession = session;
+        }
+
+        /**
+         * @return The time at which the timer will next fire, or {@link Long#MAX_VALUE} if it is
+         *         not currently scheduled.
+         */
+        long getDeadline() {
+            return mDeadline;
+        }
+    }
+}
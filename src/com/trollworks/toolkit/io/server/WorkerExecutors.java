@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates {@link ExecutorService}s that a {@link NioServer} can use to process its {@link
+ * Session}s in place of its built-in fixed pool of worker threads. These are useful when the
+ * request handlers perform blocking operations, such as database or file access, that would
+ * otherwise tie up one of the few built-in workers.
+ */
+public final class WorkerExecutors {
+    private static final Method VIRTUAL_FACTORY;
+
+    static {
+        Method method = null;
+        try {
+            method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException exception) {
+            // Not available on this JDK
+        }
+        VIRTUAL_FACTORY = method;
+    }
+
+    private WorkerExecutors() {
+    }
+
+    /**
+     * @param maximumThreads The maximum number of threads to create. Threads are created as needed
+     *                       up to this limit, and exit after being idle for a minute. Work that
+     *                       arrives while all threads are busy is queued.
+     * @return A new {@link ExecutorService} backed by a bounded, elastic pool of platform threads.
+     */
+    public static ExecutorService createElastic(int maximumThreads) {
+        AtomicInteger      nextId   = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maximumThreads, maximumThreads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "NioWorker " + nextId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** @return {@code true} if the running JDK supports virtual threads. */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * @return A new {@link ExecutorService} that runs each task on its own virtual thread.
+     * @throws UnsupportedOperationException if the running JDK does not support virtual threads.
+     */
+    public static ExecutorService createVirtual() {
+        if (VIRTUAL_FACTORY == null) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JDK");
+        }
+        try {
+            return (ExecutorService) VIRTUAL_FACTORY.invoke(null);
+        } catch (ReflectiveOperationException exception) {
+            // Virtual threads may exist but be disabled, as they were when in preview
+            throw new UnsupportedOperationException("Virtual threads are not available", exception);
+        }
+    }
+
+    /**
+     * @param maximumThreads The maximum number of threads to create if virtual threads are not
+     *                       available. See {@link #createElastic(int)}.
+     * @return A new {@link ExecutorService} that uses virtual threads if the running JDK supports
+     *         them, or a bounded, elastic pool of platform threads if it does not.
+     */
+    public static ExecutorService createVirtualOrElastic(int maximumThreads) {
+        if (isVirtualThreadSupported()) {
+            try {
+                return createVirtual();
+            } catch (UnsupportedOperationException exception) {
+                // Fall through and use the elastic pool
+            }
+        }
+        return createElastic(maximumThreads);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/** A contiguous range of bytes requested via an HTTP {@code Range} header. */
+public class ByteRange {
+    /** The maximum number of ranges honored in a single request. */
+    public static final int  MAXIMUM_RANGES = 16;
+    private             long mStart;
+    private             long mLength;
+
+    /**
+     * @param start  The offset of the first byte.
+     * @param length The number of bytes.
+     */
+    public ByteRange(long start, long length) {
+        mStart = start;
+        mLength = length;
+    }
+
+    /**
+     * Parses the value of a {@code Range} header.
+     *
+     * @param header The value of the header.
+     * @param size   The size of the entity the ranges apply to.
+     * @return The satisfiable ranges, which will be empty if none of the requested ranges can be
+     *         satisfied, or {@code null} if the header is malformed, uses a unit other than bytes,
+     *         or requests more than {@link #MAXIMUM_RANGES} ranges. In the latter cases, the header
+     *         should be ignored and the full entity sent.
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        List<ByteRange> ranges    = new ArrayList<>();
+        StringTokenizer tokenizer = new StringTokenizer(header.substring(6), ",");
+        int             count     = 0;
+        while (tokenizer.hasMoreTokens()) {
+            String token = tokenizer.nextToken().trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (++count > MAXIMUM_RANGES) {
+                return null;
+            }
+            int dash = token.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            try {
+                String first = token.substring(0, dash).trim();
+                String last  = token.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && size > 0) {
+                        long length = Math.min(suffix, size);
+                        ranges.add(new ByteRange(size - length, length));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end   = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    if (start < size) {
+                        ranges.add(new ByteRange(start, Math.min(end, size - 1) - start + 1));
+                    }
+                }
+            } catch (NumberFormatException exception) {
+                return null;
+            }
+        }
+        return count == 0 ? null : ranges;
+    }
+
+    /** @return The offset of the first byte. */
+    public final long getStart() {
+        return mStart;
+    }
+
+    /** @return The number of bytes. */
+    public final long getLength() {
+        return mLength;
+    }
+
+    /** @return The offset of the last byte. */
+    public final long getEnd() {
+        return mStart + mLength - 1;
+    }
+
+    /**
+     * @param size The size of the entity the range applies to.
+     * @return The value for a {@code Content-Range} header describing this range.
+     */
+    public final String getContentRange(long size) {
+        return "bytes " + mStart + "-" + getEnd() + "/" + size;
+    }
+}
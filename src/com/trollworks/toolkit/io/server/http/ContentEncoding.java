@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.StringTokenizer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** The supported HTTP content encodings. */
+public enum ContentEncoding {
+    GZIP("gzip"), DEFLATE("deflate");
+
+    private String mToken;
+
+    ContentEncoding(String token) {
+        mToken = token;
+    }
+
+    /** @return The token used for this encoding in HTTP headers. */
+    public final String getToken() {
+        return mToken;
+    }
+
+    /**
+     * @param etag The entity tag of the unencoded representation.
+     * @return The entity tag to use for the representation in this encoding.
+     */
+    public final String tagETag(String etag) {
+        return etag.substring(0, etag.length() - 1) + "-" + mToken + "\"";
+    }
+
+    /**
+     * @param data The data to encode. Its position is not altered.
+     * @return The encoded data.
+     */
+    public final byte[] encode(ByteBuffer data) {
+        data = data.duplicate();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(data.remaining() / 4, 64));
+        try (OutputStream stream = this == GZIP ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out)) {
+            if (data.hasArray()) {
+                stream.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] buffer = new byte[Math.min(data.remaining(), 8192)];
+                while (data.hasRemaining()) {
+                    int amount = Math.min(data.remaining(), buffer.length);
+                    data.get(buffer, 0, amount);
+                    stream.write(buffer, 0, amount);
+                }
+            }
+        } catch (IOException exception) {
+            // Can't happen, since we're writing to memory
+            throw new IllegalStateException(exception);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param acceptEncoding The value of a request's {@code Accept-Encoding} header. May be
+     *                       {@code null}.
+     * @return The most preferred encoding acceptable to the client, or {@code null} if the
+     *         content should not be encoded.
+     */
+    public static ContentEncoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double[]        quality   = new double[values().length];
+        double          wildcard  = -1;
+        StringTokenizer tokenizer = new StringTokenizer(acceptEncoding, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String token = tokenizer.nextToken().trim();
+            double q     = 1;
+            int    semi  = token.indexOf(';');
+            if (semi != -1) {
+                String param = token.substring(semi + 1).trim();
+                token = token.substring(0, semi).trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException exception) {
+                        q = 0;
+                    }
+                }
+            }
+            if ("*".equals(token)) {
+                wildcard = q;
+            } else {
+                for (ContentEncoding encoding : values()) {
+                    if (encoding.mToken.equalsIgnoreCase(token) || ("x-" + encoding.mToken).equalsIgnoreCase(token)) {
+                        // Add one so that an explicit q=0 can be distinguished from not mentioned
+                        quality[encoding.ordinal()] = q + 1;
+                    }
+                }
+            }
+        }
+        ContentEncoding best        = null;
+        double          bestQuality = 0;
+        for (ContentEncoding encoding : values()) {
+            double q = quality[encoding.ordinal()];
+            q = q == 0 ? wildcard : q - 1;
+            if (q > bestQuality) {
+                best = encoding;
+                bestQuality = q;
+            }
+        }
+        return best;
+    }
+}
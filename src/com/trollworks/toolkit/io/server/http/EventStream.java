@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.utility.task.Task;
+import com.trollworks.toolkit.utility.task.Tasks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes server-sent events to the clients subscribed to it. Each event is encoded just once,
+ * no matter how many subscribers there are, and the same read-only buffer is written to each of
+ * them through the non-blocking send path of their connection.
+ * <p>
+ * Events are numbered sequentially, starting at 1, and the most recent ones are kept so that a
+ * client that reconnects with a {@code Last-Event-ID} header is sent those it missed. A subscriber
+ * that falls too far behind has its response ended, leaving it to reconnect and catch up in the
+ * same way.
+ */
+public class EventStream {
+    private static final Subscriber[] NONE      = new Subscriber[0];
+    private static final Event        HEARTBEAT = new Event(0, ":\n\n");
+    private              Subscriber[] mSubscribers;
+    private              Event[]      mReplay;
+    private              int          mReplayStart;
+    private              int          mReplayCount;
+    private              long         mLastId;
+    private              boolean      mClosed;
+    private              Event        mRetry;
+    private volatile     int          mMaximumPending;
+    private              Task         mHeartbeat;
+    private              LongAdder    mPublished    = new LongAdder();
+    private              LongAdder    mDisconnected = new LongAdder();
+
+    /**
+     * @param replayCapacity The number of recent events to keep for clients that reconnect. Pass
+     *                       in {@code 0} to keep none.
+     */
+    public EventStream(int replayCapacity) {
+        mSubscribers = NONE;
+        mReplay = new Event[replayCapacity];
+        mMaximumPending = 1024;
+    }
+
+    /**
+     * @return The maximum number of events that may be waiting to be sent to a subscriber before
+     *         its response is ended.
+     */
+    public final int getMaximumPending() {
+        return mMaximumPending;
+    }
+
+    /**
+     * @param maximum The maximum number of events that may be waiting to be sent to a subscriber
+     *                before its response is ended.
+     */
+    public final void setMaximumPending(int maximum) {
+        mMaximumPending = maximum;
+    }
+
+    /**
+     * @param millis The reconnection delay to suggest to new subscribers, in milliseconds. Pass in
+     *               {@code 0} to leave it to the client.
+     */
+    public final synchronized void setRetry(long millis) {
+        mRetry = millis > 0 ? new Event(0, "retry: " + millis + "\n\n") : null;
+    }
+
+    /**
+     * Starts sending a comment to all subscribers at a regular interval, so that intermediaries
+     * don't time out connections that are otherwise quiet.
+     *
+     * @param millis The number of milliseconds between heartbeats. Pass in {@code 0} to stop
+     *               sending them.
+     */
+    public final synchronized void setHeartbeatInterval(long millis) {
+        if (mHeartbeat != null) {
+            mHeartbeat.cancel();
+            mHeartbeat = null;
+        }
+        if (millis > 0 && !mClosed) {
+            mHeartbeat = Tasks.scheduleRepeatedlyOnBackgroundThread(this::heartbeat, millis, TimeUnit.MILLISECONDS, null);
+        }
+    }
+
+    /**
+     * Subscribes the client that made a request. Any events it missed, as indicated by its {@code
+     * Last-Event-ID} header, are sent first.
+     *
+     * @param http The {@link Http} object the request came from.
+     * @return The {@link HttpResponse} to return from {@link HttpRequestHandler#handleHttpRequest(Http)}.
+     */
+    public final HttpResponse subscribe(Http http) {
+        long lastId = -1;
+        String header = http.getFirstHeader("last-event-id");
+        if (header != null) {
+            try {
+                lastId = Long.parseLong(header.trim());
+            } catch (NumberFormatException exception) {
+                // Not one of ours, so nothing can be replayed
+            }
+        }
+        Subscriber subscriber = new Subscriber(this, http);
+        synchronized (this) {
+            if (mClosed) {
+                return new HttpResponse(HttpStatusCode.SERVICE_UNAVAILABLE, MimeTypes.TEXT, "Event stream closed");
+            }
+            if (mRetry != null) {
+                subscriber.queue(mRetry);
+            }
+            if (lastId >= 0) {
+                for (int i = 0; i < mReplayCount; i++) {
+                    Event event = mReplay[(mReplayStart + i) % mReplay.length];
+                    if (event.mId > lastId) {
+                        subscriber.queue(event);
+                    }
+                }
+            }
+            mSubscribers = Arrays.copyOf(mSubscribers, mSubscribers.length + 1);
+            mSubscribers[mSubscribers.length - 1] = subscriber;
+        }
+        HttpResponse response = new HttpResponse(HttpStatusCode.OK, MimeTypes.EVENT_STREAM, subscriber);
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+
+    /**
+     * Publishes an unnamed event.
+     *
+     * @param data The data for the event. May contain line breaks.
+     * @return The id assigned to the event.
+     */
+    public final long publish(String data) {
+        return publish(null, data);
+    }
+
+    /**
+     * Publishes an event.
+     *
+     * @param name The name of the event, or {@code null}. May not contain line breaks.
+     * @param data The data for the event. May contain line breaks.
+     * @return The id assigned to the event, or {@code -1} if this {@link EventStream} has been
+     *         closed.
+     */
+    public final long publish(String name, String data) {
+        if (name != null && (name.indexOf('\n') != -1 || name.indexOf('\r') != -1)) {
+            throw new IllegalArgumentException("Event names may not contain line breaks");
+        }
+        synchronized (this) {
+            if (mClosed) {
+                return -1;
+            }
+            long  id    = ++mLastId;
+            Event event = new Event(id, encode(id, name, data));
+            if (mReplay.length > 0) {
+                if (mReplayCount < mReplay.length) {
+                    mReplay[(mReplayStart + mReplayCount++) % mReplay.length] = event;
+                } else {
+                    mReplay[mReplayStart] = event;
+                    mReplayStart = (mReplayStart + 1) % mReplay.length;
+                }
+            }
+            mPublished.increment();
+            // Delivered while holding the lock, so that every subscriber sees events in id order
+            for (Subscriber subscriber : mSubscribers) {
+                subscriber.deliver(event);
+            }
+            return id;
+        }
+    }
+
+    private static String encode(long id, String name, String data) {
+        StringBuilder buffer = new StringBuilder(data.length() + 32);
+        buffer.append("id: ").append(id).append('\n');
+        if (name != null) {
+            buffer.append("event: ").append(name).append('\n');
+        }
+        int length = data.length();
+        int start  = 0;
+        for (int i = 0; i <= length; i++) {
+            char ch = i < length ? data.charAt(i) : '\n';
+            if (ch == '\n' || ch == '\r') {
+                buffer.append("data: ").append(data, start, i).append('\n');
+                if (ch == '\r' && i + 1 < length && data.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        buffer.append('\n');
+        return buffer.toString();
+    }
+
+    /** Sends a comment to all subscribers, to keep otherwise quiet connections alive. */
+    public final synchronized void heartbeat() {
+        for (Subscriber subscriber : mSubscribers) {
+            subscriber.deliver(HEARTBEAT);
+        }
+    }
+
+    /** Ends the responses of all subscribers and refuses any new ones. */
+    public final synchronized void close() {
+        mClosed = true;
+        setHeartbeatInterval(0);
+        for (Subscriber subscriber : mSubscribers) {
+            subscriber.end();
+        }
+    }
+
+    /** @return The number of clients currently subscribed. */
+    public final int getSubscriberCount() {
+        return mSubscribers.length;
+    }
+
+    /** @return The id of the most recently published event, or {@code 0} if none have been. */
+    public final synchronized long getLastEventId() {
+        return mLastId;
+    }
+
+    /** @return The number of events that have been published. */
+    public final long getPublishedCount() {
+        return mPublished.sum();
+    }
+
+    /** @return The number of subscribers whose responses were ended because they fell behind. */
+    public final long getDisconnectedCount() {
+        return mDisconnected.sum();
+    }
+
+    private synchronized void remove(Subscriber subscriber) {
+        for (int i = 0; i < mSubscribers.length; i++) {
+            if (mSubscribers[i] == subscriber) {
+                if (mSubscribers.length == 1) {
+                    mSubscribers = NONE;
+                } else {
+                    Subscriber[] replacement = new Subscriber[mSubscribers.length - 1];
+                    System.arraycopy(mSubscribers, 0, replacement, 0, i);
+                    System.arraycopy(mSubscribers, i + 1, replacement, i, replacement.length - i);
+                    mSubscribers = replacement;
+                }
+                return;
+            }
+        }
+    }
+
+    /** An encoded event, shared by all of the subscribers it is sent to. */
+    private static final class Event {
+        private long       mId;
+        private ByteBuffer mData;
+        private ByteBuffer mChunk;
+
+        Event(long id, String text) {
+            mId = id;
+            mData = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        }
+
+        void writeTo(HttpResponseSink sink) {
+            sink.writeEncoded(mData.duplicate(), sink.isChunked() ? getChunk() : null);
+        }
+
+        /** @return A private view of the event framed as a chunk, which is built on first use. */
+        private synchronized ByteBuffer getChunk() {
+            if (mChunk == null) {
+                byte[]     header = (Integer.toHexString(mData.remaining()) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                ByteBuffer chunk  = ByteBuffer.allocate(header.length + mData.remaining() + 2);
+                chunk.put(header);
+                chunk.put(mData.duplicate());
+                chunk.put((byte) '\r');
+                chunk.put((byte) '\n');
+                chunk.flip();
+                mChunk = chunk.asReadOnlyBuffer();
+            }
+            return mChunk.duplicate();
+        }
+    }
+
+    /** The response body sent to a single subscriber. */
+    private static final class Subscriber implements HttpResponseProducer {
+        private EventStream                  mStream;
+        private Http                         mHttp;
+        private ConcurrentLinkedQueue<Event> mQueue         = new ConcurrentLinkedQueue<>();
+        private AtomicInteger                mPending       = new AtomicInteger();
+        private AtomicBoolean                mWakeRequested = new AtomicBoolean();
+        private volatile boolean             mEnded;
+
+        Subscriber(EventStream stream, Http http) {
+            mStream = stream;
+            mHttp = http;
+        }
+
+        /** @param event An {@link Event} to send once the response starts. */
+        void queue(Event event) {
+            mPending.incrementAndGet();
+            mQueue.add(event);
+        }
+
+        /** @param event An {@link Event} to send as soon as the connection has room. */
+        void deliver(Event event) {
+            if (!mEnded) {
+                if (mPending.incrementAndGet() > mStream.mMaximumPending) {
+                    mStream.mDisconnected.increment();
+                    end();
+                } else {
+                    mQueue.add(event);
+                    wake();
+                }
+            }
+        }
+
+        /** Ends the response once the connection gets to it. */
+        void end() {
+            mEnded = true;
+            wake();
+        }
+
+        private void wake() {
+            if (mWakeRequested.compareAndSet(false, true)) {
+                mHttp.wakeStream();
+            }
+        }
+
+        @Override
+        public boolean produce(HttpResponseSink sink) {
+            // Cleared first, so that an event queued from here on asks for another call
+            mWakeRequested.set(false);
+            if (mEnded) {
+                mQueue.clear();
+                mStream.remove(this);
+                return true;
+            }
+            Event event;
+            while (sink.isWritable() && (event = mQueue.poll()) != null) {
+                mPending.decrementAndGet();
+                event.writeTo(sink);
+            }
+            return false;
+        }
+
+        @Override
+        public void abort() {
+            mEnded = true;
+            mQueue.clear();
+            mStream.remove(this);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2, as described by RFC 7541. Header blocks are encoded using
+ * only the static table, so encoding keeps no per-connection state and the lookup tables built
+ * from the static table are shared by all connections. Decoding maintains the dynamic table the
+ * client's encoder expects, via a {@link Decoder} per connection.
+ */
+final class Hpack {
+    private static final String[]             STATIC_TABLE    = {
+            ":authority", "",
+            ":method", "GET",
+            ":method", "POST",
+            ":path", "/",
+            ":path", "/index.html",
+            ":scheme", "http",
+            ":scheme", "https",
+            ":status", "200",
+            ":status", "204",
+            ":status", "206",
+            ":status", "304",
+            ":status", "400",
+            ":status", "404",
+            ":status", "500",
+            "accept-charset", "",
+            "accept-encoding", "gzip, deflate",
+            "accept-language", "",
+            "accept-ranges", "",
+            "accept", "",
+            "access-control-allow-origin", "",
+            "age", "",
+            "allow", "",
+            "authorization", "",
+            "cache-control", "",
+            "content-disposition", "",
+            "content-encoding", "",
+            "content-language", "",
+            "content-length", "",
+            "content-location", "",
+            "content-range", "",
+            "content-type", "",
+            "cookie", "",
+            "date", "",
+            "etag", "",
+            "expect", "",
+            "expires", "",
+            "from", "",
+            "host", "",
+            "if-match", "",
+            "if-modified-since", "",
+            "if-none-match", "",
+            "if-range", "",
+            "if-unmodified-since", "",
+            "last-modified", "",
+            "link", "",
+            "location", "",
+            "max-forwards", "",
+            "proxy-authenticate", "",
+            "proxy-authorization", "",
+            "range", "",
+            "referer", "",
+            "refresh", "",
+            "retry-after", "",
+            "server", "",
+            "set-cookie", "",
+            "strict-transport-security", "",
+            "transfer-encoding", "",
+            "user-agent", "",
+            "vary", "",
+            "via", "",
+            "www-authenticate", ""
+    };
+    private static final int                  STATIC_COUNT    = STATIC_TABLE.length / 2;
+    private static final int[]                HUFFMAN_CODES   = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[]               HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+    private static final int                  EOS             = 256;
+    private static final int                  ENTRY_OVERHEAD  = 32;
+    private static final Map<String, Integer> NAME_INDEX      = new HashMap<>();
+    private static final Map<String, Integer> FIELD_INDEX     = new HashMap<>();
+    // The Huffman code as a binary trie. Each node has two slots, one per bit. A slot holds the
+    // index of the next node, or the bitwise complement of the symbol decoded when it is reached.
+    private static final int[]                HUFFMAN_TRIE;
+
+    static {
+        for (int i = STATIC_COUNT; i > 0; i--) {
+            String name = STATIC_TABLE[i * 2 - 2];
+            NAME_INDEX.put(name, Integer.valueOf(i));
+            FIELD_INDEX.put(name + '\n' + STATIC_TABLE[i * 2 - 1], Integer.valueOf(i));
+        }
+        int[] trie  = new int[2 * 2 * (EOS + 1)];
+        int   nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code   = symbol == EOS ? 0x3fffffff : HUFFMAN_CODES[symbol];
+            int length = symbol == EOS ? 30 : HUFFMAN_LENGTHS[symbol];
+            int node   = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int slot = node * 2 + (code >>> bit & 1);
+                if (trie[slot] == 0) {
+                    trie[slot] = nodes++;
+                }
+                node = trie[slot];
+            }
+            trie[node * 2 + (code & 1)] = ~symbol;
+        }
+        HUFFMAN_TRIE = trie;
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Appends a header field to a header block, referring to the static table where possible.
+     * Fields are never added to the client's dynamic table.
+     *
+     * @param out   The header block being built.
+     * @param name  The lower-cased name of the field.
+     * @param value The value of the field.
+     */
+    static void encode(ByteArrayOutputStream out, String name, String value) {
+        Integer index = FIELD_INDEX.get(name + '\n' + value);
+        if (index != null) {
+            writeInteger(out, 0x80, 7, index.intValue());
+            return;
+        }
+        index = NAME_INDEX.get(name);
+        if (index != null) {
+            // Literal header field without indexing, with an indexed name
+            writeInteger(out, 0, 4, index.intValue());
+        } else {
+            out.write(0);
+            writeString(out, name);
+        }
+        writeString(out, value);
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeInteger(out, 0, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /** Decodes the header blocks received on a single connection. */
+    static final class Decoder {
+        private int      mMaximumTableSize;
+        private int      mTableSize;
+        private int      mTableCapacity;
+        private int      mFirst;
+        private int      mCount;
+        private String[] mNames   = new String[16];
+        private String[] mValues  = new String[16];
+        private int[]    mSizes   = new int[16];
+        private byte[]   mScratch = new byte[256];
+
+        /**
+         * @param maximumTableSize The largest dynamic table the client's encoder may use, as
+         *                         advertised in our SETTINGS_HEADER_TABLE_SIZE.
+         */
+        Decoder(int maximumTableSize) {
+            mMaximumTableSize = maximumTableSize;
+            mTableCapacity = maximumTableSize;
+        }
+
+        /**
+         * @param block A complete header block.
+         * @return The decoded fields, as alternating names and values.
+         */
+        List<String> decode(ByteBuffer block) throws Http2Exception {
+            List<String> fields = new ArrayList<>();
+            while (block.hasRemaining()) {
+                int b = block.get(block.position()) & 0xff;
+                if ((b & 0x80) != 0) {
+                    int index = readInteger(block, 7);
+                    fields.add(toUtf8(getName(index)));
+                    fields.add(toUtf8(getValue(index)));
+                } else if ((b & 0x40) != 0) {
+                    int    index = readInteger(block, 6);
+                    String name  = index == 0 ? readString(block) : getName(index);
+                    String value = readString(block);
+                    fields.add(toUtf8(name));
+                    fields.add(toUtf8(value));
+                    add(name, value);
+                } else if ((b & 0x20) != 0) {
+                    int size = readInteger(block, 5);
+                    if (size > mMaximumTableSize) {
+                        throw compressionError();
+                    }
+                    mTableCapacity = size;
+                    evict(0);
+                } else {
+                    // Literal header field without indexing, or never indexed
+                    int index = readInteger(block, 4);
+                    fields.add(toUtf8(index == 0 ? readString(block) : getName(index)));
+                    fields.add(toUtf8(readString(block)));
+                }
+            }
+            return fields;
+        }
+
+        private String getName(int index) throws Http2Exception {
+            if (index <= STATIC_COUNT) {
+                if (index == 0) {
+                    throw compressionError();
+                }
+                return STATIC_TABLE[index * 2 - 2];
+            }
+            return mNames[dynamicSlot(index)];
+        }
+
+        private String getValue(int index) throws Http2Exception {
+            if (index <= STATIC_COUNT) {
+                if (index == 0) {
+                    throw compressionError();
+                }
+                return STATIC_TABLE[index * 2 - 1];
+            }
+            return mValues[dynamicSlot(index)];
+        }
+
+        private int dynamicSlot(int index) throws Http2Exception {
+            // The most recently added entry comes first
+            int offset = index - STATIC_COUNT - 1;
+            if (offset >= mCount) {
+                throw compressionError();
+            }
+            return (mFirst + mCount - 1 - offset) & (mNames.length - 1);
+        }
+
+        private void add(String name, String value) {
+            int size = name.length() + value.length() + ENTRY_OVERHEAD;
+            if (size > mTableCapacity) {
+                // An entry larger than the table empties it and is not added
+                evict(mTableCapacity);
+                return;
+            }
+            evict(size);
+            if (mCount == mNames.length) {
+                mNames = grow(mNames);
+                mValues = grow(mValues);
+                int[] sizes = new int[mSizes.length * 2];
+                for (int i = 0; i < mCount; i++) {
+                    sizes[i] = mSizes[(mFirst + i) & (mSizes.length - 1)];
+                }
+                mSizes = sizes;
+                mFirst = 0;
+            }
+            int slot = (mFirst + mCount) & (mNames.length - 1);
+            mNames[slot] = name;
+            mValues[slot] = value;
+            mSizes[slot] = size;
+            mCount++;
+            mTableSize += size;
+        }
+
+        private String[] grow(String[] array) {
+            String[] grown = new String[array.length * 2];
+            for (int i = 0; i < mCount; i++) {
+                grown[i] = array[(mFirst + i) & (array.length - 1)];
+            }
+            return grown;
+        }
+
+        /** Removes the oldest entries until there is room for an entry of the specified size. */
+        private void evict(int needed) {
+            while (mCount > 0 && mTableSize + needed > mTableCapacity) {
+                mTableSize -= mSizes[mFirst];
+                mNames[mFirst] = null;
+                mValues[mFirst] = null;
+                mFirst = (mFirst + 1) & (mNames.length - 1);
+                mCount--;
+            }
+        }
+
+        private static int readInteger(ByteBuffer block, int prefixBits) throws Http2Exception {
+            int max   = (1 << prefixBits) - 1;
+            int value = block.get() & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; shift < 28; shift += 7) {
+                if (!block.hasRemaining()) {
+                    throw compressionError();
+                }
+                int b = block.get() & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw compressionError();
+        }
+
+        private String readString(ByteBuffer block) throws Http2Exception {
+            if (!block.hasRemaining()) {
+                throw compressionError();
+            }
+            boolean huffman = (block.get(block.position()) & 0x80) != 0;
+            int     length  = readInteger(block, 7);
+            if (length > block.remaining()) {
+                throw compressionError();
+            }
+            if (!huffman) {
+                if (mScratch.length < length) {
+                    mScratch = new byte[length];
+                }
+                block.get(mScratch, 0, length);
+                return new String(mScratch, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            // Each byte of Huffman-coded data holds at most 8 / 5 symbols
+            if (mScratch.length < length * 8 / 5 + 1) {
+                mScratch = new byte[length * 8 / 5 + 1];
+            }
+            byte[]  out     = mScratch;
+            int     count   = 0;
+            int     node    = 0;
+            int     pending = 0;
+            boolean allOnes = true;
+            for (int i = 0; i < length; i++) {
+                int b = block.get() & 0xff;
+                for (int bit = 7; bit >= 0; bit--) {
+                    int one  = b >>> bit & 1;
+                    int next = HUFFMAN_TRIE[node * 2 + one];
+                    pending++;
+                    allOnes &= one == 1;
+                    if (next < 0) {
+                        if (~next == EOS) {
+                            throw compressionError();
+                        }
+                        out[count++] = (byte) ~next;
+                        node = 0;
+                        pending = 0;
+                        allOnes = true;
+                    } else if (next == 0) {
+                        throw compressionError();
+                    } else {
+                        node = next;
+                    }
+                }
+            }
+            // Anything left over must be a prefix of the EOS code no longer than 7 bits
+            if (pending > 7 || !allOnes) {
+                throw compressionError();
+            }
+            return new String(out, 0, count, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Strings are held as ISO-8859-1 while decoding, so that their lengths match the octet
+         * counts the dynamic table is sized by. Header values are UTF-8, as they are for HTTP/1.x.
+         */
+        private static String toUtf8(String text) {
+            for (int i = text.length() - 1; i >= 0; i--) {
+                if (text.charAt(i) > 0x7f) {
+                    return new String(text.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+                }
+            }
+            return text;
+        }
+
+        private static Http2Exception compressionError() {
+            return new Http2Exception(Http2.COMPRESSION_ERROR, 0, "Invalid header block");
+        }
+    }
+}
@@ -12,18 +12,17 @@
 package com.trollworks.toolkit.io.server.http;
 
 import com.trollworks.toolkit.io.Log;
+import com.trollworks.toolkit.io.server.FileRegion;
 import com.trollworks.toolkit.io.server.Personality;
 import com.trollworks.toolkit.io.server.Session;
 import com.trollworks.toolkit.io.server.websocket.WebSocket;
 import com.trollworks.toolkit.io.server.websocket.WebSocketFactory;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
@@ -35,59 +34,444 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 
 /** A {@link Personality} for handling HTTP connections. */
 public class Http extends Personality {
-    private static final int                       MAXIMUM_HEADER_SIZE  = 8 * 1024;
-    private static final int                       MAXIMUM_CONTENT_SIZE = 1024 * 1024;
-    private static final Pattern                   REQUEST_PATTERN      = Pattern.compile("^(\\S+)\\s+(\\S+)\\s+HTTP/(\\d+)\\.(\\d+)$");
+    private static final int                       MAXIMUM_UNCACHED_ENCODING_SIZE = 1024 * 1024;
+    private static final int                       MAXIMUM_DEFERRED_INPUT         = 64 * 1024;
+    private static final byte[]                    CONTINUE                       = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
     private              HttpSessionFactory        mFactory;
-    private              int                       mState;
-    private              int                       mContentSize;
-    private              ByteArrayOutputStream     mBuffer              = new ByteArrayOutputStream(MAXIMUM_HEADER_SIZE);
-    private              byte[]                    mBody;
+    private              HttpRequestParser         mParser;
+    private              RequestBody               mBody;
+    private              boolean                   mInBody;
+    private              boolean                   mInHeader;
+    private              boolean                   mCollectBody;
+    private              HttpBodyReceiver          mBodyReceiver;
+    private              HttpResponseProducer      mProducer;
+    private              HttpResponseSink          mSink;
+    private              boolean                   mCloseAfterStream;
+    private              ByteBuffer                mDeferred;
     private              String                    mUri;
     private              HttpMethod                mMethod;
-    private              int                       mVersionMajor;
-    private              int                       mVersionMinor;
-    private              Map<String, List<String>> mParameters          = new HashMap<>();
-    private              Map<String, List<String>> mHeaders             = new HashMap<>();
+    private              HttpRouter.Match          mRoute;
+    private              Map<String, List<String>> mParameters                    = new HashMap<>();
+    private              Map<String, List<String>> mHeaders;
+    private              Http2Stream               mStream;
+    private              long                      mStreamBodyLength;
+    private              boolean                   mStreamFailed;
+    private              boolean                   mReceivedInput;
+    private              long                      mRequestStart;
 
     /** @param factory The factory to use when creating new {@link Session}s. */
     public Http(HttpSessionFactory factory) {
         mFactory = factory;
+        mParser = new HttpRequestParser(factory.getMaximumBodySize());
+        mBody = new RequestBody(factory.getBodySpoolThreshold());
+    }
+
+    /**
+     * Creates an exchange for a request arriving on a HTTP/2 stream.
+     *
+     * @param factory The factory whose handlers will serve the request.
+     * @param stream  The {@link Http2Stream} carrying the request.
+     */
+    Http(HttpSessionFactory factory, Http2Stream stream) {
+        this(factory);
+        mStream = stream;
+        attachToSession(stream.getConnection().getSession());
     }
 
     @Override
     public String toString() {
-        return "HTTP";
+        return mStream != null ? mStream.toString() : "HTTP";
     }
 
     private void reset() {
-        mState = 0;
-        mContentSize = 0;
-        mBuffer = new ByteArrayOutputStream(MAXIMUM_HEADER_SIZE);
-        mBody = null;
+        mParser.recycle();
+        mBody.close();
+        mInBody = false;
+        mInHeader = false;
+        mCollectBody = false;
+        mBodyReceiver = null;
         mUri = null;
         mMethod = null;
-        mVersionMajor = 0;
-        mVersionMinor = 0;
-        mParameters = new HashMap<>();
-        mHeaders = new HashMap<>();
+        mRoute = null;
+        mParameters.clear();
+        mHeaders = null;
     }
 
     @Override
     public void processInput(ByteBuffer buffer) throws IOException {
+        if (!mReceivedInput) {
+            mReceivedInput = true;
+            if (mFactory.isHttp2Enabled() && !isSecure() && Http2.isPreface(buffer)) {
+                // The client already knows HTTP/2 is supported, so it skipped the upgrade
+                Http2 http2 = new Http2(mFactory);
+                getSession().setPersonality(http2);
+                http2.start();
+                return;
+            }
+        }
+        if (mDeferred != null && mProducer == null) {
+            // Older pipelined input that was held back must be handled before anything newer
+            replayDeferred();
+            if (getSession().getPersonality() != this) {
+                getSession().getPersonality().processInput(buffer);
+                return;
+            }
+        }
         while (buffer.hasRemaining()) {
-            if (parse(buffer.get())) {
-                processRequest();
+            if (mProducer != null) {
+                // Pipelined requests must wait until the response being streamed is complete
+                deferInput(buffer);
+                return;
+            }
+            try {
+                if (!mInBody) {
+                    if (!mInHeader) {
+                        if (mFactory.isOverloaded(getSession())) {
+                            // Refuse the request before spending any effort on it
+                            buffer.position(buffer.limit());
+                            mFactory.getMetrics().requestShed();
+                            send(mFactory.getOverloadResponse());
+                            requestClose(false);
+                            return;
+                        }
+                        // The whole header must arrive within the session's read timeout
+                        mInHeader = true;
+                        mRequestStart = System.nanoTime();
+                        getSession().startReadTimer();
+                    }
+                    if (!mParser.parse(buffer)) {
+                        return;
+                    }
+                    getSession().cancelReadTimer();
+                    beginRequest();
+                    mInBody = true;
+                }
+                if (!receiveBody(buffer)) {
+                    return;
+                }
+                finishBody();
+            } catch (Exception exception) {
+                // The request can't be completed, so there is no way to find the start of the next one
+                buffer.position(buffer.limit());
+                sendErrorResponse(exception);
+                requestClose(false);
                 reset();
+                return;
+            }
+            processRequest();
+            reset();
+            if (getSession().getPersonality() != this) {
+                // The connection was upgraded, so any remaining input belongs to the new personality
+                return;
+            }
+        }
+    }
+
+    private void sendErrorResponse(Exception exception) {
+        HttpResponse response;
+        if (exception instanceof HttpResponseException) {
+            HttpResponseException responseException = (HttpResponseException) exception;
+            response = new HttpResponse(responseException.getStatus(), MimeTypes.TEXT, exception.getMessage());
+            if (responseException.getRetryAfter() > 0) {
+                response.addHeader("Retry-After", Long.toString(responseException.getRetryAfter()));
+            }
+        } else {
+            Log.warn(getSession(), exception);
+            response = new HttpResponse(HttpStatusCode.INTERNAL_ERROR, MimeTypes.TEXT, "INTERNAL ERROR: " + exception.getMessage());
+        }
+        response.send(this);
+    }
+
+    /**
+     * Begins a request received on a HTTP/2 stream.
+     *
+     * @param method        The request's {@link HttpMethod}, or {@code null} if not supported.
+     * @param target        The request target.
+     * @param fields        The header fields, as alternating lower-cased names and values.
+     * @param contentLength The length of the body, or {@code -1} if it isn't known in advance.
+     */
+    final void beginStreamRequest(HttpMethod method, String target, List<String> fields, long contentLength) {
+        mRequestStart = System.nanoTime();
+        try {
+            if (method == null) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Unsupported method");
+            }
+            if (mFactory.isOverloaded(getSession())) {
+                // The header block has already been decoded, as it must be to keep the connection's
+                // compression state in step, but nothing more is done
+                mFactory.getMetrics().requestShed();
+                throw new HttpResponseException(HttpStatusCode.SERVICE_UNAVAILABLE, "SERVICE UNAVAILABLE", mFactory.getRetryAfter());
+            }
+            mParser.setRequest(method, target, fields, contentLength);
+            beginRequest();
+        } catch (Exception exception) {
+            failStreamRequest(exception);
+        }
+    }
+
+    /** @param data A portion of the body of a request received on a HTTP/2 stream. */
+    final void streamBodyData(ByteBuffer data) {
+        if (!mStreamFailed) {
+            try {
+                mStreamBodyLength += data.remaining();
+                if (mStreamBodyLength > mFactory.getMaximumBodySize()) {
+                    throw new HttpResponseException(HttpStatusCode.ENTITY_TOO_LARGE, "BAD REQUEST: Content too large");
+                }
+                if (mBodyReceiver != null) {
+                    mBodyReceiver.bodyData(this, data);
+                } else if (mCollectBody) {
+                    mBody.write(data);
+                }
+            } catch (Exception exception) {
+                failStreamRequest(exception);
+            }
+        }
+    }
+
+    /** Called once the whole of a request received on a HTTP/2 stream has arrived. */
+    final void finishStreamRequest() {
+        if (!mStreamFailed) {
+            try {
+                finishBody();
+                processRequest();
+            } catch (Exception exception) {
+                failStreamRequest(exception);
+            }
+        }
+    }
+
+    /**
+     * Answers a request received on a HTTP/2 stream with an error. Unlike HTTP/1.x, the rest of
+     * the connection is unaffected.
+     *
+     * @param exception The reason the request failed.
+     */
+    final void failStreamRequest(Exception exception) {
+        if (!mStreamFailed) {
+            mStreamFailed = true;
+            sendErrorResponse(exception);
+        }
+    }
+
+    /** @return The {@link HttpSessionFactory} this exchange belongs to. */
+    final HttpSessionFactory getFactory() {
+        return mFactory;
+    }
+
+    /**
+     * Called by {@link HttpResponse#send(Http)} to record the completion of the current request.
+     *
+     * @param status The {@link HttpStatusCode} of the response.
+     */
+    final void responseSent(HttpStatusCode status) {
+        if (mRequestStart != 0 && status != null) {
+            mFactory.getMetrics().requestCompleted(getRoutePattern(), status, System.nanoTime() - mRequestStart);
+            mRequestStart = 0;
+        }
+    }
+
+    /** @return The {@link Http2Stream} this exchange is for, or {@code null} if none. */
+    final Http2Stream getStream() {
+        return mStream;
+    }
+
+    /** @return {@code true} if a streamed response is waiting for room to produce more of its body. */
+    final boolean isStreaming() {
+        return mProducer != null;
+    }
+
+    /** Lets a streamed response on a HTTP/2 stream produce more of its body. */
+    final void resumeStream() {
+        pumpStream();
+    }
+
+    /**
+     * Asks for the {@link HttpResponseProducer} of a streamed response to be called again, such as
+     * when one that previously had nothing to write now does. May be called from any thread.
+     */
+    public final void wakeStream() {
+        getSession().execute(this::pumpStream);
+    }
+
+    private void closeAfterResponse() {
+        // Over HTTP/2, only the stream ends with the response; the connection carries on
+        if (mStream == null) {
+            requestClose(false);
+        }
+    }
+
+    private void deferInput(ByteBuffer buffer) {
+        int amount = buffer.remaining();
+        if (mDeferred == null) {
+            mDeferred = ByteBuffer.allocate(Math.max(amount, HttpRequestParser.MAXIMUM_HEADER_SIZE));
+        } else if (mDeferred.remaining() < amount) {
+            if (mDeferred.position() + amount > MAXIMUM_DEFERRED_INPUT) {
+                Log.warn(getSession(), "Too much pipelined input while streaming a response");
+                buffer.position(buffer.limit());
+                requestClose(true);
+                return;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(mDeferred.capacity() * 2, mDeferred.position() + amount));
+            mDeferred.flip();
+            grown.put(mDeferred);
+            mDeferred = grown;
+        }
+        mDeferred.put(buffer);
+    }
+
+    /**
+     * Begins sending the body of a streamed response. Called by {@link HttpResponse} once the
+     * header has been sent.
+     *
+     * @param producer The {@link HttpResponseProducer} that will generate the body.
+     * @param sink     The {@link HttpResponseSink} the body will be written to.
+     */
+    final void startStream(HttpResponseProducer producer, HttpResponseSink sink) {
+        mProducer = producer;
+        mSink = sink;
+        mCloseAfterStream = mStream == null && (!sink.isDelimited() || "close".equals(getFirstHeader("connection")));
+        pumpStream();
+    }
+
+    private void pumpStream() {
+        boolean completed = false;
+        try {
+            boolean produced = false;
+            while (mProducer != null && mSink.isWritable()) {
+                long written = mSink.getBytesWritten();
+                if (mProducer.produce(mSink)) {
+                    HttpResponseSink sink = mSink;
+                    mProducer = null;
+                    mSink = null;
+                    sink.close();
+                    if (mCloseAfterStream) {
+                        requestClose(false);
+                    } else {
+                        completed = true;
+                    }
+                } else if (mSink.getBytesWritten() == written) {
+                    // Nothing to write right now; the producer will call wakeStream() when it has
+                    break;
+                }
+                produced = true;
+            }
+            // Flushing lets every stream's producer run again, so only do so when there is news
+            if (mStream != null && produced) {
+                mStream.flush();
+            }
+        } catch (Exception exception) {
+            // The header has already gone out, so the only option is to cut the body short
+            Log.warn(getSession(), exception);
+            abortStream();
+            if (mStream != null) {
+                mStream.reset(Http2.INTERNAL_ERROR);
+            } else {
+                requestClose(true);
+            }
+            return;
+        }
+        // However the response finished, pipelined requests held back behind it can now proceed
+        if (completed && mDeferred != null) {
+            try {
+                replayDeferred();
+            } catch (IOException exception) {
+                Log.error(getSession(), exception);
+                requestClose(true);
+            }
+        }
+    }
+
+    /** Feeds the pipelined input held back while a response was being streamed back in. */
+    private void replayDeferred() throws IOException {
+        ByteBuffer deferred = mDeferred;
+        mDeferred = null;
+        deferred.flip();
+        while (deferred.hasRemaining()) {
+            // The connection may have been upgraded, so go through the session
+            getSession().getPersonality().processInput(deferred);
+        }
+    }
+
+    private void abortStream() {
+        if (mProducer != null) {
+            HttpResponseProducer producer = mProducer;
+            mProducer = null;
+            mSink = null;
+            producer.abort();
+        }
+    }
+
+    @Override
+    public void writabilityChanged(boolean writable) {
+        if (writable && mProducer != null) {
+            pumpStream();
+        }
+    }
+
+    private void beginRequest() throws IOException {
+        mMethod = mParser.getMethod();
+        mUri = mParser.getTarget();
+        int index = mUri.indexOf('?');
+        if (index != -1) {
+            if (mUri.length() > index + 1) {
+                decodeParameters(mUri.substring(index + 1));
+            }
+            mUri = mUri.substring(0, index);
+        }
+        mUri = decodePercent(mUri);
+        mRoute = mFactory.route(mMethod, mUri);
+        long wait = mFactory.checkRateLimit(getSession().getAddress(), getRoutePattern());
+        if (wait > 0) {
+            mFactory.getMetrics().requestLimited();
+            throw new HttpResponseException(HttpStatusCode.TOO_MANY_REQUESTS, "TOO MANY REQUESTS", TimeUnit.SECONDS.convert(wait + TimeUnit.SECONDS.toNanos(1) - 1, TimeUnit.NANOSECONDS));
+        }
+        if (mParser.hasBody()) {
+            HttpRequestHandler handler = mRoute != null ? mRoute.getHandler() : null;
+            if (handler != null) {
+                mBodyReceiver = handler.createBodyReceiver(this);
+                mCollectBody = mBodyReceiver == null;
+            }
+            if (mParser.getVersionMinor() > 0 && "100-continue".equalsIgnoreCase(getFirstHeader("expect"))) {
+                send(ByteBuffer.wrap(CONTINUE));
+            }
+        }
+    }
+
+    private boolean receiveBody(ByteBuffer buffer) throws IOException {
+        while (!mParser.isBodyComplete()) {
+            ByteBuffer chunk = mParser.nextBodyChunk(buffer);
+            if (chunk == null) {
+                // Either more input is needed, or the end of the body framing was just consumed
+                return mParser.isBodyComplete();
+            }
+            if (mBodyReceiver != null) {
+                mBodyReceiver.bodyData(this, chunk);
+            } else if (mCollectBody) {
+                mBody.write(chunk);
+            }
+        }
+        return true;
+    }
+
+    private void finishBody() throws IOException {
+        if (mCollectBody && HttpMethod.POST == mMethod) {
+            if ("application/x-www-form-urlencoded".equals(getFirstHeader("content-type"))) {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(getBody(), StandardCharsets.UTF_8))) {
+                    String line = in.readLine();
+                    while (line != null) {
+                        decodeParameters(line);
+                        line = in.readLine();
+                    }
+                }
             }
         }
     }
@@ -100,53 +484,64 @@ public class Http extends Personality {
                 throw new HttpResponseException(HttpStatusCode.FORBIDDEN, "FORBIDDEN: Outside of web scope");
             }
 
-            if (hasHeader("upgrade")) {
-                upgradeToWebSocket();
-                return;
+            String upgrade = getFirstHeader("upgrade");
+            if (upgrade != null) {
+                if (!"h2c".equalsIgnoreCase(upgrade.trim())) {
+                    upgradeToWebSocket();
+                    return;
+                }
+                if (canUpgradeToHttp2()) {
+                    upgradeToHttp2();
+                    return;
+                }
+                // Clients ask for h2c opportunistically, so just carry on with HTTP/1.1
             }
 
-            HttpRequestHandler handler = mFactory.getHttpHandler(mUri);
-            if (handler != null) {
+            HttpRequestHandler handler = mRoute != null ? mRoute.getHandler() : null;
+            if (mBodyReceiver != null) {
+                mBodyReceiver.bodyComplete(this).send(this);
+            } else if (handler != null) {
                 handler.handleHttpRequest(this).send(this);
+            } else if (mRoute != null) {
+                StringBuilder buffer = new StringBuilder();
+                for (HttpMethod method : mRoute.getAllowedMethods()) {
+                    if (buffer.length() > 0) {
+                        buffer.append(", ");
+                    }
+                    buffer.append(method.name());
+                }
+                HttpResponse response = new HttpResponse(HttpStatusCode.METHOD_NOT_ALLOWED, MimeTypes.TEXT, "METHOD NOT ALLOWED");
+                response.addHeader("Allow", buffer.toString());
+                response.send(this);
             } else {
-                if (!Files.exists(path)) {
+                StaticFile file = mFactory.getStaticFile(path);
+                if (!file.exists()) {
                     throw new HttpResponseException(HttpStatusCode.NOT_FOUND, "File not found");
                 }
 
-                if (Files.isDirectory(path)) {
+                if (file.isDirectory()) {
                     if (!mUri.endsWith("/")) {
                         HttpResponse response = new HttpResponse(HttpStatusCode.REDIRECT, MimeTypes.HTML, "<html><body>Redirected: <a href=\"" + mUri + "/\">" + mUri + "/</a></body></html>");
                         response.addHeader("Location", mUri + "/");
                         response.send(this);
-                        requestClose(false);
+                        closeAfterResponse();
                         return;
                     }
-                    handler = mFactory.getHttpHandler(mUri + "index.html");
-                    if (handler != null) {
-                        handler.handleHttpRequest(this).send(this);
+                    HttpRouter.Match route = mFactory.route(mMethod, mUri + "index.html");
+                    if (route != null && route.getHandler() != null) {
+                        mRoute = route;
+                        route.getHandler().handleHttpRequest(this).send(this);
                         closeIfNotKeepAlive();
                         return;
                     }
-                    Path newPath = path.resolve("index.html");
-                    if (Files.exists(newPath)) {
-                        path = newPath;
-                    } else {
+                    file = mFactory.getStaticFile(path.resolve("index.html"));
+                    if (!file.exists() || file.isDirectory()) {
                         throw new HttpResponseException(HttpStatusCode.FORBIDDEN, "FORBIDDEN: No directory listings");
                     }
                 }
 
                 try {
-                    String name = path.getFileName().toString();
-                    int    dot  = name.lastIndexOf('.');
-                    if (dot != -1 && dot + 1 < name.length()) {
-                        name = name.substring(dot + 1);
-                    }
-                    String       mime     = MimeTypes.lookup(name);
-                    long         size     = Files.size(path);
-                    HttpResponse response = new HttpResponse(HttpStatusCode.OK, mime, path);
-                    response.addHeader("Content-Length", Long.toString(size));
-                    response.setRequestMethod(mMethod);
-                    response.send(this);
+                    createStaticFileResponse(file).send(this);
                 } catch (IOException ioe) {
                     throw new HttpResponseException(HttpStatusCode.FORBIDDEN, "FORBIDDEN: Reading file failed");
                 }
@@ -157,25 +552,201 @@ public class Http extends Personality {
         } catch (HttpResponseException re) {
             HttpResponse response = new HttpResponse(re.getStatus(), MimeTypes.TEXT, re.getMessage());
             response.send(this);
-            requestClose(false);
+            closeAfterResponse();
         } catch (IOException ioe) {
             HttpResponse response = new HttpResponse(HttpStatusCode.INTERNAL_ERROR, MimeTypes.TEXT, "INTERNAL ERROR: " + ioe.getMessage());
             response.send(this);
-            requestClose(false);
+            closeAfterResponse();
         } catch (Exception exception) {
             Log.warn(getSession(), exception);
             HttpResponse response = new HttpResponse(HttpStatusCode.INTERNAL_ERROR, MimeTypes.TEXT, "INTERNAL ERROR: " + exception.getMessage());
             response.send(this);
-            requestClose(false);
+            closeAfterResponse();
+        }
+    }
+
+    private HttpResponse createStaticFileResponse(StaticFile file) throws IOException {
+        String          etag         = file.getETag();
+        String          lastModified = HttpDate.format(file.getLastModified());
+        ContentEncoding encoding     = negotiateContentEncoding(file.getMimeType(), file.getSize());
+        if (encoding != null) {
+            if (encoding == ContentEncoding.GZIP && file.getGzipSidecar() != null || file.hasContent() || file.getSize() <= MAXIMUM_UNCACHED_ENCODING_SIZE) {
+                etag = encoding.tagETag(etag);
+            } else {
+                // Too large to encode on the fly
+                encoding = null;
+            }
+        }
+        HttpResponse response;
+        if (isNotModified(file, etag)) {
+            response = new HttpResponse(HttpStatusCode.NOT_MODIFIED, null, null);
+        } else if (encoding != null) {
+            // Ranges are only supported on the unencoded representation
+            response = new HttpResponse(HttpStatusCode.OK, file.getMimeType(), getEncodedContent(file, encoding));
+            response.addHeader("Content-Encoding", encoding.getToken());
+        } else {
+            List<ByteRange> ranges = null;
+            String          range  = getFirstHeader("range");
+            if (range != null && mMethod == HttpMethod.GET && isIfRangeSatisfied(file)) {
+                ranges = ByteRange.parse(range, file.getSize());
+            }
+            if (ranges == null) {
+                Object data = file.hasContent() ? file.getContent() : new FileRegion(file.getPath());
+                response = new HttpResponse(HttpStatusCode.OK, file.getMimeType(), data);
+            } else if (ranges.isEmpty()) {
+                response = new HttpResponse(HttpStatusCode.RANGE_NOT_SATISFIABLE, MimeTypes.TEXT, "Requested range not satisfiable");
+                response.addHeader("Content-Range", "bytes */" + file.getSize());
+            } else if (ranges.size() == 1) {
+                ByteRange one = ranges.get(0);
+                Object    data;
+                if (file.hasContent()) {
+                    data = file.getContent().slice((int) one.getStart(), (int) one.getLength());
+                } else {
+                    data = new FileRegion(file.getPath(), one.getStart(), one.getLength());
+                }
+                response = new HttpResponse(HttpStatusCode.PARTIAL_CONTENT, file.getMimeType(), data);
+                response.addHeader("Content-Range", one.getContentRange(file.getSize()));
+            } else {
+                MultipartByteRanges data = new MultipartByteRanges(file, ranges);
+                response = new HttpResponse(HttpStatusCode.PARTIAL_CONTENT, data.getContentType(), data);
+            }
+        }
+        response.addHeader("ETag", etag);
+        response.addHeader("Last-Modified", lastModified);
+        response.addHeader("Accept-Ranges", "bytes");
+        if (isCompressionCandidate(file.getMimeType(), file.getSize())) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        response.setRequestMethod(mMethod);
+        return response;
+    }
+
+    private Object getEncodedContent(StaticFile file, ContentEncoding encoding) throws IOException {
+        StaticFile sidecar = encoding == ContentEncoding.GZIP ? file.getGzipSidecar() : null;
+        if (sidecar != null) {
+            return sidecar.hasContent() ? sidecar.getContent() : new FileRegion(sidecar.getPath());
+        }
+        StaticFileCache cache = mFactory.getStaticFileCache();
+        if (cache != null && file.hasContent()) {
+            return cache.getEncodedContent(file, encoding);
+        }
+        return ByteBuffer.wrap(encoding.encode(ByteBuffer.wrap(Files.readAllBytes(file.getPath()))));
+    }
+
+    /**
+     * @param mimeType The mime type of the response body.
+     * @param length   The length of the response body, in bytes.
+     * @return {@code true} if the response body would be compressed for a client that accepts it,
+     *         and so varies with the request's {@code Accept-Encoding} header.
+     */
+    final boolean isCompressionCandidate(String mimeType, long length) {
+        int threshold = mFactory.getCompressionThreshold();
+        return threshold >= 0 && length >= threshold && MimeTypes.isCompressible(mimeType);
+    }
+
+    /**
+     * @param mimeType The mime type of the response body.
+     * @param length   The length of the response body, in bytes.
+     * @return The {@link ContentEncoding} to use for the response body, or {@code null} if it
+     *         should not be encoded.
+     */
+    final ContentEncoding negotiateContentEncoding(String mimeType, long length) {
+        if (!isCompressionCandidate(mimeType, length)) {
+            return null;
         }
+        return ContentEncoding.negotiate(getFirstHeader("accept-encoding"));
+    }
+
+    /**
+     * @param file The file being requested.
+     * @param etag The entity tag of the representation that would be sent.
+     * @return {@code true} if the request's conditional headers indicate the client's cached copy
+     *         of the file is still current.
+     */
+    private boolean isNotModified(StaticFile file, String etag) {
+        if (mMethod != HttpMethod.GET && mMethod != HttpMethod.HEAD) {
+            return false;
+        }
+        // If-None-Match takes precedence over If-Modified-Since when both are present
+        String ifNoneMatch = getFirstHeader("if-none-match");
+        if (ifNoneMatch != null) {
+            etag = stripWeak(etag);
+            for (String one : ifNoneMatch.split(",")) {
+                one = one.trim();
+                if ("*".equals(one) || stripWeak(one).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long since = HttpDate.parse(getFirstHeader("if-modified-since"));
+        // HTTP dates only have a resolution of one second
+        return since != -1 && file.getLastModified() / 1000 <= since / 1000;
+    }
+
+    private boolean isIfRangeSatisfied(StaticFile file) {
+        String ifRange = getFirstHeader("if-range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Only strong entity tags may be used for ranges
+            return ifRange.equals(file.getETag());
+        }
+        long date = HttpDate.parse(ifRange);
+        return date != -1 && date / 1000 == file.getLastModified() / 1000;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
     }
 
     private void closeIfNotKeepAlive() {
-        if ("close".equals(getFirstHeader("connection"))) {
+        // A streamed response takes care of this itself once its body is complete
+        if (mStream == null && mProducer == null && "close".equals(getFirstHeader("connection"))) {
             requestClose(false);
         }
     }
 
+    private boolean canUpgradeToHttp2() {
+        // The upgrade can't be used when the request has a body, as it would have to be sent before
+        // the switch to HTTP/2, complicating things for little gain
+        return mFactory.isHttp2Enabled() && !isSecure() && mParser.getVersionMinor() > 0 && !mParser.hasBody() && mDeferred == null && hasHeader("http2-settings");
+    }
+
+    private void upgradeToHttp2() throws IOException {
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(getFirstHeader("http2-settings").trim());
+        } catch (IllegalArgumentException exception) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid HTTP2-Settings");
+        }
+        // The request that asked for the upgrade is answered over HTTP/2, on stream 1
+        List<String> fields = new ArrayList<>();
+        fields.add(":method");
+        fields.add(mMethod.name());
+        fields.add(":scheme");
+        fields.add("http");
+        fields.add(":path");
+        fields.add(mParser.getTarget());
+        int count = mParser.getHeaderCount();
+        for (int i = 0; i < count; i++) {
+            String name = mParser.getHeaderName(i);
+            if (!Http2.CONNECTION_SPECIFIC_HEADERS.contains(name) && !"http2-settings".equals(name) && !"te".equals(name)) {
+                fields.add(name);
+                fields.add(mParser.getHeaderValue(i));
+            }
+        }
+        HttpResponse response = new HttpResponse(HttpStatusCode.SWITCHING_PROTOCOLS);
+        response.addHeader("Upgrade", "h2c");
+        response.addHeader("Connection", "Upgrade");
+        response.send(this);
+        Http2 http2 = new Http2(mFactory);
+        getSession().setPersonality(http2);
+        http2.startUpgraded(settings, fields);
+    }
+
     private void upgradeToWebSocket() throws IOException, NoSuchAlgorithmException {
         if (!"websocket".equalsIgnoreCase(getFirstHeader("upgrade"))) {
             throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid upgrade request");
@@ -200,10 +771,15 @@ public class Http extends Personality {
             throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: No handler");
         }
         WebSocket ws = factory.createWebSocket(this);
+        ws.setMetrics(mFactory.getWebSocketMetrics());
         getSession().setPersonality(ws);
         HttpResponse response = new HttpResponse(HttpStatusCode.SWITCHING_PROTOCOLS);
         response.addHeader("Upgrade", "WebSocket");
         response.addHeader("Connection", "Upgrade");
+        String extensions = ws.negotiateExtensions(getHeader("sec-websocket-extensions"));
+        if (extensions != null) {
+            response.addHeader("Sec-WebSocket-Extensions", extensions);
+        }
         MessageDigest md = MessageDigest.getInstance("SHA1");
         md.update((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.UTF_8));
         response.addHeader("Sec-WebSocket-Accept", Base64.getEncoder().encodeToString(md.digest()));
@@ -211,146 +787,18 @@ public class Http extends Personality {
         ws.startConnection();
     }
 
-    private boolean parse(byte b) throws IOException {
-        mBuffer.write(b & 0xFF);
-        switch (mState) {
-        case 0:
-            if (b == '\r') {
-                mState = 1;
-            }
-            break;
-        case 1:
-            if (b == '\n') {
-                mState = 2;
-            } else if (b != '\r') {
-                mState = 0;
-            }
-            break;
-        case 2:
-            mState = b == '\r' ? 3 : 0;
-            break;
-        case 3:
-            if (b == '\n') {
-                mState = 4;
-                parseHeaders();
-                return mContentSize == 0;
-            }
-            mState = b == '\r' ? 1 : 0;
-            break;
-        case 4:
-            if (mContentSize != -1 && mBuffer.size() == mContentSize) {
-                parseBody();
-                return true;
-            }
-            return false;
-        default:
-            throw new EOFException("Read past end of request");
-        }
-        if (mBuffer.size() > MAXIMUM_HEADER_SIZE) {
-            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Header too large");
-        }
-        return false;
-    }
-
-    private void parseHeaders() throws IOException {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mBuffer.toByteArray()), StandardCharsets.UTF_8))) {
-            String line = in.readLine();
-            if (line == null) {
-                throw new SocketTimeoutException();
-            }
-
-            Matcher matcher = REQUEST_PATTERN.matcher(line);
-            if (!matcher.find() || matcher.groupCount() != 4) {
-                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
-            }
-
-            mMethod = HttpMethod.lookup(matcher.group(1));
-            if (mMethod == null) {
-                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
-            }
-
-            mUri = matcher.group(2);
-            mVersionMajor = Integer.parseInt(matcher.group(3));
-            mVersionMinor = Integer.parseInt(matcher.group(4));
-
-            int index = mUri.indexOf('?');
-            if (index != -1) {
-                if (mUri.length() > index + 1) {
-                    decodeParameters(mUri.substring(index + 1));
-                }
-                mUri = mUri.substring(0, index);
-            }
-            mUri = decodePercent(mUri);
-
-            line = in.readLine();
-            while (line != null) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    break;
-                }
-                index = line.indexOf(':');
-                if (index != -1) {
-                    String       name = line.substring(0, index).trim().toLowerCase();
-                    List<String> list = mHeaders.get(name);
-                    if (list == null) {
-                        list = new ArrayList<>();
-                        mHeaders.put(name, list);
-                    }
-                    if (++index < line.length()) {
-                        list.add(line.substring(index).trim());
-                    }
-                }
-                line = in.readLine();
-            }
-            mBuffer.reset();
-            String hdr = getFirstHeader("content-length");
-            if (hdr == null) {
-                mContentSize = 0;
-            } else {
-                try {
-                    mContentSize = Integer.parseInt(hdr);
-                    if (mContentSize > 0) {
-                        if (mContentSize > MAXIMUM_CONTENT_SIZE) {
-                            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Content too large");
-                        }
-                        if (mContentSize > MAXIMUM_HEADER_SIZE) {
-                            mBuffer = new ByteArrayOutputStream(mContentSize);
-                        }
-                    } else {
-                        mContentSize = 0;
-                    }
-                } catch (Exception exception) {
-                    // No support for indeterminate content size for now, as I don't need it. Assume zero in
-                    // this case.
-                    mContentSize = 0;
-                }
-            }
-        }
-    }
-
-    private void parseBody() throws IOException {
-        mState = 5;
-        mBody = mBuffer.toByteArray();
-        mBuffer = null;
-        if (HttpMethod.POST == mMethod) {
-            if ("application/x-www-form-urlencoded".equals(getFirstHeader("content-type"))) {
-                try (BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mBody), StandardCharsets.UTF_8))) {
-                    String line = in.readLine();
-                    while (line != null) {
-                        decodeParameters(line);
-                        line = in.readLine();
-                    }
-                }
-            }
-        }
-    }
-
     private static String decodePercent(String str) {
+        if (str.indexOf('%') == -1 && str.indexOf('+') == -1) {
+            return str;
+        }
         try {
             return URLDecoder.decode(str, StandardCharsets.UTF_8.name());
         } catch (UnsupportedEncodingException ignored) {
             // Ignore. Shouldn't be possible.
             return str;
+        } catch (IllegalArgumentException exception) {
+            // Malformed escape sequence, so leave it as-is
+            return str;
         }
     }
 
@@ -383,19 +831,56 @@ public class Http extends Personality {
         return mMethod;
     }
 
+    /**
+     * @return The pattern of the route that matched the current request, or {@code null} if it
+     *         wasn't routed to a {@link HttpRequestHandler}.
+     */
+    public final String getRoutePattern() {
+        return mRoute != null ? mRoute.getPattern() : null;
+    }
+
+    /** @return The path parameters extracted from the URI of the current request. */
+    public final Map<String, String> getPathParameters() {
+        return mRoute != null ? mRoute.getParameters() : Collections.emptyMap();
+    }
+
+    /**
+     * @param name The name of a path parameter to return.
+     * @return The value of that path parameter, or {@code null} if no path parameter with that
+     *         name exists.
+     */
+    public final String getPathParameter(String name) {
+        return mRoute != null ? mRoute.getParameters().get(name) : null;
+    }
+
     /** @return The major version number of the HTTP protocol used for the current request. */
     public final int getVersionMajor() {
-        return mVersionMajor;
+        return mParser.getVersionMajor();
     }
 
     /** @return The minor version number of the HTTP protocol used for the current request. */
     public final int getVersionMinor() {
-        return mVersionMinor;
+        return mParser.getVersionMinor();
     }
 
-    /** @return An {@link InputStream} containing the body of the current request. */
+    /**
+     * @return An {@link InputStream} containing the body of the current request. Will be empty if
+     *         the body was streamed to a {@link HttpBodyReceiver}.
+     */
     public final InputStream getBody() {
-        return new ByteArrayInputStream(mBody);
+        try {
+            return mBody.getInputStream();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    /**
+     * @return The number of bytes in the body of the current request that were collected and are
+     *         available from {@link #getBody()}.
+     */
+    public final long getBodyLength() {
+        return mBody.getLength();
     }
 
     /** @return All HTTP parameters in the current request. */
@@ -427,6 +912,9 @@ public class Http extends Personality {
 
     /** @return All HTTP headers in the current request. */
     public final Map<String, List<String>> getHeaders() {
+        if (mHeaders == null) {
+            mHeaders = mParser.getHeaders();
+        }
         return mHeaders;
     }
 
@@ -435,7 +923,7 @@ public class Http extends Personality {
      * @return The value(s) for that header, or {@code null} if no header with that name exists.
      */
     public final List<String> getHeader(String name) {
-        return mHeaders.get(name);
+        return mParser.getHeader(name);
     }
 
     /**
@@ -443,7 +931,7 @@ public class Http extends Personality {
      * @return {@code true} if the header exists in the current request.
      */
     public final boolean hasHeader(String name) {
-        return mHeaders.containsKey(name);
+        return mParser.indexOfHeader(name) != -1;
     }
 
     /**
@@ -451,11 +939,8 @@ public class Http extends Personality {
      * @return The first value for that header, or {@code null} if no header with that name exists.
      */
     public final String getFirstHeader(String name) {
-        List<String> list = getHeader(name);
-        if (list != null) {
-            return list.isEmpty() ? "" : list.get(0);
-        }
-        return null;
+        int index = mParser.indexOfHeader(name);
+        return index != -1 ? mParser.getHeaderValue(index) : null;
     }
 
     /**
@@ -477,6 +962,9 @@ public class Http extends Personality {
 
     @Override
     public void closing() {
-        //
+        // Make sure any spooled body is removed
+        mBody.close();
+        abortStream();
+        mDeferred = null;
     }
 }
@@ -0,0 +1,825 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.Log;
+import com.trollworks.toolkit.io.server.Personality;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link Personality} for cleartext HTTP/2 connections, established either with prior knowledge
+ * of the client's support or by upgrading a HTTP/1.1 connection. Each stream's request is handled
+ * by the same {@link HttpRequestHandler}s used for HTTP/1.x, through a {@link Http} exchange
+ * created for the stream. Handlers still run one at a time on the connection's processing thread,
+ * but their responses no longer queue up behind one another: response data is held per stream and
+ * sent as flow control allows, with the next frame going to whichever ready stream the client's
+ * priorities favor.
+ */
+public class Http2 extends Personality {
+    static final         int                       NO_ERROR                    = 0x0;
+    static final         int                       PROTOCOL_ERROR              = 0x1;
+    static final         int                       INTERNAL_ERROR              = 0x2;
+    static final         int                       FLOW_CONTROL_ERROR          = 0x3;
+    static final         int                       STREAM_CLOSED               = 0x5;
+    static final         int                       FRAME_SIZE_ERROR            = 0x6;
+    static final         int                       REFUSED_STREAM              = 0x7;
+    static final         int                       COMPRESSION_ERROR           = 0x9;
+    static final         int                       ENHANCE_YOUR_CALM           = 0xb;
+    static final         int                       FLAG_END_STREAM             = 0x1;
+    static final         int                       FRAME_HEADER_SIZE           = 9;
+    static final         int                       DEFAULT_WEIGHT              = 16;
+    static final         int                       MAXIMUM_WEIGHT              = 256;
+    static final         int                       STREAM_WINDOW               = 256 * 1024;
+    static final         int                       MAXIMUM_HEADER_LIST_SIZE    = 16 * 1024;
+    static final         Set<String>               CONNECTION_SPECIFIC_HEADERS = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+    private static final byte[]                    PREFACE                     = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int                       DATA                        = 0x0;
+    private static final int                       HEADERS                     = 0x1;
+    private static final int                       PRIORITY                    = 0x2;
+    private static final int                       RST_STREAM                  = 0x3;
+    private static final int                       SETTINGS                    = 0x4;
+    private static final int                       PUSH_PROMISE                = 0x5;
+    private static final int                       PING                        = 0x6;
+    private static final int                       GOAWAY                      = 0x7;
+    private static final int                       WINDOW_UPDATE               = 0x8;
+    private static final int                       CONTINUATION                = 0x9;
+    private static final int                       FLAG_ACK                    = 0x1;
+    private static final int                       FLAG_END_HEADERS            = 0x4;
+    private static final int                       FLAG_PADDED                 = 0x8;
+    private static final int                       FLAG_PRIORITY               = 0x20;
+    private static final int                       SETTINGS_ENABLE_PUSH        = 0x2;
+    private static final int                       SETTINGS_MAX_CONCURRENT     = 0x3;
+    private static final int                       SETTINGS_INITIAL_WINDOW     = 0x4;
+    private static final int                       SETTINGS_MAX_FRAME_SIZE     = 0x5;
+    private static final int                       SETTINGS_MAX_HEADER_LIST    = 0x6;
+    private static final int                       DEFAULT_WINDOW              = 65535;
+    private static final int                       DEFAULT_FRAME_SIZE          = 16 * 1024;
+    private static final int                       MAXIMUM_OUTBOUND_FRAME      = 64 * 1024;
+    private static final int                       CONNECTION_WINDOW           = 1024 * 1024;
+    private static final int                       MAXIMUM_CONCURRENT_STREAMS  = 128;
+    private static final int                       HEADER_TABLE_SIZE           = 4096;
+    private static final int                       MAXIMUM_HEADER_BLOCK        = 64 * 1024;
+    private static final int                       COALESCE_SIZE               = 4 * 1024;
+    private static final Http2Stream[]             NO_STREAMS                  = new Http2Stream[0];
+    private              HttpSessionFactory        mFactory;
+    private              Hpack.Decoder             mDecoder                    = new Hpack.Decoder(HEADER_TABLE_SIZE);
+    private              Map<Integer, Http2Stream> mStreams                    = new HashMap<>();
+    private              int                       mPrefaceReceived;
+    private              boolean                   mSettingsReceived;
+    private              ByteBuffer                mPartial;
+    private              int                       mLastStreamId;
+    private              int                       mSendWindow                 = DEFAULT_WINDOW;
+    private              int                       mReceiveWindow              = DEFAULT_WINDOW;
+    private              int                       mReceiveConsumed;
+    private              int                       mPeerInitialWindow          = DEFAULT_WINDOW;
+    private              int                       mPeerMaxFrameSize           = DEFAULT_FRAME_SIZE;
+    private              int                       mHeaderStreamId;
+    private              boolean                   mHeaderEndStream;
+    private              int                       mHeaderDependency;
+    private              int                       mHeaderWeight;
+    private              boolean                   mHeaderExclusive;
+    private              ByteArrayOutputStream     mHeaderBlock;
+    private              List<String>              mUpgradeFields;
+    private              long                      mVirtualTime;
+    private              boolean                   mFlushing;
+    private              boolean                   mFlushAgain;
+    private              boolean                   mGoingAway;
+    private              boolean                   mFailed;
+
+    /**
+     * @param buffer The first data received on a connection.
+     * @return {@code true} if the data starts with the HTTP/2 client connection preface.
+     */
+    static boolean isPreface(ByteBuffer buffer) {
+        int count = Math.min(buffer.remaining(), PREFACE.length);
+        if (count < 4) {
+            return false;
+        }
+        int pos = buffer.position();
+        for (int i = 0; i < count; i++) {
+            if (buffer.get(pos + i) != PREFACE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @param factory The {@link HttpSessionFactory} whose handlers will serve requests. */
+    public Http2(HttpSessionFactory factory) {
+        mFactory = factory;
+    }
+
+    @Override
+    public String toString() {
+        return "HTTP/2";
+    }
+
+    /** @return The {@link HttpSessionFactory} whose handlers serve requests. */
+    final HttpSessionFactory getFactory() {
+        return mFactory;
+    }
+
+    /** Starts a connection whose client sent the connection preface without upgrading first. */
+    final void start() {
+        sendPreface();
+    }
+
+    /**
+     * Starts a connection that has just been upgraded from HTTP/1.1. The request that asked for
+     * the upgrade becomes stream 1, and is answered over HTTP/2 once the client's connection
+     * preface has arrived.
+     *
+     * @param settings The client's settings, from its HTTP2-Settings header.
+     * @param fields   The request's header fields, as alternating names and values.
+     */
+    final void startUpgraded(byte[] settings, List<String> fields) {
+        try {
+            if (settings.length % 6 != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Invalid HTTP2-Settings");
+            }
+            applySettings(ByteBuffer.wrap(settings));
+            sendPreface();
+            mLastStreamId = 1;
+            mUpgradeFields = fields;
+        } catch (Http2Exception exception) {
+            connectionError(exception);
+        }
+    }
+
+    private void sendPreface() {
+        ByteBuffer settings = ByteBuffer.allocate(6 * 3);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT).putInt(MAXIMUM_CONCURRENT_STREAMS);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW).putInt(STREAM_WINDOW);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST).putInt(MAXIMUM_HEADER_LIST_SIZE);
+        writeFrame(SETTINGS, 0, 0, settings.array());
+        sendWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+        mReceiveWindow = CONNECTION_WINDOW;
+    }
+
+    @Override
+    public void processInput(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining() && !mFailed) {
+                if (mPrefaceReceived < PREFACE.length) {
+                    if (buffer.get() != PREFACE[mPrefaceReceived++]) {
+                        throw new Http2Exception(PROTOCOL_ERROR, 0, "Invalid connection preface");
+                    }
+                    continue;
+                }
+                ByteBuffer frame = nextFrame(buffer);
+                if (frame == null) {
+                    break;
+                }
+                processFrame(frame);
+            }
+        } catch (Http2Exception exception) {
+            connectionError(exception);
+        }
+        if (mFailed) {
+            buffer.position(buffer.limit());
+        }
+    }
+
+    /** @return The next complete frame, or {@code null} if more input is needed. */
+    private ByteBuffer nextFrame(ByteBuffer buffer) throws Http2Exception {
+        if (mPartial == null) {
+            int available = buffer.remaining();
+            if (available >= FRAME_HEADER_SIZE) {
+                int size = FRAME_HEADER_SIZE + getFrameLength(buffer, buffer.position());
+                if (available >= size) {
+                    // The common case: the whole frame is present, so use it in place
+                    ByteBuffer frame = buffer.slice();
+                    frame.limit(size);
+                    buffer.position(buffer.position() + size);
+                    return frame;
+                }
+            }
+            mPartial = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        }
+        if (mPartial.position() < FRAME_HEADER_SIZE) {
+            transfer(buffer, mPartial);
+            if (mPartial.hasRemaining()) {
+                return null;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + getFrameLength(mPartial, 0));
+            mPartial.flip();
+            frame.put(mPartial);
+            mPartial = frame;
+        }
+        transfer(buffer, mPartial);
+        if (mPartial.hasRemaining()) {
+            return null;
+        }
+        ByteBuffer frame = mPartial;
+        mPartial = null;
+        frame.flip();
+        return frame;
+    }
+
+    private static int getFrameLength(ByteBuffer buffer, int pos) throws Http2Exception {
+        int length = (buffer.get(pos) & 0xff) << 16 | (buffer.get(pos + 1) & 0xff) << 8 | buffer.get(pos + 2) & 0xff;
+        if (length > DEFAULT_FRAME_SIZE) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Frame too large");
+        }
+        return length;
+    }
+
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int        amount = Math.min(from.remaining(), to.remaining());
+        ByteBuffer part   = from.duplicate();
+        part.limit(part.position() + amount);
+        to.put(part);
+        from.position(from.position() + amount);
+    }
+
+    private void processFrame(ByteBuffer frame) throws Http2Exception {
+        int type     = frame.get(3) & 0xff;
+        int flags    = frame.get(4) & 0xff;
+        int streamId = frame.getInt(5) & 0x7fffffff;
+        frame.position(FRAME_HEADER_SIZE);
+        if (mHeaderStreamId != 0 && (type != CONTINUATION || streamId != mHeaderStreamId)) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Expected CONTINUATION");
+        }
+        if (!mSettingsReceived) {
+            if (type != SETTINGS || (flags & FLAG_ACK) != 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "Expected SETTINGS");
+            }
+            mSettingsReceived = true;
+        }
+        try {
+            switch (type) {
+            case DATA:
+                readData(streamId, flags, frame);
+                break;
+            case HEADERS:
+                readHeaders(streamId, flags, frame);
+                break;
+            case PRIORITY:
+                readPriority(streamId, frame);
+                break;
+            case RST_STREAM:
+                readReset(streamId, frame);
+                break;
+            case SETTINGS:
+                readSettings(streamId, flags, frame);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "Clients may not push");
+            case PING:
+                readPing(streamId, flags, frame);
+                break;
+            case GOAWAY:
+                if (streamId != 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, 0, "GOAWAY on a stream");
+                }
+                mGoingAway = true;
+                if (mStreams.isEmpty()) {
+                    requestClose(false);
+                }
+                break;
+            case WINDOW_UPDATE:
+                readWindowUpdate(streamId, frame);
+                break;
+            case CONTINUATION:
+                readContinuation(streamId, flags, frame);
+                break;
+            default:
+                // Unknown frame types must be ignored
+                break;
+            }
+        } catch (Http2Exception exception) {
+            if (exception.getStreamId() == 0) {
+                throw exception;
+            }
+            resetStream(exception.getStreamId(), exception.getErrorCode());
+        }
+    }
+
+    private static void stripPadding(int flags, ByteBuffer payload) throws Http2Exception {
+        if ((flags & FLAG_PADDED) != 0) {
+            if (!payload.hasRemaining()) {
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "Missing pad length");
+            }
+            int padding = payload.get() & 0xff;
+            if (padding > payload.remaining()) {
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "Too much padding");
+            }
+            payload.limit(payload.limit() - padding);
+        }
+    }
+
+    private void readData(int streamId, int flags, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "DATA on stream 0");
+        }
+        // Padding counts against flow control too
+        int length = payload.remaining();
+        mReceiveWindow -= length;
+        if (mReceiveWindow < 0) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Connection window exceeded");
+        }
+        // Data is consumed as soon as it arrives, even if it turns out to be unwanted
+        mReceiveConsumed += length;
+        if (mReceiveConsumed >= CONNECTION_WINDOW / 2) {
+            sendWindowUpdate(0, mReceiveConsumed);
+            mReceiveWindow += mReceiveConsumed;
+            mReceiveConsumed = 0;
+        }
+        stripPadding(flags, payload);
+        Http2Stream stream = mStreams.get(Integer.valueOf(streamId));
+        if (stream == null) {
+            if (streamId > mLastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "DATA on idle stream");
+            }
+            // The stream has already been closed, so just drop the data
+            return;
+        }
+        stream.receiveData(payload, length, (flags & FLAG_END_STREAM) != 0);
+    }
+
+    private void readHeaders(int streamId, int flags, ByteBuffer payload) throws Http2Exception {
+        if ((streamId & 1) == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Invalid stream identifier");
+        }
+        stripPadding(flags, payload);
+        mHeaderDependency = -1;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (payload.remaining() < 5) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, 0, "HEADERS too short");
+            }
+            int dependency = payload.getInt();
+            mHeaderExclusive = dependency < 0;
+            mHeaderDependency = dependency & 0x7fffffff;
+            mHeaderWeight = (payload.get() & 0xff) + 1;
+        }
+        mHeaderEndStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            processHeaderBlock(streamId, payload);
+        } else {
+            mHeaderStreamId = streamId;
+            mHeaderBlock = new ByteArrayOutputStream(payload.remaining() * 2);
+            appendHeaderBlock(payload);
+        }
+    }
+
+    private void readContinuation(int streamId, int flags, ByteBuffer payload) throws Http2Exception {
+        if (mHeaderStreamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Unexpected CONTINUATION");
+        }
+        if (mHeaderBlock.size() + payload.remaining() > MAXIMUM_HEADER_BLOCK) {
+            throw new Http2Exception(ENHANCE_YOUR_CALM, 0, "Header block too large");
+        }
+        appendHeaderBlock(payload);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            ByteBuffer block = ByteBuffer.wrap(mHeaderBlock.toByteArray());
+            mHeaderBlock = null;
+            mHeaderStreamId = 0;
+            processHeaderBlock(streamId, block);
+        }
+    }
+
+    private void appendHeaderBlock(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        mHeaderBlock.write(bytes, 0, bytes.length);
+    }
+
+    private void processHeaderBlock(int streamId, ByteBuffer block) throws Http2Exception {
+        // The block must be decoded even if the stream is refused, to keep the dynamic table in step
+        List<String> fields = mDecoder.decode(block);
+        Http2Stream  stream = mStreams.get(Integer.valueOf(streamId));
+        if (stream != null) {
+            if (!mHeaderEndStream) {
+                throw new Http2Exception(PROTOCOL_ERROR, streamId, "Trailers must end the stream");
+            }
+            stream.receiveTrailers();
+            return;
+        }
+        if (streamId <= mLastStreamId) {
+            // A stream that has already been closed, most likely by a reset
+            return;
+        }
+        mLastStreamId = streamId;
+        if (mGoingAway) {
+            return;
+        }
+        if (mStreams.size() >= MAXIMUM_CONCURRENT_STREAMS) {
+            sendReset(streamId, REFUSED_STREAM);
+            return;
+        }
+        stream = createStream(streamId);
+        if (mHeaderDependency != -1) {
+            prioritize(stream, mHeaderDependency, mHeaderWeight, mHeaderExclusive);
+        }
+        stream.receiveHeaders(fields, mHeaderEndStream);
+    }
+
+    private Http2Stream createStream(int streamId) {
+        Http2Stream stream = new Http2Stream(this, streamId, mPeerInitialWindow);
+        // Start level with the streams already being served, so neither side is starved
+        stream.setPass(mVirtualTime);
+        mStreams.put(Integer.valueOf(streamId), stream);
+        return stream;
+    }
+
+    private void readPriority(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "PRIORITY on stream 0");
+        }
+        if (payload.remaining() != 5) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, streamId, "Invalid PRIORITY");
+        }
+        int         dependency = payload.getInt();
+        int         weight     = (payload.get() & 0xff) + 1;
+        Http2Stream stream     = mStreams.get(Integer.valueOf(streamId));
+        if (stream != null) {
+            prioritize(stream, dependency & 0x7fffffff, weight, dependency < 0);
+        }
+    }
+
+    private void readReset(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0 || streamId > mLastStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "RST_STREAM on idle stream");
+        }
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Invalid RST_STREAM");
+        }
+        Http2Stream stream = mStreams.get(Integer.valueOf(streamId));
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private void readSettings(int streamId, int flags, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, 0, "SETTINGS acknowledgement with payload");
+            }
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Invalid SETTINGS");
+        }
+        applySettings(payload);
+        writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+        if (mUpgradeFields != null) {
+            // Holding the response until now keeps it from arriving along with the 101 response,
+            // which some clients are unable to buffer
+            List<String> fields = mUpgradeFields;
+            mUpgradeFields = null;
+            createStream(1).receiveHeaders(fields, true);
+        }
+        // A larger initial window may have unblocked some streams
+        flush();
+    }
+
+    private void applySettings(ByteBuffer payload) throws Http2Exception {
+        while (payload.hasRemaining()) {
+            int id    = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (id) {
+            case SETTINGS_ENABLE_PUSH:
+                if (value != 0 && value != 1) {
+                    throw new Http2Exception(PROTOCOL_ERROR, 0, "Invalid SETTINGS_ENABLE_PUSH");
+                }
+                break;
+            case SETTINGS_INITIAL_WINDOW:
+                if (value < 0) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                }
+                int delta = value - mPeerInitialWindow;
+                mPeerInitialWindow = value;
+                for (Http2Stream stream : mStreams.values()) {
+                    if (!stream.adjustSendWindow(delta)) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Stream window overflow");
+                    }
+                }
+                break;
+            case SETTINGS_MAX_FRAME_SIZE:
+                if (value < DEFAULT_FRAME_SIZE || value > 0xffffff) {
+                    throw new Http2Exception(PROTOCOL_ERROR, 0, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                }
+                mPeerMaxFrameSize = value;
+                break;
+            default:
+                // Since only the static table is used when encoding, the peer's header table size
+                // doesn't matter, and nothing is ever pushed
+                break;
+            }
+        }
+    }
+
+    private void readPing(int streamId, int flags, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "PING on a stream");
+        }
+        if (payload.remaining() != 8) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Invalid PING");
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            byte[] data = new byte[8];
+            payload.get(data);
+            writeFrame(PING, FLAG_ACK, 0, data);
+        }
+    }
+
+    private void readWindowUpdate(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Invalid WINDOW_UPDATE");
+        }
+        int increment = payload.getInt() & 0x7fffffff;
+        if (increment == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, streamId, "Zero window increment");
+        }
+        if (streamId == 0) {
+            if ((long) mSendWindow + increment > Integer.MAX_VALUE) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Connection window overflow");
+            }
+            mSendWindow += increment;
+        } else {
+            Http2Stream stream = mStreams.get(Integer.valueOf(streamId));
+            if (stream == null) {
+                return;
+            }
+            if (!stream.adjustSendWindow(increment)) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Establishes a stream's place in the dependency tree, as described by RFC 7540, section 5.3.
+     */
+    private void prioritize(Http2Stream stream, int dependency, int weight, boolean exclusive) throws Http2Exception {
+        int id = stream.getId();
+        if (dependency == id) {
+            throw new Http2Exception(PROTOCOL_ERROR, id, "Stream depends on itself");
+        }
+        Http2Stream parent = mStreams.get(Integer.valueOf(dependency));
+        if (parent == null) {
+            dependency = 0;
+        } else if (isAncestor(stream, parent)) {
+            // Move the new parent up to where this stream was, so that no cycle is formed
+            parent.setParentId(stream.getParentId());
+        }
+        if (exclusive) {
+            for (Http2Stream other : mStreams.values()) {
+                if (other != stream && other.getParentId() == dependency) {
+                    other.setParentId(id);
+                }
+            }
+        }
+        stream.setParentId(dependency);
+        stream.setWeight(weight);
+    }
+
+    private boolean isAncestor(Http2Stream ancestor, Http2Stream stream) {
+        int id = stream.getParentId();
+        for (int depth = mStreams.size(); id != 0 && depth > 0; depth--) {
+            if (id == ancestor.getId()) {
+                return true;
+            }
+            Http2Stream parent = mStreams.get(Integer.valueOf(id));
+            if (parent == null) {
+                break;
+            }
+            id = parent.getParentId();
+        }
+        return false;
+    }
+
+    /**
+     * Sends as much queued response data as flow control and the connection's writability allow,
+     * then lets any streamed responses that now have room produce more.
+     */
+    final void flush() {
+        if (mFlushing) {
+            // Called again from a producer while flushing, so have the outer call go around again
+            mFlushAgain = true;
+            return;
+        }
+        mFlushing = true;
+        try {
+            do {
+                mFlushAgain = false;
+                writeData();
+                for (Http2Stream stream : mStreams.values().toArray(NO_STREAMS)) {
+                    stream.resumeProducer();
+                }
+            } while (mFlushAgain);
+        } finally {
+            mFlushing = false;
+        }
+    }
+
+    private void writeData() {
+        int maximumFrameSize = Math.min(mPeerMaxFrameSize, MAXIMUM_OUTBOUND_FRAME);
+        while (!mFailed && isWritable()) {
+            Http2Stream stream = nextStreamToWrite();
+            if (stream == null) {
+                break;
+            }
+            mVirtualTime = stream.getPass();
+            mSendWindow -= stream.writeFrame(maximumFrameSize, mSendWindow);
+        }
+    }
+
+    /**
+     * Picks the stream that should send the next frame. Streams only send while none of their
+     * ancestors in the dependency tree are able to. Among those that remain, each stream's pass
+     * advances by the amount it sends divided by its weight, and the stream with the lowest pass
+     * goes next, which divides the connection among siblings in proportion to their weights.
+     */
+    private Http2Stream nextStreamToWrite() {
+        Http2Stream best = null;
+        for (Http2Stream stream : mStreams.values()) {
+            if (stream.canWrite(mSendWindow) && !hasWritableAncestor(stream)) {
+                if (best == null || stream.getPass() < best.getPass() || stream.getPass() == best.getPass() && stream.getId() < best.getId()) {
+                    best = stream;
+                }
+            }
+        }
+        return best;
+    }
+
+    private boolean hasWritableAncestor(Http2Stream stream) {
+        int id = stream.getParentId();
+        for (int depth = mStreams.size(); id != 0 && depth > 0; depth--) {
+            Http2Stream parent = mStreams.get(Integer.valueOf(id));
+            if (parent == null) {
+                break;
+            }
+            if (parent.canWrite(mSendWindow)) {
+                return true;
+            }
+            id = parent.getParentId();
+        }
+        return false;
+    }
+
+    /**
+     * Called by a stream once it has been closed in both directions, or reset.
+     *
+     * @param stream The {@link Http2Stream} that closed.
+     */
+    final void streamClosed(Http2Stream stream) {
+        if (mStreams.remove(Integer.valueOf(stream.getId())) != null) {
+            // Children of the closed stream take its place in the dependency tree
+            for (Http2Stream other : mStreams.values()) {
+                if (other.getParentId() == stream.getId()) {
+                    other.setParentId(stream.getParentId());
+                }
+            }
+            if (mGoingAway && mStreams.isEmpty()) {
+                requestClose(false);
+            }
+        }
+    }
+
+    private void resetStream(int streamId, int errorCode) {
+        sendReset(streamId, errorCode);
+        Http2Stream stream = mStreams.get(Integer.valueOf(streamId));
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private void connectionError(Http2Exception exception) {
+        if (!mFailed) {
+            mFailed = true;
+            Log.warn(getSession(), "HTTP/2 connection error: " + exception.getMessage());
+            ByteBuffer payload = ByteBuffer.allocate(8);
+            payload.putInt(mLastStreamId).putInt(exception.getErrorCode());
+            writeFrame(GOAWAY, 0, 0, payload.array());
+            requestClose(false);
+        }
+    }
+
+    /**
+     * Sends a header block, split into a HEADERS frame and as many CONTINUATION frames as needed.
+     *
+     * @param streamId  The stream to send the header block on.
+     * @param fields    The header fields, as alternating lower-cased names and values.
+     * @param endStream Whether the header block ends the stream.
+     */
+    final void writeHeaders(int streamId, List<String> fields, boolean endStream) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        for (int i = 0; i < fields.size(); i += 2) {
+            Hpack.encode(out, fields.get(i), fields.get(i + 1));
+        }
+        byte[]     block     = out.toByteArray();
+        int        frameSize = Math.min(mPeerMaxFrameSize, MAXIMUM_OUTBOUND_FRAME);
+        int        frames    = Math.max(1, (block.length + frameSize - 1) / frameSize);
+        ByteBuffer buffer    = ByteBuffer.allocate(block.length + frames * FRAME_HEADER_SIZE);
+        int        offset    = 0;
+        for (int i = 0; i < frames; i++) {
+            int amount = Math.min(frameSize, block.length - offset);
+            int flags  = i == frames - 1 ? FLAG_END_HEADERS : 0;
+            if (i == 0 && endStream) {
+                flags |= FLAG_END_STREAM;
+            }
+            putFrameHeader(buffer, amount, i == 0 ? HEADERS : CONTINUATION, flags, streamId);
+            buffer.put(block, offset, amount);
+            offset += amount;
+        }
+        buffer.flip();
+        send(buffer);
+    }
+
+    /**
+     * @param streamId The stream to send the data on.
+     * @param flags    The frame's flags.
+     * @param data     The data to send. May be {@code null} if there is none. A copy of the data is
+     *                 not made, so do not modify it once passed to this method.
+     */
+    final void writeDataFrame(int streamId, int flags, ByteBuffer data) {
+        int length = data != null ? data.remaining() : 0;
+        if (length > COALESCE_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            putFrameHeader(header, length, DATA, flags, streamId);
+            header.flip();
+            send(header);
+            send(data);
+        } else {
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+            putFrameHeader(frame, length, DATA, flags, streamId);
+            if (data != null) {
+                frame.put(data);
+            }
+            frame.flip();
+            send(frame);
+        }
+    }
+
+    /**
+     * @param streamId  The stream whose receive window should be increased.
+     * @param increment The amount to increase it by.
+     */
+    final void sendWindowUpdate(int streamId, int increment) {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload.array());
+    }
+
+    /**
+     * @param streamId  The stream to reset.
+     * @param errorCode The reason for the reset.
+     */
+    final void sendReset(int streamId, int errorCode) {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(errorCode);
+        writeFrame(RST_STREAM, 0, streamId, payload.array());
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+        putFrameHeader(frame, payload.length, type, flags, streamId);
+        frame.put(payload);
+        frame.flip();
+        send(frame);
+    }
+
+    private static void putFrameHeader(ByteBuffer buffer, int length, int type, int flags, int streamId) {
+        buffer.put((byte) (length >>> 16));
+        buffer.put((byte) (length >>> 8));
+        buffer.put((byte) length);
+        buffer.put((byte) type);
+        buffer.put((byte) flags);
+        buffer.putInt(streamId);
+    }
+
+    @Override
+    public void writabilityChanged(boolean writable) {
+        if (writable) {
+            flush();
+        }
+    }
+
+    @Override
+    public void closing() {
+        for (Http2Stream stream : mStreams.values().toArray(NO_STREAMS)) {
+            stream.close();
+        }
+        mStreams.clear();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 protocol error. Errors on stream {@code 0} affect the whole connection, while errors
+ * on any other stream only require that stream to be reset.
+ */
+final class Http2Exception extends IOException {
+    private final int mErrorCode;
+    private final int mStreamId;
+
+    /**
+     * @param errorCode The HTTP/2 error code to report to the client.
+     * @param streamId  The stream the error occurred on, or {@code 0} for a connection error.
+     * @param message   The message to use.
+     */
+    Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        mErrorCode = errorCode;
+        mStreamId = streamId;
+    }
+
+    /** @return The HTTP/2 error code to report to the client. */
+    int getErrorCode() {
+        return mErrorCode;
+    }
+
+    /** @return The stream the error occurred on, or {@code 0} for a connection error. */
+    int getStreamId() {
+        return mStreamId;
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.Log;
+import com.trollworks.toolkit.io.server.FileRegion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single stream within a {@link Http2} connection, carrying one request and its response. The
+ * response data is queued here until flow control and the connection's scheduling allow it to be
+ * sent.
+ */
+final class Http2Stream {
+    private static final int                MAXIMUM_QUEUED      = 64 * 1024;
+    private              Http2              mConnection;
+    private              int                mId;
+    private              Http               mExchange;
+    private              int                mSendWindow;
+    private              int                mReceiveWindow      = Http2.STREAM_WINDOW;
+    private              int                mReceiveConsumed;
+    private              long               mExpectedLength     = -1;
+    private              long               mReceivedLength;
+    private              int                mParentId;
+    private              int                mWeight             = Http2.DEFAULT_WEIGHT;
+    private              long               mPass;
+    private              ArrayDeque<Object> mQueue              = new ArrayDeque<>();
+    private              long               mQueuedBytes;
+    private              boolean            mEndQueued;
+    private              boolean            mLocalClosed;
+    private              boolean            mRemoteClosed;
+    private              boolean            mClosed;
+
+    /**
+     * @param connection The {@link Http2} connection the stream belongs to.
+     * @param id         The stream's identifier.
+     * @param sendWindow The initial size of the stream's send window.
+     */
+    Http2Stream(Http2 connection, int id, int sendWindow) {
+        mConnection = connection;
+        mId = id;
+        mSendWindow = sendWindow;
+    }
+
+    @Override
+    public String toString() {
+        return "HTTP/2 stream " + mId;
+    }
+
+    /** @return The stream's identifier. */
+    int getId() {
+        return mId;
+    }
+
+    /** @return The identifier of the stream this one depends on, or 0 if none. */
+    int getParentId() {
+        return mParentId;
+    }
+
+    /** @param parentId The identifier of the stream this one depends on, or 0 if none. */
+    void setParentId(int parentId) {
+        mParentId = parentId;
+    }
+
+    /** @param weight The stream's weight relative to its siblings, from 1 to 256. */
+    void setWeight(int weight) {
+        mWeight = weight;
+    }
+
+    /** @return The stream's position in the scheduling order. Lower values are served first. */
+    long getPass() {
+        return mPass;
+    }
+
+    /** @param pass The stream's position in the scheduling order. */
+    void setPass(long pass) {
+        mPass = pass;
+    }
+
+    /** @return The {@link Http2} connection the stream belongs to. */
+    Http2 getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * @param delta The amount to change the send window by.
+     * @return {@code false} if the change would overflow the window.
+     */
+    boolean adjustSendWindow(int delta) {
+        long window = (long) mSendWindow + delta;
+        if (window > Integer.MAX_VALUE) {
+            return false;
+        }
+        mSendWindow = (int) window;
+        return true;
+    }
+
+    /**
+     * Validates a request's header fields and hands the request to a new {@link Http} exchange.
+     *
+     * @param fields    The header fields, as alternating names and values.
+     * @param endStream Whether the request has no body.
+     */
+    void receiveHeaders(List<String> fields, boolean endStream) throws Http2Exception {
+        String       method    = null;
+        String       scheme    = null;
+        String       path      = null;
+        String       authority = null;
+        boolean      hasHost   = false;
+        int          size      = 0;
+        List<String> headers   = new ArrayList<>(fields.size() + 2);
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name  = fields.get(i);
+            String value = fields.get(i + 1);
+            size += name.length() + value.length() + 32;
+            if (name.startsWith(":")) {
+                if (!headers.isEmpty()) {
+                    throw malformed("Pseudo-header after regular header");
+                }
+                switch (name) {
+                case ":method":
+                    method = checkPseudoHeader(method, value);
+                    break;
+                case ":scheme":
+                    scheme = checkPseudoHeader(scheme, value);
+                    break;
+                case ":path":
+                    path = checkPseudoHeader(path, value);
+                    break;
+                case ":authority":
+                    authority = checkPseudoHeader(authority, value);
+                    break;
+                default:
+                    throw malformed("Unknown pseudo-header");
+                }
+            } else {
+                for (int j = name.length(); --j >= 0; ) {
+                    char ch = name.charAt(j);
+                    if (ch >= 'A' && ch <= 'Z') {
+                        throw malformed("Upper-case header name");
+                    }
+                }
+                if (Http2.CONNECTION_SPECIFIC_HEADERS.contains(name) || "te".equals(name) && !"trailers".equals(value)) {
+                    throw malformed("Connection-specific header");
+                }
+                if ("content-length".equals(name)) {
+                    long length;
+                    try {
+                        length = Long.parseLong(value);
+                    } catch (NumberFormatException exception) {
+                        length = -1;
+                    }
+                    if (length < 0 || mExpectedLength != -1 && mExpectedLength != length) {
+                        throw malformed("Invalid content-length");
+                    }
+                    mExpectedLength = length;
+                } else if ("host".equals(name)) {
+                    hasHost = true;
+                }
+                headers.add(name);
+                headers.add(value);
+            }
+        }
+        if (method == null || scheme == null || path == null || path.isEmpty()) {
+            throw malformed("Missing pseudo-header");
+        }
+        if (authority != null && !hasHost) {
+            headers.add("host");
+            headers.add(authority);
+        }
+        if (endStream && mExpectedLength > 0) {
+            throw malformed("Body shorter than content-length");
+        }
+        mRemoteClosed = endStream;
+        mExchange = new Http(mConnection.getFactory(), this);
+        if (size > Http2.MAXIMUM_HEADER_LIST_SIZE) {
+            mExchange.failStreamRequest(new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Header too large"));
+        } else {
+            mExchange.beginStreamRequest(HttpMethod.lookup(method), path, headers, endStream ? 0 : mExpectedLength);
+            if (endStream) {
+                mExchange.finishStreamRequest();
+            }
+        }
+        checkClosed();
+    }
+
+    private String checkPseudoHeader(String current, String value) throws Http2Exception {
+        if (current != null) {
+            throw malformed("Duplicate pseudo-header");
+        }
+        return value;
+    }
+
+    private Http2Exception malformed(String message) {
+        return new Http2Exception(Http2.PROTOCOL_ERROR, mId, message);
+    }
+
+    /**
+     * @param data      The body data received.
+     * @param length    The length of the frame's payload, including any padding.
+     * @param endStream Whether this is the end of the body.
+     */
+    void receiveData(ByteBuffer data, int length, boolean endStream) throws Http2Exception {
+        if (mRemoteClosed) {
+            throw new Http2Exception(Http2.STREAM_CLOSED, mId, "DATA after end of stream");
+        }
+        mReceiveWindow -= length;
+        if (mReceiveWindow < 0) {
+            throw new Http2Exception(Http2.FLOW_CONTROL_ERROR, mId, "Stream window exceeded");
+        }
+        mReceivedLength += data.remaining();
+        if (mExpectedLength != -1 && (mReceivedLength > mExpectedLength || endStream && mReceivedLength != mExpectedLength)) {
+            throw malformed("Body does not match content-length");
+        }
+        if (data.hasRemaining()) {
+            mExchange.streamBodyData(data);
+        }
+        if (endStream) {
+            mRemoteClosed = true;
+            mExchange.finishStreamRequest();
+            checkClosed();
+        } else if (!mClosed) {
+            mReceiveConsumed += length;
+            if (mReceiveConsumed >= Http2.STREAM_WINDOW / 2) {
+                mConnection.sendWindowUpdate(mId, mReceiveConsumed);
+                mReceiveWindow += mReceiveConsumed;
+                mReceiveConsumed = 0;
+            }
+        }
+    }
+
+    /** Called when a trailing header block ends the request. The trailers themselves are ignored. */
+    void receiveTrailers() throws Http2Exception {
+        if (mRemoteClosed) {
+            throw new Http2Exception(Http2.STREAM_CLOSED, mId, "HEADERS after end of stream");
+        }
+        if (mExpectedLength != -1 && mReceivedLength != mExpectedLength) {
+            throw malformed("Body does not match content-length");
+        }
+        mRemoteClosed = true;
+        mExchange.finishStreamRequest();
+        checkClosed();
+    }
+
+    /**
+     * @param fields    The response's header fields, as alternating lower-cased names and values.
+     * @param endStream Whether the response has no body.
+     */
+    void sendHeaders(List<String> fields, boolean endStream) {
+        if (!mClosed) {
+            mConnection.writeHeaders(mId, fields, endStream);
+            if (endStream) {
+                localClosed();
+            }
+        }
+    }
+
+    /**
+     * Queues response data. Nothing is sent until {@link #flush()} or {@link #endData()} is called.
+     *
+     * @param data The data to queue, either a {@link ByteBuffer} or a {@link FileRegion}. Its
+     *             ownership passes to the stream.
+     */
+    void queueData(Object data) {
+        if (mClosed || mEndQueued) {
+            discard(data);
+        } else if (data instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) data;
+            if (buffer.hasRemaining()) {
+                mQueuedBytes += buffer.remaining();
+                mQueue.add(buffer);
+            }
+        } else {
+            mQueue.add(data);
+        }
+    }
+
+    /** Marks the end of the response data and sends what it can. */
+    void endData() {
+        mEndQueued = true;
+        flush();
+    }
+
+    /** Sends what it can of the queued response data. */
+    void flush() {
+        if (!mClosed) {
+            mConnection.flush();
+        }
+    }
+
+    /** @return {@code true} if a streamed response should produce more data. */
+    boolean isWritable() {
+        return !mClosed && mQueuedBytes < MAXIMUM_QUEUED;
+    }
+
+    /** Lets a streamed response produce more data, if there is room for it. */
+    void resumeProducer() {
+        if (mExchange != null && mExchange.isStreaming() && isWritable()) {
+            mExchange.resumeStream();
+        }
+    }
+
+    /**
+     * @param connectionWindow The connection's send window.
+     * @return {@code true} if the stream has a frame it could send now.
+     */
+    boolean canWrite(int connectionWindow) {
+        if (mLocalClosed) {
+            return false;
+        }
+        if (mQueue.isEmpty()) {
+            return mEndQueued;
+        }
+        return mSendWindow > 0 && connectionWindow > 0;
+    }
+
+    /**
+     * Sends the next DATA frame. Only call when {@link #canWrite(int)} returns {@code true}.
+     *
+     * @param maximumFrameSize The largest payload to send.
+     * @param connectionWindow The connection's send window.
+     * @return The amount of flow-controlled data sent.
+     */
+    int writeFrame(int maximumFrameSize, int connectionWindow) {
+        ByteBuffer data = null;
+        if (!mQueue.isEmpty()) {
+            Object item   = mQueue.peek();
+            int    amount = Math.min(maximumFrameSize, Math.min(mSendWindow, connectionWindow));
+            if (item instanceof ByteBuffer) {
+                ByteBuffer buffer = (ByteBuffer) item;
+                amount = Math.min(amount, buffer.remaining());
+                data = buffer.duplicate();
+                data.limit(data.position() + amount);
+                buffer.position(buffer.position() + amount);
+                mQueuedBytes -= amount;
+                if (!buffer.hasRemaining()) {
+                    mQueue.poll();
+                }
+            } else {
+                FileRegion region = (FileRegion) item;
+                data = ByteBuffer.allocate((int) Math.min(amount, region.getRemaining()));
+                try {
+                    while (data.hasRemaining() && region.read(data) > 0) {
+                        // Keep reading until the frame is full
+                    }
+                } catch (IOException exception) {
+                    Log.error(exception);
+                    reset(Http2.INTERNAL_ERROR);
+                    return 0;
+                }
+                data.flip();
+                if (!region.hasRemaining()) {
+                    mQueue.poll();
+                    discard(region);
+                }
+            }
+        }
+        int     amount = data != null ? data.remaining() : 0;
+        boolean end    = mEndQueued && mQueue.isEmpty();
+        mSendWindow -= amount;
+        mPass += (long) (amount + Http2.FRAME_HEADER_SIZE) * Http2.MAXIMUM_WEIGHT / mWeight;
+        mConnection.writeDataFrame(mId, end ? Http2.FLAG_END_STREAM : 0, data);
+        if (end) {
+            localClosed();
+        }
+        return amount;
+    }
+
+    private void localClosed() {
+        mLocalClosed = true;
+        if (!mRemoteClosed) {
+            // The response is complete, so the rest of the request isn't wanted
+            mConnection.sendReset(mId, Http2.NO_ERROR);
+            mRemoteClosed = true;
+        }
+        checkClosed();
+    }
+
+    private void checkClosed() {
+        if (mLocalClosed && mRemoteClosed) {
+            close();
+        }
+    }
+
+    /** @param errorCode The reason for resetting the stream. */
+    void reset(int errorCode) {
+        if (!mClosed) {
+            mConnection.sendReset(mId, errorCode);
+            close();
+        }
+    }
+
+    /** Closes the stream, discarding anything still queued and abandoning its exchange. */
+    void close() {
+        if (!mClosed) {
+            mClosed = true;
+            mLocalClosed = true;
+            mRemoteClosed = true;
+            while (!mQueue.isEmpty()) {
+                discard(mQueue.poll());
+            }
+            mQueuedBytes = 0;
+            mConnection.streamClosed(this);
+            if (mExchange != null) {
+                mExchange.closing();
+            }
+        }
+    }
+
+    private static void discard(Object data) {
+        if (data instanceof FileRegion) {
+            try {
+                ((FileRegion) data).close();
+            } catch (IOException exception) {
+                Log.error(exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the body of a HTTP request as it arrives, rather than having it collected for a later
+ * call to {@link HttpRequestHandler#handleHttpRequest(Http)}.
+ */
+public interface HttpBodyReceiver {
+    /**
+     * Called for each piece of the request body, in order, as it arrives. Any transfer encoding
+     * has already been removed.
+     *
+     * @param http The {@link Http} object the request came from.
+     * @param data The data. Only valid for the duration of the call.
+     */
+    void bodyData(Http http, ByteBuffer data) throws IOException;
+
+    /**
+     * Called once the entire request body has been received.
+     *
+     * @param http The {@link Http} object the request came from.
+     * @return The {@link HttpResponse} to return to the remote end.
+     */
+    HttpResponse bodyComplete(Http http) throws IOException;
+}
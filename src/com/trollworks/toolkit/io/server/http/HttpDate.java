@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/** Formats and parses the date values used by HTTP headers. */
+public class HttpDate {
+    private static final    DateTimeFormatter FORMAT  = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static volatile Current           CURRENT = new Current(System.currentTimeMillis() / 1000);
+
+    /**
+     * @param millis The time, in milliseconds since the epoch.
+     * @return The time formatted for use in an HTTP header.
+     */
+    public static String format(long millis) {
+        return FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * @return The current time formatted for use in an HTTP header. The text is only regenerated
+     *         when the second changes, so this is cheap enough to call for every response.
+     */
+    public static String current() {
+        return getCurrent().mText;
+    }
+
+    /**
+     * @return A complete {@code Date} header line for the current time, including the trailing
+     *         CRLF, encoded as US-ASCII. The returned array is shared, so must not be modified.
+     */
+    static byte[] currentHeader() {
+        return getCurrent().mHeader;
+    }
+
+    private static Current getCurrent() {
+        long    second  = System.currentTimeMillis() / 1000;
+        Current current = CURRENT;
+        if (current.mSecond != second) {
+            // Threads that race here produce identical values, so no locking is needed
+            current = new Current(second);
+            CURRENT = current;
+        }
+        return current;
+    }
+
+    /**
+     * @param text The value of an HTTP date header.
+     * @return The time, in milliseconds since the epoch, or {@code -1} if the text could not be
+     *         parsed.
+     */
+    public static long parse(String text) {
+        if (text != null) {
+            try {
+                return ZonedDateTime.parse(text.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException exception) {
+                // Fall through
+            }
+        }
+        return -1;
+    }
+
+    private static final class Current {
+        final long   mSecond;
+        final String mText;
+        final byte[] mHeader;
+
+        Current(long second) {
+            mSecond = second;
+            mText = format(second * 1000);
+            mHeader = ("Date: " + mText + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
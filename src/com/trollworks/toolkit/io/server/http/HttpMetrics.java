@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.json.JsonMap;
+import com.trollworks.toolkit.io.server.LatencyHistogram;
+import com.trollworks.toolkit.io.server.LatencySummary;
+import com.trollworks.toolkit.io.server.MetricsBean;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics for the requests served through a {@link HttpSessionFactory}. Call {@link
+ * #register(String)} to publish them through JMX.
+ */
+public final class HttpMetrics extends MetricsBean implements HttpMetricsMXBean {
+    /** The key used for requests that weren't routed to a {@link HttpRequestHandler}. */
+    public static final String                        UNROUTED        = "(unrouted)";
+    private             LongAdder[]                   mStatusCounts   = new LongAdder[5];
+    private             LongAdder                     mShed           = new LongAdder();
+    private             LongAdder                     mRateLimited    = new LongAdder();
+    private             LatencyHistogram              mLatency        = new LatencyHistogram();
+    private             Map<String, LatencyHistogram> mRouteLatencies = new ConcurrentHashMap<>();
+
+    HttpMetrics() {
+        for (int i = 0; i < mStatusCounts.length; i++) {
+            mStatusCounts[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public long getRequestCount() {
+        long total = 0;
+        for (LongAdder count : mStatusCounts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getInformationalCount() {
+        return mStatusCounts[0].sum();
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return mStatusCounts[1].sum();
+    }
+
+    @Override
+    public long getRedirectionCount() {
+        return mStatusCounts[2].sum();
+    }
+
+    @Override
+    public long getClientErrorCount() {
+        return mStatusCounts[3].sum();
+    }
+
+    @Override
+    public long getServerErrorCount() {
+        return mStatusCounts[4].sum();
+    }
+
+    @Override
+    public long getShedCount() {
+        return mShed.sum();
+    }
+
+    @Override
+    public long getRateLimitedCount() {
+        return mRateLimited.sum();
+    }
+
+    @Override
+    public LatencySummary getLatency() {
+        return mLatency.getSummary();
+    }
+
+    @Override
+    public Map<String, LatencySummary> getRouteLatencies() {
+        Map<String, LatencySummary> map = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : mRouteLatencies.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().getSummary());
+        }
+        return map;
+    }
+
+    /** @return A {@link JsonMap} holding the current values, with durations in microseconds. */
+    public JsonMap toJson() {
+        JsonMap map = new JsonMap();
+        map.put("requests", getRequestCount());
+        map.put("status_1xx", getInformationalCount());
+        map.put("status_2xx", getSuccessCount());
+        map.put("status_3xx", getRedirectionCount());
+        map.put("status_4xx", getClientErrorCount());
+        map.put("status_5xx", getServerErrorCount());
+        map.put("shed", getShedCount());
+        map.put("rate_limited", getRateLimitedCount());
+        map.put("latency", getLatency().toJson());
+        JsonMap routes = new JsonMap();
+        for (Map.Entry<String, LatencySummary> entry : getRouteLatencies().entrySet()) {
+            routes.put(entry.getKey(), entry.getValue().toJson());
+        }
+        map.put("routes", routes);
+        return map;
+    }
+
+    /** Called when a request is refused because the server is overloaded. */
+    void requestShed() {
+        mShed.increment();
+    }
+
+    /** Called when a request is refused because the client exceeded a rate limit. */
+    void requestLimited() {
+        mRateLimited.increment();
+    }
+
+    /**
+     * Called once the response to a request has been handed off to be sent.
+     *
+     * @param route   The pattern of the route that handled the request, or {@code null}.
+     * @param status  The {@link HttpStatusCode} of the response.
+     * @param elapsed The number of nanoseconds since the request started arriving.
+     */
+    void requestCompleted(String route, HttpStatusCode status, long elapsed) {
+        int index = status.getRequestStatus() / 100 - 1;
+        if (index >= 0 && index < mStatusCounts.length) {
+            mStatusCounts[index].increment();
+        }
+        mLatency.record(elapsed);
+        if (route == null) {
+            route = UNROUTED;
+        }
+        LatencyHistogram histogram = mRouteLatencies.get(route);
+        if (histogram == null) {
+            histogram = mRouteLatencies.computeIfAbsent(route, key -> new LatencyHistogram());
+        }
+        histogram.record(elapsed);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.server.LatencySummary;
+
+import java.util.Map;
+
+/** The management interface for the metrics of a {@link HttpSessionFactory}. */
+public interface HttpMetricsMXBean {
+    /** @return The number of requests that have been answered. */
+    long getRequestCount();
+
+    /** @return The number of 1xx responses sent. */
+    long getInformationalCount();
+
+    /** @return The number of 2xx responses sent. */
+    long getSuccessCount();
+
+    /** @return The number of 3xx responses sent. */
+    long getRedirectionCount();
+
+    /** @return The number of 4xx responses sent. */
+    long getClientErrorCount();
+
+    /** @return The number of 5xx responses sent. */
+    long getServerErrorCount();
+
+    /**
+     * @return The number of requests refused because the server was overloaded. Those received
+     *         over HTTP/1.x are answered without being parsed, so aren't included in the other
+     *         counts.
+     */
+    long getShedCount();
+
+    /** @return The number of requests refused because the client exceeded a rate limit. */
+    long getRateLimitedCount();
+
+    /**
+     * @return The time from the start of a request arriving until its response was handed off to
+     *         be sent, across all requests.
+     */
+    LatencySummary getLatency();
+
+    /**
+     * @return The time from the start of a request arriving until its response was handed off to
+     *         be sent, keyed by the pattern of the route that handled it. Requests that weren't
+     *         routed to a {@link HttpRequestHandler} are keyed by {@link HttpMetrics#UNROUTED}.
+     */
+    Map<String, LatencySummary> getRouteLatencies();
+}
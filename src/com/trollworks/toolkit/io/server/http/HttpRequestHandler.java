@@ -20,4 +20,17 @@ public interface HttpRequestHandler {
      * @return The {@link HttpResponse} to return to the remote end.
      */
     HttpResponse handleHttpRequest(Http http) throws IOException;
+
+    /**
+     * Called once the headers of a request with a body have been read, before any of the body has
+     * been received. By default, the body is collected, in memory or in a temporary file, and made
+     * available through {@link Http#getBody()} when {@link #handleHttpRequest(Http)} is called.
+     *
+     * @param http The {@link Http} object the request came from.
+     * @return A {@link HttpBodyReceiver} to stream the body to, or {@code null} to have it
+     *         collected.
+     */
+    default HttpBodyReceiver createBodyReceiver(Http http) throws IOException {
+        return null;
+    }
 }
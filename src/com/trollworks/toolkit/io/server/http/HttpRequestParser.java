@@ -0,0 +1,615 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An incremental parser for HTTP/1.1 requests. Input is copied in bulk into a buffer that is
+ * reused from one request to the next and scanned for the end of the header. Header names and
+ * values are recorded as offsets into that buffer, common header names are mapped to shared
+ * strings, and values are only turned into strings when asked for.
+ */
+public class HttpRequestParser {
+    /** The maximum size of the request line and headers, combined. */
+    public static final  int        MAXIMUM_HEADER_SIZE = 8 * 1024;
+    private static final int        INITIAL_BUFFER_SIZE = 1024;
+    private static final int        MAXIMUM_CHUNK_LINE  = 4 * 1024;
+    private static final int        CHUNK_SIZE          = 0;
+    private static final int        CHUNK_EXTENSION     = 1;
+    private static final int        CHUNK_SIZE_LF       = 2;
+    private static final int        CHUNK_DATA          = 3;
+    private static final int        CHUNK_DATA_CR       = 4;
+    private static final int        CHUNK_DATA_LF       = 5;
+    private static final int        TRAILER_START       = 6;
+    private static final int        TRAILER             = 7;
+    private static final int        TRAILER_END_LF      = 8;
+    private static final String     CONTENT_LENGTH      = "content-length";
+    private static final String     TRANSFER_ENCODING   = "transfer-encoding";
+    private static final String[]   KNOWN_NAMES         = { "accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "cache-control", "connection", CONTENT_LENGTH, "content-type", "cookie", "dnt", "expect", "host", "if-match", "if-modified-since", "if-none-match", "if-range", "if-unmodified-since", "origin", "pragma", "range", "referer", "sec-fetch-dest", "sec-fetch-mode", "sec-fetch-site", "sec-fetch-user", "sec-websocket-draft", "sec-websocket-extensions", "sec-websocket-key", "sec-websocket-protocol", "sec-websocket-version", "te", TRANSFER_ENCODING, "upgrade", "upgrade-insecure-requests", "user-agent", "x-forwarded-for", "x-requested-with" };
+    private static final byte[][]   KNOWN_NAME_BYTES    = new byte[KNOWN_NAMES.length][];
+    private static final byte[][]   METHOD_BYTES        = new byte[HttpMethod.values().length][];
+    private              long       mMaximumBodySize;
+    private              byte[]     mBuffer             = new byte[INITIAL_BUFFER_SIZE];
+    private              int        mLength;
+    private              int        mScanned;
+    private              boolean    mHeaderComplete;
+    private              HttpMethod mMethod;
+    private              String     mTarget;
+    private              int        mVersionMajor;
+    private              int        mVersionMinor;
+    private              int        mHeaderCount;
+    private              String[]   mNames              = new String[16];
+    private              int[]      mValueStarts        = new int[16];
+    private              int[]      mValueEnds          = new int[16];
+    private              String[]   mValues             = new String[16];
+    private              long       mContentLength;
+    private              boolean    mChunked;
+    private              long       mBodyReceived;
+    private              long       mBodyRemaining;
+    private              boolean    mBodyComplete;
+    private              int        mChunkState;
+    private              int        mChunkLineLength;
+
+    static {
+        for (int i = 0; i < KNOWN_NAMES.length; i++) {
+            KNOWN_NAME_BYTES[i] = KNOWN_NAMES[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        for (HttpMethod method : HttpMethod.values()) {
+            METHOD_BYTES[method.ordinal()] = method.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /** @param maximumBodySize The maximum size of a request body that will be accepted. */
+    public HttpRequestParser(long maximumBodySize) {
+        mMaximumBodySize = maximumBodySize;
+    }
+
+    /**
+     * Consumes data from the buffer until either it has been exhausted or the request line and
+     * headers have been read. Data beyond the end of the headers is left in the buffer. Once this
+     * returns {@code true}, the body, if any, should be retrieved with {@link
+     * #nextBodyChunk(ByteBuffer)}.
+     *
+     * @param buffer The data to process.
+     * @return {@code true} if the request line and headers are now available.
+     */
+    public boolean parse(ByteBuffer buffer) throws HttpResponseException {
+        if (!mHeaderComplete) {
+            int end = -1;
+            while (end == -1) {
+                if (!buffer.hasRemaining()) {
+                    return false;
+                }
+                int amount = Math.min(buffer.remaining(), MAXIMUM_HEADER_SIZE - mLength);
+                if (amount == 0) {
+                    throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Header too large");
+                }
+                if (mLength + amount > mBuffer.length) {
+                    mBuffer = Arrays.copyOf(mBuffer, Math.min(Math.max(mBuffer.length * 2, mLength + amount), MAXIMUM_HEADER_SIZE));
+                }
+                buffer.get(mBuffer, mLength, amount);
+                mLength += amount;
+                end = findHeaderEnd();
+            }
+            // Hand back anything we copied that lies beyond the header
+            buffer.position(buffer.position() - (mLength - end));
+            mLength = end;
+            parseHeader();
+            mHeaderComplete = true;
+        }
+        return true;
+    }
+
+    /**
+     * Extracts the next piece of the request body from the buffer, removing any chunked transfer
+     * encoding. Data beyond the end of the body is left in the buffer.
+     *
+     * @param buffer The data to process.
+     * @return A view of the buffer holding the next piece of the body, or {@code null} if the
+     *         buffer was exhausted before any body data could be found, in which case {@link
+     *         #isBodyComplete()} should be checked. The view is only valid until the buffer is
+     *         next modified.
+     */
+    public ByteBuffer nextBodyChunk(ByteBuffer buffer) throws HttpResponseException {
+        while (!mBodyComplete && buffer.hasRemaining()) {
+            if (!mChunked || mChunkState == CHUNK_DATA) {
+                int        amount = (int) Math.min(buffer.remaining(), mBodyRemaining);
+                ByteBuffer chunk  = buffer.slice();
+                chunk.limit(amount);
+                buffer.position(buffer.position() + amount);
+                mBodyRemaining -= amount;
+                if (mBodyRemaining == 0) {
+                    if (mChunked) {
+                        mChunkState = CHUNK_DATA_CR;
+                    } else {
+                        mBodyComplete = true;
+                    }
+                }
+                return chunk;
+            }
+            processChunkFraming(buffer.get());
+        }
+        return null;
+    }
+
+    private void processChunkFraming(byte b) throws HttpResponseException {
+        if (++mChunkLineLength > MAXIMUM_CHUNK_LINE) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Chunk framing too large");
+        }
+        switch (mChunkState) {
+        case CHUNK_SIZE:
+            int digit = Character.digit(b, 16);
+            if (digit != -1) {
+                if (mBodyRemaining > Long.MAX_VALUE >> 4) {
+                    throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk size");
+                }
+                mBodyRemaining = (mBodyRemaining << 4) + digit;
+                return;
+            }
+            if (mChunkLineLength == 1) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk size");
+            }
+            if (b == ';' || b == ' ' || b == '\t') {
+                mChunkState = CHUNK_EXTENSION;
+            } else if (b == '\r') {
+                mChunkState = CHUNK_SIZE_LF;
+            } else if (b == '\n') {
+                startChunk();
+            } else {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk size");
+            }
+            break;
+        case CHUNK_EXTENSION:
+            // Chunk extensions are ignored
+            if (b == '\n') {
+                startChunk();
+            }
+            break;
+        case CHUNK_SIZE_LF:
+            if (b != '\n') {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk framing");
+            }
+            startChunk();
+            break;
+        case CHUNK_DATA_CR:
+            if (b == '\r') {
+                mChunkState = CHUNK_DATA_LF;
+            } else if (b == '\n') {
+                nextChunk();
+            } else {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk framing");
+            }
+            break;
+        case CHUNK_DATA_LF:
+            if (b != '\n') {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk framing");
+            }
+            nextChunk();
+            break;
+        case TRAILER_START:
+            if (b == '\r') {
+                mChunkState = TRAILER_END_LF;
+            } else if (b == '\n') {
+                mBodyComplete = true;
+            } else {
+                mChunkState = TRAILER;
+            }
+            break;
+        case TRAILER:
+            // Trailer fields are ignored
+            if (b == '\n') {
+                mChunkState = TRAILER_START;
+            }
+            break;
+        case TRAILER_END_LF:
+            if (b != '\n') {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid chunk framing");
+            }
+            mBodyComplete = true;
+            break;
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    private void startChunk() throws HttpResponseException {
+        mChunkLineLength = 0;
+        if (mBodyRemaining == 0) {
+            mChunkState = TRAILER_START;
+            return;
+        }
+        mBodyReceived += mBodyRemaining;
+        if (mBodyReceived > mMaximumBodySize) {
+            throw new HttpResponseException(HttpStatusCode.ENTITY_TOO_LARGE, "BAD REQUEST: Content too large");
+        }
+        mChunkState = CHUNK_DATA;
+    }
+
+    private void nextChunk() {
+        mChunkLineLength = 0;
+        mBodyRemaining = 0;
+        mChunkState = CHUNK_SIZE;
+    }
+
+    private int findHeaderEnd() {
+        byte[] buffer = mBuffer;
+        int    limit  = mLength - 3;
+        for (int i = Math.max(mScanned - 3, 0); i < limit; i++) {
+            if (buffer[i + 3] == '\n' && buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r') {
+                return i + 4;
+            }
+        }
+        mScanned = mLength;
+        return -1;
+    }
+
+    private void parseHeader() throws HttpResponseException {
+        byte[] buffer = mBuffer;
+        int    pos    = 0;
+        // Tolerate empty lines ahead of the request line, as RFC 7230 suggests
+        while (buffer[pos] == '\r' && buffer[pos + 1] == '\n') {
+            pos += 2;
+            if (pos + 1 >= mLength) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+            }
+        }
+        pos = parseRequestLine(pos);
+        while (pos < mLength) {
+            int eol = pos;
+            while (buffer[eol] != '\r' || buffer[eol + 1] != '\n') {
+                eol++;
+            }
+            if (eol == pos) {
+                break;
+            }
+            int colon = pos;
+            while (colon < eol && buffer[colon] != ':') {
+                colon++;
+            }
+            if (colon < eol) {
+                int nameStart  = skipWhitespace(pos, colon);
+                int nameEnd    = trimWhitespace(nameStart, colon);
+                int valueStart = skipWhitespace(colon + 1, eol);
+                int valueEnd   = trimWhitespace(valueStart, eol);
+                if (nameStart < nameEnd) {
+                    addHeader(internName(nameStart, nameEnd), valueStart, valueEnd);
+                }
+            }
+            pos = eol + 2;
+        }
+
+        mContentLength = 0;
+        mChunked = false;
+        int index = indexOfHeader(TRANSFER_ENCODING);
+        if (index != -1) {
+            if (!"chunked".equalsIgnoreCase(getHeaderValue(index)) || indexOfHeader(TRANSFER_ENCODING, index + 1) != -1) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Unsupported transfer encoding");
+            }
+            // Framing that intermediaries may read differently is a vector for request smuggling,
+            // so reject it, which also closes the connection
+            if (indexOfHeader(CONTENT_LENGTH) != -1) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Both transfer encoding and content length");
+            }
+            if (mVersionMajor == 1 && mVersionMinor == 0) {
+                throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Chunked transfer encoding requires HTTP/1.1");
+            }
+            mChunked = true;
+            mContentLength = -1;
+        } else {
+            long contentLength = -1;
+            for (index = indexOfHeader(CONTENT_LENGTH); index != -1; index = indexOfHeader(CONTENT_LENGTH, index + 1)) {
+                long length = parseLong(mValueStarts[index], mValueEnds[index]);
+                if (length == -1 || contentLength != -1 && length != contentLength) {
+                    // Ambiguous lengths are a vector for request smuggling, so reject them
+                    throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST: Invalid content length");
+                }
+                contentLength = length;
+            }
+            if (contentLength != -1) {
+                mContentLength = contentLength;
+            }
+            if (mContentLength > mMaximumBodySize) {
+                throw new HttpResponseException(HttpStatusCode.ENTITY_TOO_LARGE, "BAD REQUEST: Content too large");
+            }
+            mBodyRemaining = mContentLength;
+            mBodyReceived = mContentLength;
+        }
+        mBodyComplete = mContentLength == 0;
+    }
+
+    private int parseRequestLine(int pos) throws HttpResponseException {
+        byte[] buffer = mBuffer;
+        int    end    = pos;
+        while (buffer[end] != '\r' || buffer[end + 1] != '\n') {
+            end++;
+        }
+        int methodEnd = pos;
+        while (methodEnd < end && buffer[methodEnd] != ' ') {
+            methodEnd++;
+        }
+        mMethod = lookupMethod(pos, methodEnd);
+        int targetStart = skipWhitespace(methodEnd, end);
+        int targetEnd   = targetStart;
+        while (targetEnd < end && buffer[targetEnd] != ' ') {
+            targetEnd++;
+        }
+        int version = skipWhitespace(targetEnd, end);
+        if (mMethod == null || targetStart == targetEnd || end - version != 8 || buffer[version] != 'H' || buffer[version + 1] != 'T' || buffer[version + 2] != 'T' || buffer[version + 3] != 'P' || buffer[version + 4] != '/' || buffer[version + 6] != '.' || !isDigit(buffer[version + 5]) || !isDigit(buffer[version + 7])) {
+            throw new HttpResponseException(HttpStatusCode.BAD_REQUEST, "BAD REQUEST");
+        }
+        mTarget = new String(buffer, targetStart, targetEnd - targetStart, StandardCharsets.UTF_8);
+        mVersionMajor = buffer[version + 5] - '0';
+        mVersionMinor = buffer[version + 7] - '0';
+        return end + 2;
+    }
+
+    private HttpMethod lookupMethod(int start, int end) {
+        for (HttpMethod method : HttpMethod.values()) {
+            if (regionMatches(METHOD_BYTES[method.ordinal()], start, end)) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private String internName(int start, int end) {
+        for (int i = 0; i < KNOWN_NAMES.length; i++) {
+            if (regionMatches(KNOWN_NAME_BYTES[i], start, end)) {
+                return KNOWN_NAMES[i];
+            }
+        }
+        return new String(mBuffer, start, end - start, StandardCharsets.UTF_8).toLowerCase();
+    }
+
+    /** Case-insensitive comparison of a region of the buffer against an ASCII name. */
+    private boolean regionMatches(byte[] name, int start, int end) {
+        if (end - start != name.length) {
+            return false;
+        }
+        byte[] buffer = mBuffer;
+        for (int i = 0; i < name.length; i++) {
+            int ch = buffer[start + i];
+            if (ch >= 'A' && ch <= 'Z') {
+                ch += 'a' - 'A';
+            }
+            if (ch != (name[i] >= 'A' && name[i] <= 'Z' ? name[i] + 'a' - 'A' : name[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addHeader(String name, int valueStart, int valueEnd) {
+        if (mHeaderCount == mNames.length) {
+            int size = mHeaderCount * 2;
+            mNames = Arrays.copyOf(mNames, size);
+            mValueStarts = Arrays.copyOf(mValueStarts, size);
+            mValueEnds = Arrays.copyOf(mValueEnds, size);
+            mValues = Arrays.copyOf(mValues, size);
+        }
+        mNames[mHeaderCount] = name;
+        mValueStarts[mHeaderCount] = valueStart;
+        mValueEnds[mHeaderCount] = valueEnd;
+        mHeaderCount++;
+    }
+
+    private int skipWhitespace(int pos, int end) {
+        while (pos < end && (mBuffer[pos] == ' ' || mBuffer[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int trimWhitespace(int start, int end) {
+        while (end > start && (mBuffer[end - 1] == ' ' || mBuffer[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private long parseLong(int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (!isDigit(mBuffer[i])) {
+                return -1;
+            }
+            value = value * 10 + mBuffer[i] - '0';
+        }
+        return value;
+    }
+
+    private static boolean isDigit(byte ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    /**
+     * Prepares the parser for the next request on the same connection. The buffers used for the
+     * previous request are retained.
+     */
+    public void recycle() {
+        mLength = 0;
+        mScanned = 0;
+        mHeaderComplete = false;
+        mMethod = null;
+        mTarget = null;
+        mVersionMajor = 0;
+        mVersionMinor = 0;
+        Arrays.fill(mNames, 0, mHeaderCount, null);
+        Arrays.fill(mValues, 0, mHeaderCount, null);
+        mHeaderCount = 0;
+        mContentLength = 0;
+        mChunked = false;
+        mBodyReceived = 0;
+        mBodyRemaining = 0;
+        mBodyComplete = false;
+        mChunkState = CHUNK_SIZE;
+        mChunkLineLength = 0;
+    }
+
+    /**
+     * Sets up the parser as though it had just parsed the header of a request that arrived by
+     * other means, such as on a HTTP/2 stream. The body, if any, is supplied separately.
+     *
+     * @param method        The request's {@link HttpMethod}.
+     * @param target        The request target.
+     * @param fields        The header fields, as alternating lower-cased names and values.
+     * @param contentLength The length of the body, or {@code -1} if it isn't known in advance.
+     */
+    void setRequest(HttpMethod method, String target, List<String> fields, long contentLength) throws HttpResponseException {
+        recycle();
+        mMethod = method;
+        mTarget = target;
+        mVersionMajor = 2;
+        mVersionMinor = 0;
+        for (int i = 0; i < fields.size(); i += 2) {
+            String value = fields.get(i + 1);
+            addHeader(fields.get(i), 0, value.length());
+            mValues[mHeaderCount - 1] = value;
+        }
+        if (contentLength > mMaximumBodySize) {
+            throw new HttpResponseException(HttpStatusCode.ENTITY_TOO_LARGE, "BAD REQUEST: Content too large");
+        }
+        mContentLength = contentLength;
+        mHeaderComplete = true;
+        mBodyComplete = contentLength == 0;
+    }
+
+    /** @return The {@link HttpMethod} of the current request. */
+    public final HttpMethod getMethod() {
+        return mMethod;
+    }
+
+    /** @return The request target of the current request, exactly as it was sent. */
+    public final String getTarget() {
+        return mTarget;
+    }
+
+    /** @return The major version number of the HTTP protocol used for the current request. */
+    public final int getVersionMajor() {
+        return mVersionMajor;
+    }
+
+    /** @return The minor version number of the HTTP protocol used for the current request. */
+    public final int getVersionMinor() {
+        return mVersionMinor;
+    }
+
+    /** @return The number of headers in the current request. */
+    public final int getHeaderCount() {
+        return mHeaderCount;
+    }
+
+    /**
+     * @param index The index of the header.
+     * @return The lower-cased name of the header.
+     */
+    public final String getHeaderName(int index) {
+        return mNames[index];
+    }
+
+    /**
+     * @param index The index of the header.
+     * @return The value of the header.
+     */
+    public final String getHeaderValue(int index) {
+        String value = mValues[index];
+        if (value == null) {
+            value = new String(mBuffer, mValueStarts[index], mValueEnds[index] - mValueStarts[index], StandardCharsets.UTF_8);
+            mValues[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @param name The name of a header.
+     * @return The index of the first header with the specified name, or {@code -1} if there is
+     *         none.
+     */
+    public final int indexOfHeader(String name) {
+        return indexOfHeader(name, 0);
+    }
+
+    /**
+     * @param name  The name of a header.
+     * @param start The index to start searching from.
+     * @return The index of the next header with the specified name, or {@code -1} if there is
+     *         none.
+     */
+    public final int indexOfHeader(String name, int start) {
+        for (int i = start; i < mHeaderCount; i++) {
+            if (mNames[i] == name || mNames[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name The name of a header.
+     * @return The non-empty values for the header, or {@code null} if no header with that name
+     *         exists.
+     */
+    public final List<String> getHeader(String name) {
+        List<String> list = null;
+        for (int i = 0; i < mHeaderCount; i++) {
+            if (mNames[i] == name || mNames[i].equalsIgnoreCase(name)) {
+                if (list == null) {
+                    list = new ArrayList<>();
+                }
+                if (mValueStarts[i] < mValueEnds[i]) {
+                    list.add(getHeaderValue(i));
+                }
+            }
+        }
+        return list;
+    }
+
+    /** @return A new map of the headers in the current request, keyed by lower-cased name. */
+    public final Map<String, List<String>> getHeaders() {
+        Map<String, List<String>> map = new HashMap<>();
+        for (int i = 0; i < mHeaderCount; i++) {
+            List<String> list = map.computeIfAbsent(mNames[i], k -> new ArrayList<>());
+            if (mValueStarts[i] < mValueEnds[i]) {
+                list.add(getHeaderValue(i));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @return The length of the body of the current request, or {@code -1} if it is using chunked
+     *         transfer encoding and so isn't known in advance.
+     */
+    public final long getContentLength() {
+        return mContentLength;
+    }
+
+    /** @return {@code true} if the current request has a body. */
+    public final boolean hasBody() {
+        return mContentLength != 0;
+    }
+
+    /** @return {@code true} if the entire body of the current request has been extracted. */
+    public final boolean isBodyComplete() {
+        return mBodyComplete;
+    }
+}
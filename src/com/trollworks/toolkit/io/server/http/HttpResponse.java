@@ -12,35 +12,26 @@
 package com.trollworks.toolkit.io.server.http;
 
 import com.trollworks.toolkit.io.Log;
+import com.trollworks.toolkit.io.server.FileRegion;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
 
 /** Stores a HTTP response for a request. */
 public class HttpResponse {
-    private static final SimpleDateFormat    GMT_DATE_FORMAT = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-    private              HttpStatusCode      mStatus;
-    private              String              mMimeType;
-    private              Object              mData;
-    private              Map<String, String> mHeader         = new HashMap<>();
-    private              HttpMethod          mRequestMethod;
-
-    static {
-        GMT_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+    private HttpStatusCode      mStatus;
+    private String              mMimeType;
+    private Object              mData;
+    private Map<String, String> mHeader = new HashMap<>();
+    private HttpMethod          mRequestMethod;
 
     /**
      * Creates a new, empty {@link HttpResponse} with a type of {@link MimeTypes#TEXT} and a status
@@ -75,7 +66,12 @@ public class HttpResponse {
      *
      * @param status   The {@link HttpStatusCode} to use.
      * @param mimeType The mime type to use.
-     * @param data     The data for the body content. May be {@code null}.
+     * @param data     The data for the body content. May be {@code null}. A {@link Path} or {@link
+     *                 FileRegion} will be sent directly from the file system. A {@code byte[]},
+     *                 {@link ByteBuffer}, {@link ByteArrayOutputStream} or {@link
+     *                 MultipartByteRanges} will be sent as-is. A {@link HttpResponseProducer}
+     *                 will be called upon to generate the body as it is sent. Anything else will be
+     *                 converted to a string and sent as UTF-8.
      */
     public HttpResponse(HttpStatusCode status, String mimeType, Object data) {
         mStatus = status;
@@ -133,72 +129,178 @@ public class HttpResponse {
         if (mStatus == null) {
             Log.error(http.getSession(), "sendResponse(): Status may not be null.");
         }
+        // Body content that will be sent separately, after the header
+        List<Object>         parts    = new ArrayList<>();
+        HttpResponseProducer producer = null;
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(16 * 1024);
-            PrintWriter           pw   = new PrintWriter(baos, false, StandardCharsets.UTF_8);
-            pw.print("HTTP/1.1 ");
-            pw.print(mStatus.getDescription());
-            pw.print("\r\n");
+            long length = 0;
+            if (mData instanceof HttpResponseProducer) {
+                producer = (HttpResponseProducer) mData;
+            } else if (mData instanceof Path) {
+                FileRegion region = new FileRegion((Path) mData);
+                parts.add(region);
+                length = region.getRemaining();
+            } else if (mData instanceof FileRegion) {
+                parts.add(mData);
+                length = ((FileRegion) mData).getRemaining();
+            } else if (mData instanceof ByteBuffer) {
+                ByteBuffer buffer = ((ByteBuffer) mData).duplicate();
+                parts.add(buffer);
+                length = buffer.remaining();
+            } else if (mData instanceof MultipartByteRanges) {
+                MultipartByteRanges ranges = (MultipartByteRanges) mData;
+                parts.addAll(ranges.getParts());
+                length = ranges.getLength();
+            } else if (mData != null) {
+                if (mData instanceof ByteArrayOutputStream) {
+                    mData = ((ByteArrayOutputStream) mData).toByteArray();
+                } else if (!(mData instanceof byte[])) {
+                    mData = mData.toString().getBytes(StandardCharsets.UTF_8);
+                }
+                length = ((byte[]) mData).length;
+                if (mStatus == HttpStatusCode.OK && !mHeader.containsKey("Content-Encoding") && http.isCompressionCandidate(mMimeType, length)) {
+                    // Shared caches must not hand an identity body to a client that accepts a
+                    // compressed one, or vice versa, so this is needed even when not encoding
+                    addHeader("Vary", "Accept-Encoding");
+                    ContentEncoding encoding = http.negotiateContentEncoding(mMimeType, length);
+                    if (encoding != null) {
+                        mData = encoding.encode(ByteBuffer.wrap((byte[]) mData));
+                        length = ((byte[]) mData).length;
+                        addHeader("Content-Encoding", encoding.getToken());
+                    }
+                }
+            }
 
+            http.responseSent(mStatus);
+            Http2Stream stream = http.getStream();
+            if (stream != null) {
+                boolean hasBody = mRequestMethod != HttpMethod.HEAD && (producer != null || length > 0);
+                stream.sendHeaders(getHttp2Fields(producer == null && mData != null ? length : -1), !hasBody);
+                if (hasBody) {
+                    if (producer != null) {
+                        http.startStream(producer, new HttpResponseSink(stream));
+                        producer = null;
+                    } else {
+                        if (mData instanceof byte[]) {
+                            parts.add(ByteBuffer.wrap((byte[]) mData));
+                        }
+                        while (!parts.isEmpty()) {
+                            stream.queueData(parts.remove(0));
+                        }
+                        stream.endData();
+                    }
+                }
+                return;
+            }
+
+            HttpResponseEncoder encoder = new HttpResponseEncoder(http.getSession().getServer().getBufferPool(), mStatus);
             if (mMimeType != null) {
-                writeHeader(pw, "Content-Type", mMimeType);
+                encoder.contentType(mMimeType);
             }
 
             if (mHeader == null || mHeader.get("Date") == null) {
-                writeHeader(pw, "Date", GMT_DATE_FORMAT.format(new Date()));
+                encoder.date();
             }
 
             if (mHeader != null) {
                 for (Map.Entry<String, String> entry : mHeader.entrySet()) {
-                    writeHeader(pw, entry.getKey(), entry.getValue());
+                    encoder.header(entry.getKey(), entry.getValue());
                 }
             }
 
-            if (mData != null) {
-                writeHeader(pw, "Connection", "keep-alive");
-                if (mData instanceof Path) {
-                    writeHeader(pw, "Content-Length", Long.toString(Files.size((Path) mData)));
+            HttpResponseSink sink = null;
+            if (producer != null) {
+                // HTTP/1.0 clients don't understand chunked transfer encoding, so the end of the
+                // body has to be signaled by closing the connection instead
+                sink = new HttpResponseSink(http, http.getVersionMajor() > 1 || http.getVersionMinor() > 0);
+                if (sink.isChunked()) {
+                    encoder.connection(true);
+                    encoder.chunked();
                 } else {
-                    if (mData instanceof ByteArrayOutputStream) {
-                        mData = ((ByteArrayOutputStream) mData).toByteArray();
-                    } else if (!(mData instanceof byte[])) {
-                        mData = mData.toString().getBytes(StandardCharsets.UTF_8);
-                    }
-                    writeHeader(pw, "Content-Length", Integer.toString(((byte[]) mData).length));
+                    encoder.connection(false);
                 }
+            } else if (mData != null) {
+                encoder.connection(true);
+                encoder.contentLength(length);
             }
 
-            pw.print("\r\n");
-            pw.flush();
-
-            if (mRequestMethod != HttpMethod.HEAD && mData != null) {
-                if (mData instanceof Path) {
-                    try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream((Path) mData, StandardOpenOption.READ))) {
-                        byte[] buffer  = new byte[16 * 1024];
-                        long   pending = Files.size((Path) mData);
-                        while (pending > 0) {
-                            int read = in.read(buffer, 0, pending > buffer.length ? buffer.length : (int) pending);
-                            if (read <= 0) {
-                                break;
-                            }
-                            baos.write(buffer, 0, read);
-                            pending -= read;
-                        }
+            // The header block and a body held in memory go out together in a single write
+            ByteBuffer body = null;
+            if (mRequestMethod != HttpMethod.HEAD) {
+                if (mData instanceof byte[]) {
+                    body = ByteBuffer.wrap((byte[]) mData);
+                } else if (parts.size() == 1 && parts.get(0) instanceof ByteBuffer && !http.isSecure()) {
+                    body = (ByteBuffer) parts.remove(0);
+                }
+            }
+            encoder.send(http, body);
+            if (sink != null) {
+                if (mRequestMethod != HttpMethod.HEAD) {
+                    http.startStream(producer, sink);
+                    producer = null;
+                } else if (!sink.isChunked()) {
+                    http.requestClose(false);
+                }
+            } else if (mRequestMethod != HttpMethod.HEAD && http.isSecure() && !parts.isEmpty()) {
+                // Encryption is paced by the client draining the connection, rather than by
+                // blocking the worker the session is pinned to until it does
+                producer = new PacedBodyProducer(http.getSession().getServer().getBufferPool(), parts);
+                parts.clear();
+                http.startStream(producer, new HttpResponseSink(http, false, true));
+                producer = null;
+            } else if (mRequestMethod != HttpMethod.HEAD) {
+                while (!parts.isEmpty()) {
+                    Object part = parts.remove(0);
+                    if (part instanceof FileRegion) {
+                        // File content goes straight from the file system to the socket
+                        http.send((FileRegion) part);
+                    } else {
+                        http.send((ByteBuffer) part);
                     }
-                } else {
-                    baos.write((byte[]) mData);
                 }
             }
-            http.send(ByteBuffer.wrap(baos.toByteArray()));
         } catch (IOException exception) {
             // Ignore
+        } finally {
+            if (producer != null) {
+                producer.abort();
+            }
+            for (Object part : parts) {
+                if (part instanceof FileRegion) {
+                    try {
+                        ((FileRegion) part).close();
+                    } catch (IOException exception) {
+                        // Ignore
+                    }
+                }
+            }
         }
     }
 
-    private static void writeHeader(PrintWriter out, String name, String value) {
-        out.print(name);
-        out.print(": ");
-        out.print(value);
-        out.print("\r\n");
+    private List<String> getHttp2Fields(long length) {
+        List<String> fields = new ArrayList<>();
+        fields.add(":status");
+        fields.add(Integer.toString(mStatus.getRequestStatus()));
+        if (mMimeType != null) {
+            fields.add("content-type");
+            fields.add(mMimeType);
+        }
+        if (mHeader.get("Date") == null) {
+            fields.add("date");
+            fields.add(HttpDate.current());
+        }
+        for (Map.Entry<String, String> entry : mHeader.entrySet()) {
+            // HTTP/2 requires lower-cased names, and forbids the connection-specific headers
+            String name = entry.getKey().toLowerCase(Locale.ROOT);
+            if (!Http2.CONNECTION_SPECIFIC_HEADERS.contains(name)) {
+                fields.add(name);
+                fields.add(entry.getValue());
+            }
+        }
+        if (length >= 0) {
+            fields.add("content-length");
+            fields.add(Long.toString(length));
+        }
+        return fields;
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.server.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the status line and header block of a HTTP/1.1 response directly into a pooled buffer.
+ * The status lines and the most common headers are pre-encoded, and other values are written a
+ * character at a time, so that nothing is allocated for a typical response. Should the header
+ * block outgrow the pooled buffer, it is moved to a larger heap buffer.
+ */
+final class HttpResponseEncoder {
+    private static final byte[][]   STATUS_LINES;
+    private static final byte[]     HEADER_SEPARATOR  = ascii(": ");
+    private static final byte[]     CRLF              = ascii("\r\n");
+    private static final byte[]     CONTENT_TYPE      = ascii("Content-Type: ");
+    private static final byte[]     CONTENT_LENGTH    = ascii("Content-Length: ");
+    private static final byte[]     KEEP_ALIVE        = ascii("Connection: keep-alive\r\n");
+    private static final byte[]     CLOSE             = ascii("Connection: close\r\n");
+    private static final byte[]     CHUNKED           = ascii("Transfer-Encoding: chunked\r\n");
+    private              BufferPool mPool;
+    private              ByteBuffer mBuffer;
+    private              boolean    mPooled;
+
+    static {
+        HttpStatusCode[] codes = HttpStatusCode.values();
+        STATUS_LINES = new byte[codes.length][];
+        for (HttpStatusCode code : codes) {
+            STATUS_LINES[code.ordinal()] = ascii("HTTP/1.1 " + code.getDescription() + "\r\n");
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param pool   The {@link BufferPool} to take the buffer from.
+     * @param status The {@link HttpStatusCode} to start the response with.
+     */
+    HttpResponseEncoder(BufferPool pool, HttpStatusCode status) {
+        mPool = pool;
+        mBuffer = pool.acquire();
+        mPooled = true;
+        put(STATUS_LINES[status.ordinal()]);
+    }
+
+    /** @param mimeType The value for the {@code Content-Type} header. */
+    void contentType(String mimeType) {
+        put(CONTENT_TYPE);
+        put(mimeType);
+        put(CRLF);
+    }
+
+    /** @param length The value for the {@code Content-Length} header. */
+    void contentLength(long length) {
+        put(CONTENT_LENGTH);
+        put(length);
+        put(CRLF);
+    }
+
+    /** Adds a {@code Date} header for the current time. */
+    void date() {
+        put(HttpDate.currentHeader());
+    }
+
+    /** @param keepAlive Whether the connection will be kept open after the response. */
+    void connection(boolean keepAlive) {
+        put(keepAlive ? KEEP_ALIVE : CLOSE);
+    }
+
+    /** Adds a {@code Transfer-Encoding: chunked} header. */
+    void chunked() {
+        put(CHUNKED);
+    }
+
+    /**
+     * @param name  The name of the header.
+     * @param value The value of the header.
+     */
+    void header(String name, String value) {
+        put(name);
+        put(HEADER_SEPARATOR);
+        put(value);
+        put(CRLF);
+    }
+
+    /**
+     * Ends the header block and sends it. The buffer may not be used once this has been called.
+     *
+     * @param http The {@link Http} exchange to send the response through.
+     * @param body The body of the response, or {@code null}. On plain connections, it is sent in
+     *             the same gathering write as the header block. On secure connections, it is
+     *             copied in behind the header block when there is room, so that both go out in a
+     *             single record.
+     */
+    void send(Http http, ByteBuffer body) {
+        put(CRLF);
+        if (body != null && http.isSecure() && body.remaining() <= mBuffer.remaining()) {
+            mBuffer.put(body);
+            body = null;
+        }
+        mBuffer.flip();
+        if (mPooled) {
+            http.sendPooled(mBuffer, body);
+        } else {
+            http.send(mBuffer);
+            if (body != null) {
+                http.send(body);
+            }
+        }
+        mBuffer = null;
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        mBuffer.put(bytes);
+    }
+
+    private void put(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) >= 0x80) {
+                put(text.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            mBuffer.put((byte) text.charAt(i));
+        }
+    }
+
+    private void put(long value) {
+        if (value < 0) {
+            put(Long.toString(value));
+            return;
+        }
+        int digits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        int position = mBuffer.position();
+        for (int i = position + digits - 1; i >= position; i--) {
+            mBuffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        mBuffer.position(position + digits);
+    }
+
+    private void ensure(int length) {
+        if (mBuffer.remaining() < length) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + length));
+            mBuffer.flip();
+            buffer.put(mBuffer);
+            if (mPooled) {
+                mPool.release(mBuffer);
+                mPooled = false;
+            }
+            mBuffer = buffer;
+        }
+    }
+}
@@ -16,6 +16,7 @@ import java.io.IOException;
 /** Provides an {@link IOException} that can be easily transformed into a {@link HttpResponse}. */
 public class HttpResponseException extends IOException {
     private final HttpStatusCode mStatus;
+    private final long           mRetryAfter;
 
     /**
      * @param status  The {@link HttpStatusCode} to use.
@@ -24,6 +25,19 @@ public class HttpResponseException extends IOException {
     public HttpResponseException(HttpStatusCode status, String message) {
         super(message);
         mStatus = status;
+        mRetryAfter = 0;
+    }
+
+    /**
+     * @param status     The {@link HttpStatusCode} to use.
+     * @param message    The message to use.
+     * @param retryAfter The number of seconds the client should wait before trying again. Sent
+     *                   in a {@code Retry-After} header if greater than zero.
+     */
+    public HttpResponseException(HttpStatusCode status, String message, long retryAfter) {
+        super(message);
+        mStatus = status;
+        mRetryAfter = retryAfter;
     }
 
     /**
@@ -34,10 +48,19 @@ public class HttpResponseException extends IOException {
     public HttpResponseException(HttpStatusCode status, String message, Exception exception) {
         super(message, exception);
         mStatus = status;
+        mRetryAfter = 0;
     }
 
     /** @return The {@link HttpStatusCode}. */
     public HttpStatusCode getStatus() {
         return mStatus;
     }
+
+    /**
+     * @return The number of seconds the client should wait before trying again, or {@code 0} if
+     *         not specified.
+     */
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+
+/**
+ * Generates the body of a {@link HttpResponse} progressively, rather than having it built in
+ * memory up front. Pass one as the data of a {@link HttpResponse} to have the body sent using
+ * chunked transfer encoding as it is produced.
+ * <p>
+ * The producer is called on the connection's processing thread whenever the connection is able
+ * to accept more outbound data, so it should write a modest amount per call and return, rather
+ * than blocking. The request that triggered the response is no longer available from the {@link
+ * Http} object by the time the producer is called, so anything needed from it should be captured
+ * when the producer is created.
+ */
+public interface HttpResponseProducer {
+    /**
+     * Called repeatedly for as long as {@link HttpResponseSink#isWritable()} returns {@code true}
+     * and the body is not yet complete. Each call should either write something to the sink or
+     * return {@code true}. A call that does neither is taken to mean that nothing is available
+     * yet, and the producer will not be called again until {@link Http#wakeStream()} is.
+     *
+     * @param sink The {@link HttpResponseSink} to write the body to.
+     * @return {@code true} if the entire body has now been written.
+     */
+    boolean produce(HttpResponseSink sink) throws IOException;
+
+    /**
+     * Called if the body will not be produced in its entirety, such as when the connection is
+     * closed early or the request used {@link HttpMethod#HEAD}. Does nothing by default.
+     */
+    default void abort() {
+        // Does nothing by default
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The destination for a body generated by a {@link HttpResponseProducer}. Data written to it is
+ * framed using chunked transfer encoding, unless the client only speaks HTTP/1.0, in which case it
+ * is sent as-is and the end of the body is signaled by closing the connection. Over HTTP/2, data is
+ * queued on the request's stream and sent as DATA frames.
+ */
+public final class HttpResponseSink {
+    private static final int         COALESCE_SIZE = 4 * 1024;
+    private static final byte[]      CRLF          = { '\r', '\n' };
+    private static final byte[]      LAST_CHUNK    = { '0', '\r', '\n', '\r', '\n' };
+    private              Http        mHttp;
+    private              Http2Stream mStream;
+    private              boolean     mChunked;
+    private              boolean     mDelimited;
+    private              boolean     mClosed;
+    private              long        mBytesWritten;
+
+    /**
+     * @param http    The {@link Http} connection to send the body through.
+     * @param chunked Whether to use chunked transfer encoding.
+     */
+    HttpResponseSink(Http http, boolean chunked) {
+        this(http, chunked, chunked);
+    }
+
+    /**
+     * @param http      The {@link Http} connection to send the body through.
+     * @param chunked   Whether to use chunked transfer encoding.
+     * @param delimited Whether the client can find the end of the body without the connection
+     *                  being closed, such as when a {@code Content-Length} header was sent.
+     */
+    HttpResponseSink(Http http, boolean chunked, boolean delimited) {
+        mHttp = http;
+        mChunked = chunked;
+        mDelimited = delimited;
+    }
+
+    /** @param stream The {@link Http2Stream} to send the body through. */
+    HttpResponseSink(Http2Stream stream) {
+        mStream = stream;
+    }
+
+    /** @return {@code true} if chunked transfer encoding is being used. */
+    public boolean isChunked() {
+        return mChunked;
+    }
+
+    /** @return {@code true} if the connection can be reused once the body is complete. */
+    boolean isDelimited() {
+        return mStream != null || mDelimited;
+    }
+
+    /**
+     * @return {@code true} if the connection is currently willing to accept more data. Writing
+     *         while this returns {@code false} is permitted, but only adds to the data buffered in
+     *         memory.
+     */
+    public boolean isWritable() {
+        return !mClosed && (mStream != null ? mStream.isWritable() : mHttp.isWritable());
+    }
+
+    /** @return The number of body bytes written so far, not counting any chunk framing. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @param data The data to write. A copy of the data is not made, so do not modify it once
+     *             passed to this method.
+     */
+    public void write(ByteBuffer data) {
+        if (mClosed) {
+            throw new IllegalStateException("Sink has been closed");
+        }
+        int length = data.remaining();
+        if (length == 0) {
+            // A zero-length chunk would terminate the body
+            return;
+        }
+        mBytesWritten += length;
+        if (mStream != null) {
+            mStream.queueData(data);
+            return;
+        }
+        if (!mChunked) {
+            mHttp.send(data);
+            return;
+        }
+        byte[] header = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        if (length <= COALESCE_SIZE) {
+            // Small writes are copied so the chunk goes out as a single buffer
+            ByteBuffer chunk = ByteBuffer.allocate(header.length + length + CRLF.length);
+            chunk.put(header);
+            chunk.put(data);
+            chunk.put(CRLF);
+            chunk.flip();
+            mHttp.send(chunk);
+        } else {
+            mHttp.send(ByteBuffer.wrap(header));
+            mHttp.send(data);
+            mHttp.send(ByteBuffer.wrap(CRLF));
+        }
+    }
+
+    /**
+     * Writes data that has already been framed as a chunk, so that the same encoding can be shared
+     * by many responses.
+     *
+     * @param data  The data to write. Used when chunked transfer encoding is not in use.
+     * @param chunk The same data, framed as a chunk. Used when chunked transfer encoding is in use.
+     */
+    void writeEncoded(ByteBuffer data, ByteBuffer chunk) {
+        if (!mChunked) {
+            write(data);
+        } else if (mClosed) {
+            throw new IllegalStateException("Sink has been closed");
+        } else {
+            mBytesWritten += data.remaining();
+            mHttp.send(chunk);
+        }
+    }
+
+    /**
+     * @param data The data to write. A copy of the data is not made, so do not modify it once
+     *             passed to this method.
+     */
+    public void write(byte[] data) {
+        write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @param data   The data to write. A copy of the data is not made, so do not modify it once
+     *               passed to this method.
+     * @param offset The offset within the data to start at.
+     * @param length The number of bytes to write.
+     */
+    public void write(byte[] data, int offset, int length) {
+        write(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /** @param text The text to write, as UTF-8. */
+    public void write(String text) {
+        write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** @return {@code true} if {@link #close()} has been called. */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /** Marks the end of the body. Further writes are not permitted. */
+    void close() {
+        if (!mClosed) {
+            mClosed = true;
+            if (mStream != null) {
+                mStream.endData();
+            } else if (mChunked) {
+                mHttp.send(ByteBuffer.wrap(LAST_CHUNK));
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable trie of URI path segments that maps request paths to {@link HttpRequestHandler}s.
+ * Adding a route produces a new {@link HttpRouter} that shares all unaffected nodes with the
+ * original, so a router may be read by any number of threads without locking while a replacement
+ * is being built.
+ * <p>
+ * Route patterns are made up of segments separated by {@code /}. A segment may be:
+ * <ul>
+ * <li>literal text, which must match exactly</li>
+ * <li>{@code {name}}, which matches any non-empty segment and records it as the path parameter
+ * {@code name}</li>
+ * <li>{@code *}, which may only appear as the last segment, and matches the remainder of the path,
+ * recording it as the path parameter {@code *}</li>
+ * </ul>
+ * When more than one route could match a path, literal segments are preferred over parameters,
+ * and parameters are preferred over wildcards.
+ */
+public final class HttpRouter {
+    /** The name of the path parameter that holds the portion of the path matched by {@code *}. */
+    public static final  String WILDCARD   = "*";
+    private static final int    ANY_METHOD = HttpMethod.values().length;
+    private static final Node   EMPTY      = new Node();
+    private final        Node   mRoot;
+
+    /** Creates a new, empty {@link HttpRouter}. */
+    public HttpRouter() {
+        this(EMPTY);
+    }
+
+    private HttpRouter(Node root) {
+        mRoot = root;
+    }
+
+    /**
+     * @param method  The {@link HttpMethod} the route applies to, or {@code null} for all methods
+     *                that don't have a route of their own.
+     * @param pattern The route pattern.
+     * @param handler The {@link HttpRequestHandler} to use, or {@code null} to remove the route.
+     * @return A new {@link HttpRouter} with the route added, replaced, or removed.
+     */
+    public HttpRouter with(HttpMethod method, String pattern, HttpRequestHandler handler) {
+        List<String> segments = split(pattern);
+        return new HttpRouter(with(mRoot, segments, 0, method == null ? ANY_METHOD : method.ordinal(), pattern, handler));
+    }
+
+    private static Node with(Node node, List<String> segments, int index, int slot, String pattern, HttpRequestHandler handler) {
+        Node copy = node.copy();
+        if (index == segments.size()) {
+            copy.mHandlers[slot] = handler;
+            copy.mPattern = handler != null || copy.hasHandlers() ? pattern : null;
+            return copy;
+        }
+        String segment = segments.get(index);
+        if (WILDCARD.equals(segment)) {
+            if (index != segments.size() - 1) {
+                throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+            }
+            copy.mWildcard = with(node.mWildcard != null ? node.mWildcard : EMPTY, segments, index + 1, slot, pattern, handler);
+            copy.mWildcard.mName = WILDCARD;
+        } else if (segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}') {
+            String name = segment.substring(1, segment.length() - 1);
+            if (node.mParameter != null && !name.equals(node.mParameter.mName)) {
+                throw new IllegalArgumentException("Conflicting parameter names {" + node.mParameter.mName + "} and {" + name + "}: " + pattern);
+            }
+            copy.mParameter = with(node.mParameter != null ? node.mParameter : EMPTY, segments, index + 1, slot, pattern, handler);
+            copy.mParameter.mName = name;
+        } else {
+            Node child = node.mChildren.get(segment);
+            copy.mChildren = new HashMap<>(node.mChildren);
+            copy.mChildren.put(segment, with(child != null ? child : EMPTY, segments, index + 1, slot, pattern, handler));
+        }
+        return copy;
+    }
+
+    /**
+     * @param method  The {@link HttpMethod} the route applies to, or {@code null} for the route
+     *                that applies to all methods that don't have a route of their own.
+     * @param pattern The route pattern.
+     * @return The {@link HttpRequestHandler} registered for exactly this pattern and method, or
+     *         {@code null} if there is none.
+     */
+    public HttpRequestHandler getHandler(HttpMethod method, String pattern) {
+        Node node = mRoot;
+        for (String segment : split(pattern)) {
+            if (WILDCARD.equals(segment)) {
+                node = node.mWildcard;
+            } else if (segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}') {
+                node = node.mParameter;
+            } else {
+                node = node.mChildren.get(segment);
+            }
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.mHandlers[method == null ? ANY_METHOD : method.ordinal()];
+    }
+
+    /**
+     * @param method The {@link HttpMethod} of the request.
+     * @param path   The decoded path of the request, without any query string.
+     * @return The {@link Match} for the path, or {@code null} if no route matches it. Note that a
+     *         {@link Match} may be returned that has no {@link HttpRequestHandler} if the path
+     *         matched but no route exists for the method.
+     */
+    public Match route(HttpMethod method, String path) {
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        List<String> parameters = new ArrayList<>();
+        Node         node       = find(mRoot, path, 0, parameters);
+        if (node == null) {
+            return null;
+        }
+        HttpRequestHandler handler = null;
+        if (method != null) {
+            handler = node.mHandlers[method.ordinal()];
+            if (handler == null && method == HttpMethod.HEAD) {
+                handler = node.mHandlers[HttpMethod.GET.ordinal()];
+            }
+        }
+        if (handler == null) {
+            handler = node.mHandlers[ANY_METHOD];
+        }
+        Map<String, String> map;
+        if (parameters.isEmpty()) {
+            map = Collections.emptyMap();
+        } else {
+            map = new HashMap<>();
+            for (int i = 0; i < parameters.size(); i += 2) {
+                map.put(parameters.get(i), parameters.get(i + 1));
+            }
+        }
+        return new Match(node, handler, map);
+    }
+
+    /**
+     * @param node       The node that the segment starting after {@code pos} will be matched
+     *                   against.
+     * @param path       The path being matched.
+     * @param pos        The position of the {@code /} preceding the next segment, or the length of
+     *                   the path if all segments have been matched.
+     * @param parameters Collects the names and values of any path parameters.
+     * @return The node for the route that matches, or {@code null}.
+     */
+    private static Node find(Node node, String path, int pos, List<String> parameters) {
+        int length = path.length();
+        if (pos == length) {
+            return node.hasHandlers() ? node : null;
+        }
+        int end = path.indexOf('/', pos + 1);
+        if (end == -1) {
+            end = length;
+        }
+        String segment = path.substring(pos + 1, end);
+        Node   child   = node.mChildren.get(segment);
+        if (child != null) {
+            Node found = find(child, path, end, parameters);
+            if (found != null) {
+                return found;
+            }
+        }
+        if (node.mParameter != null && !segment.isEmpty()) {
+            int mark = parameters.size();
+            parameters.add(node.mParameter.mName);
+            parameters.add(segment);
+            Node found = find(node.mParameter, path, end, parameters);
+            if (found != null) {
+                return found;
+            }
+            parameters.subList(mark, parameters.size()).clear();
+        }
+        if (node.mWildcard != null && node.mWildcard.hasHandlers()) {
+            parameters.add(WILDCARD);
+            parameters.add(path.substring(pos + 1));
+            return node.mWildcard;
+        }
+        return null;
+    }
+
+    private static List<String> split(String pattern) {
+        if (pattern.isEmpty() || pattern.charAt(0) != '/') {
+            throw new IllegalArgumentException("Pattern must start with '/': " + pattern);
+        }
+        List<String> segments = new ArrayList<>();
+        int          pos      = 0;
+        while (pos < pattern.length()) {
+            int end = pattern.indexOf('/', pos + 1);
+            if (end == -1) {
+                end = pattern.length();
+            }
+            segments.add(pattern.substring(pos + 1, end));
+            pos = end;
+        }
+        return segments;
+    }
+
+    /** The result of routing a request path. */
+    public static final class Match {
+        private Node                mNode;
+        private HttpRequestHandler  mHandler;
+        private Map<String, String> mParameters;
+
+        private Match(Node node, HttpRequestHandler handler, Map<String, String> parameters) {
+            mNode = node;
+            mHandler = handler;
+            mParameters = parameters;
+        }
+
+        /**
+         * @return The {@link HttpRequestHandler} to use, or {@code null} if the path matched but
+         *         the request's method is not supported.
+         */
+        public HttpRequestHandler getHandler() {
+            return mHandler;
+        }
+
+        /** @return The pattern of the route that matched. */
+        public String getPattern() {
+            return mNode.mPattern;
+        }
+
+        /** @return The path parameters extracted from the request path. */
+        public Map<String, String> getParameters() {
+            return mParameters;
+        }
+
+        /** @return The {@link HttpMethod}s that the matched route supports. */
+        public Set<HttpMethod> getAllowedMethods() {
+            if (mNode.mHandlers[ANY_METHOD] != null) {
+                return EnumSet.allOf(HttpMethod.class);
+            }
+            Set<HttpMethod> set = EnumSet.noneOf(HttpMethod.class);
+            for (HttpMethod method : HttpMethod.values()) {
+                if (mNode.mHandlers[method.ordinal()] != null) {
+                    set.add(method);
+                }
+            }
+            if (set.contains(HttpMethod.GET)) {
+                set.add(HttpMethod.HEAD);
+            }
+            return set;
+        }
+    }
+
+    /**
+     * A node within the trie. Nodes are never modified once they have been made reachable from a
+     * {@link HttpRouter}; changes are made to copies.
+     */
+    private static final class Node {
+        private Map<String, Node>    mChildren = Collections.emptyMap();
+        private Node                 mParameter;
+        private Node                 mWildcard;
+        private String               mName;
+        private String               mPattern;
+        private HttpRequestHandler[] mHandlers = new HttpRequestHandler[ANY_METHOD + 1];
+
+        Node copy() {
+            Node other = new Node();
+            other.mChildren = mChildren;
+            other.mParameter = mParameter;
+            other.mWildcard = mWildcard;
+            other.mName = mName;
+            other.mPattern = mPattern;
+            other.mHandlers = mHandlers.clone();
+            return other;
+        }
+
+        boolean hasHandlers() {
+            for (HttpRequestHandler handler : mHandlers) {
+                if (handler != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -15,22 +15,40 @@ import com.trollworks.toolkit.io.server.NioServer;
 import com.trollworks.toolkit.io.server.Session;
 import com.trollworks.toolkit.io.server.SessionFactory;
 import com.trollworks.toolkit.io.server.websocket.WebSocketFactory;
+import com.trollworks.toolkit.io.server.websocket.WebSocketMetrics;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** Provides a {@link SessionFactory} for HTTP sessions. */
 public class HttpSessionFactory implements SessionFactory {
-    private Path                            mRootPath;
-    private Map<String, HttpRequestHandler> mHttpHandlers       = new HashMap<>();
-    private Map<String, WebSocketFactory>   mWebSocketFactories = new HashMap<>();
+    private          Path                            mRootPath;
+    private          StaticFileCache                 mStaticFileCache;
+    private          int                             mCompressionThreshold = 1024;
+    private          long                            mMaximumBodySize      = 1024 * 1024 * 1024L;
+    private          int                             mBodySpoolThreshold   = 64 * 1024;
+    private          boolean                         mHttp2Enabled         = true;
+    private volatile HttpRouter                      mRouter               = new HttpRouter();
+    private          Map<String, WebSocketFactory>   mWebSocketFactories   = new HashMap<>();
+    private          HttpMetrics                     mMetrics              = new HttpMetrics();
+    private          WebSocketMetrics                mWebSocketMetrics     = new WebSocketMetrics();
+    private volatile int                             mSheddingQueueDepth;
+    private volatile int                             mRetryAfter;
+    private volatile ByteBuffer                      mOverloadResponse;
+    private volatile RequestRateLimiter              mRateLimiter;
+    private          Map<String, RequestRateLimiter> mRouteRateLimiters    = new ConcurrentHashMap<>();
 
     /** @param rootPath The path to the root web directory. */
     public HttpSessionFactory(Path rootPath) {
         mRootPath = rootPath.toAbsolutePath().normalize();
+        setRetryAfter(1);
     }
 
     /** @return The path to the root web directory. */
@@ -38,23 +56,261 @@ public class HttpSessionFactory implements SessionFactory {
         return mRootPath;
     }
 
+    /** @return The {@link StaticFileCache} in use, or {@code null} if there is none. */
+    public final StaticFileCache getStaticFileCache() {
+        return mStaticFileCache;
+    }
+
+    /**
+     * @param cache The {@link StaticFileCache} to use when serving files from the root web
+     *              directory. Pass in {@code null} to always go to the file system.
+     */
+    public final void setStaticFileCache(StaticFileCache cache) {
+        mStaticFileCache = cache;
+    }
+
+    /**
+     * @return The minimum size, in bytes, a response body with a compressible mime type must be
+     *         before it will be compressed. A negative value means compression is disabled.
+     */
+    public final int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    /**
+     * @param threshold The minimum size, in bytes, a response body with a compressible mime type
+     *                  must be before it will be compressed. Pass in a negative value to disable
+     *                  compression.
+     */
+    public final void setCompressionThreshold(int threshold) {
+        mCompressionThreshold = threshold;
+    }
+
+    /** @return The maximum size of a request body that will be accepted, in bytes. */
+    public final long getMaximumBodySize() {
+        return mMaximumBodySize;
+    }
+
+    /**
+     * @param size The maximum size of a request body that will be accepted, in bytes. Only affects
+     *             {@link Session}s created after this call.
+     */
+    public final void setMaximumBodySize(long size) {
+        mMaximumBodySize = size;
+    }
+
+    /**
+     * @return The size, in bytes, beyond which a request body being collected for a {@link
+     *         HttpRequestHandler} will be spooled to a temporary file rather than held in memory.
+     */
+    public final int getBodySpoolThreshold() {
+        return mBodySpoolThreshold;
+    }
+
     /**
-     * @param uri     The URI to register a {@link HttpRequestHandler} for.
-     * @param handler The {@link HttpRequestHandler} to use for the specified URI.
+     * @param threshold The size, in bytes, beyond which a request body being collected for a
+     *                  {@link HttpRequestHandler} will be spooled to a temporary file rather than
+     *                  held in memory. Only affects {@link Session}s created after this call.
+     */
+    public final void setBodySpoolThreshold(int threshold) {
+        mBodySpoolThreshold = threshold;
+    }
+
+    /**
+     * @return {@code true} if clients may switch to cleartext HTTP/2, either by upgrading or by
+     *         starting with the HTTP/2 connection preface. Has no effect on secure sessions.
+     */
+    public final boolean isHttp2Enabled() {
+        return mHttp2Enabled;
+    }
+
+    /**
+     * @param enabled Whether clients may switch to cleartext HTTP/2, either by upgrading or by
+     *                starting with the HTTP/2 connection preface. Only affects requests received
+     *                after this call.
+     */
+    public final void setHttp2Enabled(boolean enabled) {
+        mHttp2Enabled = enabled;
+    }
+
+    /**
+     * @return The number of {@link Session}s waiting for a worker at which new requests are
+     *         refused, or {@code 0} if requests are never refused because of load.
+     */
+    public final int getSheddingQueueDepth() {
+        return mSheddingQueueDepth;
+    }
+
+    /**
+     * When the server's workers fall behind, queueing more work only makes every request slower.
+     * Once the number of {@link Session}s waiting for a worker reaches the specified depth, new
+     * requests are answered with a {@code 503 Service Unavailable} response, without being parsed,
+     * until the backlog clears.
+     *
+     * @param depth The number of {@link Session}s waiting for a worker at which new requests are
+     *              refused. Pass in {@code 0} to never refuse requests because of load.
+     */
+    public final void setSheddingQueueDepth(int depth) {
+        mSheddingQueueDepth = Math.max(depth, 0);
+    }
+
+    /**
+     * @return The number of seconds clients are asked to wait, with a {@code Retry-After} header,
+     *         when a request is refused because the server is overloaded.
+     */
+    public final int getRetryAfter() {
+        return mRetryAfter;
+    }
+
+    /**
+     * @param seconds The number of seconds clients are asked to wait, with a {@code Retry-After}
+     *                header, when a request is refused because the server is overloaded.
+     */
+    public final void setRetryAfter(int seconds) {
+        seconds = Math.max(seconds, 1);
+        mRetryAfter = seconds;
+        mOverloadResponse = ByteBuffer.wrap(("HTTP/1.1 " + HttpStatusCode.SERVICE_UNAVAILABLE.getDescription() + "\r\nRetry-After: " + seconds + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+    }
+
+    /** @return The {@link RequestRateLimiter} applied to all requests, or {@code null}. */
+    public final RequestRateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * @param limiter The {@link RequestRateLimiter} to apply to all requests. Requests beyond the
+     *                limit are answered with a {@code 429 Too Many Requests} response. Pass in
+     *                {@code null} for no limit.
+     */
+    public final void setRateLimiter(RequestRateLimiter limiter) {
+        mRateLimiter = limiter;
+    }
+
+    /**
+     * @param pattern The route pattern, as passed to {@link #registerHttpHandler(HttpMethod,
+     *                String, HttpRequestHandler)}.
+     * @return The {@link RequestRateLimiter} applied to requests for the route, or {@code null}.
+     */
+    public final RequestRateLimiter getRateLimiter(String pattern) {
+        return mRouteRateLimiters.get(pattern);
+    }
+
+    /**
+     * @param pattern The route pattern, as passed to {@link #registerHttpHandler(HttpMethod,
+     *                String, HttpRequestHandler)}.
+     * @param limiter The {@link RequestRateLimiter} to apply to requests for the route, in addition
+     *                to any set with {@link #setRateLimiter(RequestRateLimiter)}. Pass in {@code
+     *                null} to remove it.
+     */
+    public final void setRateLimiter(String pattern, RequestRateLimiter limiter) {
+        if (limiter != null) {
+            mRouteRateLimiters.put(pattern, limiter);
+        } else {
+            mRouteRateLimiters.remove(pattern);
+        }
+    }
+
+    /**
+     * @param session The {@link Session} to check.
+     * @return {@code true} if the server the {@link Session} belongs to has more work queued than
+     *         {@link #getSheddingQueueDepth()} allows.
+     */
+    final boolean isOverloaded(Session session) {
+        int depth = mSheddingQueueDepth;
+        return depth > 0 && session.getServer().getMetrics().getWorkerQueueDepth() >= depth;
+    }
+
+    /** @return A pre-encoded {@code 503 Service Unavailable} response for overloaded servers. */
+    final ByteBuffer getOverloadResponse() {
+        return mOverloadResponse.duplicate();
+    }
+
+    /**
+     * @param client  The address of the client making the request.
+     * @param pattern The pattern of the route the request was matched to, or {@code null}.
+     * @return {@code 0} if the request may proceed, otherwise the number of nanoseconds until it
+     *         would be allowed.
+     */
+    final long checkRateLimit(InetAddress client, String pattern) {
+        long               wait    = 0;
+        RequestRateLimiter limiter = mRateLimiter;
+        if (limiter != null) {
+            wait = limiter.acquire(client);
+        }
+        if (pattern != null && wait == 0) {
+            limiter = mRouteRateLimiters.get(pattern);
+            if (limiter != null) {
+                wait = limiter.acquire(client);
+            }
+        }
+        return wait;
+    }
+
+    /** @return The {@link HttpMetrics} for the requests served through this factory. */
+    public final HttpMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /** @return The {@link WebSocketMetrics} for the Web Sockets opened through this factory. */
+    public final WebSocketMetrics getWebSocketMetrics() {
+        return mWebSocketMetrics;
+    }
+
+    /**
+     * @param path The normalized, absolute path of a file within the root web directory.
+     * @return The {@link StaticFile} for the path, served from the {@link StaticFileCache} if one
+     *         has been set.
+     */
+    public final StaticFile getStaticFile(Path path) throws IOException {
+        StaticFileCache cache = mStaticFileCache;
+        return cache != null ? cache.get(path) : new StaticFile(path);
+    }
+
+    /**
+     * @param uri     The URI to register a {@link HttpRequestHandler} for. May also be a route
+     *                pattern, as described by {@link HttpRouter}.
+     * @param handler The {@link HttpRequestHandler} to use for the specified URI, regardless of
+     *                the request method.
      * @return Any existing {@link HttpRequestHandler} for the specified URI, or {@code null} if
      *         there was none.
      */
-    public final synchronized HttpRequestHandler registerHttpHandler(String uri, HttpRequestHandler handler) {
-        return mHttpHandlers.put(uri, handler);
+    public final HttpRequestHandler registerHttpHandler(String uri, HttpRequestHandler handler) {
+        return registerHttpHandler(null, uri, handler);
+    }
+
+    /**
+     * @param method  The {@link HttpMethod} to register the {@link HttpRequestHandler} for, or
+     *                {@code null} for all methods that don't have a handler of their own.
+     * @param pattern The route pattern to register the {@link HttpRequestHandler} for, as
+     *                described by {@link HttpRouter}.
+     * @param handler The {@link HttpRequestHandler} to use, or {@code null} to remove the route.
+     * @return Any existing {@link HttpRequestHandler} for the specified method and pattern, or
+     *         {@code null} if there was none.
+     */
+    public final synchronized HttpRequestHandler registerHttpHandler(HttpMethod method, String pattern, HttpRequestHandler handler) {
+        HttpRequestHandler previous = mRouter.getHandler(method, pattern);
+        mRouter = mRouter.with(method, pattern, handler);
+        return previous;
     }
 
     /**
      * @param uri The URI to get a {@link HttpRequestHandler} for.
-     * @return The {@link HttpRequestHandler} for the specified URI, or {@code null} if there is
-     *         none.
+     * @return The {@link HttpRequestHandler} that would handle a {@link HttpMethod#GET} request
+     *         for the specified URI, or {@code null} if there is none.
+     */
+    public final HttpRequestHandler getHttpHandler(String uri) {
+        HttpRouter.Match match = mRouter.route(HttpMethod.GET, uri);
+        return match != null ? match.getHandler() : null;
+    }
+
+    /**
+     * @param method The {@link HttpMethod} of the request.
+     * @param uri    The decoded path of the request, without any query string.
+     * @return The {@link HttpRouter.Match} for the request, or {@code null} if no route matches
+     *         it.
      */
-    public final synchronized HttpRequestHandler getHttpHandler(String uri) {
-        return mHttpHandlers.get(uri);
+    public final HttpRouter.Match route(HttpMethod method, String uri) {
+        return mRouter.route(method, uri);
     }
 
     /**
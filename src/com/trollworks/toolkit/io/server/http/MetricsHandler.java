@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.json.JsonMap;
+
+/**
+ * A {@link HttpRequestHandler} that reports the metrics of the server and factory the request
+ * arrived through as JSON. Add it to a route, such as {@code /metrics}, that only trusted clients
+ * can reach.
+ */
+public final class MetricsHandler implements HttpRequestHandler {
+    @Override
+    public HttpResponse handleHttpRequest(Http http) {
+        HttpSessionFactory factory = http.getFactory();
+        JsonMap            map     = new JsonMap();
+        map.put("server", http.getSession().getServer().getMetrics().toJson());
+        map.put("http", factory.getMetrics().toJson());
+        map.put("websocket", factory.getWebSocketMetrics().toJson());
+        HttpResponse response = new HttpResponse(HttpStatusCode.OK, MimeTypes.JSON, map.toString(false));
+        response.addHeader("Cache-Control", "no-store");
+        return response;
+    }
+}
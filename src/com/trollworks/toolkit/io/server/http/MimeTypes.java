@@ -15,25 +15,28 @@ import com.trollworks.toolkit.utility.FileType;
 
 /** Some standard mime types and utilities. */
 public class MimeTypes {
-    public static final String BINARY     = "application/octet-stream";
-    public static final String CSS        = "text/css";
-    public static final String MSWORD     = "application/msword";
-    public static final String FLV        = "video/x-flv";
-    public static final String GIF        = "image/gif";
-    public static final String HTML       = "text/html";
-    public static final String JAVA       = "text/x-java-source, text/java";
-    public static final String JPEG       = "image/jpeg";
-    public static final String JAVASCRIPT = "application/javascript";
-    public static final String MOV        = "video/quicktime";
-    public static final String MP3        = "audio/mpeg";
-    public static final String MP3_URL    = "audio/mpeg-url";
-    public static final String MP4        = "video/mp4";
-    public static final String OGG        = "video/ogg";
-    public static final String PDF        = "application/pdf";
-    public static final String PNG        = "image/png";
-    public static final String SWF        = "application/x-shockwave-flash";
-    public static final String TEXT       = "text/plain";
-    public static final String XML        = "text/xml";
+    public static final String BINARY       = "application/octet-stream";
+    public static final String CSS          = "text/css";
+    public static final String EVENT_STREAM = "text/event-stream";
+    public static final String MSWORD       = "application/msword";
+    public static final String FLV          = "video/x-flv";
+    public static final String GIF          = "image/gif";
+    public static final String HTML         = "text/html";
+    public static final String JAVA         = "text/x-java-source, text/java";
+    public static final String JPEG         = "image/jpeg";
+    public static final String JAVASCRIPT   = "application/javascript";
+    public static final String JSON         = "application/json";
+    public static final String MOV          = "video/quicktime";
+    public static final String MP3          = "audio/mpeg";
+    public static final String MP3_URL      = "audio/mpeg-url";
+    public static final String MP4          = "video/mp4";
+    public static final String OGG          = "video/ogg";
+    public static final String PDF          = "application/pdf";
+    public static final String PNG          = "image/png";
+    public static final String SVG          = "image/svg+xml";
+    public static final String SWF          = "application/x-shockwave-flash";
+    public static final String TEXT         = "text/plain";
+    public static final String XML          = "text/xml";
 
     /**
      * @param extension The extension of the file.
@@ -78,6 +81,10 @@ public class MimeTypes {
             return SWF;
         case "js":
             return JAVASCRIPT;
+        case "json":
+            return JSON;
+        case "svg":
+            return SVG;
         case FileType.PDF_EXTENSION:
             return PDF;
         case "doc":
@@ -86,4 +93,32 @@ public class MimeTypes {
             return BINARY;
         }
     }
+
+    /**
+     * @param mimeType The mime type to check. May include parameters, such as a charset.
+     * @return {@code true} if content of the specified mime type is likely to benefit from
+     *         compression.
+     */
+    public static final boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        int semi = mimeType.indexOf(';');
+        if (semi != -1) {
+            mimeType = mimeType.substring(0, semi);
+        }
+        mimeType = mimeType.trim().toLowerCase();
+        if (mimeType.startsWith("text/") || mimeType.endsWith("+json") || mimeType.endsWith("+xml")) {
+            return true;
+        }
+        switch (mimeType) {
+        case JAVASCRIPT:
+        case JSON:
+        case SVG:
+        case "application/xml":
+            return true;
+        default:
+            return false;
+        }
+    }
 }
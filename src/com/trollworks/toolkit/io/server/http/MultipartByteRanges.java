@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.server.FileRegion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@code multipart/byteranges} body, as sent in response to a request for more than one range
+ * of a {@link StaticFile}. The parts are sent directly from the file's cached content or from the
+ * file system.
+ */
+public class MultipartByteRanges {
+    private String       mBoundary;
+    private List<Object> mParts = new ArrayList<>();
+    private long         mLength;
+
+    /**
+     * @param file   The {@link StaticFile} the ranges apply to.
+     * @param ranges The {@link ByteRange}s to send.
+     */
+    public MultipartByteRanges(StaticFile file, List<ByteRange> ranges) throws IOException {
+        mBoundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+        long       size    = file.getSize();
+        ByteBuffer content = file.getContent();
+        try {
+            for (ByteRange range : ranges) {
+                addText("\r\n--" + mBoundary + "\r\nContent-Type: " + file.getMimeType() + "\r\nContent-Range: " + range.getContentRange(size) + "\r\n\r\n");
+                if (content != null) {
+                    mParts.add(content.slice((int) range.getStart(), (int) range.getLength()));
+                } else {
+                    mParts.add(new FileRegion(file.getPath(), range.getStart(), range.getLength()));
+                }
+                mLength += range.getLength();
+            }
+            addText("\r\n--" + mBoundary + "--\r\n");
+        } catch (IOException exception) {
+            close();
+            throw exception;
+        }
+    }
+
+    private void addText(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        mParts.add(ByteBuffer.wrap(bytes));
+        mLength += bytes.length;
+    }
+
+    /** @return The value to use for the {@code Content-Type} header. */
+    public final String getContentType() {
+        return "multipart/byteranges; boundary=" + mBoundary;
+    }
+
+    /** @return The total length of the body, in bytes. */
+    public final long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return The parts of the body, in order. Each is either a {@link ByteBuffer} or a {@link
+     *         FileRegion}.
+     */
+    final List<Object> getParts() {
+        return mParts;
+    }
+
+    /** Releases any files held open by the parts. */
+    final void close() {
+        for (Object part : mParts) {
+            if (part instanceof FileRegion) {
+                try {
+                    ((FileRegion) part).close();
+                } catch (IOException exception) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
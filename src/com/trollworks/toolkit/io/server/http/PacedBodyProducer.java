@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.server.BufferPool;
+import com.trollworks.toolkit.io.server.FileRegion;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Sends the parts of a response body a pooled buffer's worth at a time, and only while the
+ * connection has room for more. Used on secure connections, where each buffer is encrypted into
+ * one of its own as it is written, so that neither the whole body nor an encrypted copy of it is
+ * ever held in memory, and the worker isn't tied up waiting for a slow client.
+ */
+final class PacedBodyProducer implements HttpResponseProducer {
+    private BufferPool         mPool;
+    private ArrayDeque<Object> mParts;
+    private ByteBuffer         mBuffer;
+
+    /**
+     * @param pool  The {@link BufferPool} to read {@link FileRegion}s through.
+     * @param parts The parts of the body, each a {@link FileRegion} or a {@link ByteBuffer}.
+     */
+    PacedBodyProducer(BufferPool pool, List<Object> parts) {
+        mPool = pool;
+        mParts = new ArrayDeque<>(parts);
+    }
+
+    @Override
+    public boolean produce(HttpResponseSink sink) throws IOException {
+        while (sink.isWritable()) {
+            Object part = mParts.peek();
+            if (part == null) {
+                release();
+                return true;
+            }
+            if (part instanceof FileRegion) {
+                if (mBuffer == null) {
+                    mBuffer = mPool.acquire();
+                }
+                mBuffer.clear();
+                if (((FileRegion) part).read(mBuffer) < 0) {
+                    mParts.poll();
+                    ((FileRegion) part).close();
+                    continue;
+                }
+                mBuffer.flip();
+                // Encrypted into buffers of its own before this returns, so mBuffer can be reused
+                sink.write(mBuffer);
+            } else {
+                ByteBuffer buffer = (ByteBuffer) part;
+                if (!buffer.hasRemaining()) {
+                    mParts.poll();
+                    continue;
+                }
+                ByteBuffer chunk = buffer.duplicate();
+                chunk.limit(Math.min(buffer.position() + mPool.getBufferSize(), buffer.limit()));
+                buffer.position(chunk.limit());
+                sink.write(chunk);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void abort() {
+        Object part;
+        while ((part = mParts.poll()) != null) {
+            if (part instanceof FileRegion) {
+                try {
+                    ((FileRegion) part).close();
+                } catch (IOException exception) {
+                    // Ignore
+                }
+            }
+        }
+        release();
+    }
+
+    private void release() {
+        if (mBuffer != null) {
+            mPool.release(mBuffer);
+            mBuffer = null;
+        }
+    }
+}
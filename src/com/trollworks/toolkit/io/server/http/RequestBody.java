@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Collects the body of a HTTP request. Bodies are held in memory until they exceed a threshold,
+ * at which point they are spooled to a temporary file.
+ */
+final class RequestBody implements Closeable {
+    private static final int         INITIAL_SIZE  = 1024;
+    private static final int         RETAINED_SIZE = 8 * 1024;
+    private              int         mSpoolThreshold;
+    private              byte[]      mData;
+    private              int         mLength;
+    private              Path        mSpoolPath;
+    private              FileChannel mSpool;
+    private              long        mSpoolLength;
+
+    /** @param spoolThreshold The size beyond which the body will be spooled to a file. */
+    RequestBody(int spoolThreshold) {
+        mSpoolThreshold = spoolThreshold;
+    }
+
+    /** @return The number of bytes collected. */
+    long getLength() {
+        return mSpool != null ? mSpoolLength : mLength;
+    }
+
+    /** @param data The next piece of the body. */
+    void write(ByteBuffer data) throws IOException {
+        if (mSpool == null && mLength + data.remaining() > mSpoolThreshold) {
+            mSpoolPath = Files.createTempFile("http", ".body");
+            mSpool = FileChannel.open(mSpoolPath, StandardOpenOption.WRITE);
+            mSpoolLength = mLength;
+            ByteBuffer buffer = ByteBuffer.wrap(mData != null ? mData : new byte[0], 0, mLength);
+            while (buffer.hasRemaining()) {
+                mSpool.write(buffer);
+            }
+        }
+        if (mSpool != null) {
+            mSpoolLength += data.remaining();
+            while (data.hasRemaining()) {
+                mSpool.write(data);
+            }
+        } else {
+            int length = mLength + data.remaining();
+            if (mData == null || length > mData.length) {
+                mData = Arrays.copyOf(mData != null ? mData : new byte[0], Math.min(Math.max(length, Math.max(INITIAL_SIZE, mLength * 2)), mSpoolThreshold));
+            }
+            data.get(mData, mLength, data.remaining());
+            mLength = length;
+        }
+    }
+
+    /** @return A new {@link InputStream} for the collected body. */
+    InputStream getInputStream() throws IOException {
+        if (mSpool != null) {
+            return Files.newInputStream(mSpoolPath);
+        }
+        return new ByteArrayInputStream(mData != null ? mData : new byte[0], 0, mLength);
+    }
+
+    /**
+     * Discards the collected body, deleting any temporary file. A modestly sized in-memory buffer
+     * is retained for reuse.
+     */
+    @Override
+    public void close() {
+        mLength = 0;
+        if (mData != null && mData.length > RETAINED_SIZE) {
+            mData = null;
+        }
+        if (mSpool != null) {
+            try {
+                mSpool.close();
+            } catch (IOException exception) {
+                Log.error(exception);
+            }
+            mSpool = null;
+            mSpoolLength = 0;
+            try {
+                Files.deleteIfExists(mSpoolPath);
+            } catch (IOException exception) {
+                // Likely still open by a handler on a platform that won't allow deletion of open
+                // files, so try again later
+                mSpoolPath.toFile().deleteOnExit();
+            }
+            mSpoolPath = null;
+        }
+    }
+}
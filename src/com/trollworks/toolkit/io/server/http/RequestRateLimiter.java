@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server.http;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of requests from each client address with a token bucket. Each client may make
+ * a burst of requests up to the bucket's capacity, after which requests are allowed at the
+ * sustained rate. Buckets that have refilled completely are the same as new ones, so they are
+ * discarded periodically to keep the number tracked proportional to the number of active clients.
+ */
+public final class RequestRateLimiter {
+    private static final long                     SWEEP_INTERVAL = TimeUnit.NANOSECONDS.convert(10, TimeUnit.SECONDS);
+    private              double                   mTokensPerNano;
+    private              double                   mCapacity;
+    private              long                     mFillTime;
+    private              Map<InetAddress, Bucket> mBuckets       = new ConcurrentHashMap<>();
+    private              AtomicLong               mNextSweep     = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL);
+
+    /**
+     * @param requestsPerSecond The sustained number of requests per second each client may make.
+     * @param burst             The number of requests a client may make at once, after having
+     *                          been idle.
+     */
+    public RequestRateLimiter(double requestsPerSecond, int burst) {
+        if (requestsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate must be positive and burst at least 1");
+        }
+        mTokensPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        mCapacity = burst;
+        mFillTime = (long) Math.ceil(mCapacity / mTokensPerNano);
+    }
+
+    /** @return The number of client addresses currently being tracked. */
+    public int getTrackedClientCount() {
+        return mBuckets.size();
+    }
+
+    /**
+     * Takes a token from the bucket for the specified client, if one is available.
+     *
+     * @param client The address of the client making the request.
+     * @return {@code 0} if the request may proceed, otherwise the number of nanoseconds until it
+     *         would be allowed.
+     */
+    public long acquire(InetAddress client) {
+        long now = System.nanoTime();
+        sweep(now);
+        Bucket bucket = mBuckets.get(client);
+        if (bucket == null) {
+            bucket = mBuckets.computeIfAbsent(client, key -> new Bucket(now));
+        }
+        synchronized (bucket) {
+            double tokens = Math.min(mCapacity, bucket.mTokens + (now - bucket.mUpdated) * mTokensPerNano);
+            bucket.mUpdated = now;
+            if (tokens >= 1) {
+                bucket.mTokens = tokens - 1;
+                return 0;
+            }
+            bucket.mTokens = tokens;
+            return Math.max(1, (long) Math.ceil((1 - tokens) / mTokensPerNano));
+        }
+    }
+
+    private void sweep(long now) {
+        long next = mNextSweep.get();
+        if (now - next >= 0 && mNextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+            Iterator<Bucket> iterator = mBuckets.values().iterator();
+            while (iterator.hasNext()) {
+                Bucket bucket = iterator.next();
+                synchronized (bucket) {
+                    if (now - bucket.mUpdated >= mFillTime) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    private class Bucket {
+        double mTokens;
+        long   mUpdated;
+
+        Bucket(long now) {
+            mTokens = mCapacity;
+            mUpdated = now;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** The metadata, and optionally the content, of a file being served by {@link Http}. */
+public class StaticFile {
+    private Path                             mPath;
+    private boolean                          mExists;
+    private boolean                          mDirectory;
+    private long                             mSize;
+    private long                             mLastModified;
+    private String                           mMimeType;
+    private String                           mETag;
+    private ByteBuffer                       mContent;
+    private StaticFile                       mGzipSidecar;
+    private Map<ContentEncoding, ByteBuffer> mEncodedContent = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new {@link StaticFile} by reading the file system's attributes for the specified
+     * path. No content is loaded.
+     *
+     * @param path The path to the file.
+     */
+    public StaticFile(Path path) throws IOException {
+        mPath = path;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            mExists = true;
+            mDirectory = attrs.isDirectory();
+            mSize = attrs.size();
+            mLastModified = attrs.lastModifiedTime().toMillis();
+        } catch (NoSuchFileException exception) {
+            mExists = false;
+        }
+        if (mExists && !mDirectory) {
+            String name = path.getFileName().toString();
+            int    dot  = name.lastIndexOf('.');
+            if (dot != -1 && dot + 1 < name.length()) {
+                name = name.substring(dot + 1);
+            }
+            mMimeType = MimeTypes.lookup(name);
+            mETag = "\"" + Long.toHexString(mSize) + "-" + Long.toHexString(mLastModified) + "\"";
+            if (MimeTypes.isCompressible(mMimeType)) {
+                // Only use a pre-compressed version if it is at least as new as the original
+                StaticFile sidecar = new StaticFile(path.resolveSibling(path.getFileName() + ".gz"));
+                if (sidecar.exists() && !sidecar.isDirectory() && sidecar.getLastModified() >= mLastModified) {
+                    mGzipSidecar = sidecar;
+                }
+            }
+        }
+    }
+
+    /** @return The path to the file. */
+    public final Path getPath() {
+        return mPath;
+    }
+
+    /** @return {@code true} if the file existed at the time its attributes were read. */
+    public final boolean exists() {
+        return mExists;
+    }
+
+    /** @return {@code true} if the path refers to a directory. */
+    public final boolean isDirectory() {
+        return mDirectory;
+    }
+
+    /** @return The size of the file, in bytes. */
+    public final long getSize() {
+        return mSize;
+    }
+
+    /** @return The time the file was last modified, in milliseconds since the epoch. */
+    public final long getLastModified() {
+        return mLastModified;
+    }
+
+    /** @return The mime type of the file, or {@code null} if it is a directory. */
+    public final String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * @return The entity tag for the file, suitable for use in an HTTP {@code ETag} header, or
+     *         {@code null} if it is a directory.
+     */
+    public final String getETag() {
+        return mETag;
+    }
+
+    /** @return {@code true} if the content of the file has been loaded. */
+    public final boolean hasContent() {
+        return mContent != null;
+    }
+
+    /**
+     * @return A new read-only view of the file's content, or {@code null} if it has not been
+     *         loaded. Each call returns an independent view, so the result may be handed off for
+     *         sending without affecting other users.
+     */
+    public final ByteBuffer getContent() {
+        return mContent != null ? mContent.duplicate() : null;
+    }
+
+    /** @param content The content of the file. */
+    final void setContent(ByteBuffer content) {
+        mContent = content.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return The pre-compressed, gzip-encoded version of this file that sits beside it in the file
+     *         system, or {@code null} if there is none.
+     */
+    public final StaticFile getGzipSidecar() {
+        return mGzipSidecar;
+    }
+
+    /**
+     * @param encoding The {@link ContentEncoding} to retrieve.
+     * @return A new read-only view of the file's content in the specified encoding, or {@code
+     *         null} if it has not been produced.
+     */
+    public final ByteBuffer getEncodedContent(ContentEncoding encoding) {
+        ByteBuffer buffer = mEncodedContent.get(encoding);
+        return buffer != null ? buffer.duplicate() : null;
+    }
+
+    /**
+     * @param encoding The {@link ContentEncoding} the content is in.
+     * @param content  The encoded content of the file.
+     * @return {@code true} if the content was recorded, or {@code false} if content for the
+     *         specified encoding was already present.
+     */
+    final boolean setEncodedContent(ContentEncoding encoding, ByteBuffer content) {
+        return mEncodedContent.putIfAbsent(encoding, content.asReadOnlyBuffer()) == null;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.http;
+
+import com.trollworks.toolkit.io.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches {@link StaticFile}s for a web root, so that serving a static file does not require
+ * touching the file system. Small files are held in direct buffers and larger ones are
+ * memory-mapped, subject to an overall byte budget. Entries are invalidated as the file system
+ * reports changes beneath the web root.
+ */
+public class StaticFileCache implements Closeable, Runnable {
+    private static final int                 ENTRY_OVERHEAD = 256;
+    private              Path                mRootPath;
+    private              long                mByteBudget;
+    private              int                 mSmallFileLimit;
+    private              Map<Path, Entry>    mEntries       = new ConcurrentHashMap<>();
+    private              AtomicLong          mCachedBytes   = new AtomicLong();
+    private              AtomicLong          mClock         = new AtomicLong();
+    private              AtomicLong          mGeneration    = new AtomicLong();
+    private              Map<WatchKey, Path> mWatchedDirs   = new ConcurrentHashMap<>();
+    private              WatchService        mWatchService;
+
+    /**
+     * @param rootPath       The path to the root web directory.
+     * @param byteBudget     The maximum number of bytes to hold in the cache, including the
+     *                       content of memory-mapped files.
+     * @param smallFileLimit Files at or below this size are loaded into direct buffers. Larger
+     *                       files are memory-mapped.
+     */
+    public StaticFileCache(Path rootPath, long byteBudget, int smallFileLimit) throws IOException {
+        mRootPath = rootPath.toAbsolutePath().normalize();
+        mByteBudget = byteBudget;
+        mSmallFileLimit = smallFileLimit;
+        mWatchService = mRootPath.getFileSystem().newWatchService();
+        watchTree(mRootPath);
+        Thread thread = new Thread(this, getClass().getSimpleName() + " Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @return The path to the root web directory. */
+    public final Path getRootPath() {
+        return mRootPath;
+    }
+
+    /** @return The maximum number of bytes to hold in the cache. */
+    public final long getByteBudget() {
+        return mByteBudget;
+    }
+
+    /** @return The number of bytes currently accounted for by the cache. */
+    public final long getCachedBytes() {
+        return mCachedBytes.get();
+    }
+
+    /**
+     * @param path The normalized, absolute path to retrieve.
+     * @return The {@link StaticFile} for the path, loading it if it is not already cached.
+     */
+    public StaticFile get(Path path) throws IOException {
+        Entry entry = mEntries.get(path);
+        if (entry != null) {
+            entry.mLastUsed = mClock.incrementAndGet();
+            return entry.mFile;
+        }
+        long       generation = mGeneration.get();
+        StaticFile file       = new StaticFile(path);
+        if (!file.exists()) {
+            // Don't cache misses, as they would allow remote ends to fill the cache with junk
+            return file;
+        }
+        long       cost    = ENTRY_OVERHEAD + load(file);
+        StaticFile sidecar = file.getGzipSidecar();
+        if (sidecar != null) {
+            cost += load(sidecar);
+        }
+        entry = new Entry(file, cost, mClock.incrementAndGet());
+        synchronized (this) {
+            // If an invalidation happened while we were loading, the data may be stale
+            if (generation == mGeneration.get() && mEntries.putIfAbsent(path, entry) == null) {
+                if (mCachedBytes.addAndGet(cost) > mByteBudget) {
+                    evict();
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @param file The {@link StaticFile} to load the content of.
+     * @return The number of bytes loaded.
+     */
+    private long load(StaticFile file) {
+        if (!file.isDirectory() && file.getSize() <= mByteBudget / 4) {
+            ByteBuffer content = load(file.getPath(), file.getSize());
+            if (content != null) {
+                file.setContent(content);
+                return file.getSize();
+            }
+        }
+        return 0;
+    }
+
+    private ByteBuffer load(Path path, long size) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (size <= mSmallFileLimit) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        // The file shrank out from under us
+                        return null;
+                    }
+                }
+                buffer.flip();
+                return buffer;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the content of a cached file in the specified encoding, encoding it and adding it
+     * to the cache if needed.
+     *
+     * @param file     The {@link StaticFile} to retrieve the content for.
+     * @param encoding The {@link ContentEncoding} to use.
+     * @return The encoded content, or {@code null} if the file's content is not held in memory.
+     */
+    public ByteBuffer getEncodedContent(StaticFile file, ContentEncoding encoding) {
+        ByteBuffer encoded = file.getEncodedContent(encoding);
+        if (encoded == null && file.hasContent()) {
+            encoded = ByteBuffer.wrap(encoding.encode(file.getContent()));
+            if (file.setEncodedContent(encoding, encoded)) {
+                synchronized (this) {
+                    Entry entry = mEntries.get(file.getPath());
+                    if (entry != null && entry.mFile == file) {
+                        entry.mCost += encoded.capacity();
+                        if (mCachedBytes.addAndGet(encoded.capacity()) > mByteBudget) {
+                            evict();
+                        }
+                    }
+                }
+            }
+            encoded = encoded.asReadOnlyBuffer();
+        }
+        return encoded;
+    }
+
+    private void evict() {
+        List<Map.Entry<Path, Entry>> entries = new ArrayList<>(mEntries.entrySet());
+        entries.sort(Comparator.comparingLong(one -> one.getValue().mLastUsed));
+        long target = mByteBudget - mByteBudget / 10;
+        for (Map.Entry<Path, Entry> one : entries) {
+            if (mCachedBytes.get() <= target) {
+                break;
+            }
+            remove(one.getKey());
+        }
+    }
+
+    private void remove(Path path) {
+        Entry entry = mEntries.remove(path);
+        if (entry != null) {
+            mCachedBytes.addAndGet(-entry.mCost);
+        }
+    }
+
+    /**
+     * Removes the specified path, and anything beneath it, from the cache.
+     *
+     * @param path The path to remove.
+     */
+    public synchronized void invalidate(Path path) {
+        mGeneration.incrementAndGet();
+        for (Path one : mEntries.keySet()) {
+            if (one.startsWith(path)) {
+                remove(one);
+            }
+        }
+    }
+
+    /** Removes everything from the cache. */
+    public synchronized void invalidateAll() {
+        mGeneration.incrementAndGet();
+        for (Path one : mEntries.keySet()) {
+            remove(one);
+        }
+    }
+
+    private void watchTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                mWatchedDirs.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = mWatchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException exception) {
+                break;
+            }
+            Path dir = mWatchedDirs.get(key);
+            if (dir != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidateAll();
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    invalidate(path);
+                    String name = path.getFileName().toString();
+                    if (name.endsWith(".gz")) {
+                        // The original file's entry records whether a pre-compressed version exists
+                        invalidate(path.resolveSibling(name.substring(0, name.length() - 3)));
+                    }
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        try {
+                            watchTree(path);
+                        } catch (IOException exception) {
+                            Log.warn(exception);
+                        }
+                    }
+                }
+            }
+            if (!key.reset()) {
+                mWatchedDirs.remove(key);
+                if (dir != null) {
+                    invalidate(dir);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWatchService.close();
+        invalidateAll();
+    }
+
+    private static class Entry {
+        final    StaticFile mFile;
+                 long       mCost;
+        volatile long       mLastUsed;
+
+        Entry(StaticFile file, long cost, long lastUsed) {
+            mFile = file;
+            mCost = cost;
+            mLastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.test;
+
+import com.trollworks.toolkit.io.server.http.HttpRequestParser;
+import com.trollworks.toolkit.io.server.http.HttpResponseException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the throughput of {@link HttpRequestParser} against the byte-at-a-time parser it
+ * replaced. Each operation parses one typical browser request from a buffer of pipelined requests
+ * and looks up a few of its headers.
+ */
+public class HttpParserBenchmark {
+    private static final String REQUEST    = "GET /assets/app.js?v=1234 HTTP/1.1\r\nHost: www.example.com\r\nConnection: keep-alive\r\nUser-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/83.0.4103.116 Safari/537.36\r\nAccept: */*\r\nSec-Fetch-Site: same-origin\r\nSec-Fetch-Mode: no-cors\r\nSec-Fetch-Dest: script\r\nReferer: https://www.example.com/index.html\r\nAccept-Encoding: gzip, deflate, br\r\nAccept-Language: en-US,en;q=0.9\r\nCookie: session=0123456789abcdef; theme=dark\r\nIf-None-Match: \"1a2b-3c4d\"\r\n\r\n";
+    private static final int    PIPELINED  = 64;
+    private static final int    ITERATIONS = 5;
+    private static final long   DURATION   = 1_000_000_000L;
+    private static       int    SINK;
+
+    public static void main(String[] args) throws IOException {
+        byte[]     one    = REQUEST.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(one.length * PIPELINED);
+        for (int i = 0; i < PIPELINED; i++) {
+            buffer.put(one);
+        }
+        buffer.flip();
+        System.out.println("Request size: " + one.length + " bytes");
+        run("legacy", new LegacyOp(), buffer);
+        run("bulk", new BulkOp(), buffer);
+    }
+
+    private static void run(String name, Op op, ByteBuffer buffer) throws IOException {
+        System.out.println(name + ": warming up");
+        for (int i = 0; i < ITERATIONS; i++) {
+            measure(op, buffer);
+        }
+        long   gcCount = gcCount();
+        long   gcTime  = gcTime();
+        double total   = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            double nsPerOp = measure(op, buffer);
+            total += nsPerOp;
+            System.out.printf("%s: iteration %d: %.1f ns/op%n", name, Integer.valueOf(i + 1), Double.valueOf(nsPerOp));
+        }
+        System.out.printf("%s: average %.1f ns/op, %d GCs taking %d ms%n", name, Double.valueOf(total / ITERATIONS), Long.valueOf(gcCount() - gcCount), Long.valueOf(gcTime() - gcTime));
+    }
+
+    private static double measure(Op op, ByteBuffer buffer) throws IOException {
+        long ops   = 0;
+        long start = System.nanoTime();
+        long end;
+        do {
+            ByteBuffer input = buffer.duplicate();
+            while (input.hasRemaining()) {
+                op.parse(input);
+            }
+            ops += PIPELINED;
+            end = System.nanoTime();
+        } while (end - start < DURATION);
+        return (double) (end - start) / ops;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += gc.getCollectionTime();
+        }
+        return time;
+    }
+
+    private interface Op {
+        /** Parses one request from the input and looks up its commonly used headers. */
+        void parse(ByteBuffer input) throws IOException;
+    }
+
+    private static class BulkOp implements Op {
+        private HttpRequestParser mParser = new HttpRequestParser(1024 * 1024);
+
+        @Override
+        public void parse(ByteBuffer input) throws HttpResponseException {
+            if (!mParser.parse(input)) {
+                throw new IllegalStateException("incomplete request");
+            }
+            consume(mParser.getTarget());
+            consume(mParser.getHeaderValue(mParser.indexOfHeader("connection")));
+            consume(mParser.getHeaderValue(mParser.indexOfHeader("accept-encoding")));
+            consume(mParser.getHeaderValue(mParser.indexOfHeader("if-none-match")));
+            mParser.recycle();
+        }
+    }
+
+    /** A copy of the parsing logic previously used by Http. */
+    private static class LegacyOp implements Op {
+        private static final Pattern                   REQUEST_PATTERN = Pattern.compile("^(\\S+)\\s+(\\S+)\\s+HTTP/(\\d+)\\.(\\d+)$");
+        private              int                       mState;
+        private              ByteArrayOutputStream     mBuffer         = new ByteArrayOutputStream(8 * 1024);
+        private              String                    mUri;
+        private              Map<String, List<String>> mHeaders        = new HashMap<>();
+
+        @Override
+        public void parse(ByteBuffer input) throws IOException {
+            while (input.hasRemaining()) {
+                if (parse(input.get())) {
+                    consume(mUri);
+                    consume(mHeaders.get("connection").get(0));
+                    consume(mHeaders.get("accept-encoding").get(0));
+                    consume(mHeaders.get("if-none-match").get(0));
+                    mState = 0;
+                    mBuffer = new ByteArrayOutputStream(8 * 1024);
+                    mUri = null;
+                    mHeaders = new HashMap<>();
+                    return;
+                }
+            }
+            throw new IllegalStateException("incomplete request");
+        }
+
+        private boolean parse(byte b) throws IOException {
+            mBuffer.write(b & 0xFF);
+            switch (mState) {
+            case 0:
+                if (b == '\r') {
+                    mState = 1;
+                }
+                break;
+            case 1:
+                if (b == '\n') {
+                    mState = 2;
+                } else if (b != '\r') {
+                    mState = 0;
+                }
+                break;
+            case 2:
+                mState = b == '\r' ? 3 : 0;
+                break;
+            case 3:
+                if (b == '\n') {
+                    mState = 4;
+                    parseHeaders();
+                    return true;
+                }
+                mState = b == '\r' ? 1 : 0;
+                break;
+            default:
+                break;
+            }
+            return false;
+        }
+
+        private void parseHeaders() throws IOException {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mBuffer.toByteArray()), StandardCharsets.UTF_8))) {
+                String  line    = in.readLine();
+                Matcher matcher = REQUEST_PATTERN.matcher(line);
+                if (!matcher.find() || matcher.groupCount() != 4) {
+                    throw new IllegalStateException("bad request");
+                }
+                mUri = matcher.group(2);
+                Integer.parseInt(matcher.group(3));
+                Integer.parseInt(matcher.group(4));
+                line = in.readLine();
+                while (line != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) {
+                        break;
+                    }
+                    int index = line.indexOf(':');
+                    if (index != -1) {
+                        String       name = line.substring(0, index).trim().toLowerCase();
+                        List<String> list = mHeaders.get(name);
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            mHeaders.put(name, list);
+                        }
+                        if (++index < line.length()) {
+                            list.add(line.substring(index).trim());
+                        }
+                    }
+                    line = in.readLine();
+                }
+            }
+        }
+    }
+
+    private static void consume(String value) {
+        SINK += value.length();
+    }
+}
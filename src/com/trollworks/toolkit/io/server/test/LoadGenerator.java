@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.test;
+
+import com.trollworks.toolkit.io.server.LatencyHistogram;
+import com.trollworks.toolkit.io.server.LatencySummary;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A closed-loop load generator that drives many non-blocking connections to a server from a small
+ * number of selector threads, as described by a {@link LoadScenario}. Each connection sends its
+ * next request as soon as a response frees up room in its pipeline, so throughput is limited by
+ * the server rather than by a target rate.
+ */
+public class LoadGenerator {
+    private static final int               BUFFER_SIZE = 64 * 1024;
+    private              InetSocketAddress mAddress;
+    private              LoadScenario      mScenario;
+    private              int               mConnections;
+    private              int               mThreads;
+
+    /**
+     * @param address     The address of the server.
+     * @param scenario    The {@link LoadScenario} to run.
+     * @param connections The number of connections to open.
+     * @param threads     The number of client threads to spread the connections across.
+     */
+    public LoadGenerator(InetSocketAddress address, LoadScenario scenario, int connections, int threads) {
+        mAddress = address;
+        mScenario = scenario;
+        mConnections = connections;
+        mThreads = Math.max(Math.min(threads, connections), 1);
+    }
+
+    /**
+     * Opens the connections, runs the scenario, then closes them again.
+     *
+     * @param warmUp   The number of nanoseconds to run before measuring starts.
+     * @param duration The number of nanoseconds to measure for.
+     * @return The {@link Result}.
+     */
+    public Result run(long warmUp, long duration) throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        CountDownLatch   connected = new CountDownLatch(mThreads);
+        CountDownLatch   go        = new CountDownLatch(1);
+        Client[]         clients   = new Client[mThreads];
+        int              first     = 0;
+        for (int i = 0; i < mThreads; i++) {
+            int count = mConnections / mThreads + (i < mConnections % mThreads ? 1 : 0);
+            clients[i] = new Client(first, count, histogram, connected, go);
+            clients[i].start();
+            first += count;
+        }
+        connected.await();
+        long start = System.nanoTime();
+        for (Client client : clients) {
+            client.mMeasureStart = start + warmUp;
+            client.mEnd = start + warmUp + duration;
+        }
+        go.countDown();
+        Result result = new Result(mScenario.getName(), mConnections, duration);
+        for (Client client : clients) {
+            client.join();
+            result.mRequests += client.mRequests;
+            result.mBytes += client.mBytes;
+            result.mErrors += client.mErrors;
+        }
+        result.mLatency = histogram.getSummary();
+        return result;
+    }
+
+    /** The outcome of a run. */
+    public static final class Result {
+        private String         mName;
+        private int            mConnections;
+        private long           mDuration;
+        private long           mRequests;
+        private long           mBytes;
+        private long           mErrors;
+        private LatencySummary mLatency;
+
+        Result(String name, int connections, long duration) {
+            mName = name;
+            mConnections = connections;
+            mDuration = duration;
+        }
+
+        /** @return The name of the {@link LoadScenario} that was run. */
+        public String getName() {
+            return mName;
+        }
+
+        /** @return The number of connections used. */
+        public int getConnections() {
+            return mConnections;
+        }
+
+        /** @return The number of messages received while measuring. */
+        public long getRequests() {
+            return mRequests;
+        }
+
+        /** @return The number of messages received per second while measuring. */
+        public double getRequestsPerSecond() {
+            return mRequests * 1_000_000_000.0 / mDuration;
+        }
+
+        /** @return The number of bytes received per second while measuring. */
+        public double getBytesPerSecond() {
+            return mBytes * 1_000_000_000.0 / mDuration;
+        }
+
+        /** @return The number of connections that failed. */
+        public long getErrors() {
+            return mErrors;
+        }
+
+        /** @return The latency of the messages received while measuring. */
+        public LatencySummary getLatency() {
+            return mLatency;
+        }
+    }
+
+    /** Drives a share of the connections from a single selector thread. */
+    private class Client extends Thread {
+        private int              mFirst;
+        private int              mCount;
+        private LatencyHistogram mHistogram;
+        private CountDownLatch   mConnected;
+        private CountDownLatch   mGo;
+        private volatile long    mMeasureStart;
+        private volatile long    mEnd;
+        private long             mRequests;
+        private long             mBytes;
+        private long             mErrors;
+
+        Client(int first, int count, LatencyHistogram histogram, CountDownLatch connected, CountDownLatch go) {
+            mFirst = first;
+            mCount = count;
+            mHistogram = histogram;
+            mConnected = connected;
+            mGo = go;
+            setName("LoadGenerator");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open()) {
+                try {
+                    for (int i = 0; i < mCount; i++) {
+                        SocketChannel channel = SocketChannel.open(mAddress);
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+                        channel.register(selector, SelectionKey.OP_READ, new Connection(this, channel, mScenario.sendsRequests(mFirst + i)));
+                    }
+                } finally {
+                    mConnected.countDown();
+                }
+                mGo.await();
+                for (SelectionKey key : selector.keys()) {
+                    start(key);
+                }
+                long now;
+                while ((now = System.nanoTime()) < mEnd) {
+                    selector.select(Math.max((mEnd - now) / 1_000_000, 1));
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                connection.flush(key);
+                            }
+                            if (key.isReadable()) {
+                                connection.read(key);
+                            }
+                        } catch (IOException exception) {
+                            failed(key);
+                        }
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+            } catch (IOException | InterruptedException exception) {
+                exception.printStackTrace();
+            }
+        }
+
+        private void start(SelectionKey key) throws IOException {
+            try {
+                ((Connection) key.attachment()).start(key);
+            } catch (IOException exception) {
+                failed(key);
+            }
+        }
+
+        private void failed(SelectionKey key) throws IOException {
+            mErrors++;
+            key.cancel();
+            key.channel().close();
+        }
+
+        void received(long latency, long bytes, long now) {
+            if (now >= mMeasureStart) {
+                mRequests++;
+                mBytes += bytes;
+                if (latency >= 0) {
+                    mHistogram.record(latency);
+                }
+            }
+        }
+    }
+
+    /** The client side of a single connection. */
+    private class Connection {
+        private Client                 mClient;
+        private SocketChannel          mChannel;
+        private boolean                mSendsRequests;
+        private boolean                mAwaitingPreamble;
+        private ByteBuffer             mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private ArrayDeque<ByteBuffer> mOutput = new ArrayDeque<>();
+        private long[]                 mSentAt;
+        private int                    mFirstSent;
+        private int                    mOutstanding;
+        private long                   mSkip;
+        private long                   mSkipLength;
+
+        Connection(Client client, SocketChannel channel, boolean sendsRequests) {
+            mClient = client;
+            mChannel = channel;
+            mSendsRequests = sendsRequests;
+            mSentAt = new long[Math.max(mScenario.getPipelineDepth(), 1)];
+        }
+
+        void start(SelectionKey key) throws IOException {
+            byte[] preamble = mScenario.getPreamble();
+            if (preamble != null) {
+                mAwaitingPreamble = true;
+                mOutput.add(ByteBuffer.wrap(preamble));
+                flush(key);
+            } else {
+                sendRequests(key);
+            }
+        }
+
+        private void sendRequests(SelectionKey key) throws IOException {
+            if (mSendsRequests) {
+                while (mOutstanding < mSentAt.length) {
+                    mOutput.add(ByteBuffer.wrap(mScenario.createRequest()));
+                    mSentAt[(mFirstSent + mOutstanding++) % mSentAt.length] = System.nanoTime();
+                }
+                flush(key);
+            }
+        }
+
+        void flush(SelectionKey key) throws IOException {
+            while (!mOutput.isEmpty()) {
+                ByteBuffer buffer = mOutput.peek();
+                mChannel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                mOutput.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void read(SelectionKey key) throws IOException {
+            if (mChannel.read(mBuffer) < 0) {
+                throw new IOException("Connection closed");
+            }
+            long now = System.nanoTime();
+            mBuffer.flip();
+            try {
+                while (true) {
+                    if (mSkip > 0) {
+                        // The rest of a message too large to hold on to
+                        int amount = (int) Math.min(mSkip, mBuffer.remaining());
+                        mBuffer.position(mBuffer.position() + amount);
+                        mSkip -= amount;
+                        if (mSkip > 0) {
+                            break;
+                        }
+                        received(key, null, mSkipLength, now);
+                        continue;
+                    }
+                    if (!mBuffer.hasRemaining()) {
+                        break;
+                    }
+                    long length = mAwaitingPreamble ? LoadScenario.getHttpResponseLength(mBuffer) : mScenario.getMessageLength(mBuffer);
+                    if (length < 0) {
+                        if (mBuffer.position() == 0 && mBuffer.limit() == mBuffer.capacity()) {
+                            throw new IOException("Message header too large");
+                        }
+                        break;
+                    }
+                    if (length <= mBuffer.remaining()) {
+                        ByteBuffer message = mBuffer.slice();
+                        message.limit((int) length);
+                        mBuffer.position(mBuffer.position() + (int) length);
+                        received(key, message, length, now);
+                    } else {
+                        mSkip = length - mBuffer.remaining();
+                        mSkipLength = length;
+                        mBuffer.position(mBuffer.limit());
+                    }
+                }
+            } finally {
+                mBuffer.compact();
+            }
+        }
+
+        private void received(SelectionKey key, ByteBuffer message, long length, long now) throws IOException {
+            if (mAwaitingPreamble) {
+                mAwaitingPreamble = false;
+                sendRequests(key);
+                return;
+            }
+            long sentAt = 0;
+            if (mOutstanding > 0) {
+                sentAt = mSentAt[mFirstSent];
+                mFirstSent = (mFirstSent + 1) % mSentAt.length;
+                mOutstanding--;
+            }
+            mClient.received(mScenario.getLatency(message, sentAt, now), length, now);
+            sendRequests(key);
+        }
+    }
+}
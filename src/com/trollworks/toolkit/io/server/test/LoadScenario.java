@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Describes the traffic a {@link LoadGenerator} sends over each of its connections, and how to
+ * tell where each message it gets back ends.
+ */
+public abstract class LoadScenario {
+    private static final byte[] MASK = { 0x12, 0x34, 0x56, 0x78 };
+    private              String mName;
+
+    /** @param name The name to report results under. */
+    protected LoadScenario(String name) {
+        mName = name;
+    }
+
+    /** @return The name to report results under. */
+    public final String getName() {
+        return mName;
+    }
+
+    /**
+     * @return The bytes to send as soon as a connection opens, before any requests, such as a
+     *         WebSocket upgrade request, or {@code null}. The HTTP response to them is read and
+     *         discarded before requests start.
+     */
+    public byte[] getPreamble() {
+        return null;
+    }
+
+    /** @return The number of requests each connection keeps outstanding at once. */
+    public int getPipelineDepth() {
+        return 1;
+    }
+
+    /**
+     * @param connection The index of the connection.
+     * @return {@code true} if the connection sends requests, rather than just receiving messages.
+     */
+    public boolean sendsRequests(int connection) {
+        return true;
+    }
+
+    /** @return The bytes of the next request. */
+    public abstract byte[] createRequest();
+
+    /**
+     * @param buffer The received data, starting at the beginning of a message. Its position must
+     *               not be changed.
+     * @return The length of the message, or {@code -1} if not enough of it has arrived to tell.
+     */
+    public abstract long getMessageLength(ByteBuffer buffer) throws IOException;
+
+    /**
+     * @param message The complete message, or {@code null} if it was too large to hold in memory.
+     * @param sentAt  The time the request it answers was sent, or {@code 0} if it doesn't answer a
+     *                request.
+     * @param now     The time the message was received.
+     * @return The latency to record for the message, or {@code -1} to record none.
+     */
+    public long getLatency(ByteBuffer message, long sentAt, long now) {
+        return sentAt != 0 ? now - sentAt : -1;
+    }
+
+    /**
+     * @param path The path to request.
+     * @return A {@link LoadScenario} that sends keep-alive GET requests one at a time.
+     */
+    public static LoadScenario get(String path) {
+        return pipelined(path, 1);
+    }
+
+    /**
+     * @param path  The path to request.
+     * @param depth The number of requests to keep outstanding on each connection.
+     * @return A {@link LoadScenario} that sends pipelined keep-alive GET requests.
+     */
+    public static LoadScenario pipelined(String path, int depth) {
+        return new HttpScenario(depth > 1 ? "pipelined:" + depth : "get:" + path, ascii("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n"), depth);
+    }
+
+    /**
+     * @param path The path to post to.
+     * @param size The size of the body to send.
+     * @return A {@link LoadScenario} that sends keep-alive POST requests one at a time.
+     */
+    public static LoadScenario post(String path, int size) {
+        byte[] header  = ascii("POST " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\nContent-Type: application/octet-stream\r\nContent-Length: " + size + "\r\n\r\n");
+        byte[] request = Arrays.copyOf(header, header.length + size);
+        Arrays.fill(request, header.length, request.length, (byte) 'x');
+        return new HttpScenario("post:" + size, request, 1);
+    }
+
+    /**
+     * @param path The path of the WebSocket, which should echo each text message it receives.
+     * @param size The size of the messages to send.
+     * @return A {@link LoadScenario} that sends WebSocket text messages one at a time.
+     */
+    public static LoadScenario webSocketEcho(String path, int size) {
+        char[] text = new char[size];
+        Arrays.fill(text, 'x');
+        return new WebSocketScenario("ws-echo:" + size, path, encodeMaskedText(new String(text)));
+    }
+
+    /**
+     * @param path The path of the WebSocket, which should publish each text message it receives to
+     *             all connections made to it.
+     * @return A {@link LoadScenario} in which the first connection publishes the current time,
+     *         waiting until its message comes back before publishing the next, and the latency
+     *         recorded is the time each connection took to receive it.
+     */
+    public static LoadScenario webSocketBroadcast(String path) {
+        return new BroadcastScenario(path);
+    }
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param buffer The received data, starting at the beginning of a HTTP/1.1 response.
+     * @return The length of the response, or {@code -1} if its header hasn't fully arrived.
+     */
+    static long getHttpResponseLength(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int i = start; i + 3 < limit; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                byte[] bytes = new byte[i + 4 - start];
+                buffer.duplicate().get(bytes);
+                String header = new String(bytes, StandardCharsets.US_ASCII);
+                if (!header.startsWith("HTTP/1.1 2") && !header.startsWith("HTTP/1.1 101")) {
+                    throw new IOException("Unexpected response: " + header.substring(0, header.indexOf('\r')));
+                }
+                int index = header.toLowerCase().indexOf("\r\ncontent-length:");
+                if (index == -1) {
+                    return bytes.length;
+                }
+                index += 17;
+                return bytes.length + Long.parseLong(header.substring(index, header.indexOf('\r', index)).trim());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param buffer The received data, starting at the beginning of an unmasked WebSocket frame.
+     * @return The length of the frame, or {@code -1} if its header hasn't fully arrived.
+     */
+    static long getFrameLength(ByteBuffer buffer) {
+        int header = getFrameHeaderLength(buffer);
+        if (header < 0 || buffer.remaining() < header) {
+            return -1;
+        }
+        int start = buffer.position();
+        switch (header) {
+        case 4:
+            return header + (buffer.getShort(start + 2) & 0xFFFF);
+        case 10:
+            return header + buffer.getLong(start + 2);
+        default:
+            return header + (buffer.get(start + 1) & 0x7F);
+        }
+    }
+
+    /**
+     * @param buffer The received data, starting at the beginning of an unmasked WebSocket frame.
+     * @return The length of the frame's header, including any extended payload length, or {@code
+     *         -1} if not enough of it has arrived to tell.
+     */
+    static int getFrameHeaderLength(ByteBuffer buffer) {
+        if (buffer.remaining() < 2) {
+            return -1;
+        }
+        switch (buffer.get(buffer.position() + 1) & 0x7F) {
+        case 126:
+            return 4;
+        case 127:
+            return 10;
+        default:
+            return 2;
+        }
+    }
+
+    /**
+     * @param text The text to encode.
+     * @return A single masked text frame, as sent by a client.
+     */
+    static byte[] encodeMaskedText(String text) {
+        byte[]     payload = text.getBytes(StandardCharsets.UTF_8);
+        int        length  = payload.length;
+        ByteBuffer buffer  = ByteBuffer.allocate(14 + length);
+        buffer.put((byte) 0x81);
+        if (length < 126) {
+            buffer.put((byte) (0x80 | length));
+        } else if (length < 65536) {
+            buffer.put((byte) (0x80 | 126));
+            buffer.putShort((short) length);
+        } else {
+            buffer.put((byte) (0x80 | 127));
+            buffer.putLong(length);
+        }
+        buffer.put(MASK);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) (payload[i] ^ MASK[i & 3]));
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static class HttpScenario extends LoadScenario {
+        private byte[] mRequest;
+        private int    mDepth;
+
+        HttpScenario(String name, byte[] request, int depth) {
+            super(name);
+            mRequest = request;
+            mDepth = depth;
+        }
+
+        @Override
+        public int getPipelineDepth() {
+            return mDepth;
+        }
+
+        @Override
+        public byte[] createRequest() {
+            return mRequest;
+        }
+
+        @Override
+        public long getMessageLength(ByteBuffer buffer) throws IOException {
+            return getHttpResponseLength(buffer);
+        }
+    }
+
+    private static class WebSocketScenario extends LoadScenario {
+        private byte[] mPreamble;
+        private byte[] mRequest;
+
+        WebSocketScenario(String name, String path, byte[] request) {
+            super(name);
+            mPreamble = ascii("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n");
+            mRequest = request;
+        }
+
+        @Override
+        public byte[] getPreamble() {
+            return mPreamble;
+        }
+
+        @Override
+        public byte[] createRequest() {
+            return mRequest;
+        }
+
+        @Override
+        public long getMessageLength(ByteBuffer buffer) {
+            return getFrameLength(buffer);
+        }
+    }
+
+    private static class BroadcastScenario extends WebSocketScenario {
+        BroadcastScenario(String path) {
+            super("ws-broadcast", path, null);
+        }
+
+        @Override
+        public boolean sendsRequests(int connection) {
+            return connection == 0;
+        }
+
+        @Override
+        public byte[] createRequest() {
+            return encodeMaskedText(Long.toString(System.nanoTime()));
+        }
+
+        @Override
+        public long getLatency(ByteBuffer message, long sentAt, long now) {
+            if (message == null) {
+                return -1;
+            }
+            int  header  = getFrameHeaderLength(message);
+            long publish = 0;
+            for (int i = message.position() + header; i < message.limit(); i++) {
+                publish = publish * 10 + message.get(i) - '0';
+            }
+            return now - publish;
+        }
+    }
+}
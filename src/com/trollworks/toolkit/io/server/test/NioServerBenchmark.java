@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.test;
+
+import com.trollworks.toolkit.io.server.LatencySummary;
+import com.trollworks.toolkit.io.server.NioServer;
+import com.trollworks.toolkit.io.server.ReactorBalancing;
+import com.trollworks.toolkit.io.server.WorkerExecutors;
+import com.trollworks.toolkit.io.server.http.HttpResponse;
+import com.trollworks.toolkit.io.server.http.HttpSessionFactory;
+import com.trollworks.toolkit.io.server.http.HttpStatusCode;
+import com.trollworks.toolkit.io.server.http.MimeTypes;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Measures the request throughput and latency of a {@link NioServer} running the HTTP personality
+ * with many concurrent keep-alive connections. Each connection sends a small request, waits for
+ * the complete response, and then immediately sends another.
+ * <p>
+ * Arguments, all optional: the number of connections (default 2000), the number of seconds to
+ * measure for (default 10), the number of client threads (default 2), the worker executor to use
+ * ({@code fixed}, {@code elastic} or {@code virtual}, default {@code fixed}), and the number of
+ * milliseconds each request should block for, to simulate a handler doing blocking i/o (default
+ * 0).
+ */
+public class NioServerBenchmark {
+    private static final int  PORT    = 18181;
+    private static final long WARM_UP = 2_000_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        int    connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int    seconds     = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int    threads     = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        String mode        = args.length > 3 ? args[3] : "fixed";
+        long   block       = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+        ExecutorService executor;
+        switch (mode) {
+        case "elastic":
+            executor = WorkerExecutors.createElastic(256);
+            break;
+        case "virtual":
+            executor = WorkerExecutors.createVirtual();
+            break;
+        default:
+            executor = null;
+            break;
+        }
+        NioServer          server  = new NioServer(null, 0, ReactorBalancing.LEAST_LOADED, executor);
+        HttpSessionFactory factory = new HttpSessionFactory(Paths.get("."));
+        factory.registerHttpHandler("/hello", http -> {
+            if (block > 0) {
+                try {
+                    Thread.sleep(block);
+                } catch (InterruptedException exception) {
+                    // Ignore
+                }
+            }
+            return new HttpResponse(HttpStatusCode.OK, MimeTypes.TEXT, "Hello, world!");
+        });
+        server.listen(InetAddress.getLoopbackAddress(), PORT, factory);
+        server.start();
+        System.out.printf("%d connections, %d client threads, %d reactors, %s workers, %d ms blocking%n", Integer.valueOf(connections), Integer.valueOf(threads), Integer.valueOf(server.getReactorCount()), mode, Long.valueOf(block));
+
+        LoadGenerator.Result result = new LoadGenerator(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), LoadScenario.get("/hello"), connections, threads).run(WARM_UP, seconds * 1_000_000_000L);
+        server.shutdown();
+
+        LatencySummary latency = result.getLatency();
+        System.out.printf("throughput: %.0f requests/s, %d errors%n", Double.valueOf(result.getRequestsPerSecond()), Long.valueOf(result.getErrors()));
+        if (latency.getCount() > 0) {
+            System.out.printf("latency: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n", millis(latency.getP50()), millis(latency.getP90()), millis(latency.getP99()), millis(latency.getP999()), millis(latency.getMax()));
+        }
+    }
+
+    private static Double millis(long nanos) {
+        return Double.valueOf(nanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.test;
+
+import com.trollworks.toolkit.io.server.LatencySummary;
+import com.trollworks.toolkit.io.server.NioServer;
+import com.trollworks.toolkit.io.server.http.HttpMethod;
+import com.trollworks.toolkit.io.server.http.HttpResponse;
+import com.trollworks.toolkit.io.server.http.HttpSessionFactory;
+import com.trollworks.toolkit.io.server.http.HttpStatusCode;
+import com.trollworks.toolkit.io.server.http.MimeTypes;
+import com.trollworks.toolkit.io.server.websocket.SlowConsumerPolicy;
+import com.trollworks.toolkit.io.server.websocket.WebSocket;
+import com.trollworks.toolkit.io.server.websocket.WebSocketHandler;
+import com.trollworks.toolkit.io.server.websocket.WebSocketHub;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a fixed set of {@link LoadScenario}s against a {@link NioServer} in the same process, over
+ * the loopback interface, and prints the throughput and latency of each. Covers keep-alive and
+ * pipelined GETs, static files of several sizes, POST bodies, and WebSocket echo and broadcast.
+ * Large connection counts may need the open file limit raised with {@code ulimit -n}.
+ * <p>
+ * Arguments, all optional: the number of connections (default 200), the number of seconds to
+ * measure each scenario for (default 5), the number of client threads (default 2), and a
+ * comma-separated list of scenario names to run (default all).
+ */
+public class ServerBenchmarkSuite {
+    private static final int  PORT    = 18182;
+    private static final long WARM_UP = 2_000_000_000L;
+    private static final int  KB      = 1024;
+
+    public static void main(String[] args) throws Exception {
+        int          connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int          seconds     = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int          threads     = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        List<String> only        = args.length > 3 ? Arrays.asList(args[3].split(",")) : null;
+
+        Path root = Files.createTempDirectory("nio-benchmark");
+        try {
+            writeFile(root.resolve("1k.bin"), KB);
+            writeFile(root.resolve("64k.bin"), 64 * KB);
+            writeFile(root.resolve("1m.bin"), KB * KB);
+            NioServer server = createServer(root);
+            try {
+                List<LoadScenario> scenarios = new ArrayList<>();
+                scenarios.add(LoadScenario.get("/hello"));
+                scenarios.add(LoadScenario.pipelined("/hello", 16));
+                scenarios.add(LoadScenario.get("/1k.bin"));
+                scenarios.add(LoadScenario.get("/64k.bin"));
+                scenarios.add(LoadScenario.get("/1m.bin"));
+                scenarios.add(LoadScenario.post("/upload", 4 * KB));
+                scenarios.add(LoadScenario.post("/upload", 256 * KB));
+                scenarios.add(LoadScenario.webSocketEcho("/echo", 128));
+                scenarios.add(LoadScenario.webSocketEcho("/echo", 16 * KB));
+                scenarios.add(LoadScenario.webSocketBroadcast("/broadcast"));
+
+                System.out.printf("%d connections, %d client threads, %d reactors, %d s per scenario%n", Integer.valueOf(connections), Integer.valueOf(threads), Integer.valueOf(server.getReactorCount()), Integer.valueOf(seconds));
+                System.out.printf("%-18s %12s %10s %10s %10s %10s %10s %7s%n", "scenario", "msgs/s", "MB/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+                InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT);
+                for (LoadScenario scenario : scenarios) {
+                    if (only == null || only.contains(scenario.getName())) {
+                        LoadGenerator.Result result  = new LoadGenerator(address, scenario, connections, threads).run(WARM_UP, seconds * 1_000_000_000L);
+                        LatencySummary       latency = result.getLatency();
+                        System.out.printf("%-18s %12.0f %10.1f %10.3f %10.3f %10.3f %10.3f %7d%n", result.getName(), Double.valueOf(result.getRequestsPerSecond()), Double.valueOf(result.getBytesPerSecond() / (KB * KB)), millis(latency.getP50()), millis(latency.getP99()), millis(latency.getP999()), millis(latency.getMax()), Long.valueOf(result.getErrors()));
+                    }
+                }
+            } finally {
+                server.shutdown();
+            }
+        } finally {
+            for (String name : new String[] { "1k.bin", "64k.bin", "1m.bin" }) {
+                Files.deleteIfExists(root.resolve(name));
+            }
+            Files.deleteIfExists(root);
+        }
+    }
+
+    private static NioServer createServer(Path root) throws IOException {
+        NioServer          server  = new NioServer(null);
+        HttpSessionFactory factory = new HttpSessionFactory(root);
+        factory.registerHttpHandler(HttpMethod.GET, "/hello", http -> new HttpResponse(HttpStatusCode.OK, MimeTypes.TEXT, "Hello, world!"));
+        factory.registerHttpHandler(HttpMethod.POST, "/upload", http -> new HttpResponse(HttpStatusCode.OK, MimeTypes.TEXT, "Received " + http.getBodyLength() + " bytes"));
+        factory.registerWebSocketFactory("/echo", http -> new WebSocket(new Handler() {
+            @Override
+            public void webSocketTextData(WebSocket webSocket, String data) {
+                webSocket.send(data);
+            }
+        }, null));
+        WebSocketHub hub = new WebSocketHub(SlowConsumerPolicy.COALESCE);
+        factory.registerWebSocketFactory("/broadcast", http -> new WebSocket(new Handler() {
+            @Override
+            public void webSocketConnected(WebSocket webSocket) {
+                hub.subscribe("benchmark", webSocket);
+            }
+
+            @Override
+            public void webSocketTextData(WebSocket webSocket, String data) {
+                hub.publish("benchmark", data);
+            }
+        }, null));
+        server.listen(InetAddress.getLoopbackAddress(), PORT, factory);
+        server.start();
+        return server;
+    }
+
+    private static void writeFile(Path path, int size) throws IOException {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'x');
+        Files.write(path, data);
+    }
+
+    private static Double millis(long nanos) {
+        return Double.valueOf(nanos / 1_000_000.0);
+    }
+
+    /** A {@link WebSocketHandler} that ignores everything not overridden. */
+    private static class Handler implements WebSocketHandler {
+        @Override
+        public void webSocketConnected(WebSocket webSocket) {
+            // Ignore
+        }
+
+        @Override
+        public void webSocketTextData(WebSocket webSocket, String data) {
+            // Ignore
+        }
+
+        @Override
+        public void webSocketBinaryData(WebSocket webSocket, byte[] data) {
+            // Ignore
+        }
+
+        @Override
+        public void webSocketClosed(WebSocket webSocket) {
+            // Ignore
+        }
+    }
+}
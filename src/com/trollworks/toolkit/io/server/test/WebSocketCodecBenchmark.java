@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.test;
+
+import com.trollworks.toolkit.io.server.websocket.WebSocket;
+import com.trollworks.toolkit.io.server.websocket.WebSocketHandler;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures how quickly {@link WebSocket} decodes the masked frames sent by clients, which covers
+ * parsing frame headers, unmasking payloads, validating UTF-8 and assembling messages. Each
+ * operation decodes one message from a buffer holding many of them, as a busy connection would
+ * see them arrive.
+ */
+public class WebSocketCodecBenchmark {
+    private static final int[] SIZES      = { 16, 1024, 64 * 1024 };
+    private static final int   BATCH_SIZE = 1024 * 1024;
+    private static final int   ITERATIONS = 5;
+    private static final long  DURATION   = 1_000_000_000L;
+    private static       long  SINK;
+
+    public static void main(String[] args) throws IOException {
+        for (int size : SIZES) {
+            run("text " + size, text(size));
+            run("binary " + size, binary(size));
+        }
+    }
+
+    private static void run(String name, byte[] frame) throws IOException {
+        int        count = Math.max(BATCH_SIZE / frame.length, 1);
+        ByteBuffer batch = ByteBuffer.allocate(frame.length * count);
+        for (int i = 0; i < count; i++) {
+            batch.put(frame);
+        }
+        batch.flip();
+        WebSocket  webSocket = new WebSocket(new Counter(), null);
+        ByteBuffer input     = ByteBuffer.allocate(batch.remaining());
+        for (int i = 0; i < ITERATIONS; i++) {
+            measure(webSocket, batch, input, count);
+        }
+        long   gcCount = gcCount();
+        long   gcTime  = gcTime();
+        double total   = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            total += measure(webSocket, batch, input, count);
+        }
+        double nsPerOp = total / ITERATIONS;
+        System.out.printf("%-14s %10.1f ns/op %10.1f MB/s, %d GCs taking %d ms%n", name, Double.valueOf(nsPerOp), Double.valueOf(frame.length * 1000.0 / nsPerOp), Long.valueOf(gcCount() - gcCount), Long.valueOf(gcTime() - gcTime));
+    }
+
+    private static double measure(WebSocket webSocket, ByteBuffer batch, ByteBuffer input, int count) throws IOException {
+        long ops   = 0;
+        long start = System.nanoTime();
+        long end;
+        do {
+            // Payloads are unmasked in place, so each pass needs a fresh copy
+            input.clear();
+            input.put(batch.duplicate());
+            input.flip();
+            webSocket.processInput(input);
+            ops += count;
+            end = System.nanoTime();
+        } while (end - start < DURATION);
+        return (double) (end - start) / ops;
+    }
+
+    private static byte[] text(int size) {
+        char[] text = new char[size];
+        for (int i = 0; i < size; i++) {
+            // Mostly ASCII, with the occasional multi-byte character
+            text[i] = i % 64 == 63 ? '\u00e9' : (char) ('a' + i % 26);
+        }
+        return LoadScenario.encodeMaskedText(new String(text));
+    }
+
+    private static byte[] binary(int size) {
+        byte[] frame = LoadScenario.encodeMaskedText(new String(new char[size]));
+        // Same layout as a text frame of single-byte characters, so only the opcode differs
+        frame[0] = (byte) 0x82;
+        return frame;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += gc.getCollectionTime();
+        }
+        return time;
+    }
+
+    /** Consumes the decoded messages so that the work can't be optimized away. */
+    private static class Counter implements WebSocketHandler {
+        @Override
+        public void webSocketConnected(WebSocket webSocket) {
+            // Ignore
+        }
+
+        @Override
+        public void webSocketTextData(WebSocket webSocket, String data) {
+            SINK += data.length();
+        }
+
+        @Override
+        public void webSocketBinaryData(WebSocket webSocket, byte[] data) {
+            SINK += data.length;
+        }
+
+        @Override
+        public void webSocketClosed(WebSocket webSocket) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The state of the permessage-deflate extension for a single {@link WebSocket} connection, once
+ * negotiated. Not thread-safe; the {@link WebSocket} serializes access to it.
+ */
+final class DeflateContext {
+    private static final byte[]            TAIL        = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+    private static final int               OUTPUT_SIZE = 16 * 1024;
+    private              PerMessageDeflate mConfig;
+    private              String            mResponse;
+    private              boolean           mServerContextTakeover;
+    private              boolean           mClientContextTakeover;
+    private              Deflater          mDeflater;
+    private              Inflater          mInflater;
+    private              ByteBuffer        mOutput;
+    private              boolean           mReleased;
+
+    /**
+     * @param config                The {@link PerMessageDeflate} configuration this came from.
+     * @param response              The value to return in the {@code Sec-WebSocket-Extensions}
+     *                              header.
+     * @param serverContextTakeover Whether the server keeps its compression context between
+     *                              messages.
+     * @param clientContextTakeover Whether the client keeps its compression context between
+     *                              messages.
+     */
+    DeflateContext(PerMessageDeflate config, String response, boolean serverContextTakeover, boolean clientContextTakeover) {
+        mConfig = config;
+        mResponse = response;
+        mServerContextTakeover = serverContextTakeover;
+        mClientContextTakeover = clientContextTakeover;
+    }
+
+    /** @return The value to return in the {@code Sec-WebSocket-Extensions} header. */
+    String getResponse() {
+        return mResponse;
+    }
+
+    /** @return The {@link PerMessageDeflate} configuration this came from. */
+    PerMessageDeflate getConfig() {
+        return mConfig;
+    }
+
+    /** @return Whether the server keeps its compression context between messages. */
+    boolean isServerContextTakeover() {
+        return mServerContextTakeover;
+    }
+
+    /**
+     * @param length The length of an outbound message.
+     * @return {@code true} if the message should be compressed.
+     */
+    boolean shouldCompress(int length) {
+        return !mReleased && length >= mConfig.getThreshold();
+    }
+
+    /**
+     * @param data The message to compress.
+     * @return The compressed message, with the trailing empty block removed as the extension
+     *         requires, or {@code null} if the message should be sent uncompressed instead.
+     */
+    byte[] compress(byte[] data) {
+        if (mReleased) {
+            return null;
+        }
+        Deflater deflater = mDeflater;
+        if (deflater == null) {
+            deflater = mServerContextTakeover ? new Deflater(mConfig.getLevel(), true) : mConfig.acquireDeflater();
+            if (mServerContextTakeover) {
+                mDeflater = deflater;
+            }
+        }
+        byte[] output = deflate(deflater, data);
+        if (!mServerContextTakeover) {
+            mConfig.releaseDeflater(deflater);
+            if (output.length >= data.length) {
+                // Compression didn't help, and with no shared context there's no harm in skipping it
+                return null;
+            }
+        }
+        return output;
+    }
+
+    /**
+     * @param deflater The {@link Deflater} to use.
+     * @param data     The message to compress.
+     * @return The compressed message, with the trailing empty block removed.
+     */
+    static byte[] deflate(Deflater deflater, byte[] data) {
+        deflater.setInput(data);
+        byte[] output = new byte[Math.max(data.length / 2, 64)];
+        int    length = 0;
+        while (true) {
+            length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+            if (length < output.length) {
+                break;
+            }
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        return Arrays.copyOf(output, length - TAIL.length);
+    }
+
+    /** Prepares to receive a compressed message. */
+    void beginMessage() {
+        if (mInflater == null) {
+            mInflater = mClientContextTakeover ? new Inflater(true) : mConfig.acquireInflater();
+        }
+        mOutput = ByteBuffer.allocate(OUTPUT_SIZE);
+    }
+
+    /**
+     * @param data The next piece of compressed data. It must be fully drained via {@link
+     *             #inflate()} before this is called again.
+     */
+    void setInput(ByteBuffer data) {
+        mInflater.setInput(data);
+    }
+
+    /** Supplies the empty block that the sender removed from the end of the message. */
+    void finishInput() {
+        mInflater.setInput(TAIL);
+    }
+
+    /**
+     * @return The next piece of decompressed data, or {@code null} if all of the input supplied
+     *         so far has been consumed. The returned buffer is reused by the next call.
+     */
+    ByteBuffer inflate() throws IOException {
+        mOutput.clear();
+        try {
+            while (mOutput.hasRemaining()) {
+                if (mInflater.inflate(mOutput) == 0) {
+                    if (mInflater.finished()) {
+                        // The sender ended the stream, so it will start the next message afresh
+                        mInflater.reset();
+                    } else if (mInflater.needsDictionary()) {
+                        throw new IOException("Compressed message requires a dictionary");
+                    }
+                    break;
+                }
+            }
+        } catch (DataFormatException exception) {
+            throw new IOException("Invalid compressed message", exception);
+        }
+        mOutput.flip();
+        return mOutput.hasRemaining() ? mOutput : null;
+    }
+
+    /** Called once a compressed message has been received in full. */
+    void endMessage() {
+        mOutput = null;
+        if (!mClientContextTakeover && mInflater != null) {
+            mConfig.releaseInflater(mInflater);
+            mInflater = null;
+        }
+    }
+
+    /** Releases the resources held by this context. It may not be used for input afterwards. */
+    void release() {
+        if (!mReleased) {
+            mReleased = true;
+            mOutput = null;
+            if (mDeflater != null) {
+                mDeflater.end();
+                mDeflater = null;
+            }
+            if (mInflater != null) {
+                if (mClientContextTakeover) {
+                    mInflater.end();
+                } else {
+                    mConfig.releaseInflater(mInflater);
+                }
+                mInflater = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The configuration for the permessage-deflate Web Socket extension, as described in <a
+ * href="https://tools.ietf.org/html/rfc7692">RFC 7692</a>.
+ * <p>
+ * With context takeover, each side keeps the compression window from one message to the next,
+ * which compresses repetitive traffic well, but means each connection holds on to its own {@link
+ * Deflater} or {@link Inflater}. Without it, the window is discarded after each message, so the
+ * {@link Deflater}s and {@link Inflater}s are shared between connections through a small pool.
+ */
+public final class PerMessageDeflate {
+    /** The name of the extension, as used in the {@code Sec-WebSocket-Extensions} header. */
+    public static final  String                          NAME                        = "permessage-deflate";
+    /**
+     * The default configuration. Messages of 256 bytes or more are compressed. The server doesn't
+     * keep its compression context between messages, keeping memory use per connection low, but
+     * the client may.
+     */
+    public static final  PerMessageDeflate               DEFAULT                     = new PerMessageDeflate(Deflater.DEFAULT_COMPRESSION, 256, false, true);
+    private static final String                          SERVER_NO_CONTEXT_TAKEOVER  = "server_no_context_takeover";
+    private static final String                          CLIENT_NO_CONTEXT_TAKEOVER  = "client_no_context_takeover";
+    private static final String                          SERVER_MAX_WINDOW_BITS      = "server_max_window_bits";
+    private static final String                          CLIENT_MAX_WINDOW_BITS      = "client_max_window_bits";
+    private static final int                             MAXIMUM_WINDOW_BITS         = 15;
+    private static final int                             MAXIMUM_POOLED              = 64;
+    private              int                             mLevel;
+    private              int                             mThreshold;
+    private              boolean                         mServerContextTakeover;
+    private              boolean                         mClientContextTakeover;
+    private              ConcurrentLinkedQueue<Deflater> mDeflaters                  = new ConcurrentLinkedQueue<>();
+    private              AtomicInteger                   mPooledDeflaters            = new AtomicInteger();
+    private              ConcurrentLinkedQueue<Inflater> mInflaters                  = new ConcurrentLinkedQueue<>();
+    private              AtomicInteger                   mPooledInflaters            = new AtomicInteger();
+
+    /**
+     * @param level                 The compression level, from {@link Deflater#BEST_SPEED} to
+     *                              {@link Deflater#BEST_COMPRESSION}, or {@link
+     *                              Deflater#DEFAULT_COMPRESSION}.
+     * @param threshold             The size, in bytes, below which messages are sent without
+     *                              compression.
+     * @param serverContextTakeover Whether the server should keep its compression context between
+     *                              messages.
+     * @param clientContextTakeover Whether the client should be permitted to keep its compression
+     *                              context between messages.
+     */
+    public PerMessageDeflate(int level, int threshold, boolean serverContextTakeover, boolean clientContextTakeover) {
+        mLevel = level;
+        mThreshold = threshold;
+        mServerContextTakeover = serverContextTakeover;
+        mClientContextTakeover = clientContextTakeover;
+    }
+
+    /** @return The compression level. */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /** @return The size, in bytes, below which messages are sent without compression. */
+    public int getThreshold() {
+        return mThreshold;
+    }
+
+    /** @return Whether the server should keep its compression context between messages. */
+    public boolean isServerContextTakeover() {
+        return mServerContextTakeover;
+    }
+
+    /**
+     * @return Whether the client should be permitted to keep its compression context between
+     *         messages.
+     */
+    public boolean isClientContextTakeover() {
+        return mClientContextTakeover;
+    }
+
+    /**
+     * Picks the first acceptable permessage-deflate offer made by a client.
+     *
+     * @param offers The values of the client's {@code Sec-WebSocket-Extensions} headers. May be
+     *               {@code null}.
+     * @return The negotiated {@link DeflateContext}, or {@code null} if no offer was acceptable.
+     */
+    DeflateContext negotiate(List<String> offers) {
+        if (offers != null) {
+            for (String header : offers) {
+                for (String offer : header.split(",")) {
+                    DeflateContext context = accept(offer.split(";"));
+                    if (context != null) {
+                        return context;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private DeflateContext accept(String[] parts) {
+        if (!NAME.equalsIgnoreCase(parts[0].trim())) {
+            return null;
+        }
+        boolean serverNoContextTakeover = false;
+        boolean clientNoContextTakeover = false;
+        boolean serverMaxWindowBits     = false;
+        boolean clientMaxWindowBits     = false;
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            String value = null;
+            int    index = param.indexOf('=');
+            if (index != -1) {
+                value = param.substring(index + 1).trim();
+                if (value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                    value = value.substring(1, value.length() - 1);
+                }
+                param = param.substring(0, index).trim();
+            }
+            switch (param.toLowerCase()) {
+            case SERVER_NO_CONTEXT_TAKEOVER:
+                if (serverNoContextTakeover || value != null) {
+                    return null;
+                }
+                serverNoContextTakeover = true;
+                break;
+            case CLIENT_NO_CONTEXT_TAKEOVER:
+                if (clientNoContextTakeover || value != null) {
+                    return null;
+                }
+                clientNoContextTakeover = true;
+                break;
+            case SERVER_MAX_WINDOW_BITS:
+                // Deflater always uses the largest window, so a smaller one can't be honored
+                if (serverMaxWindowBits || parseWindowBits(value) != MAXIMUM_WINDOW_BITS) {
+                    return null;
+                }
+                serverMaxWindowBits = true;
+                break;
+            case CLIENT_MAX_WINDOW_BITS:
+                // Inflater copes with any window size, so there's no need to limit the client's
+                if (clientMaxWindowBits || value != null && parseWindowBits(value) == -1) {
+                    return null;
+                }
+                clientMaxWindowBits = true;
+                break;
+            default:
+                return null;
+            }
+        }
+        boolean       serverTakeover = mServerContextTakeover && !serverNoContextTakeover;
+        boolean       clientTakeover = mClientContextTakeover && !clientNoContextTakeover;
+        StringBuilder buffer         = new StringBuilder(NAME);
+        if (!serverTakeover) {
+            buffer.append("; ");
+            buffer.append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if (!clientTakeover) {
+            buffer.append("; ");
+            buffer.append(CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        return new DeflateContext(this, buffer.toString(), serverTakeover, clientTakeover);
+    }
+
+    private static int parseWindowBits(String value) {
+        if (value != null) {
+            try {
+                int bits = Integer.parseInt(value);
+                if (bits >= 8 && bits <= MAXIMUM_WINDOW_BITS) {
+                    return bits;
+                }
+            } catch (NumberFormatException exception) {
+                // Fall through
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compresses a message without any context carried over from earlier messages, so that the
+     * result may be sent to any connection that negotiated this configuration without server
+     * context takeover.
+     *
+     * @param data The message to compress.
+     * @return The compressed message, or {@code null} if it should be sent uncompressed.
+     */
+    byte[] compress(byte[] data) {
+        if (data.length < mThreshold) {
+            return null;
+        }
+        Deflater deflater = acquireDeflater();
+        byte[]   output   = DeflateContext.deflate(deflater, data);
+        releaseDeflater(deflater);
+        return output.length < data.length ? output : null;
+    }
+
+    /** @return A {@link Deflater}, taken from the pool if one is available. */
+    Deflater acquireDeflater() {
+        Deflater deflater = mDeflaters.poll();
+        if (deflater == null) {
+            return new Deflater(mLevel, true);
+        }
+        mPooledDeflaters.decrementAndGet();
+        return deflater;
+    }
+
+    /** @param deflater A {@link Deflater} obtained from {@link #acquireDeflater()}. */
+    void releaseDeflater(Deflater deflater) {
+        if (mPooledDeflaters.incrementAndGet() <= MAXIMUM_POOLED) {
+            deflater.reset();
+            mDeflaters.add(deflater);
+        } else {
+            mPooledDeflaters.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /** @return An {@link Inflater}, taken from the pool if one is available. */
+    Inflater acquireInflater() {
+        Inflater inflater = mInflaters.poll();
+        if (inflater == null) {
+            return new Inflater(true);
+        }
+        mPooledInflaters.decrementAndGet();
+        return inflater;
+    }
+
+    /** @param inflater An {@link Inflater} obtained from {@link #acquireInflater()}. */
+    void releaseInflater(Inflater inflater) {
+        if (mPooledInflaters.incrementAndGet() <= MAXIMUM_POOLED) {
+            inflater.reset();
+            mInflaters.add(inflater);
+        } else {
+            mPooledInflaters.decrementAndGet();
+            inflater.end();
+        }
+    }
+}
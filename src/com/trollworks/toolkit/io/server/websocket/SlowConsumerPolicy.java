@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server.websocket;
+
+/**
+ * What a {@link WebSocketHub} does when it publishes a message to a subscriber that is not
+ * currently writable, because it has not yet consumed the data already queued for it.
+ */
+public enum SlowConsumerPolicy {
+    /** The message is not sent to the subscriber. */
+    DROP,
+    /**
+     * The message is held until the subscriber becomes writable again. Only the most recent
+     * message for each topic is held, replacing any that was held before it.
+     */
+    COALESCE,
+    /** The subscriber is disconnected. */
+    DISCONNECT
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Validates UTF-8 incrementally, so that a text message can be checked as each piece of it
+ * arrives, even when a multi-byte character is split between pieces. Follows the well-formed
+ * byte sequences table of <a href="https://tools.ietf.org/html/rfc3629#section-4">RFC 3629, Sec
+ * 4</a>, so overlong encodings, surrogates and code points beyond U+10FFFF are rejected.
+ */
+final class Utf8Validator {
+    private static final long ASCII_MASK = 0x8080808080808080L;
+    private              int  mNeeded;
+    private              int  mLower;
+    private              int  mUpper;
+
+    /** Prepares for a new sequence. */
+    void reset() {
+        mNeeded = 0;
+    }
+
+    /**
+     * @param data The next piece of the sequence. Its position is not changed.
+     * @return {@code false} if the sequence is no longer valid.
+     */
+    boolean validate(ByteBuffer data) {
+        int pos   = data.position();
+        int limit = data.limit();
+        while (pos < limit) {
+            if (mNeeded == 0) {
+                // Skip over runs of ASCII a word at a time
+                while (pos + 8 <= limit && (data.getLong(pos) & ASCII_MASK) == 0) {
+                    pos += 8;
+                }
+                if (pos == limit) {
+                    break;
+                }
+                int b = data.get(pos++) & 0xFF;
+                if (b < 0x80) {
+                    continue;
+                }
+                if (!start(b)) {
+                    return false;
+                }
+            } else {
+                int b = data.get(pos++) & 0xFF;
+                if (b < mLower || b > mUpper) {
+                    return false;
+                }
+                mLower = 0x80;
+                mUpper = 0xBF;
+                mNeeded--;
+            }
+        }
+        return true;
+    }
+
+    private boolean start(int b) {
+        mLower = 0x80;
+        mUpper = 0xBF;
+        if (b >= 0xC2 && b <= 0xDF) {
+            mNeeded = 1;
+        } else if (b >= 0xE0 && b <= 0xEF) {
+            mNeeded = 2;
+            if (b == 0xE0) {
+                mLower = 0xA0;
+            } else if (b == 0xED) {
+                mUpper = 0x9F;
+            }
+        } else if (b >= 0xF0 && b <= 0xF4) {
+            mNeeded = 3;
+            if (b == 0xF0) {
+                mLower = 0x90;
+            } else if (b == 0xF4) {
+                mUpper = 0x8F;
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /** @return {@code true} if the sequence doesn't end part way through a character. */
+    boolean isComplete() {
+        return mNeeded == 0;
+    }
+}
@@ -14,10 +14,14 @@ package com.trollworks.toolkit.io.server.websocket;
 import com.trollworks.toolkit.io.Log;
 import com.trollworks.toolkit.io.server.Personality;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A {@link Personality} for handling Web Socket connections.<br>
@@ -47,24 +51,69 @@ import java.nio.charset.StandardCharsets;
  * </pre>
  */
 public class WebSocket extends Personality {
-    public static final int                   MAX_PAYLOAD_LENGTH = 128 * 1024;
-    private             WebSocketHandler      mHandler;
-    private             boolean               mFinalFragment;
-    private             Opcode                mOpcode;
-    private             Opcode                mLastOpcode;
-    private             byte[]                mData;
-    private             int                   mState;
-    private             long                  mLength;
-    private             int                   mCount;
-    private             byte[]                mMask;
-    private             ByteArrayOutputStream mBuffer;
-    private             boolean               mClosed;
-
-    /** @param handler The {@link WebSocketHandler} to delegate to. */
+    public static final  int                             MAX_PAYLOAD_LENGTH           = 128 * 1024;
+    /** The largest message that will be reassembled in memory. */
+    public static final  int                             MAX_MESSAGE_LENGTH           = 4 * 1024 * 1024;
+    /** The default number of milliseconds between keepalive pings. */
+    public static final  long                            DEFAULT_PING_INTERVAL        = 30_000;
+    /** The default number of milliseconds to wait for a pong before closing the connection. */
+    public static final  long                            DEFAULT_PONG_TIMEOUT         = 15_000;
+    /** The default limit on the number of bytes waiting to be sent. */
+    public static final  long                            DEFAULT_MAXIMUM_QUEUED_BYTES = 16 * 1024 * 1024;
+    private static final int                             MAX_HEADER_LENGTH            = 14;
+    private static final int                             MAX_CONTROL_LENGTH           = 125;
+    private              WebSocketHandler                mHandler;
+    private              byte[]                          mHeader                      = new byte[MAX_HEADER_LENGTH];
+    private              int                             mHeaderLength;
+    private              boolean                         mInFrame;
+    private              boolean                         mFinalFragment;
+    private              Opcode                          mOpcode;
+    private              boolean                         mMasked;
+    private              int                             mMask;
+    private              long                            mFrameLength;
+    private              long                            mFrameOffset;
+    private              Opcode                          mMessageOpcode;
+    private              WebSocketMessageReceiver        mReceiver;
+    private              byte[]                          mMessage;
+    private              int                             mMessageLength;
+    private              Utf8Validator                   mUtf8                        = new Utf8Validator();
+    private              byte[]                          mControl                     = new byte[MAX_CONTROL_LENGTH];
+    private              int                             mControlLength;
+    private              PerMessageDeflate               mCompression;
+    private              DeflateContext                  mDeflate;
+    private              boolean                         mCompressedFrame;
+    private              boolean                         mCompressed;
+    private              boolean                         mCloseReceived;
+    private volatile     boolean                         mClosed;
+    private volatile     long                            mPingInterval                = DEFAULT_PING_INTERVAL;
+    private volatile     long                            mPongTimeout                 = DEFAULT_PONG_TIMEOUT;
+    private              long                            mPingSentAt;
+    private              long                            mPingNanos;
+    private volatile     long                            mRoundTripTime               = -1;
+    private volatile     long                            mMaximumQueuedBytes          = DEFAULT_MAXIMUM_QUEUED_BYTES;
+    private              AtomicLong                      mPeakQueuedBytes             = new AtomicLong();
+    private              List<WebSocketHub.Subscription> mSubscriptions               = new CopyOnWriteArrayList<>();
+    private              WebSocketMetrics                mMetrics;
+    private              Object                          mSendLock                    = new Object();
+
+    /**
+     * Creates a new {@link WebSocket} that will offer to compress messages using {@link
+     * PerMessageDeflate#DEFAULT}.
+     *
+     * @param handler The {@link WebSocketHandler} to delegate to.
+     */
     public WebSocket(WebSocketHandler handler) {
+        this(handler, PerMessageDeflate.DEFAULT);
+    }
+
+    /**
+     * @param handler     The {@link WebSocketHandler} to delegate to.
+     * @param compression The {@link PerMessageDeflate} configuration to use, or {@code null} to
+     *                    never compress messages.
+     */
+    public WebSocket(WebSocketHandler handler, PerMessageDeflate compression) {
         mHandler = handler;
-        mBuffer = new ByteArrayOutputStream();
-        mLastOpcode = Opcode.UNDEFINED;
+        mCompression = compression;
     }
 
     @Override
@@ -72,161 +121,542 @@ public class WebSocket extends Personality {
         return "WebSocket";
     }
 
+    /**
+     * Call during the opening handshake, before {@link #startConnection()}, to choose which of the
+     * extensions offered by the client will be used.
+     *
+     * @param offers The values of the client's {@code Sec-WebSocket-Extensions} headers. May be
+     *               {@code null}.
+     * @return The value for the {@code Sec-WebSocket-Extensions} header of the response, or {@code
+     *         null} if no extensions will be used.
+     */
+    public String negotiateExtensions(List<String> offers) {
+        mDeflate = mCompression != null ? mCompression.negotiate(offers) : null;
+        return mDeflate != null ? mDeflate.getResponse() : null;
+    }
+
+    /** @return {@code true} if the permessage-deflate extension is in use. */
+    public boolean isCompressionEnabled() {
+        return mDeflate != null;
+    }
+
+    /** @return The negotiated permessage-deflate state, or {@code null}. */
+    final DeflateContext getDeflateContext() {
+        return mDeflate;
+    }
+
+    /** @return {@code true} if the connection has closed. */
+    public final boolean isClosed() {
+        return mClosed;
+    }
+
+    /** @param subscription A {@link WebSocketHub.Subscription} that has been added. */
+    final void addSubscription(WebSocketHub.Subscription subscription) {
+        mSubscriptions.add(subscription);
+    }
+
+    /** @param subscription A {@link WebSocketHub.Subscription} that has been removed. */
+    final void removeSubscription(WebSocketHub.Subscription subscription) {
+        mSubscriptions.remove(subscription);
+    }
+
+    @Override
+    public void writabilityChanged(boolean writable) {
+        if (writable) {
+            for (WebSocketHub.Subscription subscription : mSubscriptions) {
+                subscription.sendPending();
+            }
+        }
+        mHandler.webSocketWritabilityChanged(this, writable);
+    }
+
+    /** @return The number of milliseconds between keepalive pings, or {@code 0} if disabled. */
+    public final long getPingInterval() {
+        return mPingInterval;
+    }
+
+    /**
+     * @param interval The number of milliseconds between keepalive pings, or {@code 0} to disable
+     *                 them. Takes effect with the next ping.
+     */
+    public final void setPingInterval(long interval) {
+        mPingInterval = interval;
+    }
+
+    /**
+     * @return The number of milliseconds to wait for the reply to a keepalive ping before
+     *         deciding the connection is dead and closing it, or {@code 0} if there is no limit.
+     */
+    public final long getPongTimeout() {
+        return mPongTimeout;
+    }
+
+    /**
+     * @param timeout The number of milliseconds to wait for the reply to a keepalive ping before
+     *                deciding the connection is dead and closing it, or {@code 0} for no limit.
+     */
+    public final void setPongTimeout(long timeout) {
+        mPongTimeout = timeout;
+    }
+
+    /**
+     * @return The round-trip time measured by the most recent keepalive ping, in nanoseconds, or
+     *         {@code -1} if none has been answered yet.
+     */
+    public final long getRoundTripTime() {
+        return mRoundTripTime;
+    }
+
+    /**
+     * @return The maximum number of bytes that may be waiting to be sent. A message that would
+     *         exceed this is not sent, and the connection is closed instead.
+     */
+    public final long getMaximumQueuedBytes() {
+        return mMaximumQueuedBytes;
+    }
+
+    /**
+     * @param maximum The maximum number of bytes that may be waiting to be sent. A message that
+     *                would exceed this is not sent, and the connection is closed instead. Pass in
+     *                {@code 0} for no limit.
+     */
+    public final void setMaximumQueuedBytes(long maximum) {
+        mMaximumQueuedBytes = maximum;
+    }
+
+    /** @return The number of bytes currently waiting to be sent. */
+    public final long getQueuedBytes() {
+        return getSession().getQueuedBytes();
+    }
+
+    /** @return The largest number of bytes that have been waiting to be sent at one time. */
+    public final long getPeakQueuedBytes() {
+        return mPeakQueuedBytes.get();
+    }
+
+    /**
+     * @param metrics The {@link WebSocketMetrics} to record this connection's activity in, or
+     *                {@code null}. Must be called before {@link #startConnection()}.
+     */
+    public final void setMetrics(WebSocketMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     /** Call when a Web Socket connection has started. */
     public void startConnection() {
+        if (mMetrics != null) {
+            mMetrics.connectionOpened();
+        }
         mHandler.webSocketConnected(this);
+        scheduleNextPing(System.currentTimeMillis());
     }
 
-    private void reset() {
-        mFinalFragment = false;
-        mOpcode = Opcode.UNDEFINED;
-        mData = null;
-        mState = 0;
-        mLength = 0;
-        mCount = 0;
-        mMask = null;
+    private void scheduleNextPing(long from) {
+        long interval = mPingInterval;
+        if (interval > 0 && !mClosed) {
+            getSession().setAlarm(from + interval);
+        }
+    }
+
+    @Override
+    public void alarm() {
+        if (mClosed || mCloseReceived) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (mPingSentAt != 0) {
+            Log.warn(getSession(), "No reply to WebSocket ping within " + (now - mPingSentAt) + "ms; closing");
+            if (mMetrics != null) {
+                mMetrics.pingTimedOut();
+            }
+            requestClose(true);
+            return;
+        }
+        if (mPingInterval <= 0) {
+            return;
+        }
+        mPingSentAt = now;
+        mPingNanos = System.nanoTime();
+        byte[] payload = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            payload[i] = (byte) (mPingNanos >>> (56 - i * 8));
+        }
+        send(Opcode.PING, payload);
+        long timeout = mPongTimeout;
+        if (timeout > 0) {
+            getSession().setAlarm(now + timeout);
+        }
     }
 
     @Override
     public void processInput(ByteBuffer buffer) throws IOException {
-        while (buffer.hasRemaining()) {
-            if (parse(buffer.get())) {
-                switch (mOpcode) {
-                case CONTINUATION:
-                    mBuffer.write(mData);
-                    if (mFinalFragment) {
-                        if (mLastOpcode == Opcode.TEXT) {
-                            mHandler.webSocketTextData(this, mBuffer.toString(StandardCharsets.UTF_8.name()));
-                        } else {
-                            mHandler.webSocketBinaryData(this, mBuffer.toByteArray());
-                        }
-                        mBuffer.reset();
-                    }
-                    break;
-                case TEXT:
-                    if (mFinalFragment) {
-                        mHandler.webSocketTextData(this, new String(mData, StandardCharsets.UTF_8));
-                        mBuffer.reset();
-                    } else {
-                        mLastOpcode = mOpcode;
-                        mBuffer.write(mData);
-                    }
-                    break;
-                case BINARY:
-                    if (mFinalFragment) {
-                        mHandler.webSocketBinaryData(this, mData);
-                        mBuffer.reset();
-                    } else {
-                        mLastOpcode = mOpcode;
-                        mBuffer.write(mData);
-                    }
-                    break;
-                case PING:
-                    int length = mData != null ? mData.length : 0;
-                    byte[] response = new byte[length];
-                    if (length > 0) {
-                        System.arraycopy(mData, 0, response, 0, length);
-                    }
-                    send(Opcode.PONG, response);
-                    break;
-                case PONG:
-                    // Ignore
-                    break;
-                case CLOSE:
-                    requestClose(false);
+        if (mCloseReceived) {
+            // Nothing may follow a close frame
+            buffer.position(buffer.limit());
+            return;
+        }
+        if (buffer.isReadOnly()) {
+            // Payloads are unmasked in place
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer);
+            copy.flip();
+            buffer = copy;
+        }
+        try {
+            readFrames(buffer);
+        } catch (IOException exception) {
+            if (mMetrics != null) {
+                mMetrics.protocolError();
+            }
+            throw exception;
+        }
+    }
+
+    private void readFrames(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && !mCloseReceived) {
+            if (!mInFrame) {
+                if (!readHeader(buffer)) {
                     return;
-                default:
-                    Log.warn(getSession(), "Ignoring unknown WebSocket opcode: " + mOpcode.getOpcode());
-                    break;
                 }
-                reset();
+                startFrame();
+            }
+            int        amount  = (int) Math.min(buffer.remaining(), mFrameLength - mFrameOffset);
+            ByteBuffer payload = buffer.slice();
+            payload.limit(amount);
+            buffer.position(buffer.position() + amount);
+            if (mMasked) {
+                unmask(payload, Integer.rotateLeft(mMask, (int) (mFrameOffset & 3) * 8));
+            }
+            mFrameOffset += amount;
+            if (mMetrics != null) {
+                mMetrics.bytesReceived(amount);
+            }
+            if (mOpcode.isControl()) {
+                payload.get(mControl, mControlLength, amount);
+                mControlLength += amount;
+            } else {
+                messageData(payload);
+            }
+            if (mFrameOffset == mFrameLength) {
+                mInFrame = false;
+                if (mOpcode.isControl()) {
+                    controlFrame();
+                } else if (mFinalFragment) {
+                    messageComplete();
+                }
             }
         }
+        if (mCloseReceived) {
+            buffer.position(buffer.limit());
+        }
     }
 
-    private boolean parse(byte b) throws IOException {
-        switch (mState) {
-        case 0:
-            if ((b & 0x70) != 0) {
-                throw new IOException("Invalid reserved bits");
+    /**
+     * @param buffer The buffer to read from.
+     * @return {@code true} if a complete frame header has been read.
+     */
+    private boolean readHeader(ByteBuffer buffer) throws IOException {
+        int pos = buffer.position();
+        if (mHeaderLength == 0 && buffer.remaining() >= 2) {
+            int length = headerLength(buffer.get(pos + 1));
+            if (buffer.remaining() >= length) {
+                // The common case: the whole header is available, so read it in place
+                parseHeader(buffer, pos);
+                buffer.position(pos + length);
+                return true;
             }
-            mFinalFragment = (b & 0x80) != 0;
-            mOpcode = Opcode.lookup((byte) (b & 0x0F));
-            if (mOpcode == Opcode.UNDEFINED) {
-                throw new IOException("Unknown opcode: " + (b & 0x0F));
+        }
+        // The header is split across reads, so gather it up
+        while (buffer.hasRemaining()) {
+            mHeader[mHeaderLength++] = buffer.get();
+            if (mHeaderLength >= 2 && mHeaderLength == headerLength(mHeader[1])) {
+                mHeaderLength = 0;
+                parseHeader(ByteBuffer.wrap(mHeader), 0);
+                return true;
             }
-            if (mOpcode.isControl() && !mFinalFragment) {
+        }
+        return false;
+    }
+
+    private static int headerLength(byte second) {
+        int length = 2;
+        switch (second & 0x7F) {
+        case 126:
+            length += 2;
+            break;
+        case 127:
+            length += 8;
+            break;
+        default:
+            break;
+        }
+        return (second & 0x80) != 0 ? length + 4 : length;
+    }
+
+    private void parseHeader(ByteBuffer buffer, int pos) throws IOException {
+        int first  = buffer.get(pos++);
+        int second = buffer.get(pos++);
+        // RSV1 marks a compressed message, if permessage-deflate was negotiated
+        int reserved = first & 0x70;
+        if (reserved != 0 && (reserved != 0x40 || mDeflate == null)) {
+            throw new IOException("Invalid reserved bits");
+        }
+        mCompressedFrame = reserved != 0;
+        mFinalFragment = (first & 0x80) != 0;
+        mOpcode = Opcode.lookup((byte) (first & 0x0F));
+        if (mOpcode == Opcode.UNDEFINED) {
+            throw new IOException("Unknown opcode: " + (first & 0x0F));
+        }
+        mMasked = (second & 0x80) != 0;
+        long length = second & 0x7F;
+        if (length == 126) {
+            length = (buffer.get(pos++) & 0xFF) << 8 | buffer.get(pos++) & 0xFF;
+        } else if (length == 127) {
+            length = 0;
+            for (int i = 0; i < 8; i++) {
+                length = length << 8 | buffer.get(pos++) & 0xFF;
+            }
+            if (length < 0) {
+                throw new IOException("Invalid payload length");
+            }
+        }
+        mFrameLength = length;
+        if (mMasked) {
+            mMask = (buffer.get(pos++) & 0xFF) << 24 | (buffer.get(pos++) & 0xFF) << 16 | (buffer.get(pos++) & 0xFF) << 8 | buffer.get(pos) & 0xFF;
+        }
+    }
+
+    private void startFrame() throws IOException {
+        mInFrame = true;
+        mFrameOffset = 0;
+        if (mCompressedFrame && (mOpcode.isControl() || mOpcode == Opcode.CONTINUATION)) {
+            throw new IOException("Compression flag set on a control or continuation frame");
+        }
+        if (mOpcode.isControl()) {
+            if (!mFinalFragment) {
                 throw new IOException("Fragmented control frame");
             }
-            mState = 1;
-            return false;
-        case 1:
-            if ((b & 0x80) != 0) {
-                mMask = new byte[4];
-            }
-            mLength = b & 0x7F;
-            if (mLength == 127) {
-                mLength = 0;
-                mState = 2;
-            } else if (mLength == 126) {
-                mLength = 0;
-                mState = 3;
-            } else {
-                mData = new byte[(int) mLength];
-                mState = mMask != null ? 4 : 5;
+            if (mFrameLength > MAX_CONTROL_LENGTH) {
+                throw new IOException("Control frame payload too large");
             }
-            return false;
-        case 2:
-            mLength |= (b & 0xFFL) << (7 - mCount) * 8;
-            if (mLength > MAX_PAYLOAD_LENGTH) {
-                throw new IOException("Payload length too large");
+            mControlLength = 0;
+            return;
+        }
+        if (mOpcode == Opcode.CONTINUATION) {
+            if (mMessageOpcode == null) {
+                throw new IOException("Continuation frame without a message to continue");
             }
-            if (++mCount == 8) {
-                mCount = 0;
-                mData = new byte[(int) mLength];
-                mState = mMask != null ? 4 : 5;
+        } else {
+            if (mMessageOpcode != null) {
+                throw new IOException("New message started before the previous one was complete");
             }
-            return false;
-        case 3:
-            mLength |= (b & 0xFFL) << (1 - mCount) * 8;
-            if (++mCount == 2) {
-                mCount = 0;
-                mData = new byte[(int) mLength];
-                mState = mMask != null ? 4 : 5;
+            mMessageOpcode = mOpcode;
+            mMessageLength = 0;
+            mCompressed = mCompressedFrame;
+            if (mCompressed) {
+                mDeflate.beginMessage();
             }
-            return false;
-        case 4:
-            mMask[mCount] = b;
-            if (++mCount == mMask.length) {
-                mCount = 0;
-                mState = 5;
+            if (mOpcode == Opcode.TEXT) {
+                mUtf8.reset();
             }
-            return false;
-        case 5:
-            if (mCount < mData.length) {
-                mData[mCount] = mMask != null ? (byte) ((b ^ mMask[mCount % mMask.length]) & 0xFF) : b;
-                ++mCount;
+            mReceiver = mHandler.createMessageReceiver(this, mOpcode == Opcode.TEXT);
+        }
+        if (mReceiver == null && (mFrameLength > MAX_PAYLOAD_LENGTH || mMessageLength + mFrameLength > MAX_MESSAGE_LENGTH)) {
+            throw new IOException("Payload length too large");
+        }
+    }
+
+    private void messageData(ByteBuffer payload) throws IOException {
+        if (mCompressed) {
+            mDeflate.setInput(payload);
+            inflate();
+            if (mFinalFragment && mFrameOffset == mFrameLength) {
+                mDeflate.finishInput();
+                inflate();
             }
-            if (mCount == mData.length) {
-                mState = 6;
-                return true;
+        } else {
+            messageBytes(payload);
+        }
+    }
+
+    private void inflate() throws IOException {
+        ByteBuffer data;
+        while ((data = mDeflate.inflate()) != null) {
+            messageBytes(data);
+        }
+    }
+
+    private void messageBytes(ByteBuffer payload) throws IOException {
+        if (mMessageOpcode == Opcode.TEXT && !mUtf8.validate(payload)) {
+            throw new IOException("Invalid UTF-8 in text message");
+        }
+        if (mReceiver != null) {
+            if (payload.hasRemaining()) {
+                mReceiver.messageData(this, payload.asReadOnlyBuffer());
             }
-            return false;
+        } else if (!mCompressed && mMessageLength == 0 && mFinalFragment && payload.remaining() == mFrameLength) {
+            // An unfragmented message that arrived in one piece can be delivered without
+            // collecting it first
+            if (mMessageOpcode == Opcode.TEXT) {
+                if (!mUtf8.isComplete()) {
+                    throw new IOException("Truncated UTF-8 in text message");
+                }
+                mHandler.webSocketTextData(this, decodeText(payload));
+            } else {
+                byte[] data = new byte[payload.remaining()];
+                payload.get(data);
+                mHandler.webSocketBinaryData(this, data);
+            }
+            mMessageOpcode = null;
+        } else {
+            int amount = payload.remaining();
+            if (mMessageLength + amount > MAX_MESSAGE_LENGTH) {
+                throw new IOException("Message too large");
+            }
+            if (mMessage == null || mMessage.length < mMessageLength + amount) {
+                mMessage = Arrays.copyOf(mMessage != null ? mMessage : new byte[0], Math.max(mMessageLength + amount, Math.min(Math.max(mMessageLength * 2, 4096), MAX_MESSAGE_LENGTH)));
+            }
+            payload.get(mMessage, mMessageLength, amount);
+            mMessageLength += amount;
+        }
+    }
+
+    private void messageComplete() throws IOException {
+        if (mMetrics != null) {
+            mMetrics.messageReceived();
+        }
+        if (mCompressed) {
+            mCompressed = false;
+            mDeflate.endMessage();
+        }
+        if (mMessageOpcode == null) {
+            // Already delivered directly from the input buffer
+            return;
+        }
+        if (mMessageOpcode == Opcode.TEXT && !mUtf8.isComplete()) {
+            throw new IOException("Truncated UTF-8 in text message");
+        }
+        if (mReceiver != null) {
+            WebSocketMessageReceiver receiver = mReceiver;
+            mReceiver = null;
+            mMessageOpcode = null;
+            receiver.messageComplete(this);
+            return;
+        }
+        byte[]  message = mMessage != null ? mMessage : new byte[0];
+        int     length  = mMessageLength;
+        boolean text    = mMessageOpcode == Opcode.TEXT;
+        mMessageOpcode = null;
+        mMessageLength = 0;
+        if (message.length > MAX_PAYLOAD_LENGTH) {
+            // Don't hang on to the memory used by an unusually large message
+            mMessage = null;
+        }
+        if (text) {
+            mHandler.webSocketTextData(this, new String(message, 0, length, StandardCharsets.UTF_8));
+        } else {
+            mHandler.webSocketBinaryData(this, Arrays.copyOf(message, length));
+        }
+    }
+
+    private static String decodeText(ByteBuffer data) {
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + data.position(), data.remaining(), StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void controlFrame() {
+        switch (mOpcode) {
+        case PING:
+            send(Opcode.PONG, Arrays.copyOf(mControl, mControlLength));
+            break;
+        case PONG:
+            if (mPingSentAt != 0 && isReplyToPing()) {
+                mRoundTripTime = System.nanoTime() - mPingNanos;
+                if (mMetrics != null) {
+                    mMetrics.roundTripMeasured(mRoundTripTime);
+                }
+                long sentAt = mPingSentAt;
+                mPingSentAt = 0;
+                scheduleNextPing(sentAt);
+            }
+            // Unsolicited pongs are permitted, and ignored
+            break;
+        case CLOSE:
+            mCloseReceived = true;
+            requestClose(false);
+            break;
         default:
-            throw new IOException("Read past end of frame");
+            Log.warn(getSession(), "Ignoring unknown WebSocket opcode: " + mOpcode.getOpcode());
+            break;
+        }
+    }
+
+    private boolean isReplyToPing() {
+        if (mControlLength != 8) {
+            return false;
+        }
+        for (int i = 0; i < 8; i++) {
+            if (mControl[i] != (byte) (mPingNanos >>> (56 - i * 8))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies a Web Socket masking key to the remaining bytes of a buffer, in place. Since masking
+     * is an exclusive-or, this both masks and unmasks. Eight bytes are processed at a time.
+     *
+     * @param buffer The buffer to modify. Its position is not changed.
+     * @param mask   The masking key, arranged so that its most significant byte applies to the
+     *               byte at the buffer's position.
+     */
+    static void unmask(ByteBuffer buffer, int mask) {
+        int  pos   = buffer.position();
+        int  limit = buffer.limit();
+        long wide  = (mask & 0xFFFFFFFFL) << 32 | mask & 0xFFFFFFFFL;
+        if (buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            wide = Long.reverseBytes(wide);
+        }
+        while (pos + 8 <= limit) {
+            buffer.putLong(pos, buffer.getLong(pos) ^ wide);
+            pos += 8;
+        }
+        // Each eight byte step leaves the key in the same alignment, so the tail starts at byte 0
+        for (int shift = 24; pos < limit; pos++, shift -= 8) {
+            buffer.put(pos, (byte) (buffer.get(pos) ^ mask >>> shift));
         }
     }
 
     @Override
     public void closing() throws IOException {
         if (!mClosed) {
-            mClosed = true;
+            synchronized (mSendLock) {
+                // Any data frame already being queued goes out ahead of the CLOSE frame
+                mClosed = true;
+            }
+            if (mMetrics != null) {
+                mMetrics.connectionClosed();
+            }
+            getSession().setAlarm(0);
+            for (WebSocketHub.Subscription subscription : mSubscriptions) {
+                subscription.cancel();
+            }
             try {
                 mHandler.webSocketClosed(this);
             } catch (Throwable throwable) {
                 Log.error(getSession(), throwable);
             }
             send(Opcode.CLOSE, new byte[0]);
+            if (mDeflate != null) {
+                synchronized (mDeflate) {
+                    mDeflate.release();
+                }
+            }
         }
     }
 
@@ -234,42 +664,125 @@ public class WebSocket extends Personality {
      * Sends a text message to the remote end.
      *
      * @param msg The message to send.
+     * @return {@code false} if the message could not be queued because the connection has closed
+     *         or the message would have exceeded {@link #getMaximumQueuedBytes()}.
      */
-    public final void send(String msg) {
-        send(Opcode.TEXT, msg.getBytes(StandardCharsets.UTF_8));
+    public final boolean send(String msg) {
+        return send(Opcode.TEXT, msg.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
      * Sends a binary message to the remote end.
      *
      * @param data The data to send.
+     * @return {@code false} if the message could not be queued because the connection has closed
+     *         or the message would have exceeded {@link #getMaximumQueuedBytes()}.
+     */
+    public final boolean send(byte[] data) {
+        return send(Opcode.BINARY, data);
+    }
+
+    private boolean send(Opcode opcode, byte[] data) {
+        if (mDeflate != null && !opcode.isControl() && mDeflate.shouldCompress(data.length)) {
+            // Messages must go out in the order they were compressed, so that the client's
+            // context stays in step with ours
+            synchronized (mDeflate) {
+                byte[] compressed = mDeflate.compress(data);
+                if (compressed != null) {
+                    return send(opcode, compressed, true);
+                }
+            }
+        }
+        return send(opcode, data, false);
+    }
+
+    private boolean send(Opcode opcode, byte[] data, boolean compressed) {
+        if (mClosed && opcode != Opcode.CLOSE) {
+            return false;
+        }
+        ByteBuffer frame   = encode(opcode, data, compressed);
+        long       maximum = mMaximumQueuedBytes;
+        if (maximum > 0 && !opcode.isControl() && getSession().getQueuedBytes() + frame.remaining() > maximum) {
+            // The client has stopped reading, so don't buffer without bound
+            Log.warn(getSession(), "WebSocket outbound queue exceeded " + maximum + " bytes; closing");
+            if (mMetrics != null) {
+                mMetrics.queueOverflowed();
+            }
+            requestClose(true);
+            return false;
+        }
+        if (opcode == Opcode.CLOSE) {
+            queueFrame(frame);
+            return true;
+        }
+        return sendFrame(frame);
+    }
+
+    /**
+     * Queues one or more encoded data frames, unless the connection has closed, as nothing may
+     * follow the CLOSE frame.
+     *
+     * @param frame The frames to send. A copy of the data is not made, so do not modify it once
+     *              passed to this method.
+     * @return {@code false} if the connection has closed.
      */
-    public final void send(byte[] data) {
-        send(Opcode.BINARY, data);
+    final boolean sendFrame(ByteBuffer frame) {
+        synchronized (mSendLock) {
+            if (mClosed) {
+                return false;
+            }
+            queueFrame(frame);
+            return true;
+        }
+    }
+
+    private void queueFrame(ByteBuffer frame) {
+        if (mMetrics != null) {
+            // Control opcodes all have their high bit set
+            mMetrics.frameSent(frame.remaining(), (frame.get(frame.position()) & 0x08) == 0);
+        }
+        send(frame);
+        long queued = getSession().getQueuedBytes();
+        if (queued > mPeakQueuedBytes.get()) {
+            mPeakQueuedBytes.accumulateAndGet(queued, Math::max);
+        }
     }
 
-    private void send(Opcode opcode, byte[] data) {
-        ByteArrayOutputStream baos      = new ByteArrayOutputStream(10 + Math.min(data.length, MAX_PAYLOAD_LENGTH));
-        int                   position  = 0;
-        int                   remaining = data.length;
+    /**
+     * Encodes a message into one or more unmasked frames, as sent by a server. Messages larger
+     * than {@link #MAX_PAYLOAD_LENGTH} are fragmented.
+     *
+     * @param opcode     The {@link Opcode} of the message.
+     * @param data       The payload of the message.
+     * @param compressed Whether the payload has been compressed with permessage-deflate.
+     * @return A buffer holding the encoded frames.
+     */
+    static ByteBuffer encode(Opcode opcode, byte[] data, boolean compressed) {
+        int size      = 0;
+        int remaining = data.length;
+        do {
+            int length = Math.min(remaining, MAX_PAYLOAD_LENGTH);
+            size += encodedHeaderLength(length) + length;
+            remaining -= length;
+        } while (remaining > 0);
+        ByteBuffer buffer   = ByteBuffer.allocate(size);
+        int        position = 0;
+        remaining = data.length;
         while (true) {
             boolean finalFragment = remaining <= MAX_PAYLOAD_LENGTH;
             int     length        = finalFragment ? remaining : MAX_PAYLOAD_LENGTH;
-            baos.write((byte) (((finalFragment ? 0x80 : 0) | opcode.getOpcode()) & 0xFF));
+            buffer.put((byte) (((finalFragment ? 0x80 : 0) | (compressed && opcode != Opcode.CONTINUATION ? 0x40 : 0) | opcode.getOpcode()) & 0xFF));
             if (length < 126) {
-                baos.write(length & 0xFF);
+                buffer.put((byte) length);
             } else if (length < 65536) {
-                baos.write(126);
-                baos.write(length >>> 8 & 0xFF);
-                baos.write(length & 0xFF);
+                buffer.put((byte) 126);
+                buffer.putShort((short) length);
             } else {
-                baos.write(127);
-                for (int i = 56; i >= 0; i -= 8) {
-                    baos.write((int) ((long) length >>> i & 0xFF));
-                }
+                buffer.put((byte) 127);
+                buffer.putLong(length);
             }
             if (length > 0) {
-                baos.write(data, position, length);
+                buffer.put(data, position, length);
                 opcode = Opcode.CONTINUATION;
                 position += length;
                 remaining -= length;
@@ -278,7 +791,15 @@ public class WebSocket extends Personality {
                 break;
             }
         }
-        send(ByteBuffer.wrap(baos.toByteArray()));
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int encodedHeaderLength(int length) {
+        if (length < 126) {
+            return 2;
+        }
+        return length < 65536 ? 4 : 10;
     }
 
     enum Opcode {
@@ -11,6 +11,8 @@
 
 package com.trollworks.toolkit.io.server.websocket;
 
+import java.io.IOException;
+
 /** Provides callbacks for handling a {@link WebSocket}. */
 public interface WebSocketHandler {
     /**
@@ -36,6 +38,34 @@ public interface WebSocketHandler {
      */
     void webSocketBinaryData(WebSocket webSocket, byte[] data);
 
+    /**
+     * Called when the first frame of a new message has arrived, before any of its data has been
+     * delivered. By default, the message is reassembled in memory and passed to {@link
+     * #webSocketTextData(WebSocket, String)} or {@link #webSocketBinaryData(WebSocket, byte[])}
+     * once it is complete.
+     *
+     * @param webSocket The {@link WebSocket} the message is being received from.
+     * @param text      {@code true} for a text message, {@code false} for a binary message.
+     * @return A {@link WebSocketMessageReceiver} to stream the message to, or {@code null} to have
+     *         it reassembled.
+     */
+    default WebSocketMessageReceiver createMessageReceiver(WebSocket webSocket, boolean text) throws IOException {
+        return null;
+    }
+
+    /**
+     * Called when the amount of data waiting to be sent crosses the server's write watermarks.
+     * While not writable, handlers that produce a steady stream of messages should hold off
+     * sending, as anything sent is only buffered in memory, up to {@link
+     * WebSocket#getMaximumQueuedBytes()}. Does nothing by default.
+     *
+     * @param webSocket The {@link WebSocket} whose writability changed.
+     * @param writable  {@code true} if more data may now be sent.
+     */
+    default void webSocketWritabilityChanged(WebSocket webSocket, boolean writable) {
+        // Does nothing by default
+    }
+
     /**
      * Called when the {@link WebSocket} is closed.
      *
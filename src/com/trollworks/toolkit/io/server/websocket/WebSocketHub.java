@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes messages to the {@link WebSocket}s subscribed to named topics. Each message is encoded
+ * into a frame just once, no matter how many subscribers there are, and the same read-only frame
+ * is queued to each of them. Subscribers that negotiated permessage-deflate without server context
+ * takeover likewise share a single compressed frame.
+ * <p>
+ * A {@link WebSocket} is unsubscribed from all topics automatically when it closes.
+ */
+public class WebSocketHub {
+    private static final Subscription[]                            NONE          = new Subscription[0];
+    private              ConcurrentHashMap<String, Subscription[]> mTopics       = new ConcurrentHashMap<>();
+    private              SlowConsumerPolicy                        mPolicy;
+    private              LongAdder                                 mPublished    = new LongAdder();
+    private              LongAdder                                 mDropped      = new LongAdder();
+    private              LongAdder                                 mCoalesced    = new LongAdder();
+    private              LongAdder                                 mDisconnected = new LongAdder();
+
+    /**
+     * @param policy The {@link SlowConsumerPolicy} to apply to subscribers that are not keeping up
+     *               with the messages published to them.
+     */
+    public WebSocketHub(SlowConsumerPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /** @return The {@link SlowConsumerPolicy} in use. */
+    public final SlowConsumerPolicy getSlowConsumerPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * @param topic     The topic to subscribe to.
+     * @param webSocket The {@link WebSocket} to subscribe.
+     * @return {@code true} if the {@link WebSocket} was not already subscribed to the topic.
+     */
+    public final boolean subscribe(String topic, WebSocket webSocket) {
+        Subscription   subscription = new Subscription(this, topic, webSocket);
+        Subscription[] added        = { null };
+        mTopics.compute(topic, (key, subscriptions) -> {
+            if (subscriptions == null) {
+                subscriptions = NONE;
+            }
+            for (Subscription one : subscriptions) {
+                if (one.mWebSocket == webSocket) {
+                    return subscriptions;
+                }
+            }
+            Subscription[] replacement = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+            replacement[subscriptions.length] = subscription;
+            added[0] = subscription;
+            return replacement;
+        });
+        if (added[0] == null) {
+            return false;
+        }
+        webSocket.addSubscription(subscription);
+        if (webSocket.isClosed()) {
+            // Lost a race with the socket closing, so don't leave it subscribed
+            unsubscribe(topic, webSocket);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param topic     The topic to unsubscribe from.
+     * @param webSocket The {@link WebSocket} to unsubscribe.
+     * @return {@code true} if the {@link WebSocket} was subscribed to the topic.
+     */
+    public final boolean unsubscribe(String topic, WebSocket webSocket) {
+        Subscription[] removed = { null };
+        mTopics.computeIfPresent(topic, (key, subscriptions) -> {
+            for (int i = 0; i < subscriptions.length; i++) {
+                if (subscriptions[i].mWebSocket == webSocket) {
+                    removed[0] = subscriptions[i];
+                    if (subscriptions.length == 1) {
+                        return null;
+                    }
+                    Subscription[] replacement = new Subscription[subscriptions.length - 1];
+                    System.arraycopy(subscriptions, 0, replacement, 0, i);
+                    System.arraycopy(subscriptions, i + 1, replacement, i, replacement.length - i);
+                    return replacement;
+                }
+            }
+            return subscriptions;
+        });
+        if (removed[0] == null) {
+            return false;
+        }
+        webSocket.removeSubscription(removed[0]);
+        return true;
+    }
+
+    /** @return The topics that currently have subscribers. */
+    public final Set<String> getTopics() {
+        return mTopics.keySet();
+    }
+
+    /**
+     * @param topic The topic to check.
+     * @return The number of {@link WebSocket}s subscribed to the topic.
+     */
+    public final int getSubscriberCount(String topic) {
+        Subscription[] subscriptions = mTopics.get(topic);
+        return subscriptions != null ? subscriptions.length : 0;
+    }
+
+    /**
+     * Publishes a text message.
+     *
+     * @param topic The topic to publish to.
+     * @param text  The message.
+     * @return The number of subscribers the message was sent to or held for.
+     */
+    public final int publish(String topic, String text) {
+        return publish(topic, WebSocket.Opcode.TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Publishes a binary message.
+     *
+     * @param topic The topic to publish to.
+     * @param data  The message. A copy of the data is not made, so do not modify it once passed to
+     *              this method.
+     * @return The number of subscribers the message was sent to or held for.
+     */
+    public final int publish(String topic, byte[] data) {
+        return publish(topic, WebSocket.Opcode.BINARY, data);
+    }
+
+    private int publish(String topic, WebSocket.Opcode opcode, byte[] data) {
+        Subscription[] subscriptions = mTopics.get(topic);
+        if (subscriptions == null) {
+            return 0;
+        }
+        mPublished.increment();
+        Message message = new Message(opcode, data);
+        int     count   = 0;
+        for (Subscription subscription : subscriptions) {
+            if (deliver(subscription, message)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean deliver(Subscription subscription, Message message) {
+        WebSocket webSocket = subscription.mWebSocket;
+        if (!webSocket.isWritable()) {
+            switch (mPolicy) {
+            case COALESCE:
+                if (subscription.mPending.getAndSet(message) != null) {
+                    mCoalesced.increment();
+                }
+                // The subscriber may have become writable before the message was stored
+                if (webSocket.isWritable()) {
+                    subscription.sendPending();
+                }
+                return true;
+            case DISCONNECT:
+                mDisconnected.increment();
+                webSocket.requestClose(true);
+                return false;
+            default:
+                mDropped.increment();
+                return false;
+            }
+        }
+        if (subscription.mPending.getAndSet(null) != null) {
+            // Superseded by this newer message
+            mCoalesced.increment();
+        }
+        webSocket.sendFrame(message.getFrame(webSocket));
+        return true;
+    }
+
+    /** @return The number of messages that have been published to topics with subscribers. */
+    public final long getPublishedCount() {
+        return mPublished.sum();
+    }
+
+    /** @return The number of times a message was not sent to a slow subscriber. */
+    public final long getDroppedCount() {
+        return mDropped.sum();
+    }
+
+    /**
+     * @return The number of times a message held for a slow subscriber was replaced by a newer
+     *         one.
+     */
+    public final long getCoalescedCount() {
+        return mCoalesced.sum();
+    }
+
+    /** @return The number of slow subscribers that have been disconnected. */
+    public final long getDisconnectedCount() {
+        return mDisconnected.sum();
+    }
+
+    /** A single {@link WebSocket}'s subscription to a topic. */
+    static final class Subscription {
+        private WebSocketHub             mHub;
+        private String                   mTopic;
+        private WebSocket                mWebSocket;
+        private AtomicReference<Message> mPending = new AtomicReference<>();
+
+        Subscription(WebSocketHub hub, String topic, WebSocket webSocket) {
+            mHub = hub;
+            mTopic = topic;
+            mWebSocket = webSocket;
+        }
+
+        /** Sends the message being held for the subscriber, if any. */
+        void sendPending() {
+            if (mWebSocket.isClosed()) {
+                return;
+            }
+            Message message = mPending.getAndSet(null);
+            if (message != null) {
+                mWebSocket.sendFrame(message.getFrame(mWebSocket));
+            }
+        }
+
+        /** Removes the subscription from its {@link WebSocketHub}. */
+        void cancel() {
+            mHub.unsubscribe(mTopic, mWebSocket);
+        }
+    }
+
+    /** A published message, along with the frames encoded for it so far. */
+    private static final class Message {
+        private WebSocket.Opcode  mOpcode;
+        private byte[]            mData;
+        private ByteBuffer        mFrame;
+        private PerMessageDeflate mCompressedWith;
+        private ByteBuffer        mCompressedFrame;
+
+        Message(WebSocket.Opcode opcode, byte[] data) {
+            mOpcode = opcode;
+            mData = data;
+        }
+
+        /**
+         * @param webSocket The {@link WebSocket} the frame will be sent to.
+         * @return A private view of the shared frame suitable for the {@link WebSocket}.
+         */
+        synchronized ByteBuffer getFrame(WebSocket webSocket) {
+            DeflateContext context = webSocket.getDeflateContext();
+            if (context != null && !context.isServerContextTakeover()) {
+                PerMessageDeflate config = context.getConfig();
+                if (mCompressedWith == null) {
+                    mCompressedWith = config;
+                    byte[] compressed = config.compress(mData);
+                    if (compressed != null) {
+                        mCompressedFrame = WebSocket.encode(mOpcode, compressed, true).asReadOnlyBuffer();
+                    }
+                }
+                if (mCompressedWith == config && mCompressedFrame != null) {
+                    return mCompressedFrame.duplicate();
+                }
+            }
+            if (mFrame == null) {
+                mFrame = WebSocket.encode(mOpcode, mData, false).asReadOnlyBuffer();
+            }
+            return mFrame.duplicate();
+        }
+    }
+}
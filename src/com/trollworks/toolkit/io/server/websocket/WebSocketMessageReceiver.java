@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+
+package com.trollworks.toolkit.io.server.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives a Web Socket message as it arrives, rather than having it reassembled in memory for a
+ * call to {@link WebSocketHandler#webSocketTextData(WebSocket, String)} or {@link
+ * WebSocketHandler#webSocketBinaryData(WebSocket, byte[])}.
+ */
+public interface WebSocketMessageReceiver {
+    /**
+     * Called for each piece of the message, in order, as it arrives. The pieces do not
+     * necessarily line up with the frames the message was sent in. For text messages, the data
+     * has already been checked to be valid UTF-8 so far, although a multi-byte character may be
+     * split across pieces.
+     *
+     * @param webSocket The {@link WebSocket} the message is being received from.
+     * @param data      The data, unmasked. Read-only, and only valid for the duration of the call.
+     */
+    void messageData(WebSocket webSocket, ByteBuffer data) throws IOException;
+
+    /**
+     * Called once the entire message has been received.
+     *
+     * @param webSocket The {@link WebSocket} the message was received from.
+     */
+    void messageComplete(WebSocket webSocket) throws IOException;
+}
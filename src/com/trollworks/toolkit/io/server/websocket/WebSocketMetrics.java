@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server.websocket;
+
+import com.trollworks.toolkit.io.json.JsonMap;
+import com.trollworks.toolkit.io.server.LatencyHistogram;
+import com.trollworks.toolkit.io.server.LatencySummary;
+import com.trollworks.toolkit.io.server.MetricsBean;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics for a group of {@link WebSocket}s, typically all of those opened through one
+ * factory. Call {@link #register(String)} to publish them through JMX.
+ */
+public final class WebSocketMetrics extends MetricsBean implements WebSocketMetricsMXBean {
+    private LongAdder        mOpen             = new LongAdder();
+    private LongAdder        mOpened           = new LongAdder();
+    private LongAdder        mMessagesReceived = new LongAdder();
+    private LongAdder        mMessagesSent     = new LongAdder();
+    private LongAdder        mBytesReceived    = new LongAdder();
+    private LongAdder        mBytesSent        = new LongAdder();
+    private LongAdder        mProtocolErrors   = new LongAdder();
+    private LongAdder        mPingTimeouts     = new LongAdder();
+    private LongAdder        mQueueOverflows   = new LongAdder();
+    private LatencyHistogram mRoundTripTime    = new LatencyHistogram();
+
+    @Override
+    public long getOpenConnectionCount() {
+        return mOpen.sum();
+    }
+
+    @Override
+    public long getOpenedConnectionCount() {
+        return mOpened.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return mMessagesReceived.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return mMessagesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return mBytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return mBytesSent.sum();
+    }
+
+    @Override
+    public long getProtocolErrorCount() {
+        return mProtocolErrors.sum();
+    }
+
+    @Override
+    public long getPingTimeoutCount() {
+        return mPingTimeouts.sum();
+    }
+
+    @Override
+    public long getQueueOverflowCount() {
+        return mQueueOverflows.sum();
+    }
+
+    @Override
+    public LatencySummary getRoundTripTime() {
+        return mRoundTripTime.getSummary();
+    }
+
+    /** @return A {@link JsonMap} holding the current values, with durations in microseconds. */
+    public JsonMap toJson() {
+        JsonMap map = new JsonMap();
+        map.put("open_connections", getOpenConnectionCount());
+        map.put("opened_connections", getOpenedConnectionCount());
+        map.put("messages_received", getMessagesReceived());
+        map.put("messages_sent", getMessagesSent());
+        map.put("bytes_received", getBytesReceived());
+        map.put("bytes_sent", getBytesSent());
+        map.put("protocol_errors", getProtocolErrorCount());
+        map.put("ping_timeouts", getPingTimeoutCount());
+        map.put("queue_overflows", getQueueOverflowCount());
+        map.put("round_trip_time", getRoundTripTime().toJson());
+        return map;
+    }
+
+    void connectionOpened() {
+        mOpen.increment();
+        mOpened.increment();
+    }
+
+    void connectionClosed() {
+        mOpen.decrement();
+    }
+
+    void messageReceived() {
+        mMessagesReceived.increment();
+    }
+
+    void bytesReceived(int amount) {
+        mBytesReceived.add(amount);
+    }
+
+    void frameSent(int length, boolean message) {
+        mBytesSent.add(length);
+        if (message) {
+            mMessagesSent.increment();
+        }
+    }
+
+    void protocolError() {
+        mProtocolErrors.increment();
+    }
+
+    void pingTimedOut() {
+        mPingTimeouts.increment();
+    }
+
+    void queueOverflowed() {
+        mQueueOverflows.increment();
+    }
+
+    void roundTripMeasured(long elapsed) {
+        mRoundTripTime.record(elapsed);
+    }
+}
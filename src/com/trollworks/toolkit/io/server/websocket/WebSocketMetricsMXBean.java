@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 1998-2020 by Richard A. Wilkes. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, version 2.0. If a copy of the MPL was not distributed with
+ * this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This Source Code Form is "Incompatible With Secondary Licenses", as
+ * defined by the Mozilla Public License, version 2.0.
+ */
+package com.trollworks.toolkit.io.server.websocket;
+
+import com.trollworks.toolkit.io.server.LatencySummary;
+
+/** The management interface for the metrics of a group of {@link WebSocket}s. */
+public interface WebSocketMetricsMXBean {
+    /** @return The number of connections currently open. */
+    long getOpenConnectionCount();
+
+    /** @return The number of connections that have been opened. */
+    long getOpenedConnectionCount();
+
+    /** @return The number of messages received. */
+    long getMessagesReceived();
+
+    /** @return The number of messages sent, not counting control frames. */
+    long getMessagesSent();
+
+    /** @return The number of payload bytes received, before any decompression. */
+    long getBytesReceived();
+
+    /** @return The number of bytes sent, including frame headers and control frames. */
+    long getBytesSent();
+
+    /** @return The number of connections closed because the client broke the protocol. */
+    long getProtocolErrorCount();
+
+    /** @return The number of connections closed because a keepalive ping went unanswered. */
+    long getPingTimeoutCount();
+
+    /** @return The number of connections closed because their outbound queue was full. */
+    long getQueueOverflowCount();
+
+    /** @return The round-trip times measured by keepalive pings. */
+    LatencySummary getRoundTripTime();
+}
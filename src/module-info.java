@@ -28,6 +28,7 @@ module com.trollworks.toolkit {
     exports com.trollworks.toolkit.io.json;
     exports com.trollworks.toolkit.io.server;
     exports com.trollworks.toolkit.io.server.http;
+    exports com.trollworks.toolkit.io.server.test;
     exports com.trollworks.toolkit.io.server.websocket;
     exports com.trollworks.toolkit.io.xml;
     exports com.trollworks.toolkit.io.xml.helper;